@@ -52,6 +52,8 @@ public class BGHistory extends ActivityWithMenu {
     private TextView statisticsTextView;
     private static final int SAMPLE_PERIOD = 1; // In minutes - The time between two consecutive readings - The lowest period we currently support: 1 minute
     private static final int GRACE_READINGS_PER_DAY = 2; // When switching from one source to another, there may be a misalignment in sample timing resulting in more readings per day
+    private static final int DETAIL_DAYS = 3; // longer ranges are reduced to what the screen can show
+    private static final int DETAIL_ZOOM = 8; // buckets per screen pixel so detail survives zooming in
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -152,6 +154,11 @@ public class BGHistory extends ActivityWithMenu {
         endDate.add(Calendar.DATE, noDays);
         int numValues = noDays * (24 * (60 / SAMPLE_PERIOD) + GRACE_READINGS_PER_DAY); // The highest sample rate we currently support
         BgGraphBuilder bgGraphBuilder = new BgGraphBuilder(this, date1.getTimeInMillis(), endDate.getTimeInMillis(), numValues, false);
+        if (noDays >= DETAIL_DAYS) {
+            // keep enough points to stay sharp when zoomed in a few times
+            bgGraphBuilder.setDetail((endDate.getTimeInMillis() - date1.getTimeInMillis()) / (double) BgGraphBuilder.FUZZER,
+                    getResources().getDisplayMetrics().widthPixels * DETAIL_ZOOM);
+        }
 
         chart = (LineChartView) findViewById(R.id.chart);
         chart.setZoomType(ZoomType.HORIZONTAL);
@@ -8,16 +8,22 @@ import android.text.style.StrikethroughSpan;
 import android.util.Log;
 
 import com.eveningoutpost.dexdrip.models.BgReading;
+import com.eveningoutpost.dexdrip.models.BgReadingCache;
 import com.eveningoutpost.dexdrip.models.JoH;
 import com.eveningoutpost.dexdrip.models.SensorSanity;
 import com.eveningoutpost.dexdrip.models.UserError;
 import com.eveningoutpost.dexdrip.utilitymodels.BgGraphBuilder;
 import com.eveningoutpost.dexdrip.utilitymodels.ColorCache;
 import com.eveningoutpost.dexdrip.utilitymodels.Pref;
+import com.eveningoutpost.dexdrip.utilitymodels.StatusItem;
 import com.eveningoutpost.dexdrip.calibrations.CalibrationAbstract;
 import com.eveningoutpost.dexdrip.utils.DexCollectionType;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static com.eveningoutpost.dexdrip.utilitymodels.ColorCache.getCol;
 import static com.eveningoutpost.dexdrip.calibrations.PluggableCalibration.getCalibrationPluginFromPreferences;
@@ -31,6 +37,9 @@ import static com.eveningoutpost.dexdrip.calibrations.PluggableCalibration.getCa
  * Designed to replace duplication within code and allow
  * for unified value to be shown that may come from multiple
  * sources.
+ * <p>
+ * The result is computed once and kept as a snapshot until a reading, calibration, preference
+ * or noise estimate changes. Each caller gets its own copy with the age brought up to date.
  */
 
 public class BestGlucose {
@@ -39,6 +48,15 @@ public class BestGlucose {
     final static boolean d = true; // debug flag
     private static SharedPreferences prefs;
 
+    private static final AtomicReference<Snapshot> snapshot = new AtomicReference<>();
+    private static final AtomicInteger prefsVersion = new AtomicInteger();
+    private static final AtomicInteger calibrationVersion = new AtomicInteger();
+    private static final AtomicLong version = new AtomicLong();
+    private static final AtomicLong computations = new AtomicLong();
+    private static final AtomicLong hits = new AtomicLong();
+    // held here as preferences only keep a weak reference to listeners
+    private static final SharedPreferences.OnSharedPreferenceChangeListener prefsListener = (p, key) -> prefsVersion.incrementAndGet();
+
     public static class DisplayGlucose {
         private Boolean stale = null;
         private Double highMark = null;
@@ -60,6 +78,31 @@ public class BestGlucose {
         public String extra_string = "";
         public String plugin_name = ""; // plugin which generated this data
         public boolean from_plugin = false; // whether a plugin was used
+        public long version = -1; // snapshot this came from, see isCurrent()
+
+        // independent copy for a caller, lazily evaluated fields are recalculated
+        private DisplayGlucose copy() {
+            final DisplayGlucose dg = new DisplayGlucose();
+            dg.doMgDl = doMgDl;
+            dg.mgdl = mgdl;
+            dg.unitized_value = unitized_value;
+            dg.delta_mgdl = delta_mgdl;
+            dg.slope = slope;
+            dg.noise = noise;
+            dg.warning = warning;
+            dg.mssince = mssince;
+            dg.timestamp = timestamp;
+            dg.unitized = unitized;
+            dg.unitized_delta = unitized_delta;
+            dg.unitized_delta_no_units = unitized_delta_no_units;
+            dg.delta_arrow = delta_arrow;
+            dg.delta_name = delta_name;
+            dg.extra_string = extra_string;
+            dg.plugin_name = plugin_name;
+            dg.from_plugin = from_plugin;
+            dg.version = version;
+            return dg;
+        }
 
 
         // Display getters - built in caching where appropriate
@@ -144,10 +187,98 @@ public class BestGlucose {
     // TODO select by time
 
 
-    public static DisplayGlucose getDisplayGlucose() {
+    // everything the calculation depends on which can change without a new reading
+    private static final class Snapshot {
+        final int readingGeneration;
+        final int prefs;
+        final int calibration;
+        final boolean follower;
+        final double lastNoise;
+        final double bestEstimate;
+        final double lastEstimate;
+        final DisplayGlucose dg; // null if there is no reading
+
+        // current inputs
+        Snapshot() {
+            this.readingGeneration = BgReadingCache.getGeneration();
+            this.prefs = prefsVersion.get();
+            this.calibration = calibrationVersion.get();
+            this.follower = Home.get_follower();
+            this.lastNoise = BgGraphBuilder.last_noise;
+            this.bestEstimate = BgGraphBuilder.best_bg_estimate;
+            this.lastEstimate = BgGraphBuilder.last_bg_estimate;
+            this.dg = null;
+        }
 
-        if (prefs == null)
+        Snapshot(final Snapshot inputs, final DisplayGlucose dg) {
+            this.readingGeneration = inputs.readingGeneration;
+            this.prefs = inputs.prefs;
+            this.calibration = inputs.calibration;
+            this.follower = inputs.follower;
+            this.lastNoise = inputs.lastNoise;
+            this.bestEstimate = inputs.bestEstimate;
+            this.lastEstimate = inputs.lastEstimate;
+            this.dg = dg;
+        }
+
+        boolean matches(final Snapshot other) {
+            return readingGeneration == other.readingGeneration
+                    && prefs == other.prefs
+                    && calibration == other.calibration
+                    && follower == other.follower
+                    && lastNoise == other.lastNoise
+                    && bestEstimate == other.bestEstimate
+                    && lastEstimate == other.lastEstimate;
+        }
+    }
+
+    public static DisplayGlucose getDisplayGlucose() {
+        if (prefs == null) {
             prefs = PreferenceManager.getDefaultSharedPreferences(xdrip.getAppContext());
+            prefs.registerOnSharedPreferenceChangeListener(prefsListener);
+        }
+        final Snapshot current = snapshot.get();
+        // inputs are sampled before calculating so a change during it forces another next time
+        final Snapshot inputs = new Snapshot();
+        if (current != null && current.matches(inputs)) {
+            hits.incrementAndGet();
+            return fresh(current.dg);
+        }
+        final DisplayGlucose dg = calculateDisplayGlucose();
+        computations.incrementAndGet();
+        if (dg != null) {
+            dg.version = version.incrementAndGet();
+        }
+        snapshot.set(new Snapshot(inputs, dg));
+        return fresh(dg);
+    }
+
+    // true if nothing this was calculated from has changed since
+    public static boolean isCurrent(final DisplayGlucose dg) {
+        final Snapshot current = snapshot.get();
+        return dg != null && current != null && current.dg != null
+                && current.dg.version == dg.version && current.matches(new Snapshot());
+    }
+
+    // calibration data used by plugins has changed
+    public static void invalidate() {
+        calibrationVersion.incrementAndGet();
+    }
+
+    private static DisplayGlucose fresh(final DisplayGlucose dg) {
+        if (dg == null) return null;
+        final DisplayGlucose copy = dg.copy();
+        copy.mssince = JoH.msSince(copy.timestamp);
+        return copy;
+    }
+
+    public static List<StatusItem> megaStatus() {
+        final List<StatusItem> l = new ArrayList<>();
+        l.add(new StatusItem("Display glucose", computations.get() + " calculated, " + hits.get() + " reused"));
+        return l;
+    }
+
+    private static DisplayGlucose calculateDisplayGlucose() {
         final DisplayGlucose dg = new DisplayGlucose(); // return value
         final boolean doMgdl = (prefs.getString("units", "mgdl").equals("mgdl"));
         final boolean is_follower = Home.get_follower();
@@ -592,12 +592,9 @@ public class GcmActivity extends FauxActivity {
     }
 
     static void processBFPbundle(String bundle) {
-        String[] bundlea = bundle.split("\\^");
-        for (String bgr : bundlea) {
-            BgReading.bgReadingInsertFromJson(bgr, false);
-        }
+        final String[] bundlea = bundle.split("\\^");
+        BgReading.processFromJsonBundle(bundlea); // also refreshes charts
         GcmActivity.requestSensorBatteryUpdate();
-        Home.staticRefreshBGCharts();
     }
 
     static void requestSensorBatteryUpdate() {
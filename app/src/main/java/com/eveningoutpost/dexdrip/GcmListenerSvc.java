@@ -479,7 +479,7 @@ public class GcmListenerSvc extends JamListenerSvc {
                             @Override
                             public void run() {
                                 try {
-                                    new WebAppHelper(new GcmListenerSvc.ServiceCallback()).executeOnExecutor(xdrip.executor, getString(R.string.wserviceurl) + "/joh-getsw/" + bfb[0]);
+                                    new WebAppHelper(new GcmListenerSvc.ServiceCallback()).executeOnExecutor(xdrip.executor.forKey("software-check"), getString(R.string.wserviceurl) + "/joh-getsw/" + bfb[0]);
                                 } catch (Exception e) {
                                     Log.e(TAG, "Exception processing run on ui thread: " + e);
                                 }
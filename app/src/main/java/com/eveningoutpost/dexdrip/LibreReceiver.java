@@ -17,6 +17,7 @@ import com.eveningoutpost.dexdrip.models.BgReading;
 import com.eveningoutpost.dexdrip.models.GlucoseData;
 import com.eveningoutpost.dexdrip.models.JoH;
 import com.eveningoutpost.dexdrip.models.Libre2RawValue;
+import com.eveningoutpost.dexdrip.models.Libre2RawWindow;
 import com.eveningoutpost.dexdrip.models.Sensor;
 import com.eveningoutpost.dexdrip.models.UserError;
 import com.eveningoutpost.dexdrip.models.UserError.Log;
@@ -26,7 +27,6 @@ import com.eveningoutpost.dexdrip.utilitymodels.StatusItem;
 import com.eveningoutpost.dexdrip.utilitymodels.Unitized;
 import com.eveningoutpost.dexdrip.utils.DexCollectionType;
 
-import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
@@ -137,6 +137,7 @@ public class LibreReceiver extends BroadcastReceiver {
                                 if (currentRawValue == null) return;
 
                                 Log.v(TAG, "got bg reading: from sensor:" + currentRawValue.serial + " rawValue:" + currentRawValue.glucose + " at:" + currentRawValue.timestamp);
+                                Libre2RawWindow.add(currentRawValue);
                                 // period of 4.5 minutes to collect 5 readings
                                 if (!BgReading.last_within_millis(DexCollectionType.getCurrentDeduplicationPeriod())) {
                                     long smoothing_minutes = Pref.getStringToInt("libre_filter_length", 25);
@@ -145,11 +146,9 @@ public class LibreReceiver extends BroadcastReceiver {
                                         dataFetchInterval = 20L;
                                     else
                                         dataFetchInterval = smoothing_minutes;
-                                    List<Libre2RawValue> smoothingValues = Libre2RawValue.weightedAverageInterval(dataFetchInterval);
-                                    smoothingValues.add(currentRawValue);
-                                    processValues(currentRawValue, smoothingValues, smoothing_minutes, context);
+                                    processValues(currentRawValue, dataFetchInterval, smoothing_minutes, context);
                                 }
-                                currentRawValue.save();
+                                Libre2RawWindow.flush(); // while we still hold the wakelock
                                 clearNFCsensorAge();
                                 break;
 
@@ -201,13 +200,16 @@ public class LibreReceiver extends BroadcastReceiver {
         return rawValue;
     }
 
-    private static void processValues(Libre2RawValue currentValue, List<Libre2RawValue> smoothingValues, long smoothing_minutes, Context context) {
+    private static void processValues(Libre2RawValue currentValue, long dataFetchInterval, long smoothing_minutes, Context context) {
         if (Sensor.currentSensor() == null) {
             Sensor.create(currentValue.timestamp, currentValue.serial);
 
         }
 
-        double value = calculateWeightedAverage(smoothingValues, currentValue.timestamp, TimeUnit.MINUTES.toMillis(smoothing_minutes));
+        final long since = JoH.tsl() - TimeUnit.MINUTES.toMillis(dataFetchInterval);
+        final StringBuilder detail = get_engineering_mode() ? new StringBuilder() : null;
+        double value = Libre2RawWindow.weightedAverage(currentValue.serial, since, currentValue.timestamp, TimeUnit.MINUTES.toMillis(smoothing_minutes), detail);
+        libre_calc_doku = (detail != null) ? detail.toString() : "";
         BgReading.bgReadingInsertLibre2(value, currentValue.timestamp, currentValue.glucose);
     }
 
@@ -229,21 +231,6 @@ public class LibreReceiver extends BroadcastReceiver {
         }
     }
 
-    private static double calculateWeightedAverage(List<Libre2RawValue> rawValues, long now, long smoothing_duration) {
-        double sum = 0;
-        double weightSum = 0;
-        DecimalFormat longformat = new DecimalFormat("#,###,###,##0.00");
-
-        libre_calc_doku = "";
-        for (Libre2RawValue rawValue : rawValues) {
-            double weight = 1 - ((now - rawValue.timestamp) / (double) smoothing_duration);
-            sum += rawValue.glucose * weight;
-            weightSum += weight;
-            libre_calc_doku += DateFormat.format("kk:mm:ss :", rawValue.timestamp) + " w:" + longformat.format(weight) + " raw: " + rawValue.glucose + "\n";
-        }
-        return Math.round(sum / weightSum);
-    }
-
     public static List<StatusItem> megaStatus() {
         final List<StatusItem> l = new ArrayList<>();
         final Sensor sensor = Sensor.currentSensor();
@@ -42,17 +42,23 @@ import android.widget.LinearLayout;
 import android.widget.ListView;
 import android.widget.TextView;
 
+import com.eveningoutpost.dexdrip.models.BgReadingCache;
 import com.eveningoutpost.dexdrip.models.DesertSync;
+import com.eveningoutpost.dexdrip.models.IobEvaluator;
 import com.eveningoutpost.dexdrip.models.JoH;
 import com.eveningoutpost.dexdrip.models.RollCall;
 import com.eveningoutpost.dexdrip.models.UserError;
+import com.eveningoutpost.dexdrip.models.UserErrorWriter;
 import com.eveningoutpost.dexdrip.services.DexCollectionService;
 import com.eveningoutpost.dexdrip.services.DoNothingService;
 import com.eveningoutpost.dexdrip.services.G5CollectionService;
 import com.eveningoutpost.dexdrip.services.Ob1G5CollectionService;
 import com.eveningoutpost.dexdrip.services.WifiCollectionService;
+import com.eveningoutpost.dexdrip.utilitymodels.GraphSourceCache;
+import com.eveningoutpost.dexdrip.utilitymodels.Inevitable;
 import com.eveningoutpost.dexdrip.utilitymodels.JamorhamShowcaseDrawer;
 import com.eveningoutpost.dexdrip.utilitymodels.PersistentStore;
+import com.eveningoutpost.dexdrip.utilitymodels.PlusAsyncExecutor;
 import com.eveningoutpost.dexdrip.utilitymodels.Pref;
 import com.eveningoutpost.dexdrip.utilitymodels.ShotStateStore;
 import com.eveningoutpost.dexdrip.utilitymodels.StatusItem;
@@ -73,6 +79,7 @@ import com.eveningoutpost.dexdrip.watch.miband.MiBandService;
 import com.eveningoutpost.dexdrip.watch.thinjam.BlueJayEntry;
 import com.eveningoutpost.dexdrip.watch.thinjam.BlueJayService;
 import com.eveningoutpost.dexdrip.wearintegration.WatchUpdaterService;
+import com.eveningoutpost.dexdrip.webservices.XdripWebService;
 import com.github.amlcurran.showcaseview.ShowcaseView;
 import com.github.amlcurran.showcaseview.targets.ViewTarget;
 import com.google.android.gms.wearable.DataMap;
@@ -133,6 +140,7 @@ public class MegaStatus extends ActivityWithMenu {
     private static final String WEB_FOLLOW = "Web Follower";
     private static final String CARELINK_FOLLOW = "CareLink Follow";
     private static final String XDRIP_LIBRE2 = "Libre2";
+    private static final String INTERNALS = "Internals";
 
     static {
         sectionAlwaysOn.add(G5_STATUS);
@@ -215,6 +223,10 @@ public class MegaStatus extends ActivityWithMenu {
                 addAsection(CARELINK_FOLLOW, "CareLink Follow Status");
             }
 
+            if (Home.get_engineering_mode()) {
+                addAsection(INTERNALS, "Internal Caches and Queues");
+            }
+
             //addAsection("Misc", "Currently Empty");
 
         } else {
@@ -283,6 +295,16 @@ public class MegaStatus extends ActivityWithMenu {
             case XDRIP_LIBRE2:
                 la.addRows(LibreReceiver.megaStatus());
                 break;
+            case INTERNALS:
+                la.addRows(BgReadingCache.megaStatus());
+                la.addRows(IobEvaluator.megaStatus());
+                la.addRows(XdripWebService.megaStatus());
+                la.addRows(UserErrorWriter.megaStatus());
+                la.addRows(Inevitable.megaStatus());
+                la.addRows(PlusAsyncExecutor.megaStatus());
+                la.addRows(BestGlucose.megaStatus());
+                la.addRows(GraphSourceCache.megaStatus());
+                break;
         }
         la.changed();
     }
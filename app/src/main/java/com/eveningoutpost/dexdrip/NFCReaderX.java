@@ -246,7 +246,7 @@ public class NFCReaderX {
                     }
                     if (d)
                         Log.d(TAG, "NFC tag discovered - going to read data");
-                    new NfcVReaderTask(context).executeOnExecutor(xdrip.executor, tag);
+                    new NfcVReaderTask(context).executeOnExecutor(xdrip.executor.forKey("nfc-reader"), tag);
                 } else {
                     if (JoH.tsl() - last_tag_discovered > 5000) {
                         vibrate(context, 4);
@@ -86,7 +86,7 @@ public class ParakeetHelper {
             toast(context, "Can't find parakeet app engine URL!");
             return;
         }
-        new WebAppHelper(new ParakeetHelper.ServiceCallback()).executeOnExecutor(xdrip.executor, url);
+        new WebAppHelper(new ParakeetHelper.ServiceCallback()).executeOnExecutor(xdrip.executor.forKey("parakeet-check"), url);
     }
 
     public static void checkParakeetNotifications(long timestamp, String geo_location) {
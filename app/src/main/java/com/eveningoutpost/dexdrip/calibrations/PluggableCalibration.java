@@ -3,6 +3,7 @@ package com.eveningoutpost.dexdrip.calibrations;
 import android.preference.ListPreference;
 import android.util.Log;
 
+import com.eveningoutpost.dexdrip.BestGlucose;
 import com.eveningoutpost.dexdrip.models.BgReading;
 import com.eveningoutpost.dexdrip.models.JoH;
 import com.eveningoutpost.dexdrip.utilitymodels.Pref;
@@ -124,6 +125,7 @@ public class PluggableCalibration {
     public static synchronized void invalidatePluginCache() {
         current_plugin_cache = null;
         memory_cache.clear();
+        BestGlucose.invalidate();
         Log.d(TAG, "Invalidated Plugin Cache");
     }
 
@@ -179,6 +181,7 @@ public class PluggableCalibration {
 
     // lazy helper function
     public static boolean invalidateCache() {
+        BestGlucose.invalidate();
         try {
             return getCalibrationPluginFromPreferences().invalidateCache();
         } catch (NullPointerException e) {
@@ -188,6 +191,7 @@ public class PluggableCalibration {
 
     // lazy helper function
     public static synchronized boolean invalidateAllCaches() {
+        BestGlucose.invalidate();
         try {
             for (Object o : memory_cache.entrySet()) {
                 Map.Entry entry = (Map.Entry) o;
@@ -207,6 +211,7 @@ public class PluggableCalibration {
 
     // lazy helper function
     public static synchronized boolean invalidateCache(String tag) {
+        BestGlucose.invalidate();
         try {
             return getCalibrationPluginByName(tag).invalidateCache();
         } catch (NullPointerException e) {
@@ -1,13 +1,28 @@
 package com.eveningoutpost.dexdrip.cgm.nsfollow;
 
+import android.database.Cursor;
+
+import com.activeandroid.ActiveAndroid;
+import com.activeandroid.Cache;
 import com.eveningoutpost.dexdrip.models.BgReading;
+import com.eveningoutpost.dexdrip.models.BgReadingCache;
+import com.eveningoutpost.dexdrip.models.JoH;
 import com.eveningoutpost.dexdrip.models.Sensor;
 import com.eveningoutpost.dexdrip.models.UserError;
+import com.eveningoutpost.dexdrip.utilitymodels.Constants;
 import com.eveningoutpost.dexdrip.utilitymodels.Inevitable;
+import com.eveningoutpost.dexdrip.utilitymodels.PersistentStore;
 import com.eveningoutpost.dexdrip.utilitymodels.Unitized;
 import com.eveningoutpost.dexdrip.cgm.nsfollow.messages.Entry;
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.TreeSet;
 import java.util.UUID;
 
 import static com.eveningoutpost.dexdrip.models.BgReading.SPECIAL_FOLLOWER_PLACEHOLDER;
@@ -16,55 +31,145 @@ import static com.eveningoutpost.dexdrip.models.BgReading.SPECIAL_FOLLOWER_PLACE
  * jamorham
  *
  * Take a list of Nightscout entries and inject as BgReadings
+ *
+ * Entries are read one at a time from the response and checked against the timestamps we
+ * already hold, new readings are saved together in one transaction. The newest entry seen
+ * is remembered as a high water mark so the next request only asks for what came after it.
  */
 
 public class EntryProcessor {
 
     private static final String TAG = "NightscoutFollowEP";
 
-    static synchronized void processEntries(final List<Entry> entries, final boolean live) {
-
-        if (entries == null) return;
-
-        final Sensor sensor = Sensor.createDefaultIfMissing();
-
-        for (final Entry entry : entries) {
-            if (entry != null) {
-                UserError.Log.d(TAG, "ENTRY: " + entry.toS());
-                UserError.Log.d(TAG, "Glucose value: " + Unitized.unitized_string_static(entry.sgv));
-
-                final long recordTimestamp = entry.getTimeStamp();
-                if (recordTimestamp > 0) {
-                    final BgReading existing = BgReading.getForPreciseTimestamp(recordTimestamp, 10000);
-                    if (existing == null) {
-                        UserError.Log.d(TAG, "NEW NEW NEW New entry: " + entry.toS());
-
-                        if (live) {
-                            final BgReading bg = new BgReading();
-                            bg.uuid = UUID.randomUUID().toString();
-                            bg.timestamp = recordTimestamp;
-                            bg.calculated_value = entry.sgv;
-                            bg.raw_data = entry.unfiltered != 0 ? entry.unfiltered : SPECIAL_FOLLOWER_PLACEHOLDER;
-                            bg.filtered_data = entry.filtered;
-                            bg.noise = entry.noise + "";
-                            // TODO need to handle slope??
-                            bg.sensor = sensor;
-                            bg.sensor_uuid = sensor.uuid;
-                            bg.source_info = "Nightscout Follow";
-                            bg.save();
-                            Inevitable.task("entry-proc-post-pr",500, () -> bg.postProcess(false));
-                        }
-                    } else {
-                       // break; // stop if we have this reading TODO are entries always in order?
-                    }
-                } else {
-                    UserError.Log.e(TAG, "Could not parse a timestamp from: " + entry.toS());
-                }
-
-            } else {
+    private static final String HIGH_WATER_MARK = "nsfollow-entries-high-water";
+    private static final long DUPLICATE_MS = 10000; // readings closer than this are the same reading
+    static final int MAX_ENTRIES = (int) (Constants.DAY_IN_MS / Constants.MINUTE_IN_MS) + 60; // a day of one minute data
+
+    // only ask for entries after this, never ahead of the newest reading we actually hold and never more than a day back
+    static long since() {
+        long mark = PersistentStore.getLong(HIGH_WATER_MARK);
+        final long newest = BgReadingCache.newest(BgReadingCache.ANY_SENSOR);
+        if (newest < mark) {
+            mark = newest;
+        }
+        return Math.max(mark, JoH.tsl() - Constants.DAY_IN_MS);
+    }
+
+    static void resetHighWaterMark() {
+        PersistentStore.setLong(HIGH_WATER_MARK, 0);
+    }
+
+    // parse a json array of entries as it is read, returns the number of new readings
+    static synchronized int processEntries(final Reader json, final Gson gson, final long since, final boolean live) throws IOException {
+
+        final JsonReader reader = new JsonReader(json);
+        if (reader.peek() != JsonToken.BEGIN_ARRAY) {
+            UserError.Log.e(TAG, "Entries response is not an array: " + reader.peek());
+            return 0;
+        }
+
+        final TreeSet<Long> known = knownTimestamps(since - DUPLICATE_MS);
+        final List<BgReading> fresh = new ArrayList<>();
+        final Sensor sensor = live ? Sensor.createDefaultIfMissing() : null;
+        long highest = 0;
+        int count = 0;
+
+        reader.beginArray();
+        while (reader.hasNext()) {
+            final Entry entry = gson.fromJson(reader, Entry.class);
+            count++;
+            if (entry == null) {
                 UserError.Log.d(TAG, "Entry is null");
+                continue;
+            }
+            UserError.Log.d(TAG, "ENTRY: " + entry.toS());
+            UserError.Log.d(TAG, "Glucose value: " + Unitized.unitized_string_static(entry.sgv));
+
+            final long recordTimestamp = entry.getTimeStamp();
+            if (recordTimestamp <= 0) {
+                UserError.Log.e(TAG, "Could not parse a timestamp from: " + entry.toS());
+                continue;
+            }
+            highest = Math.max(highest, recordTimestamp);
+            if (isKnown(known, recordTimestamp)) {
+                continue;
+            }
+            UserError.Log.d(TAG, "NEW NEW NEW New entry: " + entry.toS());
+
+            if (live) {
+                final BgReading bg = new BgReading();
+                bg.uuid = UUID.randomUUID().toString();
+                bg.timestamp = recordTimestamp;
+                bg.calculated_value = entry.sgv;
+                bg.raw_data = entry.unfiltered != 0 ? entry.unfiltered : SPECIAL_FOLLOWER_PLACEHOLDER;
+                bg.filtered_data = entry.filtered;
+                bg.noise = entry.noise + "";
+                // TODO need to handle slope??
+                bg.sensor = sensor;
+                bg.sensor_uuid = sensor.uuid;
+                bg.source_info = "Nightscout Follow";
+                fresh.add(bg);
+                known.add(recordTimestamp);
             }
         }
+        reader.endArray();
+
+        UserError.Log.d(TAG, "Received " + count + " entries after " + JoH.dateTimeText(since) + " of which " + fresh.size() + " new");
+        if (count >= MAX_ENTRIES) {
+            UserError.Log.e(TAG, "Entry limit reached, some older entries may have been skipped");
+        }
+        if (!save(fresh)) {
+            return 0;
+        }
+        if (live && highest > 0) {
+            PersistentStore.setLong(HIGH_WATER_MARK, highest);
+        }
+
+        BgReading newest = null;
+        for (final BgReading bg : fresh) {
+            if (newest == null || bg.timestamp > newest.timestamp) {
+                newest = bg;
+            }
+        }
+        if (newest != null) {
+            final BgReading bg = newest;
+            Inevitable.task("entry-proc-post-pr", 500, () -> bg.postProcess(false));
+        }
+        return fresh.size();
+    }
+
+    private static boolean save(final List<BgReading> fresh) {
+        if (fresh.isEmpty()) return true;
+        ActiveAndroid.beginTransaction();
+        try {
+            for (final BgReading bg : fresh) {
+                bg.save();
+            }
+            ActiveAndroid.setTransactionSuccessful();
+            return true;
+        } catch (Exception e) {
+            UserError.Log.e(TAG, "Could not save new entries: " + e);
+            return false;
+        } finally {
+            ActiveAndroid.endTransaction();
+        }
+    }
+
+    // timestamps of the readings we already have from this time onwards
+    private static TreeSet<Long> knownTimestamps(final long from) {
+        final TreeSet<Long> known = new TreeSet<>();
+        try (final Cursor cursor = Cache.openDatabase().rawQuery("select timestamp from BgReadings where timestamp >= " + from, null)) {
+            while (cursor.moveToNext()) {
+                known.add(cursor.getLong(0));
+            }
+        }
+        return known;
+    }
 
+    private static boolean isKnown(final TreeSet<Long> known, final long timestamp) {
+        final Long below = known.floor(timestamp);
+        if (below != null && timestamp - below < DUPLICATE_MS) return true;
+        final Long above = known.ceiling(timestamp);
+        return above != null && above - timestamp < DUPLICATE_MS;
     }
 }
@@ -4,12 +4,9 @@ import com.eveningoutpost.dexdrip.BuildConfig;
 import com.eveningoutpost.dexdrip.models.JoH;
 import com.eveningoutpost.dexdrip.models.UserError;
 import com.eveningoutpost.dexdrip.utilitymodels.CollectionServiceStarter;
-import com.eveningoutpost.dexdrip.utilitymodels.Constants;
 import com.eveningoutpost.dexdrip.utilitymodels.NightscoutTreatments;
 import com.eveningoutpost.dexdrip.utilitymodels.Pref;
-import com.eveningoutpost.dexdrip.cgm.nsfollow.messages.Entry;
 import com.eveningoutpost.dexdrip.cgm.nsfollow.utils.NightscoutUrl;
-import com.eveningoutpost.dexdrip.evaluators.MissedReadingsEstimator;
 import com.eveningoutpost.dexdrip.tidepool.InfoInterceptor;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
@@ -22,7 +19,6 @@ import com.google.gson.stream.JsonToken;
 import com.google.gson.stream.JsonWriter;
 
 import java.io.IOException;
-import java.util.List;
 
 import okhttp3.OkHttpClient;
 import okhttp3.ResponseBody;
@@ -36,7 +32,6 @@ import retrofit2.http.Headers;
 import retrofit2.http.Query;
 
 import static com.eveningoutpost.dexdrip.models.JoH.emptyString;
-import static com.eveningoutpost.dexdrip.utilitymodels.BgGraphBuilder.DEXCOM_PERIOD;
 import static com.eveningoutpost.dexdrip.utilitymodels.OkHttpWrapper.enableTls12OnPreLollipop;
 import static com.eveningoutpost.dexdrip.cgm.nsfollow.NightscoutFollowService.msg;
 
@@ -54,6 +49,7 @@ public class NightscoutFollow {
 
     private static Retrofit retrofit;
     private static Nightscout service;
+    private static Gson gson;
 
 
     public interface Nightscout {
@@ -62,7 +58,7 @@ public class NightscoutFollow {
         })
 
         @GET("/api/v1/entries.json")
-        Call<List<Entry>> getEntries(@Header("api-secret") String secret, @Query("count") int count, @Query("rr") String rr);
+        Call<ResponseBody> getEntriesSince(@Header("api-secret") String secret, @Query("find[date][$gt]") long since, @Query("count") int count, @Query("rr") String rr);
 
         @GET("/api/v1/treatments")
         Call<ResponseBody> getTreatments(@Header("api-secret") String secret);
@@ -87,10 +83,18 @@ public class NightscoutFollow {
         final Session session = new Session();
         session.url = new NightscoutUrl(urlString);
 
+        // only ask for entries newer than those we already have
+        final long since = EntryProcessor.since();
+
         // set up processing callback for entries
-        session.entriesCallback = new NightscoutCallback<List<Entry>>("NS entries download", session, () -> {
+        session.entriesCallback = new NightscoutCallback<ResponseBody>("NS entries download", session, () -> {
             // process data
-            EntryProcessor.processEntries(session.entries, live);
+            try (final ResponseBody body = session.entries) {
+                EntryProcessor.processEntries(body.charStream(), getGson(), since, live);
+            } catch (Exception e) {
+                UserError.Log.e(TAG, "Exception processing entries: " + e);
+                msg("Entries: " + e);
+            }
             NightscoutFollowService.updateBgReceiveDelay();
             NightscoutFollowService.scheduleWakeUp();
             msg("");
@@ -111,10 +115,8 @@ public class NightscoutFollow {
 
         if (!emptyString(urlString)) {
             try {
-                int count = Math.min(MissedReadingsEstimator.estimate() + 1, (int) (Constants.DAY_IN_MS / DEXCOM_PERIOD));
-                UserError.Log.d(TAG, "Estimating missed readings as: " + count);
-                count = Math.max(10, count); // pep up with a view to potential period mismatches - might be excessive
-                getService().getEntries(session.url.getHashedSecret(), count, JoH.tsl() + "").enqueue(session.entriesCallback);
+                UserError.Log.d(TAG, "Requesting entries after: " + JoH.dateTimeText(since));
+                getService().getEntriesSince(session.url.getHashedSecret(), since, EntryProcessor.MAX_ENTRIES, JoH.tsl() + "").enqueue(session.entriesCallback);
             } catch (Exception e) {
                 UserError.Log.e(TAG, "Exception in entries work() " + e);
                 msg("Nightscout follow entries error: " + e);
@@ -194,21 +196,28 @@ public class NightscoutFollow {
                     .addInterceptor(new GzipRequestInterceptor())
                     .build();
 
-            final Gson gson = new GsonBuilder()
-                    .registerTypeAdapterFactory(UNRELIABLE_INTEGER_FACTORY)
-                    .create();
             retrofit = new retrofit2.Retrofit.Builder()
                     .baseUrl(url)
                     .client(client)
-                    .addConverterFactory(GsonConverterFactory.create(gson))
+                    .addConverterFactory(GsonConverterFactory.create(getGson()))
                     .build();
         }
         return retrofit;
     }
 
+    static synchronized Gson getGson() {
+        if (gson == null) {
+            gson = new GsonBuilder()
+                    .registerTypeAdapterFactory(UNRELIABLE_INTEGER_FACTORY)
+                    .create();
+        }
+        return gson;
+    }
+
     public static void resetInstance() {
         retrofit = null;
         service = null;
+        EntryProcessor.resetHighWaterMark(); // settings changed so it may be a different site
         UserError.Log.d(TAG, "Instance reset");
         CollectionServiceStarter.restartCollectionServiceBackground();
     }
@@ -1,10 +1,7 @@
 package com.eveningoutpost.dexdrip.cgm.nsfollow;
 
-import com.eveningoutpost.dexdrip.cgm.nsfollow.messages.Entry;
 import com.eveningoutpost.dexdrip.cgm.nsfollow.utils.NightscoutUrl;
 
-import java.util.List;
-
 import okhttp3.ResponseBody;
 
 /**
@@ -18,27 +15,24 @@ import okhttp3.ResponseBody;
 public class Session {
 
     public NightscoutUrl url;
-    public BaseCallback<List<Entry>> entriesCallback;
+    public BaseCallback<ResponseBody> entriesCallback;
     public BaseCallback<ResponseBody> treatmentsCallback;
 
 
-    // most recent set of entries
-    public List<Entry> entries;
+    // most recent entries raw json, parsed as it is read
+    public ResponseBody entries;
     // most recent treatments raw json
     public ResponseBody treatments;
 
 
-    // populate session data from a response object which could be any supported type
-    public void populate(final Object object) {
-        if (object instanceof List) {
-            final List<Object> someList = (List<Object>)object;
-
-            if (!someList.isEmpty() && someList.get(0) instanceof Entry) {
-                entries = (List<Entry>)object;
+    // populate session data from a response object, the callback it came from tells us what it is
+    public void populate(final BaseCallback<?> callback, final Object object) {
+        if (object instanceof ResponseBody) {
+            if (callback == entriesCallback) {
+                entries = (ResponseBody) object;
+            } else if (callback == treatmentsCallback) {
+                treatments = (ResponseBody) object;
             }
-
-        } else if (object instanceof ResponseBody) {
-            treatments = (ResponseBody)object;
         }
     }
 
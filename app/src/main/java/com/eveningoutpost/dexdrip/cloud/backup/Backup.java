@@ -23,15 +23,21 @@ import com.eveningoutpost.dexdrip.utilitymodels.Inevitable;
 import com.eveningoutpost.dexdrip.utilitymodels.PersistentStore;
 import com.eveningoutpost.dexdrip.utilitymodels.Pref;
 import com.eveningoutpost.dexdrip.utils.CipherUtils;
+import com.eveningoutpost.dexdrip.utils.DatabaseSnapshot;
 import com.eveningoutpost.dexdrip.utils.SdcardImportExport;
 import com.eveningoutpost.dexdrip.xdrip;
+import com.google.common.io.CountingOutputStream;
 
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.security.InvalidAlgorithmParameterException;
@@ -39,6 +45,7 @@ import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
@@ -65,6 +72,8 @@ public class Backup {
     public static final String PREF_AUTO_BACKUP_MOBILE = "backup-automatic-mobile";
     private static final String XDRIP_CONTENT_TYPE = "xDripBackup://";
     private static final String[] dbSuffix = {"-journal", "-shm", "-wal"};
+    private static final int PIPE_BUFFER_SIZE = 256 * 1024;
+    private static final int GZIP_BUFFER_SIZE = 64 * 1024;
 
     public static boolean compressEncryptFilesToUri(final BackupStatus status, final String destinationUri, final String... sourcePaths) {
         if (!emptyString(destinationUri)) {
@@ -93,23 +102,29 @@ public class Backup {
         }
     }
 
-    public static boolean compressEncryptFilesToOutputStream(final OutputStream outputStream, final String... sourcePaths) {
+    public static boolean compressEncryptFilesToOutputStream(final OutputStream destination, final String... sourcePaths) {
         try {
+            val start = JoH.tsl();
+            val outputStream = new CountingOutputStream(destination);
             val metaData = new BackupMetaData();
             metaData.sourceDevice = cleanPhoneName();
             metaData.ob2 = CipherUtils.getRandomHexKey();
             metaData.writeToOutputStream(outputStream);
+            long uncompressed;
             try (val cipherOutputStream = new CipherOutputStream(outputStream, getCipher(true, metaData))) {
-                try (val gzipOutputStream = new GZIPOutputStream(cipherOutputStream)) {
+                try (val gzipOutputStream = new GZIPOutputStream(cipherOutputStream, GZIP_BUFFER_SIZE)) {
+                    val countingStream = new CountingOutputStream(gzipOutputStream);
                     for (val sourcePath : sourcePaths) {
-                        pushFileToStreamWithHeader(sourcePath, gzipOutputStream);
+                        pushFileToStreamWithHeader(sourcePath, countingStream);
                     }
-                    gzipOutputStream.flush();
+                    countingStream.flush();
+                    uncompressed = countingStream.getCount();
                 }
                 cipherOutputStream.flush();
             }
             outputStream.flush();
-            UserError.Log.d(TAG, "Data written successfully");
+            UserError.Log.uel(TAG, "Backup written: " + uncompressed / 1024 + "kB compressed to "
+                    + DatabaseSnapshot.throughput(outputStream.getCount(), JoH.msSince(start)));
             return true;
         } catch (NullPointerException | IOException e) {
             UserError.Log.e(TAG, "Output IO Error " + e);
@@ -133,6 +148,7 @@ public class Backup {
         return Pair.create(parts[2], parts[3]);
     }
 
+    // archive is written by a second thread through a pipe so it is uploaded as it is produced
     private static boolean compressEncryptFilesXdripStream(final BackupStatus status, final String uri, final String... sourcePaths) throws IOException {
         val parts = getIdNameFromXdripUri(uri);
         if (parts == null) {
@@ -140,29 +156,65 @@ public class Backup {
             status.status("Invalid file uri");
             return false;
         }
-        val temp = File.createTempFile("backup" + JoH.tsl(), "dat", xdrip.getAppContext().getCacheDir());
-        try {
-            status.status(xdrip.gs(R.string.creating_local_backup));
-            val fos = new FileOutputStream(temp);
-            val writeResult = compressEncryptFilesToOutputStream(fos, sourcePaths);
-            fos.close();
-            if (!writeResult) {
-                UserError.Log.e(TAG, "Failed to write backup to temporary file");
-                status.status(xdrip.gs(R.string.error_with_local_backup));
-                return false;
+        val written = new AtomicBoolean();
+        val pipeIn = new PipedInputStream(PIPE_BUFFER_SIZE);
+        val pipeOut = new PipedOutputStream(pipeIn);
+        // the pipe is only closed once we know whether the archive is complete
+        final OutputStream unclosable = new FilterOutputStream(pipeOut) {
+            @Override
+            public void write(final byte[] b, final int off, final int len) throws IOException {
+                out.write(b, off, len);
             }
-            val fis = new FileInputStream(temp);
+
+            @Override
+            public void close() throws IOException {
+                flush();
+            }
+        };
+        val writer = new Thread(() -> {
             try {
-                status.status(xdrip.gs(R.string.uploading_to_cloud));
-                DriveManager.getInstance().saveFromStreamSync(parts.first, parts.second, fis); // TODO catch null
-                status.status(xdrip.gs(R.string.upload_successful));
-                return true;
-            } catch (NullPointerException e) {
-                UserError.Log.e(TAG, "Could not create drive service");
-                status.status(xdrip.gs(R.string.error_uploading_to_cloud));
+                written.set(compressEncryptFilesToOutputStream(unclosable, sourcePaths));
+            } finally {
+                try {
+                    pipeOut.close();
+                } catch (IOException e) {
+                    //
+                }
+            }
+        }, "backup-writer");
+
+        // a short archive must fail the upload rather than replace a good backup
+        final InputStream inputStream = new FilterInputStream(pipeIn) {
+            @Override
+            public int read(final byte[] b, final int off, final int len) throws IOException {
+                final int result = super.read(b, off, len);
+                if (result == -1 && !written.get()) {
+                    throw new IOException("Backup archive incomplete");
+                }
+                return result;
+            }
+
+            @Override
+            public int read() throws IOException {
+                final int result = super.read();
+                if (result == -1 && !written.get()) {
+                    throw new IOException("Backup archive incomplete");
+                }
+                return result;
             }
+        };
+
+        try {
+            status.status(xdrip.gs(R.string.uploading_to_cloud));
+            writer.start();
+            DriveManager.getInstance().saveFromStreamSync(parts.first, parts.second, inputStream); // TODO catch null
+            status.status(xdrip.gs(R.string.upload_successful));
+            return true;
+        } catch (NullPointerException e) {
+            UserError.Log.e(TAG, "Could not create drive service");
+            status.status(xdrip.gs(R.string.error_uploading_to_cloud));
         } finally {
-            temp.delete();
+            pipeIn.close(); // unblocks the writer if the upload stopped early
         }
 
         return false;
@@ -310,7 +362,18 @@ public class Backup {
 
     public static boolean doCompleteBackup(final BackupStatus status) {
         UserError.Log.d(TAG, "doCompleteBackup() called");
-        return compressEncryptFilesToUri(status, getBackupUri(), getPreferencesPath(), getDatabasePath());
+        status.status(xdrip.gs(R.string.creating_local_backup));
+        // consistent copy named as the database file so restore puts it back in the right place
+        val snapshot = DatabaseSnapshot.take(new File(xdrip.getAppContext().getCacheDir(), "backup/" + new File(getDatabasePath()).getName()));
+        if (snapshot == null) {
+            status.status(xdrip.gs(R.string.error_with_local_backup));
+            return false;
+        }
+        try {
+            return compressEncryptFilesToUri(status, getBackupUri(), getPreferencesPath(), snapshot.file.getPath());
+        } finally {
+            snapshot.delete();
+        }
     }
 
     public static String cleanPhoneName() {
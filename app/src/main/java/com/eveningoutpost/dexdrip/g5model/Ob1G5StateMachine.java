@@ -5,10 +5,12 @@ import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.os.Build;
 import android.os.PowerManager;
+import android.util.Pair;
 
 import com.eveningoutpost.dexdrip.Home;
 import com.eveningoutpost.dexdrip.importedlibraries.usbserial.util.HexDump;
 import com.eveningoutpost.dexdrip.models.BgReading;
+import com.eveningoutpost.dexdrip.models.BgReadingCache;
 import com.eveningoutpost.dexdrip.models.JoH;
 import com.eveningoutpost.dexdrip.models.Prediction;
 import com.eveningoutpost.dexdrip.models.Sensor;
@@ -112,7 +114,6 @@ public class Ob1G5StateMachine {
     private static final long BATTERY_READ_PERIOD_MS = HOUR_IN_MS * 12; // how often to poll battery data (12 hours)
     private static final long MAX_BACKFILL_PERIOD_MS = HOUR_IN_MS * 3; // how far back to request backfill data
     private static final long MAX_BACKFILL_PERIOD_MS2 = HOUR_IN_MS * 24; // A larger backfill option
-    private static final int BACKFILL_CHECK_SMALL = 3;
 
     private static final boolean getVersionDetails = true; // try to load firmware version details
     private static final boolean getBatteryDetails = true; // try to load battery info details
@@ -120,7 +121,6 @@ public class Ob1G5StateMachine {
     private static final LinkedBlockingDeque<Ob1Work> commandQueue = new LinkedBlockingDeque<>();
 
     private static boolean speakSlowly = false; // slow down bluetooth comms for android wear etc
-    private static int nextBackFillCheckSize = BACKFILL_CHECK_SMALL;
 
     private static final boolean d = false;
 
@@ -140,9 +140,6 @@ public class Ob1G5StateMachine {
         }
         return maxBackfillPeriod_MS;
     }
-    public static int backfillCheckLarge() {
-        return (int) (maxBackfillPeriod_MS() / DEXCOM_PERIOD);
-    }
 
     // Auth Check + Request
     @SuppressLint("CheckResult")
@@ -725,7 +722,6 @@ public class Ob1G5StateMachine {
                             if (!setStoredFirmwareBytes(getTransmitterID(), 1, bytes, true)) {
                                 UserError.Log.e(TAG, "Could not save out firmware version!");
                             }
-                            nextBackFillCheckSize = backfillCheckLarge();
                             if (JoH.ratelimit("g6-evaluate", 600)) {
                                 Inevitable.task("evaluteG6Settings", 10000, () -> evaluateG6Settings());
                             }
@@ -735,7 +731,6 @@ public class Ob1G5StateMachine {
                             if (!setStoredFirmwareBytes(getTransmitterID(), 0, bytes, true)) {
                                 UserError.Log.e(TAG, "Could not save out firmware version!");
                             }
-                            nextBackFillCheckSize = backfillCheckLarge();
                             if (JoH.ratelimit("g6-evaluate", 600)) {
                                 Inevitable.task("evaluteG6Settings", 10000, () -> evaluateG6Settings());
                             }
@@ -747,7 +742,6 @@ public class Ob1G5StateMachine {
                                 UserError.Log.e(TAG, "Could not save out firmware version!");
                             }
                             SensorDays.clearCache();
-                            nextBackFillCheckSize = backfillCheckLarge();
                             if (JoH.ratelimit("g6-evaluate", 600)) {
                                 Inevitable.task("evaluteG6Settings", 10000, () -> evaluateG6Settings());
                             }
@@ -761,7 +755,6 @@ public class Ob1G5StateMachine {
                                     PersistentStore.setBoolean(G5_BATTERY_WEARABLE_SEND, true);
                                 }
                             }
-                            nextBackFillCheckSize = backfillCheckLarge();
                             break;
 
                         case SessionStartRxMessage:
@@ -1064,42 +1057,20 @@ public class Ob1G5StateMachine {
             return;
         }
 
-        final int check_readings = nextBackFillCheckSize;
-        UserError.Log.d(TAG, "Checking " + check_readings + " for backfill requirement");
-        final List<BgReading> lastReadings = BgReading.latest_by_size(check_readings);
-        boolean ask_for_backfill = false;
-        long earliest_timestamp = tsl() - maxBackfillPeriod_MS();
-        long latest_timestamp = tsl();
-        if ((lastReadings == null) || (lastReadings.size() != check_readings)) {
-            ask_for_backfill = true;
-        } else {
-            for (int i = 0; i < lastReadings.size(); i++) {
-                final BgReading reading = lastReadings.get(i);
-                if ((reading == null) || (msSince(reading.timestamp) > ((DEXCOM_PERIOD * i) + Constants.MINUTE_IN_MS * 7))) {
-                    ask_for_backfill = true;
-                    if ((reading != null) && (msSince(reading.timestamp) <= maxBackfillPeriod_MS())) {
-                        earliest_timestamp = reading.timestamp;
-                    }
-                    if (reading != null) {
-                        UserError.Log.d(TAG, "Flagging backfill tripped by reading: " + i + " at time: " + JoH.dateTimeText(reading.timestamp) + " creating backfill window: " + JoH.dateTimeText(earliest_timestamp));
-                    } else {
-                        UserError.Log.d(TAG, "Flagging backfill tripped by null reading: " + i);
-                    }
-                    break;
-                } else {
-                    // good record
-                    latest_timestamp = reading.timestamp;
-                }
-            }
+        // the newest gap in our readings from this sensor, found from the coverage index without fetching readings
+        final long now = tsl();
+        final Pair<Long, Long> gap = BgReadingCache.newestGap(sensor.getId(), now - maxBackfillPeriod_MS(), now);
+        if (gap != null) {
+            UserError.Log.d(TAG, "Flagging backfill tripped by gap: " + JoH.dateTimeText(gap.first) + " -> " + JoH.dateTimeText(gap.second));
         }
+        final boolean ask_for_backfill = gap != null;
 
         if (ask_for_backfill) {
-            nextBackFillCheckSize = backfillCheckLarge();
             monitorBackFill(parent, connection);
 
             final long txStartTime = DexTimeKeeper.getTxStartTimestamp(getTransmitterID()); // the time the transmitter reports as starting or 0 if we don't know
-            final long startTime = Math.max(earliest_timestamp - DEXCOM_PERIOD, Math.max(txStartTime + DEXCOM_PERIOD, sensor.started_at));
-            final long endTime = latest_timestamp + DEXCOM_PERIOD;
+            final long startTime = Math.max(gap.first - DEXCOM_PERIOD, Math.max(txStartTime + DEXCOM_PERIOD, sensor.started_at));
+            final long endTime = gap.second + DEXCOM_PERIOD;
 
             if (startTime >= endTime) {
                 UserError.Log.e(TAG, "Cannot process backfill request where start time would be after end time");
@@ -1117,8 +1088,6 @@ public class Ob1G5StateMachine {
                        BackFillTxMessage2.get(getTransmitterID(), startTime, endTime),
                        "Get backfill2 since: " + JoH.hourMinuteString(startTime));
            }
-        } else {
-            nextBackFillCheckSize = BACKFILL_CHECK_SMALL;
         }
     }
 
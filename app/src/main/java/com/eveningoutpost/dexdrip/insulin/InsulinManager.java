@@ -205,6 +205,21 @@ public class InsulinManager {
         return max;
     }
 
+    // changes whenever the insulin definitions used for activity curves change
+    public static String signature() {
+        checkInitialized();
+        final StringBuilder sb = new StringBuilder();
+        if (profiles != null) {
+            for (final Insulin i : profiles) {
+                sb.append(i.getName()).append(':').append(i.isEnabled()).append(':').append(i.getMaxEffect()).append(';');
+            }
+        }
+        final Insulin basal = basalProfile;
+        final Insulin bolus = bolusProfile;
+        sb.append(basal != null ? basal.getName() : "").append(':').append(bolus != null ? bolus.getName() : "");
+        return sb.toString();
+    }
+
     public static Boolean isProfileEnabled(Insulin i) {
         return i.isEnabled();
     }
@@ -14,6 +14,7 @@ import com.activeandroid.query.Select;
 import com.eveningoutpost.dexdrip.services.ActivityRecognizedService;
 import com.eveningoutpost.dexdrip.utilitymodels.AlertPlayer;
 import com.eveningoutpost.dexdrip.utilitymodels.Notifications;
+import com.eveningoutpost.dexdrip.xdrip;
 
 import java.util.ArrayList;
 import java.util.Calendar;
@@ -117,6 +118,10 @@ public class AlertType extends Model {
     private final static String TAG_ALERT = "AlertBg";
     private static boolean patched = false;
 
+    private static volatile AlertTypeIndex index;
+    private static int indexGeneration;
+    private static SharedPreferences.OnSharedPreferenceChangeListener prefListener; // held here as prefs only keep a weak reference
+
     // This shouldn't be needed but it seems it is
     public static void fixUpTable() {
         if (patched) return;
@@ -176,11 +181,11 @@ public class AlertType extends Model {
         return at;
     }
 
-    private static AlertType filter_alert_on_stale(AlertType alert, SharedPreferences prefs)
+    private static AlertType filter_alert_on_stale(AlertType alert, AlertTypeIndex index)
     {
         // this should already be happening in notifications.java but it doesn't seem to work so adding here as well
-        if (prefs.getBoolean("disable_alerts_stale_data", false)) {
-            final int stale_minutes = Math.max(6, Integer.parseInt(prefs.getString("disable_alerts_stale_data_minutes", "15")) + 2);
+        if (alert != null && index.staleMinutes > 0) {
+            final int stale_minutes = index.staleMinutes;
             if (!BgReading.last_within_minutes(stale_minutes)) {
                 Log.w(TAG, "Blocking alarm raise as data older than: " + stale_minutes);
                 return null; // block
@@ -194,22 +199,17 @@ public class AlertType extends Model {
         // Chcek the low alerts
 
         final double offset = ActivityRecognizedService.raise_limit_due_to_vehicle_mode() ? ActivityRecognizedService.getVehicle_mode_adjust_mgdl() : 0;
+        final AlertTypeIndex index = getIndex();
+        final Calendar rightNow = Calendar.getInstance();
+        final int time_now = toTime(rightNow.get(Calendar.HOUR_OF_DAY), rightNow.get(Calendar.MINUTE));
 
         if(prefs.getLong("low_alerts_disabled_until", 0) > new Date().getTime()){
             Log.i("NOTIFICATIONS", "get_highest_active_alert_helper: Low alerts are currently disabled!! Skipping low alerts");
 
         } else {
-            List<AlertType> lowAlerts  = new Select()
-                    .from(AlertType.class)
-                    .where("threshold >= ?", bg-offset)
-                    .where("above = ?", false)
-                    .orderBy("threshold asc")
-                    .execute();
-
-            for (AlertType lowAlert : lowAlerts) {
-                if(lowAlert.should_alarm(bg-offset)) {
-                    return filter_alert_on_stale(lowAlert,prefs);
-                }
+            final AlertType lowAlert = index.low(bg - offset, time_now);
+            if (lowAlert != null) {
+                return filter_alert_on_stale(lowAlert, index);
             }
         }
 
@@ -219,24 +219,65 @@ public class AlertType extends Model {
             Log.i("NOTIFICATIONS", "get_highest_active_alert_helper: High alerts are currently disabled!! Skipping high alerts");
             ;
         } else {
-            List<AlertType> HighAlerts  = new Select()
-                    .from(AlertType.class)
-                    .where("threshold <= ?", bg)
-                    .where("above = ?", true)
-                    .orderBy("threshold desc")
-                    .execute();
-
-            for (AlertType HighAlert : HighAlerts) {
-                //Log.e(TAG, "Testing high alert " + HighAlert.toString());
-                if(HighAlert.should_alarm(bg)) {
-                    return filter_alert_on_stale(HighAlert,prefs);
-                }
+            final AlertType highAlert = index.high(bg, time_now);
+            if (highAlert != null) {
+                return filter_alert_on_stale(highAlert, index);
             }
         }
         // no alert found
         return null;
     }
 
+    // compiled alert definitions, built from the database only when they or the stale data preferences have changed
+    static AlertTypeIndex getIndex() {
+        final AlertTypeIndex current = index;
+        if (current != null) return current;
+
+        final int generation;
+        synchronized (AlertType.class) {
+            generation = indexGeneration;
+            registerPrefListener();
+        }
+        final List<AlertType> alerts = new Select()
+                .from(AlertType.class)
+                .orderBy("_id asc")
+                .execute();
+        final AlertTypeIndex compiled = new AlertTypeIndex(alerts, staleMinutesFromPrefs());
+        synchronized (AlertType.class) {
+            if (generation == indexGeneration) {
+                index = compiled; // only keep it if nothing changed while we were reading
+            }
+        }
+        Log.d(TAG, "Compiled alert index with " + compiled.size() + " active alerts");
+        return compiled;
+    }
+
+    public static synchronized void invalidateIndex() {
+        indexGeneration++;
+        index = null;
+    }
+
+    private static int staleMinutesFromPrefs() {
+        final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(xdrip.getAppContext());
+        if (!prefs.getBoolean("disable_alerts_stale_data", false)) return -1;
+        try {
+            return Math.max(6, Integer.parseInt(prefs.getString("disable_alerts_stale_data_minutes", "15")) + 2);
+        } catch (NumberFormatException e) {
+            Log.e(TAG, "Invalid stale data minutes: " + e);
+            return 17;
+        }
+    }
+
+    private static void registerPrefListener() {
+        if (prefListener != null) return;
+        prefListener = (prefs, key) -> {
+            if (key != null && key.startsWith("disable_alerts_stale_data")) {
+                invalidateIndex();
+            }
+        };
+        PreferenceManager.getDefaultSharedPreferences(xdrip.getAppContext()).registerOnSharedPreferenceChangeListener(prefListener);
+    }
+
     // returns true, if one allert is up and the second is down
     public static boolean OpositeDirection(AlertType a1, AlertType a2) {
         if (a1.above != a2.above) {
@@ -280,6 +321,7 @@ public class AlertType extends Model {
         for (AlertType alert : Alerts) {
             alert.delete();
         }
+        invalidateIndex();
         ActiveBgAlert.ClearData();
     }
 
@@ -314,6 +356,7 @@ public class AlertType extends Model {
         at.default_snooze = snooze;
         at.vibrate = vibrate;
         at.save();
+        invalidateIndex();
     }
 
     public static void update_alert(
@@ -354,12 +397,14 @@ public class AlertType extends Model {
         at.default_snooze = snooze;
         at.vibrate = vibrate;
         at.save();
+        invalidateIndex();
     }
     public static void remove_alert(String uuid) {
         AlertType alert = get_alert(uuid);
 		if(alert != null) {
 	        alert.delete();
         }
+        invalidateIndex();
     }
 
     public String toString() {
@@ -523,6 +568,13 @@ public class AlertType extends Model {
         Calendar rightNow = Calendar.getInstance();
         int time_now = toTime(rightNow.get(Calendar.HOUR_OF_DAY), rightNow.get(Calendar.MINUTE));
         Log.d(TAG, "time_now is " + time_now + " minutes" + " start_time " + s_start_time_minutes + " end_time " + s_end_time_minutes);
+        return in_time_frame(false, s_start_time_minutes, s_end_time_minutes, time_now);
+    }
+
+    static boolean in_time_frame(boolean s_all_day, int s_start_time_minutes, int s_end_time_minutes, int time_now) {
+        if (s_all_day) {
+            return true;
+        }
         if(s_start_time_minutes < s_end_time_minutes) {
             if (time_now >= s_start_time_minutes && time_now <= s_end_time_minutes) {
                 return true;
@@ -686,6 +738,7 @@ public class AlertType extends Model {
         } catch (NullPointerException e) {
             Log.e(TAG, "Got null pointer exception 2: " + e);
         }
+        invalidateIndex();
         // Delete the string, so next time we will not load the data
         prefs.edit().putString("saved_alerts", "").apply();
         return true;
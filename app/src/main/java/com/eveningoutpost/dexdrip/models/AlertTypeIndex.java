@@ -0,0 +1,115 @@
+package com.eveningoutpost.dexdrip.models;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable lookup table compiled from the alert definitions
+ * <p>
+ * Active low and high alerts are each held sorted by threshold along with a mask of the minutes
+ * of the day they are live, so choosing the alert for a reading is a binary search on the glucose
+ * value followed by a short walk and needs no database access. AlertType throws the index away
+ * and compiles a new one when the alerts or the preferences it depends on change.
+ */
+
+final class AlertTypeIndex {
+
+    static final int MINUTES_PER_DAY = 24 * 60;
+
+    private final AlertType[] lows; // ascending threshold
+    private final double[] lowThresholds;
+    private final long[][] lowMasks; // null means all day
+    private final AlertType[] highs; // ascending threshold
+    private final double[] highThresholds;
+    private final long[][] highMasks;
+    final int staleMinutes; // alerts are blocked when data is older than this, -1 if disabled
+
+    AlertTypeIndex(final List<AlertType> alerts, final int staleMinutes) {
+        final List<AlertType> low = new ArrayList<>();
+        final List<AlertType> high = new ArrayList<>();
+        for (final AlertType alert : alerts) {
+            if (alert.active) {
+                (alert.above ? high : low).add(alert);
+            }
+        }
+        // sorts are stable so lows with the same threshold keep their database order, highs are
+        // walked from the top so their ties are reversed to also be met in database order
+        Collections.sort(low, (a, b) -> Double.compare(a.threshold, b.threshold));
+        Collections.sort(high, (a, b) -> Double.compare(b.threshold, a.threshold));
+        Collections.reverse(high);
+
+        lows = low.toArray(new AlertType[0]);
+        lowThresholds = thresholds(lows);
+        lowMasks = masks(lows);
+        highs = high.toArray(new AlertType[0]);
+        highThresholds = thresholds(highs);
+        highMasks = masks(highs);
+        this.staleMinutes = staleMinutes;
+    }
+
+    // the lowest live low alert whose threshold is at or above bg
+    AlertType low(final double bg, final int minuteOfDay) {
+        for (int i = firstAbove(lowThresholds, bg, true); i < lows.length; i++) {
+            if (live(lowMasks[i], minuteOfDay)) return lows[i];
+        }
+        return null;
+    }
+
+    // the highest live high alert whose threshold is at or below bg
+    AlertType high(final double bg, final int minuteOfDay) {
+        for (int i = firstAbove(highThresholds, bg, false) - 1; i >= 0; i--) {
+            if (live(highMasks[i], minuteOfDay)) return highs[i];
+        }
+        return null;
+    }
+
+    int size() {
+        return lows.length + highs.length;
+    }
+
+    // index of the first threshold above bg, or at bg when inclusive
+    private static int firstAbove(final double[] thresholds, final double bg, final boolean inclusive) {
+        int lo = 0;
+        int hi = thresholds.length;
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (thresholds[mid] > bg || (inclusive && thresholds[mid] == bg)) {
+                hi = mid;
+            } else {
+                lo = mid + 1;
+            }
+        }
+        return lo;
+    }
+
+    private static boolean live(final long[] mask, final int minuteOfDay) {
+        if (mask == null) return true;
+        if (minuteOfDay < 0 || minuteOfDay >= MINUTES_PER_DAY) return false;
+        return (mask[minuteOfDay >> 6] & (1L << (minuteOfDay & 63))) != 0;
+    }
+
+    private static double[] thresholds(final AlertType[] alerts) {
+        final double[] result = new double[alerts.length];
+        for (int i = 0; i < alerts.length; i++) {
+            result[i] = alerts[i].threshold;
+        }
+        return result;
+    }
+
+    private static long[][] masks(final AlertType[] alerts) {
+        final long[][] result = new long[alerts.length][];
+        for (int i = 0; i < alerts.length; i++) {
+            final AlertType alert = alerts[i];
+            if (alert.all_day) continue;
+            final long[] mask = new long[(MINUTES_PER_DAY + 63) / 64];
+            for (int minute = 0; minute < MINUTES_PER_DAY; minute++) {
+                if (AlertType.in_time_frame(false, alert.start_time_minutes, alert.end_time_minutes, minute)) {
+                    mask[minute >> 6] |= 1L << (minute & 63);
+                }
+            }
+            result[i] = mask;
+        }
+        return result;
+    }
+}
@@ -16,6 +16,7 @@ import android.provider.BaseColumns;
 import com.activeandroid.Model;
 import com.activeandroid.annotation.Column;
 import com.activeandroid.annotation.Table;
+import com.activeandroid.content.ContentProvider;
 import com.activeandroid.query.Delete;
 import com.activeandroid.query.Select;
 import com.activeandroid.util.SQLiteUtils;
@@ -48,7 +49,6 @@ import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.annotations.Expose;
 import com.google.gson.internal.bind.DateTypeAdapter;
-import com.squareup.wire.Wire;
 
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -65,7 +65,7 @@ import java.util.UUID;
 import lombok.val;
 
 @Table(name = "BgReadings", id = BaseColumns._ID)
-public class BgReading extends Model implements ShareUploadableBg {
+public class BgReading extends Model implements ShareUploadableBg, Cloneable {
 
     private final static String TAG = BgReading.class.getSimpleName();
     private final static String TAG_ALERT = TAG + " AlertBg";
@@ -510,6 +510,7 @@ public class BgReading extends Model implements ShareUploadableBg {
             bgReading.calculateAgeAdjustedRawValue();
 
             bgReading.save();
+            BgReadingCache.put(bgReading);
             bgReading.perform_calculations();
             BgSendQueue.sendToPhone(context);
         } else {
@@ -517,6 +518,7 @@ public class BgReading extends Model implements ShareUploadableBg {
             bgReading = createFromRawNoSave(sensor, calibration, raw_data, filtered_data, timestamp);
 
             bgReading.save();
+            BgReadingCache.put(bgReading);
 
             // used when we are not fast inserting data
             if (!quick) {
@@ -762,6 +764,8 @@ public class BgReading extends Model implements ShareUploadableBg {
 
     public static BgReading last(boolean is_follower) {
         if (is_follower) {
+            final BgReading cached = BgReadingCache.last(BgReadingCache.ANY_SENSOR);
+            if (cached != null) return cached;
             return new Select()
                     .from(BgReading.class)
                     .where("calculated_value != 0")
@@ -772,6 +776,8 @@ public class BgReading extends Model implements ShareUploadableBg {
         } else {
             Sensor sensor = Sensor.currentSensor();
             if (sensor != null) {
+                final BgReading cached = BgReadingCache.last(sensor.getId());
+                if (cached != null) return cached;
                 return new Select()
                         .from(BgReading.class)
                         .where("Sensor = ? ", sensor.getId())
@@ -814,6 +820,8 @@ public class BgReading extends Model implements ShareUploadableBg {
     public static List<BgReading> latest(int number, boolean is_follower) {
         if (is_follower) {
             // exclude sensor information when working as a follower
+            final List<BgReading> cached = BgReadingCache.latest(number, BgReadingCache.ANY_SENSOR);
+            if (cached != null) return cached;
             return new Select()
                     .from(BgReading.class)
                     .where("calculated_value != 0")
@@ -827,6 +835,8 @@ public class BgReading extends Model implements ShareUploadableBg {
             if (sensor == null) {
                 return null;
             }
+            final List<BgReading> cached = BgReadingCache.latest(number, sensor.getId());
+            if (cached != null) return cached;
             return new Select()
                     .from(BgReading.class)
                     .where("Sensor = ? ", sensor.getId())
@@ -888,6 +898,8 @@ public class BgReading extends Model implements ShareUploadableBg {
     }
 
     public static List<BgReading> latestForGraph(int number, long startTime, long endTime) {
+        final List<BgReading> cached = BgReadingCache.range(number, startTime, endTime, BgReadingCache.ANY_SENSOR, false);
+        if (cached != null) return cached;
         return new Select()
                 .from(BgReading.class)
                 .where("timestamp >= " + Math.max(startTime, 0))
@@ -917,6 +929,8 @@ public class BgReading extends Model implements ShareUploadableBg {
 
     public static List<BgReading> latestForSensorAsc(int number, long startTime, long endTime, boolean follower) {
         if (follower) {
+            final List<BgReading> cached = BgReadingCache.range(number, startTime, endTime, BgReadingCache.ANY_SENSOR, true);
+            if (cached != null) return cached;
             return new Select()
                     .from(BgReading.class)
                     .where("timestamp >= ?", Math.max(startTime, 0))
@@ -931,6 +945,8 @@ public class BgReading extends Model implements ShareUploadableBg {
             if (sensor == null) {
                 return null;
             }
+            final List<BgReading> cached = BgReadingCache.range(number, startTime, endTime, sensor.getId(), true);
+            if (cached != null) return cached;
             return new Select()
                     .from(BgReading.class)
                     .where("Sensor = ? ", sensor.getId())
@@ -954,6 +970,8 @@ public class BgReading extends Model implements ShareUploadableBg {
     }
 
     public static List<BgReading> latestForGraphAsc(int number, long startTime, long endTime) {//KS
+        final List<BgReading> cached = BgReadingCache.range(number, startTime, endTime, BgReadingCache.ANY_SENSOR, true);
+        if (cached != null) return cached;
         return new Select()
                 .from(BgReading.class)
                 .where("timestamp >= " + Math.max(startTime, 0))
@@ -971,6 +989,8 @@ public class BgReading extends Model implements ShareUploadableBg {
     }
 
     public static BgReading readingNearTimeStamp(long startTime, final long margin) {
+        final List<BgReading> cached = BgReadingCache.range(1, startTime - margin, startTime + margin, BgReadingCache.ANY_SENSOR, true);
+        if (cached != null) return cached.isEmpty() ? null : cached.get(0);
         final DecimalFormat df = new DecimalFormat("#");
         df.setMaximumFractionDigits(1);
         return new Select()
@@ -984,6 +1004,8 @@ public class BgReading extends Model implements ShareUploadableBg {
 
     public static List<BgReading> last30Minutes() {
         double timestamp = (new Date().getTime()) - (60000 * 30);
+        final List<BgReading> cached = BgReadingCache.range(Integer.MAX_VALUE, (long) Math.ceil(timestamp), Long.MAX_VALUE, BgReadingCache.ANY_SENSOR, false);
+        if (cached != null) return cached;
         return new Select()
                 .from(BgReading.class)
                 .where("timestamp >= " + timestamp)
@@ -1052,7 +1074,7 @@ public class BgReading extends Model implements ShareUploadableBg {
         bgReadingInsertFromJson(json, true);
     }
 
-    private static void FixCalibration(BgReading bgr) {
+    static void FixCalibration(BgReading bgr) {
         if (bgr.calibration_uuid == null || "".equals(bgr.calibration_uuid)) {
             Log.d(TAG, "Bgr with no calibration, doing nothing");
             return;
@@ -1135,6 +1157,7 @@ public class BgReading extends Model implements ShareUploadableBg {
                 bgr.appendSourceInfo(sourceInfoAppend);
             }
             bgr.save();
+            BgReadingCache.put(bgr);
             if (JoH.ratelimit("sync wakelock", 15)) {
                 final PowerManager.WakeLock linger = JoH.getWakeLock("G5 Insert", 4000);
             }
@@ -1174,6 +1197,7 @@ public class BgReading extends Model implements ShareUploadableBg {
                 bgr.appendSourceInfo(sourceInfoAppend);
             }
             bgr.save();
+            BgReadingCache.put(bgr);
             if (JoH.ratelimit("sync wakelock", 15)) {
                 final PowerManager.WakeLock linger = JoH.getWakeLock("Medtrum Insert", 4000);
             }
@@ -1214,6 +1238,7 @@ public class BgReading extends Model implements ShareUploadableBg {
                 bgReading.find_slope();
 
                 bgReading.save();
+                BgReadingCache.put(bgReading);
                 bgReading.perform_calculations();
                 bgReading.postProcess(false);
 
@@ -1240,6 +1265,7 @@ public class BgReading extends Model implements ShareUploadableBg {
 
                 bgReading.find_slope();
                 bgReading.save();
+                BgReadingCache.put(bgReading);
 
                 bgReading.postProcess(false);
 
@@ -1388,6 +1414,15 @@ public class BgReading extends Model implements ShareUploadableBg {
                 .executeSingle();
     }
 
+    // shallow field copy, keeps the row id so it can still be saved
+    BgReading copy() {
+        try {
+            return (BgReading) super.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new AssertionError(e);
+        }
+    }
+
     public static BgReading fromJSON(String json) {
         if (json.length()==0)
         {
@@ -1437,52 +1472,22 @@ public class BgReading extends Model implements ShareUploadableBg {
         return BgReadingMultiMessage.ADAPTER.encode(new BgReadingMultiMessage(BgReadingMessageList));
     }
 
-    private static final long CLOSEST_READING_MS = 290000;
-    private static void processFromMessage(BgReadingMessage btm) {
-        if ((btm != null) && (btm.uuid != null) && (btm.uuid.length() == 36)) {
-            BgReading bg = byUUID(btm.uuid);
-            if (bg != null) {
-                // we already have this uuid and we don't have a circumstance to update the record, so quick return here
-                return;
-            }
-            if (bg == null) {
-                bg = getForPreciseTimestamp(Wire.get(btm.timestamp, BgReadingMessage.DEFAULT_TIMESTAMP), CLOSEST_READING_MS, false);
-                if (bg != null) {
-                    UserError.Log.wtf(TAG, "Error matches a different uuid with the same timestamp: " + bg.uuid + " vs " + btm.uuid + " skipping!");
-                    return;
-                }
-                bg = new BgReading();
-            }
-
-            bg.timestamp = Wire.get(btm.timestamp, BgReadingMessage.DEFAULT_TIMESTAMP);
-            bg.calculated_value = Wire.get(btm.calculated_value, BgReadingMessage.DEFAULT_CALCULATED_VALUE);
-            bg.filtered_calculated_value = Wire.get(btm.filtered_calculated_value, BgReadingMessage.DEFAULT_FILTERED_CALCULATED_VALUE);
-            bg.calibration_flag = Wire.get(btm.calibration_flag, BgReadingMessage.DEFAULT_CALIBRATION_FLAG);
-            bg.raw_calculated = Wire.get(btm.raw_calculated, BgReadingMessage.DEFAULT_RAW_CALCULATED);
-            bg.raw_data = Wire.get(btm.raw_data, BgReadingMessage.DEFAULT_RAW_DATA);
-            bg.calculated_value_slope = Wire.get(btm.calculated_value_slope, BgReadingMessage.DEFAULT_CALCULATED_VALUE_SLOPE);
-            bg.calibration_uuid = btm.calibration_uuid;
-            bg.uuid = btm.uuid;
-            bg.save();
-        } else {
-            UserError.Log.wtf(TAG, "processFromMessage uuid is null or invalid");
-        }
-    }
-
+    // bulk path dedupes the whole payload in memory and saves it in one transaction
     public synchronized static void processFromMultiMessage(byte[] payload) {
         try {
             final BgReadingMultiMessage bgmm = BgReadingMultiMessage.ADAPTER.decode(payload);
             if ((bgmm != null) && (bgmm.bgreading_message != null)) {
-                for (BgReadingMessage btm : bgmm.bgreading_message) {
-                    processFromMessage(btm);
-                }
-                Home.staticRefreshBGCharts();
+                BgReadingBulkIngest.fromMessages(bgmm.bgreading_message);
             }
         } catch (IOException | NullPointerException | IllegalStateException e) {
             UserError.Log.e(TAG, "exception processFromMessage: " + e);
         }
     }
 
+    public synchronized static void processFromJsonBundle(final String[] records) {
+        BgReadingBulkIngest.fromJsonBundle(records);
+    }
+
     public String toJSON(boolean sendCalibration) {
         final JSONObject jsonObject = new JSONObject();
         try {
@@ -1528,6 +1533,8 @@ public class BgReading extends Model implements ShareUploadableBg {
         try {
             SQLiteUtils.execSql("delete from BgSendQueue");
             SQLiteUtils.execSql("delete from BgReadings");
+            BgReadingCache.invalidate();
+            xdrip.getAppContext().getContentResolver().notifyChange(ContentProvider.createUri(BgReading.class, null), null); // raw sql so tell anyone watching the table
             Log.d(TAG, "Deleting all BGReadings");
         } catch (Exception e) {
             Log.e(TAG, "Got exception running deleteALL " + e.toString());
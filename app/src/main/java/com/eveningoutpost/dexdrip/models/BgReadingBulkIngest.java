@@ -0,0 +1,245 @@
+package com.eveningoutpost.dexdrip.models;
+
+import android.database.Cursor;
+
+import com.activeandroid.ActiveAndroid;
+import com.activeandroid.Cache;
+import com.eveningoutpost.dexdrip.Home;
+import com.eveningoutpost.dexdrip.messages.BgReadingMessage;
+import com.eveningoutpost.dexdrip.models.UserError.Log;
+import com.eveningoutpost.dexdrip.utilitymodels.Pref;
+import com.eveningoutpost.dexdrip.utilitymodels.WholeHouse;
+import com.squareup.wire.Wire;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Bulk insert of BgReadings received by followers
+ * <p>
+ * The timestamps already stored for the time span of a payload, and any of its uuids already
+ * stored at any time, are loaded up front so duplicates can be detected in memory, then all new
+ * readings are saved in one transaction followed by one chart refresh. Duplicate rules match
+ * the single record paths these replace.
+ */
+
+public class BgReadingBulkIngest {
+
+    private static final String TAG = "BgReadingBulkIngest";
+
+    private static final long CLOSEST_READING_MS = 290000; // multi message precise timestamp match
+    private static final long NEAR_READING_MS = 4 * 60 * 1000; // json match as readingNearTimeStamp()
+    private static final int UUIDS_PER_QUERY = 500; // below the sqlite limit on query parameters
+
+    // what is already in the database, kept up to date as the batch is added
+    private static class Existing {
+        final Set<String> uuids = new HashSet<>();
+        final TreeSet<Long> timestamps = new TreeSet<>();
+        final TreeSet<Long> validTimestamps = new TreeSet<>();
+
+        Existing(final long from, final long to) {
+            final Cursor cursor = Cache.openDatabase().rawQuery("SELECT timestamp, calculated_value, raw_data FROM BgReadings WHERE timestamp >= ? AND timestamp <= ?",
+                    new String[]{Long.toString(from), Long.toString(to)});
+            try {
+                while (cursor.moveToNext()) {
+                    add(cursor.getLong(0), cursor.getDouble(1) != 0 && cursor.getDouble(2) != 0);
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
+        // which of these uuids are stored at any timestamp, as byUUID()
+        void loadUuids(final List<BgReading> incoming) {
+            for (int start = 0; start < incoming.size(); start += UUIDS_PER_QUERY) {
+                final List<BgReading> part = incoming.subList(start, Math.min(incoming.size(), start + UUIDS_PER_QUERY));
+                final String[] args = new String[part.size()];
+                final StringBuilder placeholders = new StringBuilder();
+                for (int i = 0; i < args.length; i++) {
+                    args[i] = part.get(i).uuid;
+                    placeholders.append(i == 0 ? "?" : ",?");
+                }
+                final Cursor cursor = Cache.openDatabase().rawQuery("SELECT uuid FROM BgReadings WHERE uuid IN (" + placeholders + ")", args);
+                try {
+                    while (cursor.moveToNext()) {
+                        uuids.add(cursor.getString(0));
+                    }
+                } finally {
+                    cursor.close();
+                }
+            }
+        }
+
+        void add(final BgReading bgr) {
+            if (bgr.uuid != null) uuids.add(bgr.uuid);
+            add(bgr.timestamp, bgr.calculated_value != 0 && bgr.raw_data != 0);
+        }
+
+        private void add(final long timestamp, final boolean valid) {
+            timestamps.add(timestamp);
+            if (valid) validTimestamps.add(timestamp);
+        }
+
+        // any reading strictly closer than precision, as getForPreciseTimestamp()
+        boolean anyWithin(final long timestamp, final long precision) {
+            return !timestamps.subSet(timestamp - precision, false, timestamp + precision, false).isEmpty();
+        }
+
+        // any valid reading within margin inclusive, as readingNearTimeStamp()
+        boolean validNear(final long timestamp, final long margin) {
+            return !validTimestamps.subSet(timestamp - margin, true, timestamp + margin, true).isEmpty();
+        }
+    }
+
+    // readings from a BgReadingMultiMessage, returns how many were stored
+    static int fromMessages(final List<BgReadingMessage> messages) {
+        final List<BgReading> incoming = new ArrayList<>(messages.size());
+        for (final BgReadingMessage btm : messages) {
+            if ((btm != null) && (btm.uuid != null) && (btm.uuid.length() == 36)) {
+                final BgReading bg = new BgReading();
+                bg.timestamp = Wire.get(btm.timestamp, BgReadingMessage.DEFAULT_TIMESTAMP);
+                bg.calculated_value = Wire.get(btm.calculated_value, BgReadingMessage.DEFAULT_CALCULATED_VALUE);
+                bg.filtered_calculated_value = Wire.get(btm.filtered_calculated_value, BgReadingMessage.DEFAULT_FILTERED_CALCULATED_VALUE);
+                bg.calibration_flag = Wire.get(btm.calibration_flag, BgReadingMessage.DEFAULT_CALIBRATION_FLAG);
+                bg.raw_calculated = Wire.get(btm.raw_calculated, BgReadingMessage.DEFAULT_RAW_CALCULATED);
+                bg.raw_data = Wire.get(btm.raw_data, BgReadingMessage.DEFAULT_RAW_DATA);
+                bg.calculated_value_slope = Wire.get(btm.calculated_value_slope, BgReadingMessage.DEFAULT_CALCULATED_VALUE_SLOPE);
+                bg.calibration_uuid = btm.calibration_uuid;
+                bg.uuid = btm.uuid;
+                incoming.add(bg);
+            } else {
+                UserError.Log.wtf(TAG, "processFromMessage uuid is null or invalid");
+            }
+        }
+        if (incoming.isEmpty()) return 0;
+
+        final Existing existing = loadExisting(incoming, CLOSEST_READING_MS);
+        existing.loadUuids(incoming);
+        final List<BgReading> accepted = new ArrayList<>(incoming.size());
+        int clashes = 0;
+        for (final BgReading bg : incoming) {
+            if (existing.uuids.contains(bg.uuid)) {
+                continue; // we already have this uuid and we don't have a circumstance to update the record
+            }
+            if (existing.anyWithin(bg.timestamp, CLOSEST_READING_MS)) {
+                clashes++;
+                continue;
+            }
+            existing.add(bg);
+            accepted.add(bg);
+        }
+        if (clashes > 0) {
+            UserError.Log.wtf(TAG, "Error " + clashes + " readings match a different uuid with the same timestamp, skipping!");
+        }
+        return saveAll(accepted);
+    }
+
+    // readings from a ^ separated bundle of json records, as bgReadingInsertFromJson() without notifications
+    static int fromJsonBundle(final String[] records) {
+        final List<BgReading> incoming = new ArrayList<>(records.length);
+        for (final String json : records) {
+            if ((json == null) || (json.length() == 0)) {
+                Log.e(TAG, "bgreadinginsertfromjson passed a null or zero length json");
+                continue;
+            }
+            final BgReading bgr = BgReading.fromJSON(json);
+            if (bgr != null) {
+                incoming.add(bgr);
+            } else {
+                Log.e(TAG, "Got null bgr from json");
+            }
+        }
+        if (incoming.isEmpty()) return 0;
+
+        final boolean force_sensor = WholeHouse.isEnabled();
+        final Sensor forced_sensor = force_sensor ? Sensor.currentSensor() : null;
+        final boolean remote_marker = force_sensor && Pref.getBooleanDefaultFalse("illustrate_remote_data");
+        final Map<String, Calibration> calibrations = new HashMap<>();
+        final long now = JoH.tsl();
+
+        final Existing existing = loadExisting(incoming, NEAR_READING_MS);
+        final List<BgReading> accepted = new ArrayList<>(incoming.size());
+        int duplicates = 0;
+        for (final BgReading bgr : incoming) {
+            if (existing.validNear(bgr.timestamp, NEAR_READING_MS)) {
+                duplicates++;
+                continue;
+            }
+            fixCalibration(bgr, calibrations);
+            if (forced_sensor != null) {
+                bgr.sensor = forced_sensor;
+                bgr.sensor_uuid = forced_sensor.uuid;
+            }
+            if (remote_marker) {
+                bgr.setRemoteMarker();
+            }
+            if (bgr.timestamp > now) {
+                UserError.Log.wtf(TAG, "Received a bg reading that appears to be in the future: " + JoH.dateTimeText(bgr.timestamp) + " vs " + JoH.dateTimeText(now));
+            }
+            existing.add(bgr);
+            accepted.add(bgr);
+        }
+        if (duplicates > 0) {
+            Log.d(TAG, "Ignoring " + duplicates + " duplicate bgr records due to timestamp");
+        }
+        return saveAll(accepted);
+    }
+
+    // BgReading.FixCalibration() with lookups shared across the batch
+    private static void fixCalibration(final BgReading bgr, final Map<String, Calibration> calibrations) {
+        final String uuid = bgr.calibration_uuid;
+        if (uuid != null && calibrations.containsKey(uuid)) {
+            final Calibration calibration = calibrations.get(uuid);
+            if (calibration != null) {
+                bgr.calibration = calibration;
+            } // else we have already asked for an update
+            return;
+        }
+        BgReading.FixCalibration(bgr);
+        if (uuid != null && uuid.length() > 0) {
+            calibrations.put(uuid, bgr.calibration);
+        }
+    }
+
+    private static Existing loadExisting(final List<BgReading> incoming, final long margin) {
+        long from = Long.MAX_VALUE;
+        long to = Long.MIN_VALUE;
+        for (final BgReading bgr : incoming) {
+            from = Math.min(from, bgr.timestamp);
+            to = Math.max(to, bgr.timestamp);
+        }
+        return new Existing(from - margin, to + margin);
+    }
+
+    private static int saveAll(final List<BgReading> accepted) {
+        if (accepted.isEmpty()) return 0;
+        final List<BgReading> saved = new ArrayList<>(accepted.size());
+        ActiveAndroid.beginTransaction();
+        try {
+            for (final BgReading bgr : accepted) {
+                try {
+                    final Long id = bgr.save();
+                    if (id != null && id > 0) {
+                        saved.add(bgr);
+                    } // else ignored by the unique uuid index
+                } catch (Exception e) {
+                    Log.e(TAG, "Could not save BGR bgReading: ", e);
+                }
+            }
+            ActiveAndroid.setTransactionSuccessful();
+        } finally {
+            ActiveAndroid.endTransaction();
+        }
+        for (final BgReading bgr : saved) {
+            BgReadingCache.put(bgr);
+        }
+        Log.d(TAG, "Stored " + saved.size() + " of " + accepted.size() + " new readings");
+        Home.staticRefreshBGChartsOnIdle();
+        return saved.size();
+    }
+}
@@ -0,0 +1,477 @@
+package com.eveningoutpost.dexdrip.models;
+
+import android.content.ContentUris;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.util.Pair;
+
+import com.activeandroid.content.ContentProvider;
+import com.activeandroid.query.Select;
+import com.eveningoutpost.dexdrip.models.UserError.Log;
+import com.eveningoutpost.dexdrip.utilitymodels.Constants;
+import com.eveningoutpost.dexdrip.utilitymodels.StatusItem;
+import com.eveningoutpost.dexdrip.xdrip;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.eveningoutpost.dexdrip.utilitymodels.BgGraphBuilder.DEXCOM_PERIOD;
+
+/**
+ * Write-through time indexed cache of recent BgReadings
+ * <p>
+ * Readings are held in a ring ordered by timestamp with parallel primitive arrays for the
+ * timestamp, row id, sensor id and validity flags so the frequent "latest" style queries can
+ * be answered without a database round trip.
+ * <p>
+ * The cache is authoritative for timestamps >= coveredFrom only, anything which reaches
+ * further back returns null so the caller falls through to the normal database query.
+ * <p>
+ * The insert paths in BgReading call put() directly. Any other change to the table is seen
+ * via the ActiveAndroid content provider notifications which refresh the affected row or
+ * invalidate the whole cache for bulk operations. The row in a notification for a reading we
+ * were given by put() is not reloaded.
+ * <p>
+ * Readings are handed out as copies. Unlike a database query nothing reloads them, so a caller
+ * changing one in place, such as the graph smoother, must not alter what everyone else sees.
+ * <p>
+ * Alongside the ring a CoverageIndex per sensor, and one for all sensors, holds the time ranges
+ * which have readings with raw data. Backfill and missed reading checks ask it for the gaps in
+ * a window instead of fetching and walking the latest readings.
+ */
+
+public class BgReadingCache {
+
+    private static final String TAG = "BgReadingCache";
+
+    public static final long ANY_SENSOR = Long.MIN_VALUE;
+
+    private static final int CACHE_DAYS = 2;
+    private static final int CAPACITY = CACHE_DAYS * 1800; // allows for one minute data plus some duplication
+
+    private static final byte FLAG_VALID = 1; // calculated_value != 0 && raw_data != 0
+    private static final byte FLAG_RAW = 2; // raw_data != 0, counts towards coverage
+
+    // a reading covers this long either side of its timestamp, so readings up to 7 minutes apart leave no gap
+    public static final long COVERAGE_MARGIN = DEXCOM_PERIOD / 2 + Constants.MINUTE_IN_MS;
+
+    private static final long[] timestamps = new long[CAPACITY];
+    private static final long[] ids = new long[CAPACITY];
+    private static final long[] sensorIds = new long[CAPACITY];
+    private static final byte[] flags = new byte[CAPACITY];
+    private static final BgReading[] readings = new BgReading[CAPACITY];
+    private static final Map<Long, CoverageIndex> coverage = new HashMap<>(); // by sensor id and ANY_SENSOR
+    private static final Set<Long> putPending = new HashSet<>(); // row ids awaiting notification
+    private static final int MAX_PUT_PENDING = 1000;
+
+    private static int head; // physical index of oldest entry
+    private static int size;
+    private static long coveredFrom = Long.MAX_VALUE;
+    private static volatile boolean seeded;
+    private static int generation;
+    private static ContentObserver observer;
+    private static Context observerContext;
+
+    private static long hits;
+    private static long misses;
+    private static long refreshes;
+    private static long invalidations;
+
+    // add or replace a reading which has just been saved
+    static synchronized void put(final BgReading bgr) {
+        generation++;
+        if (bgr == null) return;
+        final Long id = bgr.getId();
+        if (id == null) return; // not saved
+        if (observer != null) {
+            if (putPending.size() >= MAX_PUT_PENDING) {
+                putPending.clear(); // notifications are not arriving, those rows will be reloaded instead
+            }
+            putPending.add(id);
+        }
+        if (!seeded) return; // if not seeded it will be loaded on next query
+        removeById(id);
+        insert(bgr, id);
+    }
+
+    // drop everything, the next query will reload from the database
+    public static synchronized void invalidate() {
+        generation++;
+        if (seeded) {
+            invalidations++;
+        }
+        for (int i = 0; i < CAPACITY; i++) {
+            readings[i] = null;
+        }
+        putPending.clear();
+        head = 0;
+        size = 0;
+        coveredFrom = Long.MAX_VALUE;
+        seeded = false;
+        coverage.clear();
+    }
+
+    // start listening for table changes without loading anything
+    public static void watch() {
+        registerObserver();
+    }
+
+    // changes whenever the table may have changed, lets consumers key derived data on it
+    public static synchronized int getGeneration() {
+        return generation;
+    }
+
+    // newest valid reading, null if we cannot answer from cache
+    static BgReading last(final long sensorId) {
+        final boolean ready = ensureSeeded();
+        synchronized (BgReadingCache.class) {
+            if (ready && seeded) {
+                for (int i = size - 1; i >= 0; i--) {
+                    final int p = phys(i);
+                    if (matches(p, sensorId)) {
+                        hits++;
+                        return readings[p].copy();
+                    }
+                }
+            }
+            misses++;
+            return null;
+        }
+    }
+
+    // newest first valid readings, null if we cannot answer from cache
+    static List<BgReading> latest(final int number, final long sensorId) {
+        final boolean ready = ensureSeeded();
+        synchronized (BgReadingCache.class) {
+            if (ready && seeded) {
+                final List<BgReading> result = new ArrayList<>(Math.min(number, size));
+                for (int i = size - 1; i >= 0 && result.size() < number; i--) {
+                    final int p = phys(i);
+                    if (matches(p, sensorId)) {
+                        result.add(readings[p].copy());
+                    }
+                }
+                if (result.size() >= number) {
+                    hits++;
+                    return result;
+                }
+            }
+            misses++;
+            return null;
+        }
+    }
+
+    // valid readings between start and end inclusive, null if range is not covered
+    static List<BgReading> range(final int number, final long startTime, final long endTime, final long sensorId, final boolean ascending) {
+        final long start = Math.max(startTime, 0);
+        final boolean ready = ensureSeeded();
+        synchronized (BgReadingCache.class) {
+            if (!ready || !seeded || start < coveredFrom) {
+                misses++;
+                return null;
+            }
+            hits++;
+            final int first = lowerBound(start);
+            final int last = upperBound(endTime) - 1;
+            final List<BgReading> result = new ArrayList<>();
+            if (ascending) {
+                for (int i = first; i <= last && result.size() < number; i++) {
+                    final int p = phys(i);
+                    if (matches(p, sensorId)) result.add(readings[p].copy());
+                }
+            } else {
+                for (int i = last; i >= first && result.size() < number; i--) {
+                    final int p = phys(i);
+                    if (matches(p, sensorId)) result.add(readings[p].copy());
+                }
+            }
+            return result;
+        }
+    }
+
+    // time ranges between start and end without a reading with raw data, oldest first
+    // anything before what the cache holds counts as missing, null if the cache is not available
+    public static List<Pair<Long, Long>> missing(final long sensorId, final long start, final long end) {
+        final boolean ready = ensureSeeded();
+        synchronized (BgReadingCache.class) {
+            if (!ready || !seeded) {
+                misses++;
+                return null;
+            }
+            hits++;
+            final CoverageIndex index = coverage.get(sensorId);
+            final List<Pair<Long, Long>> gaps = index != null ? index.missing(Math.max(start, coveredFrom), end) : new ArrayList<>();
+            if (index == null && end > Math.max(start, coveredFrom)) {
+                gaps.add(new Pair<>(Math.max(start, coveredFrom), end));
+            }
+            if (start < coveredFrom) {
+                final long unknownEnd = Math.min(coveredFrom, end);
+                if (!gaps.isEmpty() && gaps.get(0).first <= unknownEnd) {
+                    gaps.set(0, new Pair<>(start, gaps.get(0).second));
+                } else {
+                    gaps.add(0, new Pair<>(start, unknownEnd));
+                }
+            }
+            return gaps;
+        }
+    }
+
+    // the newest gap in readings with raw data from this sensor, bounded by the readings either side and
+    // clamped to the window, null if there is none. The newest reading only leaves a gap once it is more
+    // than twice the margin old. If we cannot tell, for example without a sensor, the whole window is returned.
+    public static Pair<Long, Long> newestGap(final Long sensorId, final long windowStart, final long now) {
+        final List<Pair<Long, Long>> gaps = sensorId != null ? missing(sensorId, windowStart, now - COVERAGE_MARGIN) : null;
+        if (gaps == null) {
+            return new Pair<>(windowStart, now);
+        }
+        if (gaps.isEmpty()) {
+            return null;
+        }
+        final Pair<Long, Long> gap = gaps.get(gaps.size() - 1);
+        return new Pair<>(Math.max(windowStart, gap.first - COVERAGE_MARGIN), Math.min(now, gap.second + COVERAGE_MARGIN));
+    }
+
+    // timestamp of the newest reading with raw data, -1 if there is none or the cache is not available
+    public static long newest(final long sensorId) {
+        final boolean ready = ensureSeeded();
+        synchronized (BgReadingCache.class) {
+            final CoverageIndex index = coverage.get(sensorId);
+            return ready && seeded && index != null ? index.newest() : -1;
+        }
+    }
+
+    private static boolean matches(final int p, final long sensorId) {
+        return (flags[p] & FLAG_VALID) != 0 && (sensorId == ANY_SENSOR || sensorIds[p] == sensorId);
+    }
+
+    // database access happens outside of our lock so we cannot deadlock against a transaction
+    private static boolean ensureSeeded() {
+        if (seeded && observerContext == xdrip.getAppContext()) return true;
+        if (!registerObserver()) return false;
+        final int startGeneration;
+        synchronized (BgReadingCache.class) {
+            startGeneration = generation;
+        }
+        final long from = JoH.tsl() - CACHE_DAYS * Constants.DAY_IN_MS;
+        final List<BgReading> list = new Select()
+                .from(BgReading.class)
+                .where("timestamp >= ?", from)
+                .orderBy("timestamp desc")
+                .limit(CAPACITY)
+                .execute();
+        final int seededSize;
+        synchronized (BgReadingCache.class) {
+            if (seeded) return true;
+            if (generation != startGeneration) {
+                return false; // table changed while we were loading, try again next time
+            }
+            head = 0;
+            size = 0;
+            coveredFrom = from;
+            seeded = true;
+            if (list != null) {
+                if (list.size() >= CAPACITY) {
+                    // denser than expected so we can only vouch for what we hold
+                    coveredFrom = list.get(list.size() - 1).timestamp + 1;
+                }
+                for (int i = list.size() - 1; i >= 0; i--) {
+                    final BgReading bgr = list.get(i);
+                    insert(bgr, bgr.getId());
+                }
+            }
+            seededSize = size;
+        }
+        Log.d(TAG, "Seeded with " + seededSize + " readings");
+        return true;
+    }
+
+    // (re)register for table changes, a new context means a new database so anything held is stale
+    private static boolean registerObserver() {
+        synchronized (BgReadingCache.class) {
+            final Context context = xdrip.getAppContext();
+            if (observer != null && observerContext == context) return true;
+            if (observer != null) {
+                try {
+                    observerContext.getContentResolver().unregisterContentObserver(observer);
+                } catch (Exception e) {
+                    // old context may already be gone
+                }
+                observer = null;
+                observerContext = null;
+                invalidate();
+            }
+            try {
+                final ContentObserver contentObserver = new ContentObserver(null) {
+                    @Override
+                    public void onChange(final boolean selfChange, final Uri uri) {
+                        onTableChange(uri);
+                    }
+                };
+                context.getContentResolver().registerContentObserver(ContentProvider.createUri(BgReading.class, null), true, contentObserver);
+                observer = contentObserver;
+                observerContext = context;
+                return true;
+            } catch (Exception e) {
+                android.util.Log.e(TAG, "Unable to register content observer, cache disabled: " + e);
+                return false;
+            }
+        }
+    }
+
+    private static void onTableChange(final Uri uri) {
+        long id = -1;
+        try {
+            if (uri != null) id = ContentUris.parseId(uri);
+        } catch (NumberFormatException | UnsupportedOperationException e) {
+            // table level notification
+        }
+        if (id < 0) {
+            invalidate();
+            return;
+        }
+        final int startGeneration;
+        synchronized (BgReadingCache.class) {
+            if (putPending.remove(id)) return; // cache already has the row from put()
+            startGeneration = ++generation; // any seed in progress may have missed this change
+        }
+        final BgReading fresh = BgReading.byid(id);
+        synchronized (BgReadingCache.class) {
+            if (!seeded) return;
+            if (generation != startGeneration) {
+                invalidate(); // overlapping changes, we cannot be sure of ordering
+                return;
+            }
+            refreshes++;
+            removeById(id);
+            if (fresh != null) {
+                insert(fresh, id);
+            }
+        }
+    }
+
+    private static void insert(final BgReading bgr, final Long id) {
+        if (id == null || bgr.timestamp < coveredFrom) return;
+        if (size == CAPACITY) {
+            // evict oldest and shrink our coverage to match
+            coveredFrom = timestamps[head] + 1;
+            uncover(head);
+            readings[head] = null;
+            head = phys(1);
+            size--;
+            if (bgr.timestamp < coveredFrom) return;
+        }
+        final int pos = upperBound(bgr.timestamp);
+        for (int i = size; i > pos; i--) {
+            copy(phys(i - 1), phys(i));
+        }
+        final int p = phys(pos);
+        timestamps[p] = bgr.timestamp;
+        ids[p] = id;
+        sensorIds[p] = (bgr.sensor != null && bgr.sensor.getId() != null) ? bgr.sensor.getId() : -1;
+        flags[p] = (byte) (((bgr.calculated_value != 0 && bgr.raw_data != 0) ? FLAG_VALID : 0) | ((bgr.raw_data != 0) ? FLAG_RAW : 0));
+        readings[p] = bgr.copy(); // our own instance, the caller or ActiveAndroid may change theirs
+        size++;
+        if ((flags[p] & FLAG_RAW) != 0) {
+            coverageFor(ANY_SENSOR).add(bgr.timestamp);
+            coverageFor(sensorIds[p]).add(bgr.timestamp);
+        }
+    }
+
+    private static CoverageIndex coverageFor(final long sensorId) {
+        CoverageIndex index = coverage.get(sensorId);
+        if (index == null) {
+            index = new CoverageIndex(COVERAGE_MARGIN);
+            coverage.put(sensorId, index);
+        }
+        return index;
+    }
+
+    private static void uncover(final int p) {
+        if ((flags[p] & FLAG_RAW) == 0) return;
+        for (final long sensorId : new long[]{ANY_SENSOR, sensorIds[p]}) {
+            final CoverageIndex index = coverage.get(sensorId);
+            if (index != null) {
+                index.remove(timestamps[p]);
+                if (index.size() == 0) {
+                    coverage.remove(sensorId);
+                }
+            }
+        }
+    }
+
+    private static void removeById(final long id) {
+        for (int i = size - 1; i >= 0; i--) {
+            if (ids[phys(i)] == id) {
+                uncover(phys(i));
+                for (int j = i; j < size - 1; j++) {
+                    copy(phys(j + 1), phys(j));
+                }
+                size--;
+                readings[phys(size)] = null;
+                return;
+            }
+        }
+    }
+
+    private static void copy(final int from, final int to) {
+        timestamps[to] = timestamps[from];
+        ids[to] = ids[from];
+        sensorIds[to] = sensorIds[from];
+        flags[to] = flags[from];
+        readings[to] = readings[from];
+    }
+
+    private static int phys(final int logical) {
+        final int p = head + logical;
+        return p >= CAPACITY ? p - CAPACITY : p;
+    }
+
+    // first logical index with timestamp >= value
+    private static int lowerBound(final long value) {
+        int lo = 0;
+        int hi = size;
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (timestamps[phys(mid)] < value) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    // first logical index with timestamp > value
+    private static int upperBound(final long value) {
+        int lo = 0;
+        int hi = size;
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (timestamps[phys(mid)] <= value) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    public static synchronized List<StatusItem> megaStatus() {
+        final List<StatusItem> l = new ArrayList<>();
+        l.add(new StatusItem("BgReading cache", seeded ? size + " readings since " + JoH.dateTimeText(coveredFrom) : "Not loaded"));
+        final long total = hits + misses;
+        l.add(new StatusItem("Cache hits / misses", hits + " / " + misses + ((total > 0) ? " (" + (hits * 100 / total) + "%)" : "")));
+        l.add(new StatusItem("Cache refreshes / resets", refreshes + " / " + invalidations));
+        final CoverageIndex all = coverage.get(ANY_SENSOR);
+        if (all != null) {
+            final List<Pair<Long, Long>> gaps = all.missing(JoH.tsl() - Constants.DAY_IN_MS, JoH.tsl() - COVERAGE_MARGIN);
+            l.add(new StatusItem("Gaps in last 24h", gaps.size()));
+        }
+        return l;
+    }
+}
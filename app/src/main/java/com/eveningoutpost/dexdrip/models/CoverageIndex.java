@@ -0,0 +1,115 @@
+package com.eveningoutpost.dexdrip.models;
+
+import android.util.Pair;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Set of covered time ranges built from individual sample timestamps
+ * <p>
+ * Each sample covers margin either side of its timestamp and overlapping ranges are merged, so
+ * two samples no more than twice the margin apart leave no gap between them. Adding or removing
+ * a sample only looks at its neighbours and finding the gaps in a window costs O(log n) plus the
+ * number of ranges in that window.
+ * <p>
+ * Not thread safe, the owner is expected to synchronize.
+ */
+
+public class CoverageIndex {
+
+    private final long margin;
+    private final TreeMap<Long, Integer> samples = new TreeMap<>(); // timestamp -> count
+    private final TreeMap<Long, Long> ranges = new TreeMap<>(); // start -> end, both inclusive
+
+    public CoverageIndex(final long margin) {
+        this.margin = margin;
+    }
+
+    public void add(final long timestamp) {
+        final Integer count = samples.get(timestamp);
+        samples.put(timestamp, count == null ? 1 : count + 1);
+        if (count != null) return;
+
+        long start = timestamp - margin;
+        long end = timestamp + margin;
+        final Map.Entry<Long, Long> before = ranges.floorEntry(start);
+        if (before != null && before.getValue() >= start) {
+            start = before.getKey();
+            end = Math.max(end, before.getValue());
+            ranges.remove(before.getKey());
+        }
+        Map.Entry<Long, Long> after;
+        while ((after = ranges.ceilingEntry(start)) != null && after.getKey() <= end) {
+            end = Math.max(end, after.getValue());
+            ranges.remove(after.getKey());
+        }
+        ranges.put(start, end);
+    }
+
+    public void remove(final long timestamp) {
+        final Integer count = samples.get(timestamp);
+        if (count == null) return;
+        if (count > 1) {
+            samples.put(timestamp, count - 1);
+            return;
+        }
+        samples.remove(timestamp);
+
+        final Map.Entry<Long, Long> range = ranges.floorEntry(timestamp);
+        if (range == null || range.getValue() < timestamp) return; // should not happen
+        final long start = range.getKey();
+        final long end = range.getValue();
+        final Long previous = samples.lowerKey(timestamp);
+        final Long next = samples.higherKey(timestamp);
+        final boolean hasLeft = previous != null && previous >= start + margin;
+        final boolean hasRight = next != null && next <= end - margin;
+        if (hasLeft && hasRight && previous + margin >= next - margin) {
+            return; // neighbours still overlap so the range is unchanged
+        }
+        ranges.remove(start);
+        if (hasLeft) {
+            ranges.put(start, previous + margin);
+        }
+        if (hasRight) {
+            ranges.put(next - margin, end);
+        }
+    }
+
+    public void clear() {
+        samples.clear();
+        ranges.clear();
+    }
+
+    public int size() {
+        return samples.size();
+    }
+
+    // newest sample or -1 if there are none
+    public long newest() {
+        return samples.isEmpty() ? -1 : samples.lastKey();
+    }
+
+    // uncovered ranges between from and to, oldest first
+    public List<Pair<Long, Long>> missing(final long from, final long to) {
+        final List<Pair<Long, Long>> gaps = new ArrayList<>();
+        if (to <= from) return gaps;
+        long cursor = from;
+        final Map.Entry<Long, Long> before = ranges.floorEntry(from);
+        if (before != null) {
+            cursor = Math.max(cursor, before.getValue());
+        }
+        for (final Map.Entry<Long, Long> range : ranges.subMap(from, false, to, true).entrySet()) {
+            if (range.getKey() > cursor) {
+                gaps.add(new Pair<>(cursor, range.getKey()));
+            }
+            cursor = Math.max(cursor, range.getValue());
+        }
+        if (cursor < to) {
+            gaps.add(new Pair<>(cursor, to));
+        }
+        return gaps;
+    }
+}
@@ -2,10 +2,6 @@ package com.eveningoutpost.dexdrip.models;
 
 import android.util.Log;
 
-import org.apache.commons.math3.linear.MatrixUtils;
-import org.apache.commons.math3.linear.RealMatrix;
-import org.apache.commons.math3.stat.regression.OLSMultipleLinearRegression;
-
 import java.util.Arrays;
 import java.util.Collection;
 
@@ -27,46 +23,83 @@ public class Forecast {
 
     public abstract static class OLSTrendLine implements TrendLine {
 
-        RealMatrix coef = null; // will hold prediction coefs once we get values
+        final LeastSquares sums;
+        LeastSquares.Fit fit = null; // will hold prediction coefs once we get values
         Double last_error_rate = null;
 
-        protected abstract double[] xVector(double x); // create vector of values from x
-
-        protected abstract boolean logY(); // set true to predict log of y (note: y must be positive)
-
+        protected OLSTrendLine(final int degree, final boolean logX, final boolean logY) {
+            sums = new LeastSquares(degree, logX, logY);
+        }
 
         @Override
         public void setValues(double[] y, double[] x) {
             if (x.length != y.length) {
                 throw new IllegalArgumentException(String.format("The numbers of y and x values must be equal (%d != %d)", y.length, x.length));
             }
-            double[][] xData = new double[x.length][];
+            sums.clear();
             for (int i = 0; i < x.length; i++) {
-                // the implementation determines how to produce a vector of predictors from a single x
-                xData[i] = xVector(x[i]);
+                sums.add(x[i], y[i]);
             }
-            if (logY()) { // in some models we are predicting ln y, so we replace each y with ln y
-                y = Arrays.copyOf(y, y.length); // user might not be finished with the array we were given
-                for (int i = 0; i < x.length; i++) {
-                    y[i] = Math.log(y[i]);
-                }
+            fit();
+        }
+
+        // streaming use, add points then fit
+        public void add(final double x, final double y) {
+            sums.add(x, y);
+        }
+
+        public int evictBefore(final double x) {
+            return sums.evictBefore(x);
+        }
+
+        // bring the held points in line with a window which has usually only moved forward, points
+        // which fell out of it are evicted and new ones appended, anything else starts again
+        // returns how many points had to be added
+        public int slideTo(final Points points) {
+            points.sort();
+            fit = null;
+            last_error_rate = null;
+            if (points.count == 0) {
+                sums.clear();
+                return 0;
+            }
+            sums.evictBefore(points.xs[0]);
+            int held = sums.size();
+            boolean follows = held <= points.count;
+            for (int i = 0; follows && i < held; i++) {
+                follows = sums.holds(i, points.xs[i], points.ys[i]);
             }
-            final OLSMultipleLinearRegression ols = new OLSMultipleLinearRegression();
-            ols.setNoIntercept(true); // let the implementation include a constant in xVector if desired
-            ols.newSampleData(y, xData); // provide the data to the model
-            coef = MatrixUtils.createColumnRealMatrix(ols.estimateRegressionParameters()); // get our coefs
-            last_error_rate = ols.estimateErrorVariance();
+            if (!follows) {
+                sums.clear();
+                held = 0;
+            }
+            for (int i = held; i < points.count; i++) {
+                sums.add(points.xs[i], points.ys[i]);
+            }
+            return points.count - held;
+        }
+
+        public int size() {
+            return sums.size();
+        }
+
+        // the current fit on its own, unaffected by later changes to the points, null before fit()
+        public LeastSquares.Fit snapshot() {
+            return fit;
+        }
+
+        public void fit() {
+            fit = sums.fit();
+            last_error_rate = fit.errorVariance;
             Log.d(TAG, getClass().getSimpleName() + " Forecast Error rate: errorvar:"
                     + JoH.qs(last_error_rate, 4)
-                    + " regssionvar:" + JoH.qs(ols.estimateRegressandVariance(), 4)
-                    + "  stderror:" + JoH.qs(ols.estimateRegressionStandardError(), 4));
+                    + " regssionvar:" + JoH.qs(fit.regressandVariance, 4)
+                    + "  stderror:" + JoH.qs(Math.sqrt(last_error_rate), 4));
         }
 
         @Override
         public double predict(double x) {
-            double yhat = coef.preMultiply(xVector(x))[0]; // apply coefs to xVector
-            if (logY()) yhat = (Math.exp(yhat)); // if we predicted ln y, we still need to get y
-            return yhat;
+            return fit.predict(x);
         }
 
         public static double[] toPrimitive(Double[] array) {
@@ -96,64 +129,339 @@ public class Forecast {
 
     }
 
-    public static class PolyTrendLine extends OLSTrendLine {
-        final int degree;
+    /**
+     * Running sums for a least squares polynomial fit of y, or ln y, against x, or ln x.
+     * <p>
+     * Points can be added and the oldest evicted in constant time. Fitting solves the small
+     * normal equations directly so there is no design matrix. Sums are kept relative to an
+     * origin near the data, which is moved to the oldest point and the sums rebuilt once as
+     * many points have been evicted as are held, to keep precision with timestamp scale x.
+     */
+    public static class LeastSquares {
 
-        public PolyTrendLine(int degree) {
+        private final int terms;
+        private final boolean logX;
+        private final boolean logY;
+
+        private final double[] powerSums; // sum of u^k for k = 0 .. 2 * degree
+        private final double[] crossSums; // sum of u^k * v for k = 0 .. degree
+        private double squareSum; // sum of v^2
+
+        // held points in arrival order, ring buffer
+        private double[] xs = new double[16];
+        private double[] us = new double[16];
+        private double[] vs = new double[16];
+        private int head;
+        private int count;
+        private int evicted; // since the sums were rebuilt
+
+        private double uOrigin;
+        private double vOrigin;
+
+        public LeastSquares(final int degree, final boolean logX, final boolean logY) {
             if (degree < 0)
                 throw new IllegalArgumentException("The degree of the polynomial must not be negative");
-            this.degree = degree;
+            this.terms = degree + 1;
+            this.logX = logX;
+            this.logY = logY;
+            powerSums = new double[2 * degree + 1];
+            crossSums = new double[terms];
         }
 
-        protected double[] xVector(double x) { // {1, x, x*x, x*x*x, ...}
-            double[] poly = new double[degree + 1];
-            double xi = 1;
-            for (int i = 0; i <= degree; i++) {
-                poly[i] = xi;
-                xi *= x;
+        public void add(final double x, final double y) {
+            final double u = logX ? Math.log(x) : x;
+            final double v = logY ? Math.log(y) : y;
+            if (count == 0) {
+                uOrigin = u;
+                vOrigin = v;
             }
-            return poly;
+            if (count == xs.length) grow();
+            final int p = (head + count) % xs.length;
+            xs[p] = x;
+            us[p] = u;
+            vs[p] = v;
+            count++;
+            accumulate(u - uOrigin, v - vOrigin, 1);
         }
 
-        @Override
-        protected boolean logY() {
-            return false;
+        // remove the oldest point
+        public void evictOldest() {
+            if (count == 0) return;
+            accumulate(us[head] - uOrigin, vs[head] - vOrigin, -1);
+            head = (head + 1) % xs.length;
+            count--;
+            evicted++;
+            if (count == 0) clear();
+        }
+
+        // remove points from the oldest while their x is below the given value
+        public int evictBefore(final double x) {
+            int removed = 0;
+            while (count > 0 && xs[head] < x) {
+                evictOldest();
+                removed++;
+            }
+            return removed;
+        }
+
+        public int size() {
+            return count;
+        }
+
+        // whether the point at this position from the oldest is the one given
+        boolean holds(final int index, final double x, final double y) {
+            final int p = (head + index) % xs.length;
+            return xs[p] == x && vs[p] == (logY ? Math.log(y) : y);
+        }
+
+        public void clear() {
+            Arrays.fill(powerSums, 0);
+            Arrays.fill(crossSums, 0);
+            squareSum = 0;
+            head = 0;
+            count = 0;
+            evicted = 0;
+        }
+
+        public Fit fit() {
+            if (count < terms + 1) {
+                throw new IllegalArgumentException("Not enough data (" + count + " points) for " + terms + " coefficients");
+            }
+            if (evicted >= count) rebuild();
+            final double[] beta = solve();
+            double explained = 0;
+            for (int k = 0; k < terms; k++) {
+                explained += beta[k] * crossSums[k];
+            }
+            final double n = powerSums[0];
+            final double residuals = Math.max(0, squareSum - explained);
+            final double regressand = (squareSum - crossSums[0] * crossSums[0] / n) / (n - 1);
+            return new Fit(beta, uOrigin, vOrigin, logX, logY, residuals / (n - terms), regressand);
+        }
+
+        private void accumulate(final double u, final double v, final int sign) {
+            double power = sign;
+            for (int k = 0; k < powerSums.length; k++) {
+                powerSums[k] += power;
+                if (k < terms) crossSums[k] += power * v;
+                power *= u;
+            }
+            squareSum += sign * v * v;
+        }
+
+        // move the origin to the oldest point and sum again, also clears accumulated rounding
+        private void rebuild() {
+            Arrays.fill(powerSums, 0);
+            Arrays.fill(crossSums, 0);
+            squareSum = 0;
+            uOrigin = us[head];
+            vOrigin = vs[head];
+            for (int i = 0; i < count; i++) {
+                final int p = (head + i) % xs.length;
+                accumulate(us[p] - uOrigin, vs[p] - vOrigin, 1);
+            }
+            evicted = 0;
+        }
+
+        private void grow() {
+            final int size = xs.length * 2;
+            final double[] nx = new double[size];
+            final double[] nu = new double[size];
+            final double[] nv = new double[size];
+            for (int i = 0; i < count; i++) {
+                final int p = (head + i) % xs.length;
+                nx[i] = xs[p];
+                nu[i] = us[p];
+                nv[i] = vs[p];
+            }
+            xs = nx;
+            us = nu;
+            vs = nv;
+            head = 0;
+        }
+
+        // normal equations, closed form for up to three coefficients
+        private double[] solve() {
+            final double[] s = powerSums;
+            final double[] t = crossSums;
+            final double[] beta = new double[terms];
+            switch (terms) {
+                case 1:
+                    beta[0] = t[0] / s[0];
+                    break;
+                case 2: {
+                    final double det = s[0] * s[2] - s[1] * s[1];
+                    checkDeterminant(det);
+                    beta[0] = (t[0] * s[2] - s[1] * t[1]) / det;
+                    beta[1] = (s[0] * t[1] - s[1] * t[0]) / det;
+                    break;
+                }
+                case 3: {
+                    // cofactors of the symmetric matrix [s0 s1 s2; s1 s2 s3; s2 s3 s4]
+                    final double c00 = s[2] * s[4] - s[3] * s[3];
+                    final double c01 = s[2] * s[3] - s[1] * s[4];
+                    final double c02 = s[1] * s[3] - s[2] * s[2];
+                    final double c11 = s[0] * s[4] - s[2] * s[2];
+                    final double c12 = s[1] * s[2] - s[0] * s[3];
+                    final double c22 = s[0] * s[2] - s[1] * s[1];
+                    final double det = s[0] * c00 + s[1] * c01 + s[2] * c02;
+                    checkDeterminant(det);
+                    beta[0] = (c00 * t[0] + c01 * t[1] + c02 * t[2]) / det;
+                    beta[1] = (c01 * t[0] + c11 * t[1] + c12 * t[2]) / det;
+                    beta[2] = (c02 * t[0] + c12 * t[1] + c22 * t[2]) / det;
+                    break;
+                }
+                default:
+                    return eliminate();
+            }
+            return beta;
+        }
+
+        // gaussian elimination with partial pivoting for higher degrees
+        private double[] eliminate() {
+            final double[][] a = new double[terms][terms + 1];
+            for (int i = 0; i < terms; i++) {
+                for (int j = 0; j < terms; j++) {
+                    a[i][j] = powerSums[i + j];
+                }
+                a[i][terms] = crossSums[i];
+            }
+            for (int col = 0; col < terms; col++) {
+                int pivot = col;
+                for (int row = col + 1; row < terms; row++) {
+                    if (Math.abs(a[row][col]) > Math.abs(a[pivot][col])) pivot = row;
+                }
+                final double[] swap = a[col];
+                a[col] = a[pivot];
+                a[pivot] = swap;
+                checkDeterminant(a[col][col]);
+                for (int row = col + 1; row < terms; row++) {
+                    final double factor = a[row][col] / a[col][col];
+                    for (int j = col; j <= terms; j++) {
+                        a[row][j] -= factor * a[col][j];
+                    }
+                }
+            }
+            final double[] beta = new double[terms];
+            for (int row = terms - 1; row >= 0; row--) {
+                double sum = a[row][terms];
+                for (int j = row + 1; j < terms; j++) {
+                    sum -= a[row][j] * beta[j];
+                }
+                beta[row] = sum / a[row][row];
+            }
+            return beta;
+        }
+
+        private static void checkDeterminant(final double det) {
+            if (det == 0 || Double.isNaN(det) || Double.isInfinite(det)) {
+                throw new ArithmeticException("Singular least squares fit");
+            }
+        }
+
+        // immutable result of fit(), safe to keep while the sums move on
+        public static class Fit {
+            private final double[] coefficients; // relative to the origin
+            private final double uOrigin;
+            private final double vOrigin;
+            private final boolean logX;
+            private final boolean logY;
+            public final double errorVariance;
+            public final double regressandVariance;
+
+            Fit(final double[] coefficients, final double uOrigin, final double vOrigin, final boolean logX, final boolean logY,
+                final double errorVariance, final double regressandVariance) {
+                this.coefficients = coefficients;
+                this.uOrigin = uOrigin;
+                this.vOrigin = vOrigin;
+                this.logX = logX;
+                this.logY = logY;
+                this.errorVariance = errorVariance;
+                this.regressandVariance = regressandVariance;
+            }
+
+            public double predict(final double x) {
+                final double u = (logX ? Math.log(x) : x) - uOrigin;
+                double v = 0;
+                for (int k = coefficients.length - 1; k >= 0; k--) {
+                    v = v * u + coefficients[k];
+                }
+                v += vOrigin;
+                return logY ? Math.exp(v) : v;
+            }
         }
     }
 
-    public static class ExpTrendLine extends OLSTrendLine {
-        @Override
-        protected double[] xVector(double x) {
-            return new double[]{1, x};
+    /**
+     * Points gathered in any order for {@link OLSTrendLine#slideTo}, which puts them in x order.
+     */
+    public static class Points {
+        private double[] xs = new double[16];
+        private double[] ys = new double[16];
+        private int count;
+        private boolean sorted = true;
+
+        public void add(final double x, final double y) {
+            if (count == xs.length) {
+                xs = Arrays.copyOf(xs, count * 2);
+                ys = Arrays.copyOf(ys, count * 2);
+            }
+            if (count > 0 && (x < xs[count - 1] || (x == xs[count - 1] && y < ys[count - 1]))) {
+                sorted = false;
+            }
+            xs[count] = x;
+            ys[count] = y;
+            count++;
         }
 
-        @Override
-        protected boolean logY() {
-            return true;
+        public int size() {
+            return count;
+        }
+
+        // by x then y, insertion sort as there are only ever a few dozen
+        void sort() {
+            if (sorted) return;
+            for (int i = 1; i < count; i++) {
+                final double x = xs[i];
+                final double y = ys[i];
+                int j = i;
+                while (j > 0 && (xs[j - 1] > x || (xs[j - 1] == x && ys[j - 1] > y))) {
+                    xs[j] = xs[j - 1];
+                    ys[j] = ys[j - 1];
+                    j--;
+                }
+                xs[j] = x;
+                ys[j] = y;
+            }
+            sorted = true;
         }
     }
 
-    public static class PowerTrendLine extends OLSTrendLine {
-        @Override
-        protected double[] xVector(double x) {
-            return new double[]{1, Math.log(x)};
+    // y = a + b x + c x^2 ...
+    public static class PolyTrendLine extends OLSTrendLine {
+        public PolyTrendLine(int degree) {
+            super(degree, false, false);
         }
+    }
 
-        @Override
-        protected boolean logY() {
-            return true;
+    // ln y = a + b x
+    public static class ExpTrendLine extends OLSTrendLine {
+        public ExpTrendLine() {
+            super(1, false, true);
         }
     }
 
-    public static class LogTrendLine extends OLSTrendLine {
-        @Override
-        protected double[] xVector(double x) {
-            return new double[]{1, Math.log(x)};
+    // ln y = a + b ln x
+    public static class PowerTrendLine extends OLSTrendLine {
+        public PowerTrendLine() {
+            super(1, true, true);
         }
+    }
 
-        @Override
-        protected boolean logY() {
-            return false;
+    // y = a + b ln x
+    public static class LogTrendLine extends OLSTrendLine {
+        public LogTrendLine() {
+            super(1, true, false);
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,305 @@
+package com.eveningoutpost.dexdrip.models;
+
+import com.eveningoutpost.dexdrip.insulin.InsulinManager;
+import com.eveningoutpost.dexdrip.insulin.MultipleInsulins;
+import com.eveningoutpost.dexdrip.models.UserError.Log;
+import com.eveningoutpost.dexdrip.utilitymodels.StatusItem;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.eveningoutpost.dexdrip.utilitymodels.Constants.DAY_IN_MS;
+import static com.eveningoutpost.dexdrip.utilitymodels.Constants.HOUR_IN_MS;
+import static com.eveningoutpost.dexdrip.utilitymodels.Constants.MINUTE_IN_MS;
+
+/**
+ * Single point IoB / CoB evaluator
+ * <p>
+ * Produces the slice values which Treatments.ioBForGraph_new() would lay down for one moment
+ * in time without building the whole 36 hour timeline. Per treatment decay state is kept
+ * between calls so repeat queries within the same five minute slot come from the slice cache
+ * and the carb absorption walk only advances from where it last stopped.
+ * <p>
+ * Insulin on board curves are non-increasing once a dose has started acting, for both the
+ * legacy curve and the insulin manager profiles, which lets the early cut off used by the
+ * graph calculation be decided by looking back a single step.
+ */
+
+public class IobEvaluator {
+
+    private static final String TAG = "IobEvaluator";
+
+    private static final double STEP_MINUTES = 5;
+    private static final long STEP_MS = (long) (STEP_MINUTES * MINUTE_IN_MS);
+    private static final double IOB_CUTOFF = 0.01;
+    private static final int MAX_CACHED_SLICES = 600;
+
+    private static final Map<String, InsulinState> insulinStates = new HashMap<>();
+    private static final Map<String, CarbState> carbStates = new HashMap<>();
+    private static final Map<Long, Iob> insulinSlices = new HashMap<>();
+
+    private static String configSignature;
+    private static long evaluations;
+    private static long sliceHits;
+    private static long treatmentChanges;
+
+    private static class InsulinState {
+        final Treatments treatment;
+        final String signature;
+        final long firstSlot;
+        long cutOffSlot = Long.MAX_VALUE;
+
+        InsulinState(final Treatments treatment, final String signature) {
+            this.treatment = treatment;
+            this.signature = signature;
+            this.firstSlot = (treatment.timestamp / STEP_MS) * STEP_MS;
+        }
+    }
+
+    private static class CarbState {
+        final Treatments treatment;
+        final String signature;
+        long cobTime;
+        long endTime;
+        double cobRemain;
+        double stomachDiff;
+
+        CarbState(final Treatments treatment, final String signature) {
+            this.treatment = treatment;
+            this.signature = signature;
+        }
+
+        void reset(final long carbDelayMsStepped) {
+            final long firstSlot = (treatment.timestamp / STEP_MS) * STEP_MS;
+            endTime = firstSlot + 6 * HOUR_IN_MS;
+            cobTime = firstSlot + carbDelayMsStepped;
+            stomachDiff = stomachDiff(cobTime);
+            cobRemain = treatment.carbs;
+        }
+
+        boolean absorbing() {
+            return (cobRemain > 0) && (stomachDiff > 0) && (cobTime < endTime);
+        }
+    }
+
+    // equivalent of finding the slice near now in ioBForGraph_new()
+    public static Double getCurrentIoB() {
+        final Iob iob = evaluate(JoH.tsl());
+        return iob != null ? iob.iob : null;
+    }
+
+    // IoB, CoB and activity for the slice containing time, null if there are no slices near this time
+    public static synchronized Iob evaluate(final long time) {
+        evaluations++;
+        final boolean useBasal = MultipleInsulins.useBasalActivity();
+        final double dontLookThisFar = MultipleInsulins.isEnabled() ? MINUTE_IN_MS * InsulinManager.getMaxEffect(true) : 10 * HOUR_IN_MS;
+        final List<Treatments> treatments = Treatments.latestForGraph(2000, time - DAY_IN_MS - dontLookThisFar, time);
+        if (treatments == null || treatments.isEmpty()) return null;
+        sync(treatments, useBasal);
+
+        final long slot = (time / STEP_MS) * STEP_MS;
+        Iob result = slice(slot, useBasal);
+        if (result == null) {
+            // the graph search would accept the following slot as well
+            result = slice(slot + STEP_MS, useBasal);
+        }
+        return result;
+    }
+
+    public static synchronized void invalidate() {
+        insulinStates.clear();
+        carbStates.clear();
+        insulinSlices.clear();
+        configSignature = null;
+    }
+
+    private static Iob slice(final long slot, final boolean useBasal) {
+        final Iob insulin = insulinSlice(slot, useBasal);
+        boolean carbSlice = false;
+        double cob = 0;
+        for (final CarbState state : carbStates.values()) {
+            final Double remain = cobAt(state, slot, useBasal);
+            if (remain != null) {
+                carbSlice = true;
+                cob += remain;
+            }
+        }
+        if (insulin.iob <= 0 && !carbSlice) return null;
+        final Iob result = new Iob();
+        result.timestamp = slot;
+        result.iob = insulin.iob;
+        result.jActivity = insulin.jActivity;
+        result.cob = cob;
+        return result;
+    }
+
+    // total insulin on board and activity as ioBForGraph_new() would have them in this slot
+    private static Iob insulinSlice(final long slot, final boolean useBasal) {
+        final Iob cached = insulinSlices.get(slot);
+        if (cached != null) {
+            sliceHits++;
+            return cached;
+        }
+        final boolean multipleInsulins = MultipleInsulins.isEnabled();
+        final Iob slice = new Iob();
+        slice.timestamp = slot;
+        for (final InsulinState state : insulinStates.values()) {
+            final Iob contribution = insulinContribution(state, slot, useBasal);
+            if (contribution != null) {
+                slice.iob += contribution.iob;
+                slice.jActivity += contribution.jActivity * STEP_MINUTES * Profile.getSensitivity(slot);
+            }
+        }
+        if (!multipleInsulins) {
+            // legacy activity is derived from the decay between neighbouring slices
+            slice.jActivity = 0;
+            if (slice.iob > 0) {
+                final double previous = insulinTotal(slot - STEP_MS, useBasal);
+                if (previous > slice.iob) {
+                    slice.jActivity = (previous - slice.iob) * Profile.getSensitivity(slot);
+                }
+            }
+        }
+        if (insulinSlices.size() > MAX_CACHED_SLICES) {
+            insulinSlices.clear();
+        }
+        insulinSlices.put(slot, slice);
+        return slice;
+    }
+
+    private static double insulinTotal(final long slot, final boolean useBasal) {
+        final Iob cached = insulinSlices.get(slot);
+        if (cached != null) return cached.iob;
+        double total = 0;
+        for (final InsulinState state : insulinStates.values()) {
+            final Iob contribution = insulinContribution(state, slot, useBasal);
+            if (contribution != null) {
+                total += contribution.iob;
+            }
+        }
+        return total;
+    }
+
+    private static Iob insulinContribution(final InsulinState state, final long slot, final boolean useBasal) {
+        if (slot < state.firstSlot || slot >= state.cutOffSlot) return null;
+        if (slot >= state.firstSlot + 36 * HOUR_IN_MS) return null;
+        if (slot > state.firstSlot) {
+            final double previous = Treatments.calcTreatment(state.treatment, slot - STEP_MS, useBasal).iob;
+            if (previous > 0 && previous <= IOB_CUTOFF) {
+                // graph calculation stops laying down this treatment after the first tiny value
+                state.cutOffSlot = slot;
+                return null;
+            }
+        }
+        final Iob iob = Treatments.calcTreatment(state.treatment, slot, useBasal);
+        return iob.iob > 0 ? iob : null;
+    }
+
+    // remaining carbs for this treatment in this slot or null if it wrote nothing there
+    private static Double cobAt(final CarbState state, final long slot, final boolean useBasal) {
+        if (slot < state.cobTime) {
+            // went backwards in time so walk again from the start
+            state.reset(carbDelayMsStepped());
+            if (slot < state.cobTime) return null;
+        }
+        while (state.cobTime < slot && state.absorbing()) {
+            state.cobTime += STEP_MS;
+            state.stomachDiff = stomachDiff(state.cobTime);
+            state.cobRemain -= state.stomachDiff;
+
+            double newDelayedCarbs = (insulinSlice(state.cobTime, useBasal).jActivity * Profile.getLiverSensRatio(state.cobTime) / Profile.getSensitivity(state.cobTime)) * Profile.getCarbRatio(state.cobTime);
+            if (newDelayedCarbs > 0) {
+                final double maxImpact = state.stomachDiff * Profile.maxLiverImpactRatio(state.cobTime);
+                if (newDelayedCarbs > maxImpact) newDelayedCarbs = maxImpact;
+                state.cobRemain += newDelayedCarbs; // add back on liver factor adjustment
+            }
+        }
+        if (state.cobTime != slot) return null;
+        return state.absorbing() ? state.cobRemain : 0d; // the end record is written as zero
+    }
+
+    private static double stomachDiff(final long when) {
+        return (Profile.getCarbAbsorptionRate(when) * STEP_MS) / HOUR_IN_MS;
+    }
+
+    private static long carbDelayMsStepped() {
+        return ((long) (Profile.carbDelayMinutes(JoH.tsl()) / STEP_MINUTES)) * STEP_MS;
+    }
+
+    // bring per treatment state in line with the database, reusing what has not changed
+    private static void sync(final List<Treatments> treatments, final boolean useBasal) {
+        final boolean multipleInsulins = MultipleInsulins.isEnabled();
+        final String config = multipleInsulins + ":" + useBasal + ":" + Profile.signature()
+                + (multipleInsulins ? ":" + InsulinManager.signature() : "");
+        if (!config.equals(configSignature)) {
+            invalidate();
+            configSignature = config;
+        }
+
+        final Set<String> seen = new HashSet<>();
+        boolean insulinChanged = false;
+        boolean carbsChanged = false;
+        for (final Treatments treatment : treatments) {
+            final String key = treatment.uuid != null ? treatment.uuid : "id:" + treatment.getId();
+            final String signature = treatment.timestamp + ":" + treatment.insulin + ":" + treatment.carbs + ":" + treatment.insulinJSON;
+            seen.add(key);
+            if (treatment.insulin > 0) {
+                final InsulinState existing = insulinStates.get(key);
+                if (existing == null || !existing.signature.equals(signature)) {
+                    insulinStates.put(key, new InsulinState(treatment, signature));
+                    insulinChanged = true;
+                }
+            } else if (insulinStates.remove(key) != null) {
+                insulinChanged = true;
+            }
+            if (treatment.carbs > 0) {
+                final CarbState existing = carbStates.get(key);
+                if (existing == null || !existing.signature.equals(signature)) {
+                    final CarbState state = new CarbState(treatment, signature);
+                    state.reset(carbDelayMsStepped());
+                    carbStates.put(key, state);
+                    carbsChanged = true;
+                }
+            } else if (carbStates.remove(key) != null) {
+                carbsChanged = true;
+            }
+        }
+        for (final Iterator<String> iterator = insulinStates.keySet().iterator(); iterator.hasNext(); ) {
+            if (!seen.contains(iterator.next())) {
+                iterator.remove();
+                insulinChanged = true;
+            }
+        }
+        for (final Iterator<String> iterator = carbStates.keySet().iterator(); iterator.hasNext(); ) {
+            if (!seen.contains(iterator.next())) {
+                iterator.remove();
+                carbsChanged = true;
+            }
+        }
+
+        if (insulinChanged) {
+            // carb absorption depends on insulin activity so those walks have to restart
+            insulinSlices.clear();
+            final long carbDelay = carbDelayMsStepped();
+            for (final CarbState state : carbStates.values()) {
+                state.reset(carbDelay);
+            }
+        }
+        if (insulinChanged || carbsChanged) {
+            treatmentChanges++;
+            Log.d(TAG, "Treatments changed, active insulin: " + insulinStates.size() + " carbs: " + carbStates.size());
+        }
+    }
+
+    public static synchronized List<StatusItem> megaStatus() {
+        final List<StatusItem> l = new ArrayList<>();
+        l.add(new StatusItem("IoB evaluations", evaluations + " with " + sliceHits + " slice hits"));
+        l.add(new StatusItem("IoB active treatments", insulinStates.size() + " insulin, " + carbStates.size() + " carbs, " + treatmentChanges + " changes"));
+        return l;
+    }
+}
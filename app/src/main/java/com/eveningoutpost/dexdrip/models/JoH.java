@@ -905,6 +905,7 @@ public class JoH {
     public static void fullDatabaseReset() {
         try {
             clearCache();
+            BgReadingCache.invalidate();
             ActiveAndroid.dispose();
             ActiveAndroid.initialize(xdrip.getAppContext());
         } catch (Exception e) {
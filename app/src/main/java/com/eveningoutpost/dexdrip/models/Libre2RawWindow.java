@@ -0,0 +1,178 @@
+package com.eveningoutpost.dexdrip.models;
+
+import android.text.format.DateFormat;
+
+import com.activeandroid.ActiveAndroid;
+import com.eveningoutpost.dexdrip.models.UserError.Log;
+import com.eveningoutpost.dexdrip.utilitymodels.Constants;
+
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Recent Libre 2 raw values held in memory for smoothing
+ * <p>
+ * Each sensor serial has a small ring of primitive timestamps and values, seeded once from the
+ * database on first use. Smoothing then runs over the ring without any query. New values are
+ * queued and the receiver writes them with flush() while it still holds its wakelock, a batch
+ * that fails to save is kept and retried with the next one.
+ */
+
+public class Libre2RawWindow {
+
+    private static final String TAG = "Libre2RawWindow";
+
+    private static final int CAPACITY = 64; // values per serial, one a minute with plenty of margin
+    private static final long SEED_MS = 30 * Constants.MINUTE_IN_MS; // longer than any smoothing setting
+    private static final int MAX_PENDING = 24 * 60; // a day of values waiting on a failing database
+    private static final DecimalFormat DETAIL_FORMAT = new DecimalFormat("#,###,###,##0.00");
+
+    private static final Map<String, Ring> rings = new HashMap<>();
+    private static final List<Libre2RawValue> pending = new ArrayList<>();
+    private static boolean seeded;
+
+    private static class Ring {
+        final long[] timestamps = new long[CAPACITY];
+        final double[] values = new double[CAPACITY];
+        int head; // oldest
+        int size;
+
+        void add(final long timestamp, final double value) {
+            if (size == CAPACITY) {
+                head = (head + 1) % CAPACITY;
+                size--;
+            }
+            int pos = size;
+            // values normally arrive in order, keep the ring sorted if not
+            while (pos > 0 && timestamps[(head + pos - 1) % CAPACITY] > timestamp) {
+                final int from = (head + pos - 1) % CAPACITY;
+                final int to = (head + pos) % CAPACITY;
+                timestamps[to] = timestamps[from];
+                values[to] = values[from];
+                pos--;
+            }
+            final int p = (head + pos) % CAPACITY;
+            timestamps[p] = timestamp;
+            values[p] = value;
+            size++;
+        }
+    }
+
+    // add a newly received value, it is saved by the next flush()
+    public static synchronized void add(final Libre2RawValue value) {
+        ensureSeeded();
+        ring(value.serial).add(value.timestamp, value.glucose);
+        pending.add(value);
+    }
+
+    // weighted average of the values for this serial since the given time, as the receiver smoothing always did
+    // each value has weight 1 - age / duration relative to now, detail is filled with a description when not null
+    public static synchronized double weightedAverage(final String serial, final long since, final long now, final long duration, final StringBuilder detail) {
+        ensureSeeded();
+        final Ring ring = rings.get(serial);
+        double sum = 0;
+        double weightSum = 0;
+        if (ring != null) {
+            for (int i = 0; i < ring.size; i++) {
+                final int p = (ring.head + i) % CAPACITY;
+                final long timestamp = ring.timestamps[p];
+                if (timestamp < since) continue;
+                final double weight = 1 - ((now - timestamp) / (double) duration);
+                sum += ring.values[p] * weight;
+                weightSum += weight;
+                if (detail != null) {
+                    detail.append(DateFormat.format("kk:mm:ss :", timestamp)).append(" w:").append(DETAIL_FORMAT.format(weight)).append(" raw: ").append(ring.values[p]).append("\n");
+                }
+            }
+        }
+        return Math.round(sum / weightSum);
+    }
+
+    // write everything queued in one transaction, returns false if it is kept for another try
+    public static boolean flush() {
+        final List<Libre2RawValue> batch;
+        synchronized (Libre2RawWindow.class) {
+            if (pending.isEmpty()) return true;
+            batch = new ArrayList<>(pending);
+            pending.clear();
+        }
+        boolean saved = false;
+        ActiveAndroid.beginTransaction();
+        try {
+            for (final Libre2RawValue value : batch) {
+                final Long id = value.save();
+                if (id == null || id < 0) {
+                    throw new IllegalStateException("insert failed"); // sqlite only reports this as -1
+                }
+            }
+            ActiveAndroid.setTransactionSuccessful();
+            saved = true;
+        } catch (Exception e) {
+            Log.e(TAG, "Could not save raw values: " + e);
+        } finally {
+            ActiveAndroid.endTransaction();
+        }
+        if (saved) {
+            Log.d(TAG, "Saved " + batch.size() + " raw values");
+        } else {
+            requeue(batch);
+        }
+        return saved;
+    }
+
+    // rolled back rows still carry the id they were given so queue fresh copies ahead of anything newer
+    private static synchronized void requeue(final List<Libre2RawValue> batch) {
+        final List<Libre2RawValue> retry = new ArrayList<>(batch.size() + pending.size());
+        for (final Libre2RawValue value : batch) {
+            retry.add(fresh(value));
+        }
+        retry.addAll(pending);
+        pending.clear();
+        pending.addAll(retry.subList(Math.max(0, retry.size() - MAX_PENDING), retry.size()));
+        Log.d(TAG, "Kept " + pending.size() + " raw values to retry");
+    }
+
+    private static Libre2RawValue fresh(final Libre2RawValue value) {
+        final Libre2RawValue copy = new Libre2RawValue();
+        copy.timestamp = value.timestamp;
+        copy.serial = value.serial;
+        copy.glucose = value.glucose;
+        return copy;
+    }
+
+    static synchronized int pendingCount() {
+        return pending.size();
+    }
+
+    static synchronized void reset() {
+        rings.clear();
+        pending.clear();
+        seeded = false;
+    }
+
+    private static Ring ring(final String serial) {
+        Ring ring = rings.get(serial);
+        if (ring == null) {
+            ring = new Ring();
+            rings.put(serial, ring);
+        }
+        return ring;
+    }
+
+    private static void ensureSeeded() {
+        if (seeded) return;
+        seeded = true;
+        try {
+            for (final Libre2RawValue value : Libre2RawValue.weightedAverageInterval(SEED_MS / Constants.MINUTE_IN_MS)) {
+                if (value.serial != null) {
+                    ring(value.serial).add(value.timestamp, value.glucose);
+                }
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Could not seed raw values: " + e);
+        }
+    }
+}
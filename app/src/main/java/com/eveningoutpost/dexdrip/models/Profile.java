@@ -94,8 +94,22 @@ public class Profile {
         }
     }
 
+    // changes whenever any value the iob and cob calculations look up at a time of day changes
+    static String signature() {
+        populateProfile();
+        final StringBuilder sb = new StringBuilder();
+        sb.append(stored_default_insulin_action_time).append(':').append(stored_default_carb_delay_minutes)
+                .append(':').append(stored_default_absorption_rate);
+        for (final ProfileItem item : profileItemList) {
+            sb.append(':').append(item.start_min).append('-').append(item.end_min).append('/').append(item.carb_ratio)
+                    .append('/').append(item.sensitivity).append('/').append(item.absorption_rate);
+        }
+        return sb.toString();
+    }
+
     public static void invalidateProfile() {
         profileItemList = null;
+        IobEvaluator.invalidate();
     }
 
     private static ProfileItem findItemListElementForTime(long when) {
@@ -235,6 +249,7 @@ public class Profile {
         profileItemList = null;
         populateProfile();
         preferences_loaded = true;
+        IobEvaluator.invalidate();
     }
 
     private static double tolerantParseDouble(String str) throws NumberFormatException {
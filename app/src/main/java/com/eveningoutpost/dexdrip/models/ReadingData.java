@@ -248,7 +248,10 @@ public class ReadingData {
                 Log.e(TAG, "invalid sensorTime " + glucoseData);
                 continue;
             }
-            libreTrendPoints.get(glucoseData.sensorTime).glucoseLevel = glucoseData.glucoseLevel;
+            // set() writes the value back when the list does not hold the points as objects.
+            LibreTrendPoint libreTrendPoint = libreTrendPoints.get(glucoseData.sensorTime);
+            libreTrendPoint.glucoseLevel = glucoseData.glucoseLevel;
+            libreTrendPoints.set(glucoseData.sensorTime, libreTrendPoint);
         }
     }
 }
@@ -924,7 +924,7 @@ public class Treatments extends Model {
 
 
 
-    private static Iob calcTreatment(final Treatments treatment, final long time, final boolean useBasal) {
+    static Iob calcTreatment(final Treatments treatment, final long time, final boolean useBasal) {
         final Iob response = new Iob();
 
         if (MultipleInsulins.isEnabled()) {
@@ -1308,20 +1308,7 @@ public class Treatments extends Model {
     }
 
     public static Double getCurrentIoBFromGraphCalculation() {
-        long now = System.currentTimeMillis();
-
-        final List<Iob> iobInfo = Treatments.ioBForGraph_new(now - 1 * Constants.DAY_IN_MS);
-
-        if (iobInfo != null) {
-            for (Iob iob : iobInfo) {
-                // Find IoB sample close to the current timestamp.
-                if (iob.timestamp > now - 5 * MINUTE_IN_MS && iob.timestamp < now + 5 * MINUTE_IN_MS) {
-                    return iob.iob;
-                }
-            }
-        }
-
-        return null;
+        return IobEvaluator.getCurrentIoB();
     }
 
     public String getBestShortText() {
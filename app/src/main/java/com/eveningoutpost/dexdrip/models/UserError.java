@@ -62,7 +62,7 @@ public class UserError extends Model {
         this.shortError = shortError;
         this.message = message;
         this.timestamp = new Date().getTime();
-        this.save();
+        UserErrorWriter.enqueue(this); // saved in the background
        /* if (xdrip.useBF) {
             switch (severity) {
                 case 2:
@@ -0,0 +1,198 @@
+package com.eveningoutpost.dexdrip.models;
+
+import com.activeandroid.ActiveAndroid;
+import com.eveningoutpost.dexdrip.utilitymodels.StatusItem;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Background writer for UserError log entries
+ * <p>
+ * Logging threads only add the entry to a bounded lock free queue so a log storm on a
+ * bluetooth callback no longer turns into one database transaction per line. A single writer
+ * thread drains the queue shortly after the first entry arrives and stores each batch in one
+ * transaction, folding identical entries from the same batch into one row with a repeat count.
+ * <p>
+ * When the queue is full new entries are dropped and a single summary entry records how many
+ * were lost once there is room again.
+ * <p>
+ * Anything still queued is written from the crashing thread if the app dies from an uncaught
+ * exception, before passing it on to the previous handler.
+ */
+
+public class UserErrorWriter {
+
+    private static final String TAG = "UserErrorWriter";
+
+    static final int MAX_QUEUED = 2000;
+    private static final int MAX_BATCH = 500;
+    private static final long GATHER_MS = 300; // wait for a burst to finish before writing
+
+    private static final ConcurrentLinkedQueue<UserError> queue = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger queued = new AtomicInteger();
+    private static final AtomicLong dropped = new AtomicLong();
+    private static final AtomicLong droppedUnreported = new AtomicLong();
+    private static final AtomicLong written = new AtomicLong();
+    private static final AtomicLong coalesced = new AtomicLong();
+    private static final AtomicLong batches = new AtomicLong();
+    private static final AtomicLong failures = new AtomicLong();
+
+    private static final Object lock = new Object();
+    private static final Object flushLock = new Object();
+    private static Thread writer;
+    private static volatile boolean writerIdle = true;
+    private static boolean crashHandlerInstalled;
+
+    // queue an entry for saving, never blocks on the database
+    static void enqueue(final UserError entry) {
+        if (queued.incrementAndGet() > MAX_QUEUED) {
+            queued.decrementAndGet();
+            dropped.incrementAndGet();
+            droppedUnreported.incrementAndGet();
+            return;
+        }
+        queue.add(entry);
+        if (writerIdle) {
+            wakeWriter();
+        }
+    }
+
+    // write anything pending on the calling thread, waits for a batch the writer has in hand
+    static void flush() {
+        synchronized (flushLock) {
+            while (!queue.isEmpty()) {
+                writeBatch(drain());
+            }
+        }
+    }
+
+    private static void wakeWriter() {
+        synchronized (lock) {
+            if (!crashHandlerInstalled) {
+                installCrashHandler();
+                crashHandlerInstalled = true;
+            }
+            if (writer == null || !writer.isAlive()) {
+                writer = new Thread(UserErrorWriter::writerLoop, TAG);
+                writer.setDaemon(true);
+                writer.setPriority(Thread.MIN_PRIORITY);
+                writer.start();
+            }
+            if (writerIdle) {
+                lock.notifyAll();
+            }
+        }
+    }
+
+    // the gather delay would otherwise lose the entries leading up to a crash
+    private static void installCrashHandler() {
+        final Thread.UncaughtExceptionHandler previous = Thread.getDefaultUncaughtExceptionHandler();
+        Thread.setDefaultUncaughtExceptionHandler((thread, throwable) -> {
+            try {
+                flush();
+            } catch (Throwable e) {
+                android.util.Log.e(TAG, "Could not write log entries on crash: " + e);
+            }
+            if (previous != null) {
+                previous.uncaughtException(thread, throwable);
+            } else {
+                System.err.print("Exception in thread \"" + thread.getName() + "\" ");
+                throwable.printStackTrace();
+            }
+        });
+    }
+
+    private static void writerLoop() {
+        while (true) {
+            try {
+                synchronized (lock) {
+                    writerIdle = true;
+                    while (queue.isEmpty()) {
+                        lock.wait();
+                    }
+                    writerIdle = false;
+                }
+                Thread.sleep(GATHER_MS);
+                flush();
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                // must not use UserError logging here
+                android.util.Log.e(TAG, "Writer exception: " + e);
+            }
+        }
+    }
+
+    // take up to one batch from the queue merging repeated entries
+    private static List<UserError> drain() {
+        final Map<String, UserError> merged = new LinkedHashMap<>();
+        final Map<String, Integer> repeats = new LinkedHashMap<>();
+        UserError entry;
+        int count = 0;
+        while (count < MAX_BATCH && (entry = queue.poll()) != null) {
+            queued.decrementAndGet();
+            count++;
+            final String key = entry.severity + "\u0000" + entry.shortError + "\u0000" + entry.message;
+            if (merged.containsKey(key)) {
+                repeats.put(key, repeats.get(key) + 1);
+                coalesced.incrementAndGet();
+            } else {
+                merged.put(key, entry);
+                repeats.put(key, 1);
+            }
+        }
+        final List<UserError> batch = new ArrayList<>(merged.size() + 1);
+        for (final Map.Entry<String, UserError> item : merged.entrySet()) {
+            final int repeat = repeats.get(item.getKey());
+            final UserError userError = item.getValue();
+            if (repeat > 1) {
+                userError.message = userError.message + " (x" + repeat + ")";
+            }
+            batch.add(userError);
+        }
+        final long lost = droppedUnreported.getAndSet(0);
+        if (lost > 0) {
+            final UserError summary = new UserError();
+            summary.severity = 2;
+            summary.shortError = TAG;
+            summary.message = "Log queue full, dropped " + lost + " entries";
+            summary.timestamp = JoH.tsl();
+            batch.add(summary);
+        }
+        return batch;
+    }
+
+    private static void writeBatch(final List<UserError> batch) {
+        if (batch.isEmpty()) return;
+        ActiveAndroid.beginTransaction();
+        try {
+            for (final UserError entry : batch) {
+                entry.save();
+            }
+            ActiveAndroid.setTransactionSuccessful();
+            written.addAndGet(batch.size());
+            batches.incrementAndGet();
+        } catch (Exception e) {
+            failures.incrementAndGet();
+            android.util.Log.e(TAG, "Failed to write " + batch.size() + " log entries: " + e);
+        } finally {
+            ActiveAndroid.endTransaction();
+        }
+    }
+
+    public static List<StatusItem> megaStatus() {
+        final List<StatusItem> l = new ArrayList<>();
+        l.add(new StatusItem("Log writer", written.get() + " rows in " + batches.get() + " batches, " + queued.get() + " queued"));
+        l.add(new StatusItem("Log entries coalesced", Long.toString(coalesced.get())));
+        if (dropped.get() > 0 || failures.get() > 0) {
+            l.add(new StatusItem("Log entries dropped", dropped.get() + " dropped, " + failures.get() + " failed batches", StatusItem.Highlight.NOTICE));
+        }
+        return l;
+    }
+}
@@ -258,7 +258,7 @@ public class ActivityRecognizedService extends IntentService implements GoogleAp
         disabled as was for early debug only
         if (JoH.ratelimit("evalute-request-received", 86400) || (disable)) {
             if (Pref.getBoolean("enable_crashlytics", true)) {
-                new WebAppHelper(null).executeOnExecutor(xdrip.executor, xdrip.getAppContext().getString(R.string.wserviceurl) + "/joh-mreport/" + (disable ? 1 : 0) + "/" + requested_all_time + "/" + received_all_time + "/" + JoH.qs(ratio, 0) + "/" + JoH.base64encode(JoH.getDeviceDetails()));
+                new WebAppHelper(null).executeOnExecutor(xdrip.executor.forKey("motion-report"), xdrip.getAppContext().getString(R.string.wserviceurl) + "/joh-mreport/" + (disable ? 1 : 0) + "/" + requested_all_time + "/" + received_all_time + "/" + JoH.qs(ratio, 0) + "/" + JoH.base64encode(JoH.getDeviceDetails()));
             }
         }*/
 
@@ -1,6 +1,5 @@
 package com.eveningoutpost.dexdrip.services;
 
-import android.annotation.SuppressLint;
 import android.app.PendingIntent;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGattCharacteristic;
@@ -24,6 +23,8 @@ import com.eveningoutpost.dexdrip.utilitymodels.RxBleProvider;
 import com.eveningoutpost.dexdrip.utils.BtCallBack;
 import com.eveningoutpost.dexdrip.utils.BytesGenerator;
 import com.eveningoutpost.dexdrip.utils.DisconnectReceiver;
+import com.eveningoutpost.dexdrip.utils.bt.BleWriteScheduler;
+import com.eveningoutpost.dexdrip.utils.bt.BleWriteScheduler.QueueItem;
 import com.eveningoutpost.dexdrip.utils.bt.BtCallBack2;
 import com.eveningoutpost.dexdrip.utils.bt.BtCallBack3;
 import com.eveningoutpost.dexdrip.utils.bt.BtReconnect;
@@ -55,7 +56,6 @@ import java.util.concurrent.TimeUnit;
 
 import io.reactivex.schedulers.Schedulers;
 import lombok.Getter;
-import lombok.RequiredArgsConstructor;
 
 import static com.eveningoutpost.dexdrip.models.JoH.emptyString;
 import static com.eveningoutpost.dexdrip.services.JamBaseBluetoothSequencer.BaseState.CLOSE;
@@ -97,6 +97,7 @@ public abstract class JamBaseBluetoothSequencer extends JamBaseBluetoothService
 
 
         private final PoorMansConcurrentLinkedDeque<QueueItem> write_queue = new PoorMansConcurrentLinkedDeque<>();
+        public final BleWriteScheduler scheduler = new BleWriteScheduler(write_queue);
 
         public final ConcurrentHashMap<UUID, Object> characteristics = new ConcurrentHashMap<>();
 
@@ -669,54 +670,6 @@ public abstract class JamBaseBluetoothSequencer extends JamBaseBluetoothService
 
     /// Queue Handling
 
-    @RequiredArgsConstructor
-    private class QueueItem {
-        final UUID queueWriteCharacterstic;
-        final byte[] data;
-        final int timeoutSeconds;
-        final long post_delay;
-        public final String description;
-        final boolean expectReply;
-        final long expireAt;
-        int retries = 0;
-        Runnable runnable;
-        ReplyProcessor replyProcessor;
-        BytesGenerator generator;
-
-        boolean isExpired() {
-            return expireAt != 0 && expireAt < JoH.tsl();
-        }
-
-        QueueItem setRunnable(Runnable runnable) {
-            this.runnable = runnable;
-            return this;
-        }
-
-        QueueItem setProcessor(ReplyProcessor processor) {
-            this.replyProcessor = processor;
-            return this;
-        }
-
-        QueueItem setGenerator(BytesGenerator generator) {
-            this.generator = generator;
-            return this;
-        }
-
-        byte[] getData() {
-            if (data != null) {
-                return data;
-            } else {
-                if (generator != null) {
-                    return generator.produce();
-                } else {
-                    return null;
-                }
-            }
-        }
-
-    }
-
-    private static final int MAX_QUEUE_RETRIES = 3;
 
 
     public class QueueMe {
@@ -727,6 +680,7 @@ public abstract class JamBaseBluetoothSequencer extends JamBaseBluetoothService
         long expireAt;
         boolean start_now;
         boolean expect_reply;
+        boolean no_response;
         String description = "Vanilla Queue Item";
         UUID queueWriteCharacterstic;
         Runnable runnable;
@@ -801,6 +755,12 @@ public abstract class JamBaseBluetoothSequencer extends JamBaseBluetoothService
             return this;
         }
 
+        // may be pipelined with neighbouring items, see BleWriteScheduler.setWindow()
+        public QueueMe withoutResponse() {
+            this.no_response = true;
+            return this;
+        }
+
         public void queue() {
             this.start_now = false; // make sure disabled
             add();
@@ -860,11 +820,11 @@ public abstract class JamBaseBluetoothSequencer extends JamBaseBluetoothService
             if (queueWriteCharacterstic == null) queueWriteCharacterstic = I.queue_write_characterstic;
             if (atHead) {
                 I.write_queue.addFirst(new QueueItem(queueWriteCharacterstic, bytes, queueMe.timeout_seconds, queueMe.delay_ms, queueMe.description, queueMe.expect_reply, queueMe.expireAt)
-                        .setRunnable(queueMe.runnable).setProcessor(replyProcessor).setGenerator(queueMe.generator));
+                        .setRunnable(queueMe.runnable).setProcessor(replyProcessor).setGenerator(queueMe.generator).setNoResponse(queueMe.no_response));
 
             } else {
                 I.write_queue.add(new QueueItem(queueWriteCharacterstic, bytes, queueMe.timeout_seconds, queueMe.delay_ms, queueMe.description, queueMe.expect_reply, queueMe.expireAt)
-                        .setRunnable(queueMe.runnable).setProcessor(replyProcessor).setGenerator(queueMe.generator));
+                        .setRunnable(queueMe.runnable).setProcessor(replyProcessor).setGenerator(queueMe.generator).setNoResponse(queueMe.no_response));
 
             }
         }
@@ -895,109 +855,42 @@ public abstract class JamBaseBluetoothSequencer extends JamBaseBluetoothService
         Inevitable.task("sequence-start-queue " + I.address, 0, new Runnable() {
             @Override
             public void run() {
-                writeMultipleFromQueue(I.write_queue);
+                I.scheduler.kick(writeHost);
             }
         });
     }
 
-    private synchronized void writeMultipleFromQueue(final PoorMansConcurrentLinkedDeque<QueueItem> queue) {
-        if (I.isConnected) {
-            QueueItem item = queue.poll();
-            while (item != null && item.isExpired()) {
-                UserError.Log.d(TAG, "Item expired from queue early: (expiry: " + JoH.dateTimeText(item.expireAt) + " " + item.description);
-                item = queue.poll();
-            }
-            if (item != null) {
-                if (!item.isExpired()) {
-                    UserError.Log.d(TAG, "Starting queue send for item: " + item.description);
-                    writeQueueItem(queue, item);
-                } else {
-                    // TODO this is very much an edge case now
-                    UserError.Log.d(TAG, "Item expired from queue: (expiry: " + JoH.dateTimeText(item.expireAt) + " " + item.description);
-                    writeMultipleFromQueue(queue);
-                }
-            } else {
-                UserError.Log.d(TAG, "write queue empty");
-                changeState(mState.next()); // check if this logic is sound
-            }
-        } else {
-            UserError.Log.d(TAG, "CANNOT WRITE QUEUE AS DISCONNECTED");
+    private final BleWriteScheduler.Host writeHost = new BleWriteScheduler.Host() {
+        @Override
+        public RxBleConnection getConnection() {
+            return I.connection;
         }
-    }
 
+        @Override
+        public boolean isConnected() {
+            return I.isConnected;
+        }
 
-    @SuppressLint("CheckResult")
-    private void writeQueueItem(final PoorMansConcurrentLinkedDeque<QueueItem> queue, final QueueItem item) {
-        extendWakeLock(2000 + item.post_delay);
-        if (I.connection == null) {
-            UserError.Log.e(TAG, "Cannot write queue item: " + item.description + " as we have no connection!");
-            return;
+        @Override
+        public void onDisconnected() {
+            I.isConnected = false;
         }
 
-        if (item.queueWriteCharacterstic == null) {
-            UserError.Log.e(TAG, "Write characteristic not set in queue write");
-            return;
+        @Override
+        public long lastIncomingData() {
+            return I.lastProcessedIncomingData;
         }
-        UserError.Log.d(TAG, "Writing to characteristic: " + item.queueWriteCharacterstic + " " + item.description);
-        I.connection.writeCharacteristic(item.queueWriteCharacterstic, item.getData())
-                .timeout(item.timeoutSeconds, TimeUnit.SECONDS)
-                .subscribe(Value -> {
-                    UserError.Log.d(TAG, "Wrote request: " + item.description + " -> " + JoH.bytesToHex(Value));
-                    if (item.expectReply) expectReply(queue, item);
-                    if (item.post_delay > 0) {
-                        // always sleep if set as new item might appear in queue
-                        final long sleep_time = item.post_delay + (item.description.contains("WAKE UP") ? 2000 : 0);
-                        if (sleep_time != 100) UserError.Log.d(TAG, "sleeping " + sleep_time);
-                        JoH.threadSleep(sleep_time);
-                    }
-                    if (item.runnable != null) {
-                        item.runnable.run(); // TODO should this be handled by expect reply in that case?
-                    }
-                    if (!item.expectReply) {
-                        if (item.replyProcessor != null) {
-                            item.replyProcessor.process(Value);
-                        }
-                        writeMultipleFromQueue(queue); // start next item immediately
-                    }
-                    throw new OperationSuccess("write complete: " + item.description);
-                }, throwable -> {
-                    if (!(throwable instanceof OperationSuccess)) {
-                        UserError.Log.d(TAG, "Throwable in: " + item.description + " -> " + throwable);
-                        item.retries++;
-                        if (!(throwable instanceof BleDisconnectedException)) {
-                            if (item.retries > MAX_QUEUE_RETRIES) {
-                                UserError.Log.d(TAG, item.description + " failed max retries @ " + item.retries + " shutting down queue");
-                                queue.clear(); /// clear too?
-                                //changeState(CLOSE); // TODO put on switch
-                            } else {
-                                writeQueueItem(queue, item);
-                            }
-                        } else {
-                            UserError.Log.d(TAG, "Disconnected so not attempting retries");
-                            I.isConnected = false;
-                        }
-                    } else {
-                        // not disconnecting on success
-                    }
-                });
-    }
 
-    private void expectReply(final PoorMansConcurrentLinkedDeque<QueueItem> queue, final QueueItem item) {
-        final long wait_time = 3000;
-        Inevitable.task("expect-reply-" + I.address + "-" + item.description, wait_time, new Runnable() {
-            @Override
-            public void run() {
-                if (JoH.msSince(I.lastProcessedIncomingData) > wait_time) {
-                    UserError.Log.d(TAG, "GOT NO REPLY FOR: " + item.description + " @ " + item.retries);
-                    item.retries++;
-                    if (item.retries <= MAX_QUEUE_RETRIES) {
-                        UserError.Log.d(TAG, "Retrying due to no reply: " + item.description);
-                        writeQueueItem(queue, item);
-                    }
-                }
-            }
-        });
-    }
+        @Override
+        public void onQueueEmpty() {
+            changeState(mState.next()); // check if this logic is sound
+        }
+
+        @Override
+        public void extendWakeLock(final long ms) {
+            JamBaseBluetoothSequencer.this.extendWakeLock(ms);
+        }
+    };
 
     // Life Cycle
 
@@ -38,7 +38,7 @@ public class SyncService extends IntentService {
 
     private void synctoCloudDatabases() {
         final UploaderTask task = new UploaderTask();
-        task.executeOnExecutor(xdrip.executor);
+        task.executeOnExecutor(xdrip.executor.forKey("cloud-upload"));
     }
 
     public static void startSyncService(long delay) {
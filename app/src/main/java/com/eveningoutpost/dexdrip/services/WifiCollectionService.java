@@ -187,7 +187,7 @@ public class WifiCollectionService extends Service {
         } else {
             task = new WixelReader(getApplicationContext());
         }
-        task.executeOnExecutor(xdrip.executor);
+        task.executeOnExecutor(xdrip.executor.forKey("wifi-collection"));
     }
 
     // data for NanoStatus
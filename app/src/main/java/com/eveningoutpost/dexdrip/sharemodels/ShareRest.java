@@ -217,7 +217,7 @@ public class ShareRest {
 
         if (sessionId == null || sessionId.equals(""))
             try {
-                sessionId = task.executeOnExecutor(xdrip.executor,sessionId).get();
+                sessionId = task.executeOnExecutor(xdrip.executor.forKey("share-session"), sessionId).get();
             } catch (InterruptedException | ExecutionException e) {
                 e.printStackTrace();
             }
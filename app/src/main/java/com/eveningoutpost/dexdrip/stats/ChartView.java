@@ -98,10 +98,11 @@ public class ChartView extends View {
                 @Override
                 public void run() {
                     super.run();
+                    final StatsRollup.Totals totals = DBSearchUtil.getRangeTotals(getContext());
                     RangeData rd = new RangeData();
-                    rd.aboveRange = DBSearchUtil.noReadingsAboveRange(getContext());
-                    rd.belowRange = DBSearchUtil.noReadingsBelowRange(getContext());
-                    rd.inRange = DBSearchUtil.noReadingsInRange(getContext());
+                    rd.aboveRange = totals.above;
+                    rd.belowRange = totals.below;
+                    rd.inRange = totals.inRange;
                     setRangeData(rd);
                 }
             };
@@ -10,8 +10,6 @@ import com.eveningoutpost.dexdrip.models.JoH;
 import com.eveningoutpost.dexdrip.models.UserError.Log;
 
 import com.activeandroid.Cache;
-import com.activeandroid.query.Select;
-import com.eveningoutpost.dexdrip.models.BgReading;
 import com.eveningoutpost.dexdrip.utilitymodels.Constants;
 
 import java.util.Calendar;
@@ -28,52 +26,25 @@ public class DBSearchUtil {
 
 
     public static int noReadingsAboveRange(Context context) {
+        int count = getRangeTotals(context).above;
+        Log.d("DrawStats", "High count: " + count);
+        return count;
+    }
+
+    // totals for the selected stats period, whole days come from the daily rollup
+    public static StatsRollup.Totals getRangeTotals(Context context) {
         Bounds bounds = new Bounds().invoke();
 
         SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(context);
         boolean mgdl = "mgdl".equals(settings.getString("units", "mgdl"));
 
         double high = Double.parseDouble(settings.getString("highValue", "170"));
+        double low = Double.parseDouble(settings.getString("lowValue", "70"));
         if (!mgdl) {
             high *= Constants.MMOLL_TO_MGDL;
+            low *= Constants.MMOLL_TO_MGDL;
         }
-
-        int count = new Select()
-                .from(BgReading.class)
-                .where("timestamp >= " + bounds.start)
-                .where("timestamp <= " + bounds.stop)
-                .where("calculated_value > " + CUTOFF)
-                .where("calculated_value > " + high)
-                .where("snyced == 0").count();
-        Log.d("DrawStats", "High count: " + count);
-        return count;
-    }
-
-
-    public static List<BgReadingStats> getReadings(boolean ordered) {
-        try {
-            Bounds bounds = new Bounds().invoke();
-
-            String orderBy = ordered ? "calculated_value desc" : null;
-
-            SQLiteDatabase db = Cache.openDatabase();
-            Cursor cur = db.query("bgreadings", new String[]{"timestamp", "calculated_value"}, "timestamp >= ? AND timestamp <=  ? AND calculated_value > ? AND snyced == 0", new String[]{"" + bounds.start, "" + bounds.stop, CUTOFF}, null, null, orderBy);
-            List<BgReadingStats> readings = new Vector<BgReadingStats>();
-            BgReadingStats reading;
-            if (cur.moveToFirst()) {
-                do {
-                    reading = new BgReadingStats();
-                    reading.timestamp = (Long.parseLong(cur.getString(0)));
-                    reading.calculated_value = (Double.parseDouble(cur.getString(1)));
-                    readings.add(reading);
-                } while (cur.moveToNext());
-            }
-            return readings;
-
-        } catch (Exception e) {
-            JoH.static_toast_long(e.getMessage());
-            return null;
-        }
+        return StatsRollup.totals(bounds.start, bounds.stop, low, high);
     }
 
     public static List<BgReadingStats> getFilteredReadingsWithFallback(boolean ordered) {
@@ -108,51 +79,14 @@ public class DBSearchUtil {
 
 
     public static int noReadingsInRange(Context context) {
-        Bounds bounds = new Bounds().invoke();
-
-        SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(context);
-        boolean mgdl = "mgdl".equals(settings.getString("units", "mgdl"));
-
-        double high = Double.parseDouble(settings.getString("highValue", "170"));
-        double low = Double.parseDouble(settings.getString("lowValue", "70"));
-        if (!mgdl) {
-            high *= Constants.MMOLL_TO_MGDL;
-            low *= Constants.MMOLL_TO_MGDL;
-
-        }
-        int count = new Select()
-                .from(BgReading.class)
-                .where("timestamp >= " + bounds.start)
-                .where("timestamp <= " + bounds.stop)
-                .where("calculated_value > " + CUTOFF)
-                .where("calculated_value <= " + high)
-                .where("calculated_value >= " + low)
-                .where("snyced == 0")
-                .count();
+        int count = getRangeTotals(context).inRange;
         Log.d("DrawStats", "In count: " + count);
 
         return count;
     }
 
     public static int noReadingsBelowRange(Context context) {
-        Bounds bounds = new Bounds().invoke();
-
-        SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(context);
-        boolean mgdl = "mgdl".equals(settings.getString("units", "mgdl"));
-
-        double low = Double.parseDouble(settings.getString("lowValue", "70"));
-        if (!mgdl) {
-            low *= Constants.MMOLL_TO_MGDL;
-
-        }
-        int count = new Select()
-                .from(BgReading.class)
-                .where("timestamp >= " + bounds.start)
-                .where("timestamp <= " + bounds.stop)
-                .where("calculated_value > " + CUTOFF)
-                .where("calculated_value < " + low)
-                .where("snyced == 0")
-                .count();
+        int count = getRangeTotals(context).below;
         Log.d("DrawStats", "Low count: " + count);
 
         return count;
@@ -184,7 +118,7 @@ public class DBSearchUtil {
         return date.getTimeInMillis();
     }
 
-    private static class Bounds {
+    static class Bounds {
         private long stop;
         private long start;
 
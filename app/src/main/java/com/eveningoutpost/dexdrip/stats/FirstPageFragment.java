@@ -76,9 +76,10 @@ public class FirstPageFragment extends Fragment {
             }
 
             //Ranges
-            long aboveRange = DBSearchUtil.noReadingsAboveRange(context);
-            long belowRange = DBSearchUtil.noReadingsBelowRange(context);
-            long inRange = DBSearchUtil.noReadingsInRange(context);
+            final StatsRollup.Totals totals = DBSearchUtil.getRangeTotals(context);
+            long aboveRange = totals.above;
+            long belowRange = totals.below;
+            long inRange = totals.inRange;
             long total = aboveRange + belowRange + inRange;
 
             if (total == 0) {
@@ -106,9 +107,8 @@ public class FirstPageFragment extends Fragment {
             TextView rangesabsolute = (TextView) localView.findViewById(R.id.textView_ranges_absolute);
             updateText(localView, rangesabsolute, inRange + "/" + aboveRange + "/" + belowRange);
 
-            List<BgReadingStats> bgList = DBSearchUtil.getReadings(true);
-            if (bgList.size() > 0) {
-                double median = bgList.get(bgList.size() / 2).calculated_value;
+            if (totals.readings > 0) {
+                double median = totals.getMedian();
                 TextView medianView = (TextView) localView.findViewById(R.id.textView_median);
 
                 if (mgdl) {
@@ -119,12 +119,8 @@ public class FirstPageFragment extends Fragment {
 
                 }
 
-                double mean = 0;
-                double len = bgList.size();
-                double stdev = 0;
-                for (BgReadingStats bgr : bgList) {
-                    mean += bgr.calculated_value / len;
-                }
+                double mean = totals.getMean();
+                double len = totals.readings;
 
                 TextView meanView = (TextView) localView.findViewById(R.id.textView_mean);
                 //update mean
@@ -141,10 +137,8 @@ public class FirstPageFragment extends Fragment {
                 updateText(localView, a1cView, a1c_ifcc + " mmol/mol\n" + a1c_dcct + "%");
 
 
-                for (BgReadingStats bgr : bgList) {
-                    stdev += (bgr.calculated_value - mean) * (bgr.calculated_value - mean) / len;
-                }
-                stdev = Math.sqrt(stdev);
+                // population standard deviation from the sums
+                double stdev = Math.sqrt(Math.max(0, totals.squares / len - mean * mean));
                 TextView stdevView = (TextView) localView.findViewById(R.id.textView_stdev);
                 if (mgdl) {
                     updateText(localView, stdevView, (Math.round(stdev * 10) / 10d) + " mg/dl");
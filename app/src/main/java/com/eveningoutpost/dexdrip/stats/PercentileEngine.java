@@ -0,0 +1,149 @@
+package com.eveningoutpost.dexdrip.stats;
+
+import android.database.Cursor;
+
+import com.activeandroid.Cache;
+import com.eveningoutpost.dexdrip.models.UserError.Log;
+
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+
+import static com.eveningoutpost.dexdrip.stats.PercentileView.NO_TIMESLOTS;
+
+/**
+ * Time of day percentiles for the PercentileView
+ * <p>
+ * Readings are bucketed by time slot in a single pass into per slot histograms of whole
+ * mg/dL values so each percentile is a short walk over counts rather than a sort. One mg/dL
+ * is well below what the chart can show.
+ * <p>
+ * The histograms are kept between calls. When the stats range only slides forward the
+ * readings which dropped out of the start are removed and new ones added, the rest is
+ * checked against a count and value sum from the database and only rebuilt if it changed.
+ */
+
+class PercentileEngine {
+
+    private static final String TAG = "DrawStats";
+
+    static final double[] QUANTILES = {0.1, 0.25, 0.5, 0.75, 0.9};
+    static final int MAX_VALUE = 600; // mg/dL, higher values are counted in the top bin
+
+    private static final long DAY = 1000 * 60 * 60 * 24;
+    private static final long TIMESLOT = DAY / NO_TIMESLOTS;
+
+    private static final int[][] histogram = new int[NO_TIMESLOTS][MAX_VALUE + 1];
+    private static final int[] slotCounts = new int[NO_TIMESLOTS];
+
+    private static long loadedStart = -1;
+    private static long loadedStop = -1;
+    private static long loadedOffset = -1;
+    private static long count;
+    private static long valueSum; // of rounded values, to detect changed rows
+
+    // percentiles indexed [quantile][timeslot] for the current stats range
+    static synchronized double[][] calculate() {
+        final DBSearchUtil.Bounds bounds = new DBSearchUtil.Bounds().invoke();
+        final long offset = midnightOffset();
+        final long start = bounds.getStart();
+        final long stop = bounds.getStop();
+
+        if (offset == loadedOffset && start >= loadedStart && stop >= loadedStop && start <= loadedStop && unchanged()) {
+            apply(loadedStart, start - 1, -1);
+            apply(loadedStop + 1, stop, 1);
+            Log.d(TAG, "Percentiles updated incrementally");
+        } else {
+            reset();
+            loadedOffset = offset;
+            apply(start, stop, 1);
+            Log.d(TAG, "Percentiles rebuilt from " + count + " readings");
+        }
+        loadedStart = start;
+        loadedStop = stop;
+
+        final double[][] result = new double[QUANTILES.length][NO_TIMESLOTS];
+        for (int slot = 0; slot < NO_TIMESLOTS; slot++) {
+            quantiles(histogram[slot], slotCounts[slot], result, slot);
+        }
+        return result;
+    }
+
+    static synchronized void reset() {
+        for (int slot = 0; slot < NO_TIMESLOTS; slot++) {
+            Arrays.fill(histogram[slot], 0);
+            slotCounts[slot] = 0;
+        }
+        count = 0;
+        valueSum = 0;
+        loadedStart = -1;
+        loadedStop = -1;
+        loadedOffset = -1;
+    }
+
+    // fill result[q][slot] with the same element the sorted list method picked, size * quantile
+    static void quantiles(final int[] bins, final int size, final double[][] result, final int slot) {
+        if (size == 0) return;
+        int q = 0;
+        int target = (int) (size * QUANTILES[q]);
+        int seen = 0;
+        for (int value = 0; value < bins.length && q < QUANTILES.length; value++) {
+            seen += bins[value];
+            while (seen > target) {
+                result[q][slot] = value;
+                if (++q == QUANTILES.length) break;
+                target = (int) (size * QUANTILES[q]);
+            }
+        }
+    }
+
+    static int slot(final long timestamp, final long offset) {
+        final long timeOfDay = (timestamp - offset) % DAY;
+        if (timeOfDay < 0) return -1;
+        return (int) (timeOfDay / TIMESLOT);
+    }
+
+    static int bin(final long rounded) {
+        return (int) Math.max(0, Math.min(MAX_VALUE, rounded));
+    }
+
+    // add (direction 1) or remove (direction -1) readings between from and to inclusive
+    private static void apply(final long from, final long to, final int direction) {
+        if (to < from) return;
+        final Cursor cursor = Cache.openDatabase().rawQuery("SELECT timestamp, calculated_value FROM bgreadings WHERE timestamp >= ? AND timestamp <= ? AND calculated_value > ? AND snyced == 0",
+                new String[]{Long.toString(from), Long.toString(to), DBSearchUtil.CUTOFF});
+        try {
+            while (cursor.moveToNext()) {
+                final int slot = slot(cursor.getLong(0), loadedOffset);
+                if (slot < 0) continue;
+                final long rounded = Math.round(cursor.getDouble(1));
+                histogram[slot][bin(rounded)] += direction;
+                slotCounts[slot] += direction;
+                count += direction;
+                valueSum += direction * rounded;
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    // does the database still hold exactly what we counted for the loaded range
+    private static boolean unchanged() {
+        final Cursor cursor = Cache.openDatabase().rawQuery("SELECT COUNT(*), SUM(CAST(ROUND(calculated_value) AS INTEGER)) FROM bgreadings WHERE timestamp >= ? AND timestamp <= ? AND calculated_value > ? AND snyced == 0",
+                new String[]{Long.toString(loadedStart), Long.toString(loadedStop), DBSearchUtil.CUTOFF});
+        try {
+            return cursor.moveToFirst() && cursor.getLong(0) == count && cursor.getLong(1) == valueSum;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static long midnightOffset() {
+        final Calendar date = new GregorianCalendar();
+        date.set(Calendar.HOUR_OF_DAY, 0);
+        date.set(Calendar.MINUTE, 0);
+        date.set(Calendar.SECOND, 0);
+        date.set(Calendar.MILLISECOND, 0);
+        return date.getTimeInMillis() % DAY;
+    }
+}
@@ -19,12 +19,6 @@ import com.eveningoutpost.dexdrip.R;
 import com.eveningoutpost.dexdrip.utilitymodels.Constants;
 import com.eveningoutpost.dexdrip.utilitymodels.Pref;
 
-import java.util.Calendar;
-import java.util.Collections;
-import java.util.GregorianCalendar;
-import java.util.List;
-import java.util.Vector;
-
 /**
  * Created by adrian on 30/06/15.
  */
@@ -259,54 +253,19 @@ public class PercentileView extends View {
                 @Override
                 public void run() {
                     super.run();
-                    final List<BgReadingStats> readings = DBSearchUtil.getReadings(false);
-                    if (readings == null) return;
-                    int day = 1000 * 60 * 60 * 24;
-
-                    int timeslot = day / NO_TIMESLOTS;
-
-                    Calendar date = new GregorianCalendar();
-                    date.set(Calendar.HOUR_OF_DAY, 0);
-                    date.set(Calendar.MINUTE, 0);
-                    date.set(Calendar.SECOND, 0);
-                    date.set(Calendar.MILLISECOND, 0);
-
-                    final long offset = date.getTimeInMillis() % day;
-
-                    double[] q10 = new double[NO_TIMESLOTS];
-                    double[] q25 = new double[NO_TIMESLOTS];
-                    double[] q50 = new double[NO_TIMESLOTS];
-                    double[] q75 = new double[NO_TIMESLOTS];
-                    double[] q90 = new double[NO_TIMESLOTS];
-
-
-                    for (int i = 0; i < NO_TIMESLOTS; i++) {
-                        int begin = i * timeslot;
-                        int end = begin + timeslot;
-                        List<Double> filtered = new Vector<Double>();
-
-                        for (BgReadingStats reading : readings) {
-                            long timeOfDay = (reading.timestamp - offset) % day;
-                            if (timeOfDay >= begin && timeOfDay < end) {
-                                filtered.add(reading.calculated_value);
-                            }
-                        }
-                        Collections.sort(filtered);
-                        if (filtered.size() > 0) {
-                            q10[i] = filtered.get((int) (filtered.size() * 0.1));
-                            q25[i] = filtered.get((int) (filtered.size() * 0.25));
-                            q50[i] = filtered.get((int) (filtered.size() * 0.50));
-                            q75[i] = filtered.get((int) (filtered.size() * 0.75));
-                            q90[i] = filtered.get((int) (filtered.size() * 0.9));
-                        }
-
+                    final double[][] quantiles;
+                    try {
+                        quantiles = PercentileEngine.calculate();
+                    } catch (Exception e) {
+                        Log.e("DrawStats", "PercentileView - calculation failed: " + e);
+                        return;
                     }
                     CalculatedData cd = new CalculatedData();
-                    cd.q10 = q10;
-                    cd.q25 = q25;
-                    cd.q50 = q50;
-                    cd.q75 = q75;
-                    cd.q90 = q90;
+                    cd.q10 = quantiles[0];
+                    cd.q25 = quantiles[1];
+                    cd.q50 = quantiles[2];
+                    cd.q75 = quantiles[3];
+                    cd.q90 = quantiles[4];
                     setCalculatedData(cd);
                 }
             };
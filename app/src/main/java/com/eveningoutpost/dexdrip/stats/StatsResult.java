@@ -2,7 +2,6 @@ package com.eveningoutpost.dexdrip.stats;
 
 import android.content.SharedPreferences;
 import android.database.Cursor;
-import android.database.sqlite.SQLiteDatabase;
 
 import com.activeandroid.Cache;
 import com.eveningoutpost.dexdrip.models.JoH;
@@ -28,6 +27,7 @@ public class StatsResult {
     private double PGS = -1;
     private int total_steps = -1;
     private final double avg;
+    private final StatsRollup.Totals totals;
     private final boolean mgdl;
     private final long from;
     private final long to;
@@ -56,38 +56,16 @@ public class StatsResult {
             high *= Constants.MMOLL_TO_MGDL;
             low *= Constants.MMOLL_TO_MGDL;
         }
-        SQLiteDatabase db = Cache.openDatabase();
-
-        Cursor cursor= db.rawQuery("select count(*) from bgreadings  where timestamp >= " + from + " AND timestamp <= " + to + " AND calculated_value >= " + low + " AND calculated_value <= " + high + " AND snyced == 0", null);
-        cursor.moveToFirst();
-        in = cursor.getInt(0);
-        cursor.close();
-
-        cursor= db.rawQuery("select count(*) from bgreadings  where timestamp >= " + from + " AND timestamp <= " + to + " AND calculated_value > " + DBSearchUtil.CUTOFF + " AND calculated_value < " + low + " AND snyced == 0", null);
-        cursor.moveToFirst();
-        below = cursor.getInt(0);
-        cursor.close();
-
-        cursor= db.rawQuery("select count(*) from bgreadings  where timestamp >= " + from + " AND timestamp <= " + to + " AND calculated_value > " + high + " AND snyced == 0", null);
-        cursor.moveToFirst();
-        above = cursor.getInt(0);
-        cursor.close();
+        totals = StatsRollup.totals(from, to, low, high);
+        in = totals.inRange;
+        below = totals.below;
+        above = totals.above;
 
         if (canShowRealtimeCapture()) {
-            cursor = db.rawQuery("select count(*) from bgreadings  where timestamp >= " + from + " AND timestamp <= " + to + " AND source_info LIKE \"%Backfill\" AND snyced == 0", null);
-            cursor.moveToFirst();
-            backfilledNativeG5 = cursor.getInt(0);
-            cursor.close();
+            backfilledNativeG5 = totals.backfilled;
         }
 
-        if(getTotalReadings() > 0){
-            cursor= db.rawQuery("select avg(calculated_value) from bgreadings  where timestamp >= " + from + " AND timestamp <= " + to + " AND calculated_value > " + DBSearchUtil.CUTOFF + " AND snyced == 0", null);
-            cursor.moveToFirst();
-            avg = cursor.getDouble(0);
-            cursor.close();
-        } else {
-            avg = 0;
-        }
+        avg = getTotalReadings() > 0 ? totals.getMean() : 0;
 
         possibleCaptures = (to - from) / (5*60*1000);
         //while already in the next 5 minutes, a package could already have arrived.
@@ -123,12 +101,9 @@ public class StatsResult {
 
     public void calc_StdDev() {
         if (stdev < 0) {
-            if(getTotalReadings() > 0){
-                Cursor cursor= Cache.openDatabase().rawQuery("select ((count(*)*(sum(calculated_value * calculated_value)) - (sum(calculated_value)*sum(calculated_value)) )/((count(*)-1)*(count(*))) ) from bgreadings  where timestamp >= " + from + " AND timestamp <= " + to + " AND calculated_value > " + DBSearchUtil.CUTOFF + " AND snyced == 0", null);
-                cursor.moveToFirst();
-                stdev = cursor.getDouble(0);
-                stdev = Math.sqrt(stdev);
-                cursor.close();
+            final long n = totals.readings;
+            if (getTotalReadings() > 0 && n > 1) {
+                stdev = Math.sqrt(Math.max(0, (n * totals.squares - totals.sum * totals.sum) / ((n - 1) * n)));
             } else {
                 stdev = 0;
             }
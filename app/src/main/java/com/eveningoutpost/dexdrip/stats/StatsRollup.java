@@ -0,0 +1,371 @@
+package com.eveningoutpost.dexdrip.stats;
+
+import android.content.ContentUris;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+
+import com.activeandroid.ActiveAndroid;
+import com.activeandroid.Cache;
+import com.activeandroid.content.ContentProvider;
+import com.activeandroid.util.SQLiteUtils;
+import com.eveningoutpost.dexdrip.models.BgReading;
+import com.eveningoutpost.dexdrip.models.UserError.Log;
+import com.eveningoutpost.dexdrip.xdrip;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Per day rollup of BgReading statistics
+ * <p>
+ * Each completed local day is summarised once into a row holding the counts per range band,
+ * value sum, sum of squares and a compact whole mg/dL histogram. Totals for a time range are
+ * then made from the rollup rows for the whole days it covers plus raw scans for the partial
+ * days at either end, which always includes today.
+ * <p>
+ * Rows are keyed on the day with the low and high thresholds in use, so each pair of
+ * thresholds keeps its own row. The ActiveAndroid content provider notifications for BgReadings
+ * remove the rows for the day of any reading inserted or changed so they are rebuilt on next use.
+ * A deleted reading, or a bulk change, removes all rows as we cannot tell which day it was on.
+ */
+
+public class StatsRollup {
+
+    private static final String TAG = "StatsRollup";
+
+    static final int MAX_VALUE = 600; // mg/dL, higher values are counted in the top bin
+    private static final double CUTOFF = Double.parseDouble(DBSearchUtil.CUTOFF);
+
+    private static final String CREATE_TABLE = "CREATE TABLE IF NOT EXISTS StatsRollup (day INTEGER, day_end INTEGER, low REAL, high REAL, readings INTEGER, value_sum REAL, value_squares REAL, below INTEGER, in_range INTEGER, above INTEGER, backfilled INTEGER, histogram BLOB, PRIMARY KEY (day, low, high));";
+    private static final String READINGS_QUERY = "SELECT timestamp, calculated_value, source_info LIKE '%Backfill' FROM bgreadings WHERE timestamp >= ? AND timestamp <= ? AND snyced == 0";
+
+    private static final AtomicInteger changes = new AtomicInteger();
+    private static SQLiteDatabase tableDatabase; // the database we last created the table in
+    private static ContentObserver observer;
+    private static Context observerContext;
+
+    public static class Totals {
+        public int readings; // above cutoff
+        public int below;
+        public int inRange;
+        public int above;
+        public int backfilled;
+        public double sum;
+        public double squares;
+        final int[] histogram = new int[MAX_VALUE + 1];
+
+        private final double low;
+        private final double high;
+
+        Totals(final double low, final double high) {
+            this.low = low;
+            this.high = high;
+        }
+
+        void add(final double value, final boolean backfill) {
+            if (backfill) backfilled++;
+            if (value >= low && value <= high) inRange++;
+            if (value > high) above++;
+            if (value <= CUTOFF) return;
+            if (value < low) below++;
+            readings++;
+            sum += value;
+            squares += value * value;
+            histogram[(int) Math.max(0, Math.min(MAX_VALUE, Math.round(value)))]++;
+        }
+
+        void add(final Totals other) {
+            readings += other.readings;
+            below += other.below;
+            inRange += other.inRange;
+            above += other.above;
+            backfilled += other.backfilled;
+            sum += other.sum;
+            squares += other.squares;
+            for (int i = 0; i <= MAX_VALUE; i++) {
+                histogram[i] += other.histogram[i];
+            }
+        }
+
+        public double getMean() {
+            return readings > 0 ? sum / readings : 0;
+        }
+
+        // whole mg/dL value at the given position counting down from the highest reading
+        public int getDescendingValue(final int index) {
+            int remaining = readings - index;
+            for (int value = 0; value <= MAX_VALUE; value++) {
+                remaining -= histogram[value];
+                if (remaining <= 0) return value;
+            }
+            return MAX_VALUE;
+        }
+
+        // as the sorted list median the stats page used
+        public int getMedian() {
+            return getDescendingValue(readings / 2);
+        }
+    }
+
+    // a reading at this time was added or changed
+    static void readingChanged(final long timestamp) {
+        if (timestamp >= DBSearchUtil.getTodayTimestamp()) return; // today is never rolled up
+        changes.incrementAndGet();
+        try {
+            ensureTable();
+            SQLiteUtils.execSql("DELETE FROM StatsRollup WHERE day <= ? AND day_end > ?", new Object[]{timestamp, timestamp});
+        } catch (Exception e) {
+            Log.e(TAG, "Could not update rollup: " + e);
+        }
+    }
+
+    // the readings table changed in a way we cannot track
+    static void clear() {
+        changes.incrementAndGet();
+        try {
+            ensureTable();
+            SQLiteUtils.execSql("DELETE FROM StatsRollup");
+        } catch (Exception e) {
+            Log.e(TAG, "Could not clear rollup: " + e);
+        }
+    }
+
+    // statistics for readings between from and to inclusive
+    public static Totals totals(final long from, final long to, final double low, final double high) {
+        watch(); // make sure we hear about changes
+        ensureTable();
+        final Totals result = new Totals(low, high);
+        final long todayStart = DBSearchUtil.getTodayTimestamp();
+
+        final List<Long> days = new ArrayList<>();
+        long day = dayStart(from);
+        if (day < from) day = nextDay(day);
+        while (nextDay(day) - 1 <= to && nextDay(day) <= todayStart) {
+            days.add(day);
+            day = nextDay(day);
+        }
+        if (days.isEmpty() || low <= CUTOFF) {
+            addReadings(result, from, to);
+            return result;
+        }
+        final long fullFrom = days.get(0);
+        final long fullTo = day; // exclusive
+
+        if (from < fullFrom) {
+            addReadings(result, from, fullFrom - 1);
+        }
+        final Map<Long, Totals> stored = load(fullFrom, fullTo, low, high);
+        final List<Long> missing = new ArrayList<>();
+        for (final Long d : days) {
+            final Totals totals = stored.get(d);
+            if (totals != null) {
+                result.add(totals);
+            } else {
+                missing.add(d);
+            }
+        }
+        if (!missing.isEmpty()) {
+            for (final Totals totals : build(missing, low, high)) {
+                result.add(totals);
+            }
+        }
+        if (fullTo <= to) {
+            addReadings(result, fullTo, to);
+        }
+        return result;
+    }
+
+    private static void addReadings(final Totals totals, final long from, final long to) {
+        if (to < from) return;
+        final Cursor cursor = Cache.openDatabase().rawQuery(READINGS_QUERY, new String[]{Long.toString(from), Long.toString(to)});
+        try {
+            while (cursor.moveToNext()) {
+                totals.add(cursor.getDouble(1), cursor.getInt(2) == 1);
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static Map<Long, Totals> load(final long from, final long to, final double low, final double high) {
+        final Map<Long, Totals> result = new HashMap<>();
+        final Cursor cursor = Cache.openDatabase().rawQuery("SELECT day, readings, value_sum, value_squares, below, in_range, above, backfilled, histogram FROM StatsRollup WHERE day >= ? AND day < ? AND low = ? AND high = ?",
+                new String[]{Long.toString(from), Long.toString(to), Double.toString(low), Double.toString(high)});
+        try {
+            while (cursor.moveToNext()) {
+                final Totals totals = new Totals(low, high);
+                totals.readings = cursor.getInt(1);
+                totals.sum = cursor.getDouble(2);
+                totals.squares = cursor.getDouble(3);
+                totals.below = cursor.getInt(4);
+                totals.inRange = cursor.getInt(5);
+                totals.above = cursor.getInt(6);
+                totals.backfilled = cursor.getInt(7);
+                if (unpack(cursor.getBlob(8), totals.histogram)) {
+                    result.put(cursor.getLong(0), totals);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        return result;
+    }
+
+    // summarise the given days with one scan and store them unless readings changed meanwhile
+    private static List<Totals> build(final List<Long> days, final double low, final double high) {
+        final int startChanges = changes.get();
+        final long[] starts = new long[days.size()];
+        final long[] ends = new long[days.size()];
+        final Totals[] built = new Totals[days.size()];
+        for (int i = 0; i < starts.length; i++) {
+            starts[i] = days.get(i);
+            ends[i] = nextDay(starts[i]);
+            built[i] = new Totals(low, high);
+        }
+        final Cursor cursor = Cache.openDatabase().rawQuery(READINGS_QUERY, new String[]{Long.toString(starts[0]), Long.toString(ends[ends.length - 1] - 1)});
+        try {
+            while (cursor.moveToNext()) {
+                final long timestamp = cursor.getLong(0);
+                int index = Arrays.binarySearch(starts, timestamp);
+                if (index < 0) index = -index - 2;
+                if (index < 0 || timestamp >= ends[index]) continue; // day we already have
+                built[index].add(cursor.getDouble(1), cursor.getInt(2) == 1);
+            }
+        } finally {
+            cursor.close();
+        }
+
+        ActiveAndroid.beginTransaction();
+        try {
+            if (changes.get() == startChanges) {
+                for (int i = 0; i < built.length; i++) {
+                    final Totals t = built[i];
+                    SQLiteUtils.execSql("INSERT OR REPLACE INTO StatsRollup (day, day_end, low, high, readings, value_sum, value_squares, below, in_range, above, backfilled, histogram) VALUES (?,?,?,?,?,?,?,?,?,?,?,?)",
+                            new Object[]{starts[i], ends[i], low, high, t.readings, t.sum, t.squares, t.below, t.inRange, t.above, t.backfilled, pack(t.histogram)});
+                }
+                ActiveAndroid.setTransactionSuccessful();
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Could not store rollup: " + e);
+        } finally {
+            ActiveAndroid.endTransaction();
+        }
+        Log.d(TAG, "Built rollup for " + days.size() + " days");
+        return Arrays.asList(built);
+    }
+
+    // counts as little endian 16 bit values
+    static byte[] pack(final int[] histogram) {
+        final byte[] bytes = new byte[histogram.length * 2];
+        for (int i = 0; i < histogram.length; i++) {
+            final int count = Math.min(histogram[i], 0xFFFF);
+            bytes[i * 2] = (byte) count;
+            bytes[i * 2 + 1] = (byte) (count >> 8);
+        }
+        return bytes;
+    }
+
+    static boolean unpack(final byte[] bytes, final int[] histogram) {
+        if (bytes == null || bytes.length != histogram.length * 2) return false;
+        for (int i = 0; i < histogram.length; i++) {
+            histogram[i] = (bytes[i * 2] & 0xFF) | ((bytes[i * 2 + 1] & 0xFF) << 8);
+        }
+        return true;
+    }
+
+    // once per database, an import replaces it
+    private static void ensureTable() {
+        final SQLiteDatabase db = Cache.openDatabase();
+        synchronized (StatsRollup.class) {
+            if (db == tableDatabase) return;
+        }
+        SQLiteUtils.execSql(CREATE_TABLE);
+        synchronized (StatsRollup.class) {
+            tableDatabase = db;
+        }
+    }
+
+    // start listening for reading changes, this needs to happen before any are made
+    public static synchronized void watch() {
+        final Context context = xdrip.getAppContext();
+        if (observer != null && observerContext == context) return;
+        if (observer != null) {
+            try {
+                observerContext.getContentResolver().unregisterContentObserver(observer);
+            } catch (Exception e) {
+                // old context may already be gone
+            }
+        }
+        observer = null;
+        observerContext = null;
+        try {
+            final ContentObserver contentObserver = new ContentObserver(null) {
+                @Override
+                public void onChange(final boolean selfChange, final Uri uri) {
+                    onTableChange(uri);
+                }
+            };
+            context.getContentResolver().registerContentObserver(ContentProvider.createUri(BgReading.class, null), true, contentObserver);
+            observer = contentObserver;
+            observerContext = context;
+        } catch (Exception e) {
+            Log.e(TAG, "Unable to register content observer: " + e);
+        }
+    }
+
+    private static void onTableChange(final Uri uri) {
+        long id = -1;
+        try {
+            if (uri != null) id = ContentUris.parseId(uri);
+        } catch (NumberFormatException | UnsupportedOperationException e) {
+            // table level notification
+        }
+        final long timestamp = id < 0 ? -1 : timestampById(id);
+        if (timestamp < 0) {
+            clear();
+        } else {
+            readingChanged(timestamp);
+        }
+    }
+
+    // -1 if the reading no longer exists
+    private static long timestampById(final long id) {
+        try {
+            final Cursor cursor = Cache.openDatabase().rawQuery("SELECT timestamp FROM bgreadings WHERE _id = ?", new String[]{Long.toString(id)});
+            try {
+                return cursor.moveToFirst() ? cursor.getLong(0) : -1;
+            } finally {
+                cursor.close();
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Could not look up reading: " + e);
+            return -1;
+        }
+    }
+
+    private static long dayStart(final long timestamp) {
+        final Calendar date = new GregorianCalendar();
+        date.setTimeInMillis(timestamp);
+        date.set(Calendar.HOUR_OF_DAY, 0);
+        date.set(Calendar.MINUTE, 0);
+        date.set(Calendar.SECOND, 0);
+        date.set(Calendar.MILLISECOND, 0);
+        return date.getTimeInMillis();
+    }
+
+    private static long nextDay(final long dayStart) {
+        final Calendar date = new GregorianCalendar();
+        date.setTimeInMillis(dayStart);
+        date.add(Calendar.DATE, 1);
+        return date.getTimeInMillis();
+    }
+}
@@ -24,8 +24,12 @@ public class ESensorGlucose extends BaseElement {
         this.units = "mg/dL";
     }
 
+    static boolean isValueValid(final double value) {
+        return value >= 39 && value <= 500;
+    }
+
     static boolean isBgReadingValid(final BgReading bgReading) {
-        if(bgReading.calculated_value >= 39 && bgReading.calculated_value <= 500) {
+        if (isValueValid(bgReading.calculated_value)) {
             return true;
         }
         UserError.Log.e(TAG, "Ignoring invalid bg " + bgReading.toS());
@@ -33,9 +37,13 @@ public class ESensorGlucose extends BaseElement {
     }
 
     static ESensorGlucose fromBgReading(final BgReading bgReading) {
+        return fromValues(bgReading.timestamp, bgReading.uuid, bgReading.calculated_value);
+    }
+
+    static ESensorGlucose fromValues(final long timestamp, final String uuid, final double calculated_value) {
         final ESensorGlucose sensorGlucose = new ESensorGlucose();
-        sensorGlucose.populate(bgReading.timestamp, bgReading.uuid);
-        sensorGlucose.value = (int) bgReading.calculated_value; // TODO best glucose?
+        sensorGlucose.populate(timestamp, uuid);
+        sensorGlucose.value = (int) calculated_value; // TODO best glucose?
         return sensorGlucose;
     }
 
@@ -0,0 +1,211 @@
+package com.eveningoutpost.dexdrip.tidepool;
+
+import android.database.Cursor;
+
+import com.activeandroid.Cache;
+import com.eveningoutpost.dexdrip.models.JoH;
+import com.eveningoutpost.dexdrip.models.UserError;
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.ForwardingSink;
+import okio.GzipSink;
+import okio.Okio;
+import okio.Sink;
+
+import static com.eveningoutpost.dexdrip.models.JoH.dateTimeText;
+
+/**
+ * jamorham
+ * <p>
+ * Upload chunk body which writes its JSON straight to the request as it is sent.
+ * <p>
+ * Glucose readings are pulled from a database cursor one row at a time so memory use does not
+ * grow with the backlog. The chunk is cut short where the readings reach the size budget, the
+ * chunk end is moved back to match so the next chunk carries on from there.
+ */
+
+public class StreamingChunk extends RequestBody {
+
+    private static final String TAG = "TidepoolStreamChunk";
+    private static final MediaType JSON = MediaType.parse("application/json");
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final String BG_QUERY = "select timestamp, uuid, calculated_value from BgReadings"
+            + " where timestamp >= ? and timestamp <= ? and calculated_value != 0 and raw_data != 0 order by timestamp asc";
+
+    final long start;
+    final long end;
+    final boolean gzip;
+    final int bgCount;
+    private List<BaseElement> records = new LinkedList<>();
+
+    // figures from the most recent write to the network
+    private static volatile long lastBytes;
+    private static volatile long lastCompressedBytes;
+    private static volatile long lastRecords;
+
+    StreamingChunk(final long start, final long end, final long budget, final boolean gzip) {
+        this.start = start;
+        this.gzip = gzip;
+        final Gson gson = JoH.defaultGsonInstance();
+        final CountingWriter counter = new CountingWriter(null);
+        final JsonWriter writer = gson.newJsonWriter(counter);
+        long cutoff = end;
+        int count = 0;
+        try (final Cursor cursor = bgCursor(start, end)) {
+            writer.beginArray();
+            while (cursor.moveToNext()) {
+                final ESensorGlucose glucose = fromRow(cursor);
+                if (glucose == null) continue;
+                gson.toJson(glucose, ESensorGlucose.class, writer);
+                count++;
+                if (counter.count >= budget) {
+                    cutoff = Math.min(end, cursor.getLong(0) + 1);
+                    UserError.Log.d(TAG, "Size budget reached at " + count + " readings, chunk end moved to: " + dateTimeText(cutoff));
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            UserError.Log.e(TAG, "Exception sizing chunk: " + e);
+        }
+        this.end = cutoff;
+        this.bgCount = count;
+    }
+
+    // treatments, blood tests and basals matching the chunk time range
+    StreamingChunk setRecords(final List<BaseElement> records) {
+        this.records = records;
+        return this;
+    }
+
+    boolean isEmpty() {
+        return bgCount == 0 && records.isEmpty();
+    }
+
+    private static Cursor bgCursor(final long start, final long end) {
+        return Cache.openDatabase().rawQuery(BG_QUERY, new String[]{Long.toString(Math.max(start, 0)), Long.toString(end)});
+    }
+
+    private static ESensorGlucose fromRow(final Cursor cursor) {
+        final long timestamp = cursor.getLong(0);
+        final double value = cursor.getDouble(2);
+        if (!ESensorGlucose.isValueValid(value)) {
+            UserError.Log.e(TAG, "Ignoring invalid bg " + value + " @ " + dateTimeText(timestamp));
+            return null;
+        }
+        return ESensorGlucose.fromValues(timestamp, cursor.getString(1), value);
+    }
+
+    @Override
+    public MediaType contentType() {
+        return JSON;
+    }
+
+    @Override
+    public long contentLength() {
+        return -1; // only known once written
+    }
+
+    String contentEncoding() {
+        return gzip ? "gzip" : null;
+    }
+
+    @Override
+    public void writeTo(final BufferedSink sink) throws IOException {
+        final CountingSink compressed = new CountingSink(sink);
+        final BufferedSink out = Okio.buffer(gzip ? new GzipSink(compressed) : compressed);
+        final CountingWriter counter = new CountingWriter(new OutputStreamWriter(out.outputStream(), UTF8));
+        final Gson gson = JoH.defaultGsonInstance();
+        final JsonWriter writer = gson.newJsonWriter(counter);
+        long written = 0;
+        writer.beginArray();
+        for (final BaseElement record : records) {
+            gson.toJson(record, record.getClass(), writer);
+            written++;
+        }
+        try (final Cursor cursor = bgCursor(start, end)) {
+            while (cursor.moveToNext()) {
+                final ESensorGlucose glucose = fromRow(cursor);
+                if (glucose == null) continue;
+                gson.toJson(glucose, ESensorGlucose.class, writer);
+                written++;
+            }
+        }
+        writer.endArray();
+        writer.flush();
+        if (gzip) {
+            out.close();
+        } else {
+            out.flush();
+        }
+        lastBytes = counter.count;
+        lastCompressedBytes = compressed.count;
+        lastRecords = written;
+    }
+
+    // summary of the last upload given how long it took
+    static String throughput(final long ms) {
+        final StringBuilder sb = new StringBuilder();
+        sb.append(lastRecords).append(" records ").append(lastBytes / 1024).append("kB");
+        if (lastCompressedBytes != lastBytes) {
+            sb.append(" (").append(lastCompressedBytes / 1024).append("kB gzip)");
+        }
+        if (ms > 0) {
+            sb.append(String.format(Locale.US, " %.1fkB/s", lastCompressedBytes / 1.024d / ms));
+        }
+        return sb.toString();
+    }
+
+    private static class CountingSink extends ForwardingSink {
+        long count;
+
+        CountingSink(final Sink delegate) {
+            super(delegate);
+        }
+
+        @Override
+        public void write(final Buffer source, final long byteCount) throws IOException {
+            super.write(source, byteCount);
+            count += byteCount;
+        }
+    }
+
+    // json is ascii so characters written are bytes written, output is discarded if no destination
+    private static class CountingWriter extends Writer {
+        private final Writer destination;
+        long count;
+
+        CountingWriter(final Writer destination) {
+            this.destination = destination;
+        }
+
+        @Override
+        public void write(final char[] buffer, final int offset, final int length) throws IOException {
+            count += length;
+            if (destination != null) destination.write(buffer, offset, length);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (destination != null) destination.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (destination != null) destination.close();
+        }
+    }
+}
@@ -15,6 +15,12 @@ import static com.eveningoutpost.dexdrip.models.JoH.niceTimeScalar;
 
 public class TidepoolStatus {
 
+    private static final String THROUGHPUT_KEY = "Tidepool-Throughput";
+
+    static void setThroughput(final String throughput) {
+        FastStore.getInstance().putS(THROUGHPUT_KEY, throughput);
+    }
+
     // data for MegaStatus
     public static List<StatusItem> megaStatus() {
 
@@ -26,6 +32,10 @@ public class TidepoolStatus {
         if (!JoH.emptyString(status)) {
             l.add(new StatusItem("Tidepool Status", status));
         }
+        final String throughput = keyStore.getS(THROUGHPUT_KEY);
+        if (!JoH.emptyString(throughput)) {
+            l.add(new StatusItem("Tidepool Last Upload", throughput));
+        }
         return l;
     }
 }
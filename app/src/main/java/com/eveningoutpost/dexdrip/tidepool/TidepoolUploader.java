@@ -14,7 +14,6 @@ import com.eveningoutpost.dexdrip.store.FastStore;
 import java.util.List;
 
 import lombok.Getter;
-import okhttp3.MediaType;
 import okhttp3.OkHttpClient;
 import okhttp3.RequestBody;
 import okhttp3.logging.HttpLoggingInterceptor;
@@ -82,7 +81,7 @@ public class TidepoolUploader {
         Call<MDatasetReply> openDataSet(@Header(SESSION_TOKEN_HEADER) String token, @Path("userId") String id, @Body RequestBody body);
 
         @POST("/v1/datasets/{sessionId}/data")
-        Call<MUploadReply> doUpload(@Header(SESSION_TOKEN_HEADER) String token, @Path("sessionId") String id, @Body RequestBody body);
+        Call<MUploadReply> doUpload(@Header(SESSION_TOKEN_HEADER) String token, @Path("sessionId") String id, @Header("Content-Encoding") String encoding, @Body RequestBody body);
 
         @PUT("/v1/datasets/{sessionId}")
         Call<MDatasetReply> closeDataSet(@Header(SESSION_TOKEN_HEADER) String token, @Path("sessionId") String id, @Body RequestBody body);
@@ -255,17 +254,17 @@ public class TidepoolUploader {
         }
         extendWakeLock(60000);
         session.iterations++;
-        final String chunk = UploadChunk.getNext(session);
+        final StreamingChunk chunk = UploadChunk.getNext(session);
         if (chunk != null) {
-            if (chunk.length() == 2) {
+            if (chunk.isEmpty()) {
                 UserError.Log.d(TAG, "Empty data set - marking as succeeded");
                 doCompleted(session);
             } else {
-                final RequestBody body = RequestBody.create(MediaType.parse("application/json"), chunk);
-
-                final Call<MUploadReply> call = session.service.doUpload(session.token, session.datasetReply.getUploadId(), body);
+                final Call<MUploadReply> call = session.service.doUpload(session.token, session.datasetReply.getUploadId(), chunk.contentEncoding(), chunk);
                 status("Uploading");
+                final long started = JoH.tsl();
                 call.enqueue(new TidepoolCallback<MUploadReply>(session, "Data Upload", () -> {
+                    TidepoolStatus.setThroughput(StreamingChunk.throughput(JoH.msSince(started)));
                     UploadChunk.setLastEnd(session.end);
 
                     if (REPEAT && !session.exceededIterations()) {
@@ -25,7 +25,8 @@ import lombok.val;
 /**
  * jamorham
  * <p>
- * This class gets the next time slice of all data to upload
+ * This class gets the next time slice of all data to upload, glucose readings beyond the
+ * size budget are left for the following slice
  */
 
 public class UploadChunk implements NamedSliderProcessor {
@@ -36,22 +37,26 @@ public class UploadChunk implements NamedSliderProcessor {
     private static final long MAX_UPLOAD_SIZE = Constants.DAY_IN_MS * 7; // don't change this
     private static final long DEFAULT_WINDOW_OFFSET = Constants.MINUTE_IN_MS * 15;
     private static final long MAX_LATENCY_THRESHOLD_MINUTES = 1440; // minutes per day
+    private static final int DEFAULT_CHUNK_BUDGET_KB = 512; // uncompressed glucose json per upload
 
     private static final boolean D = false;
 
-    public static String getNext(final Session session) {
+    public static StreamingChunk getNext(final Session session) {
         session.start = getLastEnd();
         session.end = maxWindow(session.start);
 
-        final String result = get(session.start, session.end);
-        if (result != null && result.length() < 3) {
-            UserError.Log.d(TAG, "No records in this time period, setting start to best end time");
-            setLastEnd(Math.max(session.end, getOldestRecordTimeStamp()));
+        final StreamingChunk result = get(session.start, session.end);
+        if (result != null) {
+            session.end = result.end; // may have been cut short by the size budget
+            if (result.isEmpty()) {
+                UserError.Log.d(TAG, "No records in this time period, setting start to best end time");
+                setLastEnd(Math.max(session.end, getOldestRecordTimeStamp()));
+            }
         }
         return result;
     }
 
-    public static String get(final long start, final long end) {
+    static StreamingChunk get(final long start, final long end) {
 
         UserError.Log.uel(TAG, "Syncing data between: " + dateTimeText(start) + " -> " + dateTimeText(end));
         if (end <= start) {
@@ -63,16 +68,22 @@ public class UploadChunk implements NamedSliderProcessor {
             return null;
         }
 
+        // glucose readings are streamed, this also decides where the chunk ends
+        final StreamingChunk chunk = new StreamingChunk(start, end, getChunkBudget(), Pref.getBooleanDefaultFalse("tidepool_gzip_uploads"));
+
         final List<BaseElement> records = new LinkedList<>();
 
         if (!Pref.getBooleanDefaultFalse("tidepool_no_treatments")) {
-            records.addAll(getTreatments(start, end));
+            records.addAll(getTreatments(start, chunk.end));
         }
-        records.addAll(getBloodTests(start, end));
-        records.addAll(getBasals(start, end));
-        records.addAll(getBgReadings(start, end));
+        records.addAll(getBloodTests(start, chunk.end));
+        records.addAll(getBasals(start, chunk.end));
+
+        return chunk.setRecords(records);
+    }
 
-        return JoH.defaultGsonInstance().toJson(records);
+    private static long getChunkBudget() {
+        return Math.max(Pref.getStringToInt("tidepool_chunk_budget_kb", DEFAULT_CHUNK_BUDGET_KB), 16) * 1024L;
     }
 
     private static long getWindowSizePreference() {
@@ -145,10 +156,6 @@ public class UploadChunk implements NamedSliderProcessor {
         return EBloodGlucose.fromBloodTests(BloodTest.latestForGraph(1800, start, end));
     }
 
-    static List<ESensorGlucose> getBgReadings(final long start, final long end) {
-        return ESensorGlucose.fromBgReadings(BgReading.latestForGraphAsc(15000, start, end));
-    }
-
     private static double getRateForApStatus(final APStatus apStatus) {
         if (apStatus.basal_absolute >= 0) {
             return apStatus.basal_absolute;
@@ -22,8 +22,9 @@ import com.eveningoutpost.dexdrip.models.BgReading;
 import com.eveningoutpost.dexdrip.models.BloodTest;
 import com.eveningoutpost.dexdrip.models.Calibration;
 import com.eveningoutpost.dexdrip.models.Forecast;
+import com.eveningoutpost.dexdrip.models.Forecast.LeastSquares;
+import com.eveningoutpost.dexdrip.models.Forecast.OLSTrendLine;
 import com.eveningoutpost.dexdrip.models.Forecast.PolyTrendLine;
-import com.eveningoutpost.dexdrip.models.Forecast.TrendLine;
 import com.eveningoutpost.dexdrip.models.HeartRate;
 import com.eveningoutpost.dexdrip.models.Iob;
 import com.eveningoutpost.dexdrip.models.JoH;
@@ -59,9 +60,11 @@ import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.GregorianCalendar;
+import java.util.IdentityHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.TimeZone;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.regex.Matcher;
@@ -169,9 +172,14 @@ public class BgGraphBuilder {
     private final List<PointValue> noisePolyBgValues = new ArrayList<PointValue>();
     private final List<PointValue> activityValues = new ArrayList<PointValue>();
     private final List<PointValue> annotationValues = new ArrayList<>();
+    private final Map<List<PointValue>, PointPyramid> pyramids = new IdentityHashMap<>();
+    private double detailBucket = 0; // x axis units per pixel, 0 to keep every point
     private final Pattern posPattern = Pattern.compile(".*?pos:([0-9.]+).*");
     private final boolean hidePriming = Options.hidePrimingDoses();
-    private static TrendLine noisePoly;
+    private static LeastSquares.Fit noisePoly;
+    // fits kept between refreshes so only points entering or leaving their window need summing
+    private static final OLSTrendLine[] momentumFits = {new PolyTrendLine(1), new Forecast.LogTrendLine(), new Forecast.ExpTrendLine(), new Forecast.PowerTrendLine()};
+    private static final OLSTrendLine noiseFit = new PolyTrendLine(2);
     public static double last_noise = -99999;
     public static double original_value = -99999;
     public static double best_bg_estimate = -99999;
@@ -236,10 +244,10 @@ public class BgGraphBuilder {
                 capturePercentage = -1; // invalid reading
             }
         }
-        bloodtests = BloodTest.latestForGraph(numValues, start, end);
+        bloodtests = GraphSourceCache.bloodTests(numValues, start, end);
         // get extra calibrations so we can use them for historical readings
-        calibrations = Calibration.latestForGraph(numValues, start - (3 * Constants.DAY_IN_MS), end);
-        treatments = Treatments.latestForGraph(numValues, start, end + (120 * 60 * 1000));
+        calibrations = GraphSourceCache.calibrations(numValues, start - (3 * Constants.DAY_IN_MS), end);
+        treatments = GraphSourceCache.treatments(numValues, start, end + (120 * 60 * 1000));
         this.context = context;
         this.highMark = tolerantParseDouble(prefs.getString("highValue", "170"), 170);
         this.lowMark = tolerantParseDouble(prefs.getString("lowValue", "70"), 70);
@@ -257,6 +265,24 @@ public class BgGraphBuilder {
     }
 
 
+    // reduce glucose points to what a chart showing xSpan across this many pixels can draw
+    public BgGraphBuilder setDetail(final double xSpan, final int pixels) {
+        detailBucket = (pixels > 0) ? xSpan / pixels : 0;
+        return this;
+    }
+
+    private List<PointValue> levelOfDetail(final List<PointValue> points) {
+        if (detailBucket <= 0) return points;
+        synchronized (pyramids) {
+            PointPyramid pyramid = pyramids.get(points);
+            if (pyramid == null) {
+                pyramid = new PointPyramid(points);
+                pyramids.put(points, pyramid);
+            }
+            return pyramid.forBucket(detailBucket);
+        }
+    }
+
     private double bgScale() {
         if (doMgdl)
             return Constants.MMOLL_TO_MGDL;
@@ -616,7 +642,13 @@ public class BgGraphBuilder {
         if (isXLargeTablet(context)) {
             unlabledLinesSize = 2;
         }
+        // the preview always shows the whole window across the screen
+        final int previewPixels = context.getResources().getDisplayMetrics().widthPixels;
+        final double previewBucket = (end_time - start_time) / (double) Math.max(previewPixels, 1);
         for (Line lline : previewLineData.getLines()) {
+            if (!lline.hasLabels() && lline.getValues().size() > previewPixels * 2) {
+                lline.setValues(PointPyramid.minMax(lline.getValues(), previewBucket));
+            }
             if (((lline.getPointRadius() == pluginSize) && (lline.getPointColor() == getCol(X.color_secondary_glucose_value)))
                     || ((lline.getColor() == getCol(X.color_step_counter1) || (lline.getColor() == getCol(X.color_step_counter2) || (lline.getColor() == getCol(X.color_heart_rate1)))))) {
                 removeItems.add(lline); // remove plugin or step counter plot from preview graph
@@ -752,7 +784,7 @@ public class BgGraphBuilder {
     }
 
     public Line highValuesLine() {
-        Line highValuesLine = new Line(highValues);
+        Line highValuesLine = new Line(levelOfDetail(highValues));
         //highValuesLine.setColor(ChartUtils.COLOR_ORANGE);
         highValuesLine.setColor(getCol(X.color_high_values));
         highValuesLine.setHasLines(false);
@@ -762,7 +794,7 @@ public class BgGraphBuilder {
     }
 
     public Line badValuesLine() {
-        Line badValuesLine = new Line(badValues);
+        Line badValuesLine = new Line(levelOfDetail(badValues));
         badValuesLine.setColor(getCol(X.color_bad_values));
         badValuesLine.setHasLines(false);
         badValuesLine.setPointRadius(pointSize);
@@ -771,7 +803,7 @@ public class BgGraphBuilder {
     }
 
     public Line lowValuesLine() {
-        Line lowValuesLine = new Line(lowValues);
+        Line lowValuesLine = new Line(levelOfDetail(lowValues));
         //lowValuesLine.setColor(Color.parseColor("#C30909"));
         lowValuesLine.setColor(getCol(X.color_low_values));
         lowValuesLine.setHasLines(false);
@@ -781,7 +813,7 @@ public class BgGraphBuilder {
     }
 
     public Line inRangeValuesLine() {
-        Line inRangeValuesLine = new Line(inRangeValues);
+        Line inRangeValuesLine = new Line(levelOfDetail(inRangeValues));
         //inRangeValuesLine.setColor(ChartUtils.COLOR_BLUE);
         inRangeValuesLine.setColor(getCol(X.color_inrange_values));
         inRangeValuesLine.setHasLines(false);
@@ -1074,6 +1106,9 @@ public class BgGraphBuilder {
             highValues.clear();
             lowValues.clear();
             inRangeValues.clear();
+            synchronized (pyramids) {
+                pyramids.clear();
+            }
             backfillValues.clear();
             remoteValues.clear();
             calibrationValues.clear();
@@ -1113,19 +1148,11 @@ public class BgGraphBuilder {
             final long noise_trendstart = now - (1000 * 60 * 20); // 20 minutes // TODO MAKE PREFERENCE
             long oldest_noise_timestamp = now;
             long newest_noise_timestamp = 0;
-            TrendLine[] polys = new TrendLine[5];
+            // points for the momentum models and noise fit, these slide the kept fits along afterwards
+            final Forecast.Points momentumPoints = new Forecast.Points();
+            LeastSquares.Fit poly = null;
 
-            polys[0] = new PolyTrendLine(1);
-            // polys[1] = new PolyTrendLine(2);
-            polys[1] = new Forecast.LogTrendLine();
-            polys[2] = new Forecast.ExpTrendLine();
-            polys[3] = new Forecast.PowerTrendLine();
-            TrendLine poly = null;
-
-            final List<Double> polyxList = new ArrayList<>();
-            final List<Double> polyyList = new ArrayList<>();
-            final List<Double> noise_polyxList = new ArrayList<>();
-            final List<Double> noise_polyyList = new ArrayList<>();
+            final Forecast.Points noisePoints = new Forecast.Points();
 
             final long avg1start = now - (1000 * 60 * 60 * 8); // 8 hours
             final long momentum_illustration_start = now - (1000 * 60 * 60 * 2); // 8 hours
@@ -1305,10 +1332,9 @@ public class BgGraphBuilder {
                         if (shifted_timestamp > last_calibration) {
                             if (shifted_timestamp < oldest_noise_timestamp)
                                 oldest_noise_timestamp = shifted_timestamp;
-                            noise_polyxList.add((double)shifted_timestamp);
-                            noise_polyyList.add((bgReading.filtered_calculated_value));
+                            noisePoints.add(shifted_timestamp, bgReading.filtered_calculated_value);
                             if (d)
-                                Log.d(TAG, "flt noise poly Added: " + noise_polyxList.size() + " " + JoH.qs(noise_polyxList.get(noise_polyxList.size() - 1)) + " / " + JoH.qs(noise_polyyList.get(noise_polyyList.size() - 1), 2));
+                                Log.d(TAG, "flt noise poly Added: " + noisePoints.size() + " " + JoH.qs(shifted_timestamp) + " / " + JoH.qs(bgReading.filtered_calculated_value, 2));
                         }
 
                     }
@@ -1319,25 +1345,23 @@ public class BgGraphBuilder {
                             newest_noise_timestamp = bgReading.timestamp;
                             original_value = bgReading.calculated_value;
                         }
-                        noise_polyxList.add((double) bgReading.timestamp);
-                        noise_polyyList.add((bgReading.calculated_value));
+                        noisePoints.add(bgReading.timestamp, bgReading.calculated_value);
                         if (d)
-                            Log.d(TAG, "raw noise poly Added: " + noise_polyxList.size() + " " + JoH.qs(noise_polyxList.get(noise_polyxList.size() - 1)) + " / " + JoH.qs(noise_polyyList.get(noise_polyyList.size() - 1), 2));
+                            Log.d(TAG, "raw noise poly Added: " + noisePoints.size() + " " + JoH.qs(bgReading.timestamp) + " / " + JoH.qs(bgReading.calculated_value, 2));
                     }
                 }
 
                 // momentum trend
                 if (!simple && (bgReading.timestamp > trendstart) && (bgReading.timestamp > last_calibration)) {
                     if (has_filtered && (bgReading.filtered_calculated_value > 0) && (bgReading.filtered_calculated_value != bgReading.calculated_value)) {
-                        polyxList.add((double) bgReading.timestamp - timeshift);
-                        polyyList.add(unitized(bgReading.filtered_calculated_value));
+                        momentumPoints.add(bgReading.timestamp - timeshift, unitized(bgReading.filtered_calculated_value));
                     }
                     if (bgReading.calculated_value > 0) {
-                        polyxList.add((double) bgReading.timestamp);
-                        polyyList.add(unitized(bgReading.calculated_value));
+                        final double polyy = unitized(bgReading.calculated_value);
+                        momentumPoints.add(bgReading.timestamp, polyy);
+                        if (d)
+                            Log.d(TAG, "poly Added: " + JoH.qs(bgReading.timestamp) + " / " + JoH.qs(polyy, 2));
                     }
-                    if (d)
-                        Log.d(TAG, "poly Added: " + JoH.qs(polyxList.get(polyxList.size() - 1)) + " / " + JoH.qs(polyyList.get(polyyList.size() - 1), 2));
                 }
 
             }
@@ -1368,14 +1392,17 @@ public class BgGraphBuilder {
                 Log.d(TAG, "Noise: Processing new data for noise: " + JoH.dateTimeText(noise_processed_till_timestamp) + " vs now: " + JoH.dateTimeText(highest_bgreading_timestamp));
 
                 try {
-                    if (d) Log.d(TAG, "noise Poly list size: " + noise_polyxList.size());
+                    if (d) Log.d(TAG, "noise Poly list size: " + noisePoints.size());
                     // TODO Impossible to satisfy noise evaluation size with only raw data do we want it with raw only??
-                    if (noise_polyxList.size() > 5) {
-                        noisePoly = new PolyTrendLine(2);
-                        final double[] noise_polyys = PolyTrendLine.toPrimitiveFromList(noise_polyyList);
-                        final double[] noise_polyxs = PolyTrendLine.toPrimitiveFromList(noise_polyxList);
-                        noisePoly.setValues(noise_polyys, noise_polyxs);
-                        last_noise = noisePoly.errorVarience();
+                    if (noisePoints.size() > 5) {
+                        synchronized (noiseFit) {
+                            final int added = noiseFit.slideTo(noisePoints);
+                            if (d) Log.d(TAG, "noise Poly summed " + added + " of " + noisePoints.size() + " points");
+                            noisePoly = null;
+                            noiseFit.fit();
+                            noisePoly = noiseFit.snapshot();
+                        }
+                        last_noise = noisePoly.errorVariance;
                         if (newest_noise_timestamp > oldest_noise_timestamp) {
                             best_bg_estimate = noisePoly.predict(newest_noise_timestamp);
                             last_bg_estimate = noisePoly.predict(newest_noise_timestamp - DEXCOM_PERIOD);
@@ -1402,27 +1429,26 @@ public class BgGraphBuilder {
             if (!simple) {
                 // momentum
                 try {
-                    if (d) Log.d(TAG, "moment Poly list size: " + polyxList.size());
-                    if (polyxList.size() > 1) {
-                        final double[] polyys = PolyTrendLine.toPrimitiveFromList(polyyList);
-                        final double[] polyxs = PolyTrendLine.toPrimitiveFromList(polyxList);
-
-                        // set and evaluate poly curve models and select first best
+                    if (d) Log.d(TAG, "moment Poly list size: " + momentumPoints.size());
+                    if (momentumPoints.size() > 1) {
+                        // evaluate poly curve models and select first best
                         double min_errors = 9999999;
-                        for (TrendLine this_poly : polys) {
-                            if (this_poly != null) {
-                                if (poly == null) poly = this_poly;
-                                this_poly.setValues(polyys, polyxs);
+                        synchronized (momentumFits) {
+                            for (OLSTrendLine this_poly : momentumFits) {
+                                this_poly.slideTo(momentumPoints);
+                            }
+                            for (OLSTrendLine this_poly : momentumFits) {
+                                this_poly.fit();
+                                if (poly == null) poly = this_poly.snapshot();
                                 if (this_poly.errorVarience() < min_errors) {
                                     min_errors = this_poly.errorVarience();
-                                    poly = this_poly;
-                                    if (d) Log.d(TAG, "set forecast best model to: " + poly.getClass().getSimpleName() + " with varience of: " + JoH.qs(poly.errorVarience(),14));
+                                    poly = this_poly.snapshot();
+                                    if (d) Log.d(TAG, "set forecast best model to: " + this_poly.getClass().getSimpleName() + " with varience of: " + JoH.qs(poly.errorVariance,14));
                                 }
-
                             }
                         }
                         if (d)
-                            Log.i(TAG, "set forecast best model to: " + poly.getClass().getSimpleName() + " with varience of: " + JoH.qs(poly.errorVarience(), 4));
+                            Log.i(TAG, "set forecast best model with varience of: " + JoH.qs(poly.errorVariance, 4));
                     } else {
                         if (d) Log.i(TAG, "Not enough data for forecast model");
                     }
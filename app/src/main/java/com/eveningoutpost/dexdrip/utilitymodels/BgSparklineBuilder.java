@@ -187,9 +187,15 @@ public class BgSparklineBuilder {
         return bitmap;
     }
 
+    // pixels across the chart before any resize
+    protected int chartWidth() {
+        return height > SCALE_TRIGGER ? width : width * 2;
+    }
+
     public Bitmap build() {
         List<Line> lines = new ArrayList<>();
         bgGraphBuilder.defaultLines(true); // simple mode
+        bgGraphBuilder.setDetail(end - start, chartWidth());
         lines.add(bgGraphBuilder.inRangeValuesLine());
         lines.add(bgGraphBuilder.lowValuesLine());
         lines.add(bgGraphBuilder.highValuesLine());
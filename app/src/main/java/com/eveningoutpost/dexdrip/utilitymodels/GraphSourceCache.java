@@ -0,0 +1,222 @@
+package com.eveningoutpost.dexdrip.utilitymodels;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.net.Uri;
+
+import com.activeandroid.Model;
+import com.activeandroid.content.ContentProvider;
+import com.eveningoutpost.dexdrip.models.BloodTest;
+import com.eveningoutpost.dexdrip.models.Calibration;
+import com.eveningoutpost.dexdrip.models.Treatments;
+import com.eveningoutpost.dexdrip.models.UserError.Log;
+import com.eveningoutpost.dexdrip.xdrip;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Sliding window of the chart source records which are not readings
+ * <p>
+ * Every chart refresh builds a new BgGraphBuilder over a window which has usually only moved
+ * forward by a few minutes. Each table here remembers the records it last loaded along with the
+ * range they cover. While the table is unchanged a request inside that range is answered from
+ * memory and a request which has slid forward only queries the new tail and drops the head.
+ * <p>
+ * Any insert, update or delete seen via the ActiveAndroid content provider notifications bumps
+ * the table generation and the next request reloads it. Readings are already served by
+ * BgReadingCache.
+ * <p>
+ * Only the source queries are saved. BgGraphBuilder still generates every point list afresh on
+ * each refresh, and predictions, AP status, steps and heart rate are still queried directly.
+ */
+
+public class GraphSourceCache {
+
+    private static final String TAG = "GraphSourceCache";
+
+    interface Loader<T> {
+        List<T> load(int number, long start, long end);
+    }
+
+    interface Timestamp<T> {
+        long of(T record);
+    }
+
+    private static final Window<Treatments> treatments = new Window<>(Treatments.class, false,
+            Treatments::latestForGraph, record -> record.timestamp);
+    private static final Window<BloodTest> bloodTests = new Window<>(BloodTest.class, false,
+            BloodTest::latestForGraph, record -> record.timestamp);
+    private static final Window<Calibration> calibrations = new Window<>(Calibration.class, true,
+            Calibration::latestForGraph, record -> record.timestamp);
+
+    // as Treatments.latestForGraph(), ascending
+    public static List<Treatments> treatments(final int number, final long start, final long end) {
+        return treatments.get(number, start, end);
+    }
+
+    // as BloodTest.latestForGraph(), ascending
+    public static List<BloodTest> bloodTests(final int number, final long start, final long end) {
+        return bloodTests.get(number, start, end);
+    }
+
+    // as Calibration.latestForGraph(), descending
+    public static List<Calibration> calibrations(final int number, final long start, final long end) {
+        return calibrations.get(number, start, end);
+    }
+
+    // the database may have been replaced underneath us
+    public static void invalidate() {
+        treatments.invalidate();
+        bloodTests.invalidate();
+        calibrations.invalidate();
+    }
+
+    public static List<StatusItem> megaStatus() {
+        final List<StatusItem> l = new ArrayList<>();
+        l.add(treatments.status("Graph treatments"));
+        l.add(bloodTests.status("Graph blood tests"));
+        l.add(calibrations.status("Graph calibrations"));
+        return l;
+    }
+
+    static class Window<T extends Model> {
+
+        private final Class<T> type;
+        private final boolean descending; // order the loader returns and callers expect
+        private final Loader<T> loader;
+        private final Timestamp<T> timestamp;
+
+        // guarded by this
+        private List<T> records = new ArrayList<>(); // ascending
+        private long from = -1;
+        private long to = -1;
+        private int generation;
+        private int loadedGeneration = -1;
+        private ContentObserver observer;
+        private Context observerContext;
+
+        private long hits;
+        private long slides;
+        private long reloads;
+
+        Window(final Class<T> type, final boolean descending, final Loader<T> loader, final Timestamp<T> timestamp) {
+            this.type = type;
+            this.descending = descending;
+            this.loader = loader;
+            this.timestamp = timestamp;
+        }
+
+        // database access happens outside of our lock so we cannot deadlock against a transaction
+        List<T> get(final int number, long start, final long end) {
+            start = Math.max(start, 0);
+            if (!registerObserver()) {
+                return loader.load(number, start, end);
+            }
+            final int startGeneration;
+            final long tailFrom;
+            synchronized (this) {
+                startGeneration = generation;
+                final boolean current = loadedGeneration == generation && start >= from && start <= to;
+                if (current && end <= to) {
+                    final List<T> slice = slice(start, end);
+                    if (slice.size() <= number) {
+                        hits++;
+                        return flip(slice);
+                    }
+                }
+                tailFrom = (current && end > to) ? to + 1 : -1;
+            }
+
+            if (tailFrom >= 0) {
+                final List<T> tail = flip(new ArrayList<>(loader.load(number, tailFrom, end)));
+                synchronized (this) {
+                    if (generation == startGeneration && loadedGeneration == startGeneration && tailFrom == to + 1 && tail.size() < number) {
+                        slides++;
+                        final List<T> kept = slice(start, to);
+                        kept.addAll(tail);
+                        records = kept;
+                        from = start;
+                        to = end;
+                        if (kept.size() <= number) {
+                            return flip(new ArrayList<>(kept));
+                        }
+                    }
+                }
+            }
+
+            final List<T> loaded = loader.load(number, start, end);
+            synchronized (this) {
+                reloads++;
+                if (generation == startGeneration && loaded.size() < number) {
+                    records = flip(new ArrayList<>(loaded));
+                    from = start;
+                    to = end;
+                    loadedGeneration = generation;
+                } else {
+                    loadedGeneration = -1; // changed meanwhile or truncated by the limit
+                }
+            }
+            return loaded;
+        }
+
+        synchronized void invalidate() {
+            generation++;
+            records = new ArrayList<>();
+        }
+
+        synchronized StatusItem status(final String name) {
+            final long total = hits + slides + reloads;
+            return new StatusItem(name, records.size() + " held, " + hits + " hits, " + slides + " slides, " + reloads + " reloads"
+                    + ((total > 0) ? " (" + ((hits + slides) * 100 / total) + "%)" : ""));
+        }
+
+        // copy of the held records between start and end inclusive
+        private List<T> slice(final long start, final long end) {
+            final List<T> result = new ArrayList<>();
+            for (final T record : records) {
+                final long ts = timestamp.of(record);
+                if (ts > end) break;
+                if (ts >= start) result.add(record);
+            }
+            return result;
+        }
+
+        // between the loader and caller order and our ascending order, in place
+        private List<T> flip(final List<T> list) {
+            if (descending) Collections.reverse(list);
+            return list;
+        }
+
+        private synchronized boolean registerObserver() {
+            final Context context = xdrip.getAppContext();
+            if (observer != null && observerContext == context) return true;
+            if (observer != null) {
+                try {
+                    observerContext.getContentResolver().unregisterContentObserver(observer);
+                } catch (Exception e) {
+                    // old context may already be gone
+                }
+                observer = null;
+                observerContext = null;
+                invalidate();
+            }
+            try {
+                final ContentObserver contentObserver = new ContentObserver(null) {
+                    @Override
+                    public void onChange(final boolean selfChange, final Uri uri) {
+                        invalidate();
+                    }
+                };
+                context.getContentResolver().registerContentObserver(ContentProvider.createUri(type, null), true, contentObserver);
+                observer = contentObserver;
+                observerContext = context;
+                return true;
+            } catch (Exception e) {
+                Log.e(TAG, "Unable to register content observer for " + type.getSimpleName() + ": " + e);
+                return false;
+            }
+        }
+    }
+}
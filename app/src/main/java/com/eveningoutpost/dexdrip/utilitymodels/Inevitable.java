@@ -1,13 +1,23 @@
 package com.eveningoutpost.dexdrip.utilitymodels;
 
+import android.content.Context;
 import android.os.PowerManager;
 
 import com.eveningoutpost.dexdrip.models.JoH;
 import com.eveningoutpost.dexdrip.models.UserError;
+import com.eveningoutpost.dexdrip.xdrip;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
 import java.util.concurrent.ConcurrentHashMap;
-
-import lombok.Getter;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Created by jamorham on 07/03/2018.
@@ -15,6 +25,11 @@ import lombok.Getter;
  * Tasks which are fired from events can be scheduled here and only execute when they become idle
  * and are not being rescheduled within their wait window.
  *
+ * A single scheduler thread sleeps until the earliest deadline. Extending a task only updates
+ * its deadline, the scheduler notices when the old deadline comes round and queues it again, so
+ * rapid rescheduling costs nothing. Due tasks run on a small worker pool and one shared wakelock
+ * is held while anything is waiting or running.
+ *
  */
 
 public class Inevitable {
@@ -25,6 +40,27 @@ public class Inevitable {
 
     private static final ConcurrentHashMap<String, Task> tasks = new ConcurrentHashMap<>();
 
+    // scheduler state, guarded by lock
+    private static final ReentrantLock lock = new ReentrantLock();
+    private static final Condition changed = lock.newCondition();
+    private static final PriorityQueue<Entry> queue = new PriorityQueue<>();
+    private static Thread scheduler;
+    private static PowerManager.WakeLock wakeLock;
+
+    private static final AtomicInteger running = new AtomicInteger();
+    private static final ExecutorService workers = Executors.newCachedThreadPool(runnable -> {
+        final Thread t = new Thread(runnable, TAG + "-worker");
+        t.setPriority(Thread.MIN_PRIORITY);
+        return t;
+    });
+
+    private static final AtomicLong created = new AtomicLong();
+    private static final AtomicLong extended = new AtomicLong();
+    private static final AtomicLong dispatched = new AtomicLong();
+    private static final AtomicLong totalLatenessNanos = new AtomicLong();
+    private static final AtomicLong maxLatenessNanos = new AtomicLong();
+    private static volatile int maxDepth;
+
     public static synchronized void task(final String id, long idle_for, Runnable runnable) {
         if (idle_for > MAX_QUEUE_TIME) {
             throw new RuntimeException(id + " Requested time: " + idle_for + " beyond max queue time");
@@ -33,39 +69,25 @@ public class Inevitable {
         if (task != null) {
             // if it already exists then extend the time
             task.extendTime(idle_for);
+            extended.incrementAndGet();
+            holdWakeLock();
+            bringForward(task);
 
             if (d)
                 UserError.Log.d(TAG, "Extending time for: " + id + " to " + JoH.dateTimeText(task.when));
         } else {
             // otherwise create new task
             if (runnable == null) return; // extension only if already exists
-            tasks.put(id, new Task(id, idle_for, runnable));
+            final Task newTask = new Task(id, idle_for, runnable);
+            tasks.put(id, newTask);
+            created.incrementAndGet();
+            maxDepth = Math.max(maxDepth, tasks.size());
 
             if (d)
-                UserError.Log.d(TAG, "Creating task: " + id + " due: " + JoH.dateTimeText(tasks.get(id).when));
-
-            // create a thread to wait and execute in background
-            final Thread t = new Thread(() -> {
-                final PowerManager.WakeLock wl = JoH.getWakeLock(id, MAX_QUEUE_TIME + 5000);
-                try {
-                    boolean running = true;
-                    // wait for task to be due or killed
-                    while (running) {
-                        final Task thisTask1 = tasks.get(id);
-                        if (thisTask1 == null || thisTask1.getWhen() > 0) {
-                            // run instantly if we are set to offset of 0
-                            JoH.threadSleep(500); // Todo reduce this to reduce latency on tasks scheduled for <500ms? careful of timing implications
-                        }
-                        final Task thisTask = tasks.get(id);
-                        running = thisTask != null && !thisTask.poll();
-                    }
-                } finally {
-                    JoH.releaseWakeLock(wl);
-                }
-            });
-            t.setPriority(Thread.MIN_PRIORITY);
-            //t.setDaemon(true);
-            t.start();
+                UserError.Log.d(TAG, "Creating task: " + id + " due: " + JoH.dateTimeText(newTask.when));
+
+            holdWakeLock();
+            schedule(newTask);
         }
     }
 
@@ -81,46 +103,182 @@ public class Inevitable {
     }
 
     public static void kill(final String id) {
-        tasks.remove(id);
+        if (tasks.remove(id) != null) {
+            checkIdle();
+        }
     }
 
     public static boolean waiting(final String id) {
         return tasks.containsKey(id);
     }
 
+    // add an entry for the task's current deadline and wake the scheduler if it is now first
+    private static void schedule(final Task task) {
+        lock.lock();
+        try {
+            task.queued = task.deadline;
+            queue.add(new Entry(task, task.deadline));
+            if (scheduler == null || !scheduler.isAlive()) {
+                scheduler = new Thread(Inevitable::schedulerLoop, TAG);
+                scheduler.setPriority(Thread.MIN_PRIORITY);
+                scheduler.setDaemon(true);
+                scheduler.start();
+            }
+            if (queue.peek().task == task) {
+                changed.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // an extension can also shorten the wait, then the queued entry would be too late
+    private static void bringForward(final Task task) {
+        lock.lock();
+        try {
+            if (task.deadline < task.queued) {
+                schedule(task);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static void schedulerLoop() {
+        final List<Task> due = new ArrayList<>();
+        while (true) {
+            lock.lock();
+            try {
+                while (due.isEmpty()) {
+                    final Entry first = queue.peek();
+                    if (first == null) {
+                        changed.await();
+                        continue;
+                    }
+                    final long wait = first.deadline - System.nanoTime();
+                    if (wait > 0) {
+                        changed.awaitNanos(wait);
+                        continue;
+                    }
+                    queue.poll();
+                    final Task task = first.task;
+                    if (tasks.get(task.id) != task || first.deadline != task.queued) {
+                        continue; // killed, already run or superseded by an earlier entry
+                    }
+                    if (task.deadline > first.deadline) {
+                        task.queued = task.deadline; // extended since queued
+                        queue.add(new Entry(task, task.deadline));
+                        continue;
+                    }
+                    due.add(task);
+                }
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+            for (final Task task : due) {
+                dispatch(task);
+            }
+            due.clear();
+        }
+    }
+
+    private static void dispatch(final Task task) {
+        running.incrementAndGet(); // before removal so we cannot look idle in between
+        if (!tasks.remove(task.id, task)) { // early remove to allow overlapping scheduling
+            running.decrementAndGet();
+            checkIdle();
+            return;
+        }
+        final long lateness = Math.max(0, System.nanoTime() - task.deadline);
+        dispatched.incrementAndGet();
+        totalLatenessNanos.addAndGet(lateness);
+        if (lateness > maxLatenessNanos.get()) {
+            maxLatenessNanos.set(lateness);
+        }
+        if (d) UserError.Log.d(TAG, "Executing task! " + task.id);
+        workers.execute(() -> {
+            try {
+                task.what.run();
+            } finally {
+                running.decrementAndGet();
+                checkIdle();
+            }
+        });
+    }
+
+    private static void holdWakeLock() {
+        lock.lock();
+        try {
+            if (wakeLock == null) {
+                final PowerManager pm = (PowerManager) xdrip.getAppContext().getSystemService(Context.POWER_SERVICE);
+                wakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
+                wakeLock.setReferenceCounted(false);
+            }
+            wakeLock.acquire(MAX_QUEUE_TIME + 5000); // renews the timeout
+        } catch (Exception e) {
+            UserError.Log.e(TAG, "Could not get wakelock: " + e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static void checkIdle() {
+        lock.lock();
+        try {
+            if (tasks.isEmpty() && running.get() == 0 && wakeLock != null) {
+                JoH.releaseWakeLock(wakeLock);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public static List<StatusItem> megaStatus() {
+        final List<StatusItem> l = new ArrayList<>();
+        final long count = dispatched.get();
+        l.add(new StatusItem("Inevitable tasks", tasks.size() + " waiting, " + running.get() + " running, max " + maxDepth));
+        l.add(new StatusItem("Inevitable dispatched", count + " run, " + created.get() + " created, " + extended.get() + " extensions"));
+        if (count > 0) {
+            l.add(new StatusItem("Inevitable lateness", JoH.qs(totalLatenessNanos.get() / (double) count / 1000000d, 2) + "ms avg, "
+                    + JoH.qs(maxLatenessNanos.get() / 1000000d, 2) + "ms max"));
+        }
+        return l;
+    }
+
+    private static class Entry implements Comparable<Entry> {
+        final Task task;
+        final long deadline;
+
+        Entry(final Task task, final long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public int compareTo(final Entry other) {
+            return Long.compare(deadline, other.deadline);
+        }
+    }
+
     private static class Task {
-        @Getter
-        private long when;
+        private volatile long when; // wall clock for logging
+        private volatile long deadline; // System.nanoTime()
+        private long queued; // deadline of the live queue entry, guarded by lock
         private final Runnable what;
         private final String id;
 
         Task(String id, long offset, Runnable what) {
             this.what = what;
             this.id = id;
-            if (offset > 0) {
-                extendTime(offset); // make when 0 if offset is 0
-            }
+            extendTime(Math.max(offset, 0)); // due immediately if offset is 0
         }
 
         public void extendTime(long offset) {
             this.when = JoH.tsl() + offset;
+            this.deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(offset);
         }
-
-        public boolean poll() {
-            final long till = JoH.msTill(when);
-            if (till < 1) {
-                if (d) UserError.Log.d(TAG, "Executing task! " + this.id);
-                tasks.remove(this.id); // early remove to allow overlapping scheduling
-                what.run();
-                return true;
-            } else if (till > MAX_QUEUE_TIME) {
-                UserError.Log.wtf(TAG, "Task: " + this.id + " In queue too long: " + till);
-                tasks.remove(this.id);
-                return true;
-            }
-            return false;
-        }
-
     }
 
 }
@@ -84,6 +84,9 @@ public class Notifications extends IntentService {
 
     private static String last_noise_string = "Startup";
 
+    private static volatile boolean prefsCurrent = false;
+    private static SharedPreferences.OnSharedPreferenceChangeListener prefListener; // held here as prefs only keep a weak reference
+
 
     Context mContext;
     private static volatile PendingIntent wakeIntent;
@@ -154,9 +157,12 @@ public class Notifications extends IntentService {
     public void ReadPerfs(Context context) {
         mContext = context;
         prefs = PreferenceManager.getDefaultSharedPreferences(context);
-        bg_notifications = prefs.getBoolean("bg_notifications", true);
         bg_notifications_watch = PersistentStore.getBoolean("bg_notifications_watch");
         bg_persistent_high_alert_enabled_watch = PersistentStore.getBoolean("persistent_high_alert_enabled_watch");
+        if (prefsCurrent) return; // nothing changed since we last read them
+        registerPrefListener(prefs);
+        prefsCurrent = true; // set first so a change while we are reading is picked up next time
+        bg_notifications = prefs.getBoolean("bg_notifications", true);
         //bg_vibrate = prefs.getBoolean("bg_vibrate", true);
         //bg_lights = prefs.getBoolean("bg_lights", true);
         //bg_sound = prefs.getBoolean("bg_play_sound", true);
@@ -173,6 +179,12 @@ public class Notifications extends IntentService {
         bg_ongoing = prefs.getBoolean("run_service_in_foreground", false);
     }
 
+    private static synchronized void registerPrefListener(final SharedPreferences prefs) {
+        if (prefListener != null) return;
+        prefListener = (p, key) -> prefsCurrent = false;
+        prefs.registerOnSharedPreferenceChangeListener(prefListener);
+    }
+
 /*
  * *************************************************************************************************************
  * Function for new notifications
@@ -6,13 +6,16 @@ import androidx.annotation.NonNull;
 import com.eveningoutpost.dexdrip.Home;
 import com.eveningoutpost.dexdrip.models.JoH;
 import com.eveningoutpost.dexdrip.models.UserError.Log;
+import com.eveningoutpost.dexdrip.xdrip;
 
 import java.util.ArrayDeque;
-import java.util.HashMap;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
 import java.util.concurrent.Executor;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 
 import static java.lang.Thread.NORM_PRIORITY;
 
@@ -23,98 +26,234 @@ import static java.lang.Thread.NORM_PRIORITY;
  * Created by jamorham on 19/04/2016.
  * <p/>
  * AsyncTask works only on a single thread, any lock-up will bring down
- * everything else using that thread. This splits each calling task in to
- * its own single thread with deadlock detection and reporting.
+ * everything else using that thread. This splits callers in to their own
+ * named queues with deadlock detection and reporting.
+ * <p/>
+ * Callers name their queue with forKey(). Tasks with the same key run one at a time in the
+ * order they were submitted, different keys run in parallel on a shared pool of worker threads.
+ * Each queue is bounded and says what to do when it is full, and a wakelock is only held
+ * while a queue has work.
  */
 
 public class PlusAsyncExecutor implements Executor {
 
     private static final String TAG = "jamorham exec";
-    private static final ConcurrentHashMap<String, Queue<Runnable>> taskQueues = new ConcurrentHashMap<>();
-    private static final HashMap<String, Runnable> currentTask = new HashMap<>();
+    private static final String DEFAULT_KEY = "default";
+    public static final int DEFAULT_CAPACITY = 20;
+    private static final int DEADLOCK_BACKLOG = 10;
+    private static final int WAKELOCK_FAILSAFE = (int) Constants.HOUR_IN_MS;
 
-    private static final AtomicInteger wlocks = new AtomicInteger(0);
+    public enum Overflow {
+        REJECT_NEWEST, // keep what is queued and drop the new task
+        DISCARD_OLDEST // make room by dropping the task which has waited longest
+    }
 
-    public synchronized void execute(@NonNull final Runnable r) {
+    private final ExecutorService workers = Executors.newCachedThreadPool(runnable -> {
+        final Thread t = new Thread(runnable, TAG + "-worker");
+        t.setPriority(NORM_PRIORITY - 1);
+        return t;
+    });
 
-        String pqueueId = JoH.backTraceShort(0);
-        if (pqueueId.equals("executeOnExecutor")) {
-            pqueueId = JoH.backTrace(1);
-            if (pqueueId.contains(":")) {
-                pqueueId = pqueueId.split(":")[0];
-            }
+    private final TreeMap<String, Queue> queues = new TreeMap<>();
+
+    private static final class Task {
+        final Runnable runnable;
+        final long queued;
+
+        Task(final Runnable runnable) {
+            this.runnable = runnable;
+            this.queued = JoH.tsl();
         }
-        final String queueId = pqueueId;
+    }
 
+    private final class Queue implements Executor {
+        final String key;
+        final ArrayDeque<Task> tasks = new ArrayDeque<>();
+        int capacity = DEFAULT_CAPACITY;
+        Overflow overflow = Overflow.REJECT_NEWEST;
+        boolean busy;
+        PowerManager.WakeLock wakeLock;
 
-        // Create the queue if it doesn't exist yet
-        if (!taskQueues.containsKey(queueId)) {
-            Log.d(TAG, "New task queue for: " + queueId);
-            taskQueues.put(queueId, new ArrayDeque<>());
-            currentTask.remove(queueId);
+        long submitted;
+        long completed;
+        long rejected;
+        long discarded;
+        long totalWait;
+        long maxWait;
+        int maxBacklog;
+
+        Queue(final String key) {
+            this.key = key;
         }
 
-        final int qsize = taskQueues.get(queueId).size();
+        @Override
+        public void execute(@NonNull final Runnable runnable) {
+            PlusAsyncExecutor.this.execute(this, runnable);
+        }
+    }
 
-        // Log if tasks are backlogged
-        if (qsize > 0) {
-            Log.i(TAG, "Task queue size: " + qsize + " on queue: " + queueId);
+    // an executor which runs everything given to it in order on the named queue
+    public Executor forKey(final String key) {
+        synchronized (this) {
+            return queue(key);
         }
+    }
 
-        // if queue isnt broken then add task to it
-        if (qsize < 20) {
-            // enqueue this current runnable to the respective queue
-            taskQueues.get(queueId).offer(new Runnable() {
-                public void run() {
-                    //final PowerManager pm = (PowerManager) xdrip.getAppContext().getSystemService(Context.POWER_SERVICE);
-                    //final PowerManager.WakeLock wl = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, queueId);
-                    final PowerManager.WakeLock wl = JoH.getWakeLock(queueId, 3600000);
-                    try {
-                        //wl.acquire(3600000); // failsafe value = 60 mins
-                        final int locksnow = wlocks.incrementAndGet();
-                        if (locksnow > 1)
-                            Log.d(TAG, queueId + " Acquire Wakelocks total: " + locksnow);
-                        r.run();
-                    } finally {
-                        // each task will try to call the next when done
-                        next(queueId);
-                        JoH.releaseWakeLock(wl); // will stack wakelocks
-                        final int locksnow = wlocks.decrementAndGet();
-                        if (locksnow != 0)
-                            Log.d(TAG, queueId + " Release Wakelocks total: " + locksnow);
-                    }
-                }
-            });
+    // as above but with its own bound and policy for when that is reached
+    public Executor forKey(final String key, final int capacity, final Overflow overflow) {
+        synchronized (this) {
+            final Queue queue = queue(key);
+            queue.capacity = Math.max(1, capacity);
+            queue.overflow = overflow;
+            return queue;
+        }
+    }
+
+    // tasks from callers which have not named a queue all share one
+    public void execute(@NonNull final Runnable r) {
+        forKey(DEFAULT_KEY).execute(r);
+    }
 
-        } else {
-            Log.e(TAG, "Queue so backlogged we are not extending! " + queueId);
+    private Queue queue(final String key) {
+        Queue queue = queues.get(key);
+        if (queue == null) {
+            Log.d(TAG, "New task queue for: " + key);
+            queue = new Queue(key);
+            queues.put(key, queue);
         }
+        return queue;
+    }
 
-        // if we are not busy then run the queue
-        if (currentTask.get(queueId) == null) {
-            next(queueId);
-        } else if (qsize > 10) {
+    private void execute(final Queue queue, final Runnable runnable) {
+        final int backlog;
+        synchronized (this) {
+            queue.submitted++;
+            if (queue.tasks.size() >= queue.capacity) {
+                if (queue.overflow == Overflow.DISCARD_OLDEST) {
+                    queue.tasks.poll();
+                    queue.discarded++;
+                    Log.e(TAG, "Queue full, discarding oldest task on: " + queue.key);
+                } else {
+                    queue.rejected++;
+                    Log.e(TAG, "Queue so backlogged we are not extending! " + queue.key);
+                    return;
+                }
+            }
+            queue.tasks.offer(new Task(runnable));
+            backlog = queue.tasks.size();
+            queue.maxBacklog = Math.max(queue.maxBacklog, backlog);
+            if (!queue.busy) {
+                queue.busy = true;
+                queue.wakeLock = JoH.getWakeLock(queue.key, WAKELOCK_FAILSAFE);
+                start(queue);
+                return;
+            }
+        }
+        if (backlog > 1) {
+            Log.i(TAG, "Task queue size: " + backlog + " on queue: " + queue.key);
+        }
+        if (backlog > DEADLOCK_BACKLOG) {
             // report deadlock if queue is stacking up
-            final String err = JoH.hourMinuteString() + " Task deadlock on: " + queueId + "! @" + qsize;
+            final String err = JoH.hourMinuteString() + " Task deadlock on: " + queue.key + "! @" + backlog;
             Log.e(TAG, err);
             Home.toaststaticnext(err);
         }
-
     }
 
-    // process the next runnable in the named queue
-    // create a single thread for each queue
-    private synchronized void next(String queueId) {
-        currentTask.put(queueId, taskQueues.get(queueId).poll());
-        final Runnable task = currentTask.get(queueId);
-        if (task != null) {
-            Log.d(TAG, " New thread: " + queueId);
-            final Thread t = (new Thread(task));
+    private void start(final Queue queue) {
+        try {
+            workers.execute(() -> drain(queue));
+        } catch (RejectedExecutionException e) {
+            Log.e(TAG, "Worker pool rejected " + queue.key + " using a new thread");
+            final Thread t = new Thread(() -> drain(queue));
             t.setPriority(NORM_PRIORITY - 1);
             t.start();
-        } else {
-            Log.d(TAG, "Queue empty: " + queueId);
         }
+    }
+
+    // run tasks from the queue until it is empty and then let the wakelock go
+    private void drain(final Queue queue) {
+        final String threadName = Thread.currentThread().getName();
+        Thread.currentThread().setName(TAG + " " + queue.key);
+        PowerManager.WakeLock wakeLock = null;
+        boolean drained = false;
+        try {
+            while (true) {
+                final Task task;
+                synchronized (this) {
+                    task = queue.tasks.poll();
+                    if (task == null) {
+                        queue.busy = false;
+                        wakeLock = queue.wakeLock;
+                        queue.wakeLock = null;
+                        drained = true;
+                        break;
+                    }
+                    final long wait = JoH.msSince(task.queued);
+                    queue.totalWait += wait;
+                    queue.maxWait = Math.max(queue.maxWait, wait);
+                }
+                try {
+                    task.runnable.run();
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Exception in task on: " + queue.key + " " + e);
+                } finally {
+                    synchronized (this) {
+                        queue.completed++;
+                    }
+                }
+            }
+        } finally {
+            if (!drained) {
+                // an Error escaped a task, don't leave the queue stuck busy or the wakelock held
+                synchronized (this) {
+                    wakeLock = queue.wakeLock;
+                    queue.wakeLock = null;
+                    queue.busy = false;
+                    if (!queue.tasks.isEmpty()) {
+                        Log.e(TAG, "Task died on: " + queue.key + " restarting with " + queue.tasks.size() + " waiting");
+                        queue.busy = true;
+                        queue.wakeLock = JoH.getWakeLock(queue.key, WAKELOCK_FAILSAFE);
+                        start(queue);
+                    }
+                }
+            }
+            Thread.currentThread().setName(threadName);
+            JoH.releaseWakeLock(wakeLock);
+        }
+    }
+
+    // waiting plus running tasks on the named queue
+    public synchronized int backlog(final String key) {
+        final Queue queue = queues.get(key);
+        return queue == null ? 0 : queue.tasks.size() + (queue.busy ? 1 : 0);
+    }
+
+    public synchronized List<StatusItem> status() {
+        final List<StatusItem> l = new ArrayList<>();
+        int busy = 0;
+        for (final Queue queue : queues.values()) {
+            if (queue.busy) busy++;
+        }
+        l.add(new StatusItem("Executor queues", queues.size() + " queues, " + busy + " busy"));
+        for (final Queue queue : queues.values()) {
+            final long started = queue.completed + (queue.busy ? 1 : 0);
+            final StringBuilder sb = new StringBuilder();
+            sb.append(queue.completed).append(" done");
+            if (queue.tasks.size() > 0) sb.append(", ").append(queue.tasks.size()).append(" waiting");
+            sb.append(", max ").append(queue.maxBacklog);
+            if (queue.rejected > 0) sb.append(", ").append(queue.rejected).append(" rejected");
+            if (queue.discarded > 0) sb.append(", ").append(queue.discarded).append(" discarded");
+            if (started > 0) {
+                sb.append(", wait ").append(queue.totalWait / started).append("ms avg ").append(queue.maxWait).append("ms max");
+            }
+            l.add(new StatusItem("Queue " + queue.key, sb.toString()));
+        }
+        return l;
+    }
 
+    public static List<StatusItem> megaStatus() {
+        final PlusAsyncExecutor executor = xdrip.executor;
+        return executor != null ? executor.status() : new ArrayList<>();
     }
 }
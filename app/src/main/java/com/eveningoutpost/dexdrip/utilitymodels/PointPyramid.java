@@ -0,0 +1,88 @@
+package com.eveningoutpost.dexdrip.utilitymodels;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import lecho.lib.hellocharts.model.PointValue;
+
+/**
+ * Level of detail reduction for chart point lists
+ * <p>
+ * Points are grouped into buckets along the x axis and only the lowest and highest point of
+ * each bucket are kept, in their original order, so lows and highs survive and a connected
+ * line keeps its shape. With a bucket per pixel column the rendering cost follows the chart
+ * width rather than how many readings are in the window.
+ * <p>
+ * Levels are built on first use, each from the one below with twice the bucket width. Bucket
+ * edges line up between levels so the extremes of a coarse level are exactly those of the raw
+ * points. A request is served from the coarsest level which is still no wider than asked for.
+ */
+
+public class PointPyramid {
+
+    private static final float BASE_BUCKET = 1; // x axis units, BgGraphBuilder.FUZZER
+    private static final int MAX_LEVELS = 24;
+
+    private final List<List<PointValue>> levels = new ArrayList<>();
+
+    public PointPyramid(final List<PointValue> points) {
+        levels.add(points);
+    }
+
+    // points reduced to at most two per bucket of the given x axis width
+    public synchronized List<PointValue> forBucket(final double bucket) {
+        int level = 0;
+        double width = BASE_BUCKET;
+        while (width <= bucket && level < MAX_LEVELS) {
+            level++;
+            width *= 2;
+        }
+        while (levels.size() <= level) {
+            final List<PointValue> previous = levels.get(levels.size() - 1);
+            final double levelBucket = BASE_BUCKET * (1L << (levels.size() - 1));
+            levels.add(previous.size() > 2 ? minMax(previous, levelBucket) : previous);
+        }
+        return levels.get(level);
+    }
+
+    public synchronized int levelCount() {
+        return levels.size();
+    }
+
+    // keep the lowest and highest point of each bucket, points must be ordered by x either way
+    public static List<PointValue> minMax(final List<PointValue> points, final double bucket) {
+        final List<PointValue> result = new ArrayList<>();
+        if (points.isEmpty()) return result;
+        long current = bucketOf(points.get(0), bucket);
+        int low = 0;
+        int high = 0;
+        for (int i = 1; i < points.size(); i++) {
+            final PointValue point = points.get(i);
+            final long index = bucketOf(point, bucket);
+            if (index != current) {
+                emit(points, low, high, result);
+                current = index;
+                low = i;
+                high = i;
+            } else {
+                if (point.getY() < points.get(low).getY()) low = i;
+                if (point.getY() > points.get(high).getY()) high = i;
+            }
+        }
+        emit(points, low, high, result);
+        return result;
+    }
+
+    private static long bucketOf(final PointValue point, final double bucket) {
+        return (long) Math.floor(point.getX() / bucket);
+    }
+
+    private static void emit(final List<PointValue> points, final int low, final int high, final List<PointValue> result) {
+        if (low == high) {
+            result.add(points.get(low));
+        } else {
+            result.add(points.get(Math.min(low, high)));
+            result.add(points.get(Math.max(low, high)));
+        }
+    }
+}
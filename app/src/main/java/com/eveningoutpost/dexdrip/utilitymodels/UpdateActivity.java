@@ -314,7 +314,7 @@ public class UpdateActivity extends BaseAppCompatActivity {
                                 mScrollView.fullScroll(ScrollView.FOCUS_DOWN);
                             }
                         });
-                        new AsyncDownloader().executeOnExecutor(xdrip.executor);
+                        new AsyncDownloader().executeOnExecutor(xdrip.executor.forKey("update-download"));
 
                     }
                 } else {
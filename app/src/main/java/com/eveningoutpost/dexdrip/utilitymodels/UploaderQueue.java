@@ -5,6 +5,7 @@ import android.provider.BaseColumns;
 import android.util.Log;
 import android.util.LongSparseArray;
 
+import com.activeandroid.ActiveAndroid;
 import com.activeandroid.Cache;
 import com.activeandroid.Model;
 import com.activeandroid.annotation.Column;
@@ -32,7 +33,9 @@ import org.json.JSONObject;
 
 import java.net.URI;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import static com.eveningoutpost.dexdrip.services.SyncService.startSyncService;
 
@@ -60,6 +63,8 @@ public class UploaderQueue extends Model {
             "CREATE INDEX index_UploaderQueue_complete on UploaderQueue(bitfield_complete);",
             "CREATE INDEX index_UploaderQueue_wanted on UploaderQueue(bitfield_wanted);"};
 
+    private static final int MAX_IDS_PER_STATEMENT = 500;
+
     // table creation
     private static boolean patched = false;
     private static long last_cleanup = 0;
@@ -131,10 +136,69 @@ public class UploaderQueue extends Model {
         return save();
     }
 
+    // circuits can run in parallel so only our bit is touched in the database row
     public Long completed(long bitfield) {
         UserError.Log.d(TAG, "Marking bitfield " + bitfield + " completed on: " + getId() + " / " + action + " " + type + " " + reference_id);
         bitfield_complete |= bitfield;
-        return saveit();
+        final Long id = getId();
+        if (id == null) {
+            return saveit();
+        }
+        fixUpTable();
+        SQLiteUtils.execSql("UPDATE UploaderQueue SET bitfield_complete = (bitfield_complete | ?) WHERE _id = ?", new Object[]{bitfield, id});
+        return id;
+    }
+
+    // mark a whole batch as completed for a circuit in a single transaction
+    public static void completedAll(final List<UploaderQueue> entries, final long bitfield) {
+        if (entries == null || entries.isEmpty()) return;
+        fixUpTable();
+        ActiveAndroid.beginTransaction();
+        try {
+            for (int start = 0; start < entries.size(); start += MAX_IDS_PER_STATEMENT) {
+                final List<UploaderQueue> chunk = entries.subList(start, Math.min(entries.size(), start + MAX_IDS_PER_STATEMENT));
+                SQLiteUtils.execSql("UPDATE UploaderQueue SET bitfield_complete = (bitfield_complete | " + bitfield + ") WHERE _id IN (" + idList(chunk, false) + ")");
+            }
+            ActiveAndroid.setTransactionSuccessful();
+        } finally {
+            ActiveAndroid.endTransaction();
+        }
+        for (final UploaderQueue entry : entries) {
+            entry.bitfield_complete |= bitfield;
+        }
+        UserError.Log.d(TAG, "Marked bitfield " + bitfield + " completed on " + entries.size() + " entries");
+    }
+
+    // fetch the records referenced by these queue entries with one query per chunk, keyed by id
+    public static <T extends Model> Map<Long, T> loadReferenced(final Class<T> type, final List<UploaderQueue> entries) {
+        final Map<Long, T> results = new HashMap<>();
+        if (entries == null || entries.isEmpty()) return results;
+        for (int start = 0; start < entries.size(); start += MAX_IDS_PER_STATEMENT) {
+            final List<UploaderQueue> chunk = entries.subList(start, Math.min(entries.size(), start + MAX_IDS_PER_STATEMENT));
+            try {
+                final List<T> records = new Select()
+                        .from(type)
+                        .where("_ID IN (" + idList(chunk, true) + ")")
+                        .execute();
+                if (records != null) {
+                    for (final T record : records) {
+                        results.put(record.getId(), record);
+                    }
+                }
+            } catch (android.database.sqlite.SQLiteException e) {
+                UserError.Log.e(TAG, "Could not load " + type.getSimpleName() + " records: " + e);
+            }
+        }
+        return results;
+    }
+
+    private static String idList(final List<UploaderQueue> entries, final boolean referenced) {
+        final StringBuilder sb = new StringBuilder();
+        for (final UploaderQueue entry : entries) {
+            if (sb.length() > 0) sb.append(',');
+            sb.append(referenced ? entry.reference_id : entry.getId());
+        }
+        return sb.toString();
     }
 
     public String toS() {
@@ -426,6 +490,8 @@ public class UploaderQueue extends Model {
                 }*/
         }
 
+        l.addAll(UploaderTask.circuitStatus());
+
         if (UploaderTask.exception != null) {
             l.add(new StatusItem("Exception", UploaderTask.exception.toString(), StatusItem.Highlight.BAD, "long-press",
                     new Runnable() {
@@ -1,6 +1,9 @@
 package com.eveningoutpost.dexdrip.utilitymodels;
 
 import android.os.AsyncTask;
+import android.util.LongSparseArray;
+
+import com.activeandroid.Model;
 
 import com.eveningoutpost.dexdrip.influxdb.InfluxDBUploader;
 import com.eveningoutpost.dexdrip.models.BgReading;
@@ -17,9 +20,20 @@ import com.eveningoutpost.dexdrip.xdrip;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Created by Emma Black on 12/19/14.
+ * <p>
+ * Each enabled upload circuit is processed on its own thread. Pending queue entries are read
+ * in chunks, the records they refer to are fetched with one query per type and a successful
+ * upload marks the whole chunk complete in one transaction. The chunk size for each circuit
+ * grows while uploads are quick and shrinks when they fail or are slow.
  */
 
 // TODO unify treatment handling
@@ -31,19 +45,89 @@ public class UploaderTask extends AsyncTask<String, Void, Void> {
     public static final String BACKFILLING_BOOSTER = "backfilling-nightscout";
     private static final boolean retry_timer = false;
 
+    private static final int DEFAULT_CHUNK = 300;
+    private static final int MIN_CHUNK = 25;
+    private static final int MAX_CHUNK = 1000;
+    private static final long FAST_UPLOAD_MS = 10 * Constants.SECOND_IN_MS;
+    private static final long SLOW_UPLOAD_MS = 30 * Constants.SECOND_IN_MS;
+
+    private static final ExecutorService circuitExecutor = Executors.newCachedThreadPool();
+    private static final LongSparseArray<CircuitStats> circuitStats = new LongSparseArray<>();
+
+    private static final List<Class<? extends Model>> types = new ArrayList<>();
+
+    static {
+        types.add(BgReading.class);
+        types.add(Calibration.class);
+        types.add(BloodTest.class);
+        types.add(Treatments.class);
+        types.add(TransmitterData.class);
+        types.add(LibreBlock.class);
+    }
+
+    // throughput and chunk size state for one circuit
+    private static class CircuitStats {
+        boolean running;
+        int chunkSize = DEFAULT_CHUNK;
+        long uploads;
+        long failures;
+        long items;
+        long busyMs;
+        long lastDurationMs;
+        long lastItems;
+
+        // adapt how much we send at once to how well the destination is coping
+        void record(final boolean success, final int count, final boolean fullChunk, final long durationMs) {
+            lastDurationMs = durationMs;
+            lastItems = count;
+            busyMs += durationMs;
+            if (success) {
+                uploads++;
+                items += count;
+                if (durationMs > SLOW_UPLOAD_MS) {
+                    chunkSize = Math.max(MIN_CHUNK, chunkSize / 2);
+                } else if (fullChunk && durationMs < FAST_UPLOAD_MS) {
+                    chunkSize = Math.min(MAX_CHUNK, chunkSize * 2);
+                }
+            } else {
+                failures++;
+                chunkSize = Math.max(MIN_CHUNK, chunkSize / 2);
+            }
+        }
+    }
+
+    private static CircuitStats getStats(final long circuit) {
+        synchronized (circuitStats) {
+            CircuitStats stats = circuitStats.get(circuit);
+            if (stats == null) {
+                stats = new CircuitStats();
+                circuitStats.put(circuit, stats);
+            }
+            return stats;
+        }
+    }
+
+    // true if we now own this circuit, false if another task is already processing it
+    private static boolean claim(final long circuit) {
+        final CircuitStats stats = getStats(circuit);
+        synchronized (circuitStats) {
+            if (stats.running) return false;
+            stats.running = true;
+            return true;
+        }
+    }
+
+    private static void release(final long circuit) {
+        final CircuitStats stats = getStats(circuit);
+        synchronized (circuitStats) {
+            stats.running = false;
+        }
+    }
 
     public Void doInBackground(String... urls) {
         try {
             Log.d(TAG, "UploaderTask doInBackground called");
             final List<Long> circuits = new ArrayList<>();
-            final List<String> types = new ArrayList<>();
-
-            types.add(BgReading.class.getSimpleName());
-            types.add(Calibration.class.getSimpleName());
-            types.add(BloodTest.class.getSimpleName());
-            types.add(Treatments.class.getSimpleName());
-            types.add(TransmitterData.class.getSimpleName());
-            types.add(LibreBlock.class.getSimpleName());
 
             if (Pref.getBooleanDefaultFalse("wear_sync")) {
                 circuits.add(UploaderQueue.WATCH_WEARAPI);
@@ -63,149 +147,208 @@ public class UploaderTask extends AsyncTask<String, Void, Void> {
                 circuits.add(UploaderQueue.INFLUXDB_RESTAPI);
             }
 
+            handOutBooster(circuits);
 
-            for (long THIS_QUEUE : circuits) {
-
-                final List<BgReading> bgReadings = new ArrayList<>();
-                final List<Calibration> calibrations = new ArrayList<>();
-                final List<BloodTest> bloodtests = new ArrayList<>();
-                final List<Treatments> treatmentsAdd = new ArrayList<>();
-                final List<String> treatmentsDel = new ArrayList<>();
-                final List<TransmitterData> transmittersData = new ArrayList<>();
-                final List<LibreBlock> libreBlock = new ArrayList<>();
-                final List<UploaderQueue> items = new ArrayList<>();
-
-                for (String type : types) {
-                    final List<UploaderQueue> bgups = UploaderQueue.getPendingbyType(type, THIS_QUEUE);
-                    if (bgups != null) {
-                        for (UploaderQueue up : bgups) {
-                            switch (up.action) {
-                                case "insert":
-                                case "update":
-                                case "create":
-                                    items.add(up);
-                                    if (type.equals(BgReading.class.getSimpleName())) {
-                                        final BgReading this_bg = BgReading.byid(up.reference_id);
-                                        if (this_bg != null) {
-                                            bgReadings.add(this_bg);
-                                        } else {
-                                            Log.wtf(TAG, "BgReading with ID: " + up.reference_id + " appears to have been deleted");
-                                        }
-                                    } else if (type.equals(Calibration.class.getSimpleName())) {
-                                        final Calibration this_cal = Calibration.byid(up.reference_id);
-                                        if (this_cal != null) {
-                                            if (this_cal.isValid()) {
-                                                calibrations.add(this_cal);
-                                            } else {
-                                                Log.d(TAG, "Calibration with ID: " + up.reference_id + " is marked invalid");
-                                            }
-                                        } else {
-                                            Log.wtf(TAG, "Calibration with ID: " + up.reference_id + " appears to have been deleted");
-                                        }
-
-                                    } else if (type.equals(BloodTest.class.getSimpleName())) {
-                                        final BloodTest this_bt = BloodTest.byid(up.reference_id);
-                                        if (this_bt != null) {
-                                            bloodtests.add(this_bt);
-                                        } else {
-                                            Log.wtf(TAG, "Bloodtest with ID: " + up.reference_id + " appears to have been deleted");
-                                        }
-                                    } else if (type.equals(Treatments.class.getSimpleName())) {
-                                        final Treatments this_treat = Treatments.byid(up.reference_id);
-                                        if (this_treat != null) {
-                                            treatmentsAdd.add(this_treat);
-                                        } else {
-                                            Log.wtf(TAG, "Treatments with ID: " + up.reference_id + " appears to have been deleted");
-                                        }
-                                    } else if (type.equals(TransmitterData.class.getSimpleName())) {
-                                        final TransmitterData this_transmitterData = TransmitterData.byid(up.reference_id);
-                                        if (this_transmitterData != null) {
-                                            transmittersData.add(this_transmitterData);
-                                        } else {
-                                            Log.wtf(TAG, "TransmitterData with ID: " + up.reference_id + " appears to have been deleted");
-                                        }
-                                    } else if (type.equals(LibreBlock.class.getSimpleName())) {
-                                        final LibreBlock this_LibreBlock = LibreBlock.byid(up.reference_id);
-                                        if (this_LibreBlock != null) {
-                                            libreBlock.add(this_LibreBlock);
-                                        } else {
-                                            Log.wtf(TAG, "LibreBlock with ID: " + up.reference_id + " appears to have been deleted");
-                                        }
-                                    }
-                                    break;
-                                case "delete":
-                                    if ((THIS_QUEUE == UploaderQueue.WATCH_WEARAPI || THIS_QUEUE == UploaderQueue.NIGHTSCOUT_RESTAPI) && type.equals(Treatments.class.getSimpleName())) {
-                                        items.add(up);
-                                        Log.wtf(TAG, "Delete Treatments with ID: " + up.reference_uuid);
-                                        treatmentsDel.add(up.reference_uuid);
-                                    } else if (up.reference_uuid != null) {
-                                        Log.d(TAG, UploaderQueue.getCircuitName(THIS_QUEUE) + " delete not yet implemented: " + up.reference_uuid);
-                                        up.completed(THIS_QUEUE); // mark as completed so as not to tie up the queue for now
-                                    }
-                                    break;
-                                default:
-                                    Log.e(TAG, "Unsupported operation type for " + type + " " + up.action);
-                                    break;
-                            }
+            // circuits are independent of each other so run them side by side
+            final List<Future<Void>> running = new ArrayList<>();
+            for (final long THIS_QUEUE : circuits) {
+                if (!claim(THIS_QUEUE)) {
+                    Log.d(TAG, UploaderQueue.getCircuitName(THIS_QUEUE) + " already in progress");
+                    continue;
+                }
+                running.add(circuitExecutor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        try {
+                            processCircuit(THIS_QUEUE);
+                        } finally {
+                            release(THIS_QUEUE);
                         }
+                        return null;
                     }
+                }));
+            }
+            Exception failure = null;
+            for (final Future<Void> future : running) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
                 }
+            }
+            if (failure != null) throw failure;
+        } catch (Exception e) {
+            Log.e(TAG, "caught exception", e);
+            exception = e;
+            return null;
+        }
+        return null;
+    }
 
-                if ((bgReadings.size() > 0) || (calibrations.size() > 0) || (bloodtests.size() > 0)
-                        || (treatmentsAdd.size() > 0 || treatmentsDel.size() > 0) || (transmittersData.size() > 0) ||
-                        (libreBlock.size() > 0)
-                        || (UploaderQueue.getPendingbyType(Treatments.class.getSimpleName(), THIS_QUEUE, 1).size() > 0)) {
-
-                    Log.d(TAG, UploaderQueue.getCircuitName(THIS_QUEUE) + " Processing: " + bgReadings.size() + " BgReadings and " + calibrations.size() + " Calibrations " + bloodtests.size() + " bloodtests " + treatmentsAdd.size() + " treatmentsAdd " + treatmentsDel.size() + " treatmentsDel");
-                    boolean uploadStatus = false;
-
-                    if (THIS_QUEUE == UploaderQueue.MONGO_DIRECT) {
-                        final NightscoutUploader uploader = new NightscoutUploader(xdrip.getAppContext());
-                        uploadStatus = uploader.uploadMongo(bgReadings, calibrations, calibrations, transmittersData, libreBlock);
-                    } else if (THIS_QUEUE == UploaderQueue.NIGHTSCOUT_RESTAPI) {
-                        final NightscoutUploader uploader = new NightscoutUploader(xdrip.getAppContext());
-                        uploadStatus = uploader.uploadRest(bgReadings, bloodtests, calibrations);
-                    } else if (THIS_QUEUE == UploaderQueue.INFLUXDB_RESTAPI) {
-                        final InfluxDBUploader influxDBUploader = new InfluxDBUploader(xdrip.getAppContext());
-                        uploadStatus = influxDBUploader.upload(bgReadings, calibrations, calibrations);
-                    } else if (THIS_QUEUE == UploaderQueue.WATCH_WEARAPI) {
-                        uploadStatus = WatchUpdaterService.sendWearUpload(bgReadings, calibrations, bloodtests, treatmentsAdd, treatmentsDel);
-                    }
+    // a backfill request boosts every enabled circuit, each then switches off its own boost when drained
+    private static void handOutBooster(final List<Long> circuits) {
+        synchronized (circuitStats) {
+            if (PersistentStore.getBoolean(BACKFILLING_BOOSTER)) {
+                for (final long circuit : circuits) {
+                    PersistentStore.setBoolean(boosterKey(circuit), true);
+                }
+                PersistentStore.setBoolean(BACKFILLING_BOOSTER, false);
+            }
+        }
+    }
 
-                    if (retry_timer) {
-                        SyncService.startSyncService(Constants.MINUTE_IN_MS * 6); // standard retry timer
-                    }
+    private static String boosterKey(final long circuit) {
+        return BACKFILLING_BOOSTER + "-" + circuit;
+    }
 
-                    // TODO some kind of fail counter?
-                    if (uploadStatus) {
-                        for (UploaderQueue up : items) {
-                            up.completed(THIS_QUEUE); // approve all types for this queue
-                        }
-                        Log.d(TAG, UploaderQueue.getCircuitName(THIS_QUEUE) + " Marking: " + items.size() + " Items as successful");
+    private static void processCircuit(final long THIS_QUEUE) {
+        final CircuitStats stats = getStats(THIS_QUEUE);
+        final int chunkSize = stats.chunkSize;
+
+        final List<BgReading> bgReadings = new ArrayList<>();
+        final List<Calibration> calibrations = new ArrayList<>();
+        final List<BloodTest> bloodtests = new ArrayList<>();
+        final List<Treatments> treatmentsAdd = new ArrayList<>();
+        final List<String> treatmentsDel = new ArrayList<>();
+        final List<TransmitterData> transmittersData = new ArrayList<>();
+        final List<LibreBlock> libreBlock = new ArrayList<>();
+        final List<UploaderQueue> items = new ArrayList<>();
+        final List<UploaderQueue> skipped = new ArrayList<>();
+        boolean fullChunk = false;
 
-                        if (PersistentStore.getBoolean(BACKFILLING_BOOSTER)) {
-                            Log.d(TAG, "Scheduling boosted repeat query");
-                            SyncService.startSyncService(2000);
+        for (final Class<? extends Model> typeClass : types) {
+            final String type = typeClass.getSimpleName();
+            final List<UploaderQueue> bgups = UploaderQueue.getPendingbyType(type, THIS_QUEUE, chunkSize);
+            if (bgups == null) continue;
+            if (bgups.size() >= chunkSize) {
+                fullChunk = true;
+            }
+
+            final List<UploaderQueue> wanted = new ArrayList<>();
+            for (final UploaderQueue up : bgups) {
+                switch (up.action) {
+                    case "insert":
+                    case "update":
+                    case "create":
+                        wanted.add(up);
+                        break;
+                    case "delete":
+                        if ((THIS_QUEUE == UploaderQueue.WATCH_WEARAPI || THIS_QUEUE == UploaderQueue.NIGHTSCOUT_RESTAPI) && type.equals(Treatments.class.getSimpleName())) {
+                            items.add(up);
+                            Log.wtf(TAG, "Delete Treatments with ID: " + up.reference_uuid);
+                            treatmentsDel.add(up.reference_uuid);
+                        } else if (up.reference_uuid != null) {
+                            Log.d(TAG, UploaderQueue.getCircuitName(THIS_QUEUE) + " delete not yet implemented: " + up.reference_uuid);
+                            skipped.add(up); // mark as completed so as not to tie up the queue for now
                         }
+                        break;
+                    default:
+                        Log.e(TAG, "Unsupported operation type for " + type + " " + up.action);
+                        break;
+                }
+            }
+            if (wanted.isEmpty()) continue;
 
+            // one query for all the records this chunk refers to
+            final Map<Long, ? extends Model> records = UploaderQueue.loadReferenced(typeClass, wanted);
+            for (final UploaderQueue up : wanted) {
+                items.add(up);
+                final Model record = records.get(up.reference_id);
+                if (record == null) {
+                    Log.wtf(TAG, type + " with ID: " + up.reference_id + " appears to have been deleted");
+                } else if (record instanceof BgReading) {
+                    bgReadings.add((BgReading) record);
+                } else if (record instanceof Calibration) {
+                    final Calibration this_cal = (Calibration) record;
+                    if (this_cal.isValid()) {
+                        calibrations.add(this_cal);
+                    } else {
+                        Log.d(TAG, "Calibration with ID: " + up.reference_id + " is marked invalid");
                     }
+                } else if (record instanceof BloodTest) {
+                    bloodtests.add((BloodTest) record);
+                } else if (record instanceof Treatments) {
+                    treatmentsAdd.add((Treatments) record);
+                } else if (record instanceof TransmitterData) {
+                    transmittersData.add((TransmitterData) record);
+                } else if (record instanceof LibreBlock) {
+                    libreBlock.add((LibreBlock) record);
+                }
+            }
+        }
 
+        UploaderQueue.completedAll(skipped, THIS_QUEUE);
 
-                } else {
-                    Log.d(TAG, "Nothing to upload for: " + UploaderQueue.getCircuitName(THIS_QUEUE));
-                    if (PersistentStore.getBoolean(BACKFILLING_BOOSTER)) {
-                        PersistentStore.setBoolean(BACKFILLING_BOOSTER, false);
-                        Log.d(TAG, "Switched off backfilling booster");
-                    }
+        if ((bgReadings.size() > 0) || (calibrations.size() > 0) || (bloodtests.size() > 0)
+                || (treatmentsAdd.size() > 0 || treatmentsDel.size() > 0) || (transmittersData.size() > 0) ||
+                (libreBlock.size() > 0)
+                || (UploaderQueue.getPendingbyType(Treatments.class.getSimpleName(), THIS_QUEUE, 1).size() > 0)) {
+
+            Log.d(TAG, UploaderQueue.getCircuitName(THIS_QUEUE) + " Processing: " + bgReadings.size() + " BgReadings and " + calibrations.size() + " Calibrations " + bloodtests.size() + " bloodtests " + treatmentsAdd.size() + " treatmentsAdd " + treatmentsDel.size() + " treatmentsDel");
+            boolean uploadStatus = false;
+            final long uploadStarted = JoH.tsl();
+
+            if (THIS_QUEUE == UploaderQueue.MONGO_DIRECT) {
+                final NightscoutUploader uploader = new NightscoutUploader(xdrip.getAppContext());
+                uploadStatus = uploader.uploadMongo(bgReadings, calibrations, calibrations, transmittersData, libreBlock);
+            } else if (THIS_QUEUE == UploaderQueue.NIGHTSCOUT_RESTAPI) {
+                final NightscoutUploader uploader = new NightscoutUploader(xdrip.getAppContext());
+                uploadStatus = uploader.uploadRest(bgReadings, bloodtests, calibrations);
+            } else if (THIS_QUEUE == UploaderQueue.INFLUXDB_RESTAPI) {
+                final InfluxDBUploader influxDBUploader = new InfluxDBUploader(xdrip.getAppContext());
+                uploadStatus = influxDBUploader.upload(bgReadings, calibrations, calibrations);
+            } else if (THIS_QUEUE == UploaderQueue.WATCH_WEARAPI) {
+                uploadStatus = WatchUpdaterService.sendWearUpload(bgReadings, calibrations, bloodtests, treatmentsAdd, treatmentsDel);
+            }
+
+            synchronized (circuitStats) {
+                stats.record(uploadStatus, items.size(), fullChunk, JoH.msSince(uploadStarted));
+            }
+
+            if (retry_timer) {
+                SyncService.startSyncService(Constants.MINUTE_IN_MS * 6); // standard retry timer
+            }
+
+            // TODO some kind of fail counter?
+            if (uploadStatus) {
+                UploaderQueue.completedAll(items, THIS_QUEUE); // approve all types for this queue
+                Log.d(TAG, UploaderQueue.getCircuitName(THIS_QUEUE) + " Marking: " + items.size() + " Items as successful");
+
+                if (PersistentStore.getBoolean(boosterKey(THIS_QUEUE))) {
+                    Log.d(TAG, UploaderQueue.getCircuitName(THIS_QUEUE) + " Scheduling boosted repeat query");
+                    SyncService.startSyncService(2000);
                 }
 
             }
-        } catch (Exception e) {
-            Log.e(TAG, "caught exception", e);
-            exception = e;
-            return null;
+
+
+        } else {
+            Log.d(TAG, "Nothing to upload for: " + UploaderQueue.getCircuitName(THIS_QUEUE));
+            if (PersistentStore.getBoolean(boosterKey(THIS_QUEUE))) {
+                PersistentStore.setBoolean(boosterKey(THIS_QUEUE), false);
+                Log.d(TAG, "Switched off backfilling booster for: " + UploaderQueue.getCircuitName(THIS_QUEUE));
+            }
         }
-        return null;
+    }
+
+    // per circuit throughput for the uploader status page
+    static List<StatusItem> circuitStatus() {
+        final List<StatusItem> l = new ArrayList<>();
+        synchronized (circuitStats) {
+            for (int i = 0; i < circuitStats.size(); i++) {
+                final CircuitStats stats = circuitStats.valueAt(i);
+                if (stats.uploads == 0 && stats.failures == 0) continue;
+                final String name = UploaderQueue.getCircuitName(circuitStats.keyAt(i));
+                final long rate = stats.busyMs > 0 ? (stats.items * 60000 / stats.busyMs) : 0;
+                l.add(new StatusItem(name + " throughput", stats.items + " items in " + stats.uploads + " uploads, ~" + rate + " per minute"));
+                l.add(new StatusItem(name + " last upload", stats.lastItems + " items in " + JoH.niceTimeScalar(stats.lastDurationMs)
+                        + ", chunk " + stats.chunkSize + (stats.running ? " (running)" : "")));
+                if (stats.failures > 0) {
+                    l.add(new StatusItem(name + " failed uploads", Long.toString(stats.failures), StatusItem.Highlight.NOTICE));
+                }
+            }
+        }
+        return l;
     }
 
 }
@@ -0,0 +1,168 @@
+package com.eveningoutpost.dexdrip.utils;
+
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.activeandroid.Cache;
+import com.eveningoutpost.dexdrip.models.JoH;
+import com.eveningoutpost.dexdrip.models.UserError.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Transactionally consistent copy of the live database while collectors carry on writing.
+ * <p>
+ * Where the sqlite library supports it VACUUM INTO writes the copy from a single read
+ * transaction. Otherwise the copy is attached as a second database and the schema and rows
+ * are copied across inside one transaction.
+ */
+
+public class DatabaseSnapshot {
+
+    private static final String TAG = "DatabaseSnapshot";
+    private static final String ALIAS = "snapshot";
+
+    private static final Pattern CREATE = Pattern.compile("^\\s*(CREATE\\s+(?:UNIQUE\\s+)?(?:TABLE|INDEX|VIEW|TRIGGER)\\s+(?:IF\\s+NOT\\s+EXISTS\\s+)?)",
+            Pattern.CASE_INSENSITIVE);
+
+    public static class Snapshot {
+        public final File file;
+        public long rows = -1;
+        long ms;
+
+        Snapshot(final File file) {
+            this.file = file;
+        }
+
+        @SuppressWarnings("ResultOfMethodCallIgnored")
+        public void delete() {
+            file.delete();
+            new File(file.getPath() + "-journal").delete();
+        }
+
+        public String toS() {
+            return "Snapshot " + (rows >= 0 ? rows + " rows " : "")
+                    + throughput(file.length(), ms);
+        }
+    }
+
+    public static String throughput(final long bytes, final long ms) {
+        return String.format(Locale.US, "%.1fkB in %dms (%.1fkB/s)", bytes / 1024d, ms, ms > 0 ? bytes / 1.024d / ms : 0d);
+    }
+
+    // returns null on failure
+    public static synchronized Snapshot take(final File destination) {
+        final Snapshot snapshot = new Snapshot(destination);
+        snapshot.delete();
+        final File parent = destination.getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
+        final long start = JoH.tsl();
+        final SQLiteDatabase db = Cache.openDatabase();
+        try {
+            if (supportsVacuumInto(db)) {
+                db.execSQL("VACUUM INTO '" + destination.getPath().replace("'", "''") + "'");
+            } else {
+                attachAndCopy(db, snapshot);
+            }
+        } catch (SQLException e) {
+            Log.e(TAG, "Failed to take snapshot: " + e);
+            snapshot.delete();
+            return null;
+        }
+        snapshot.ms = JoH.msSince(start);
+        Log.d(TAG, snapshot.toS());
+        return snapshot;
+    }
+
+    static boolean supportsVacuumInto(final SQLiteDatabase db) {
+        try (final Cursor cursor = db.rawQuery("select sqlite_version()", null)) {
+            if (cursor.moveToFirst()) {
+                final String[] parts = cursor.getString(0).split("\\.");
+                final int major = Integer.parseInt(parts[0]);
+                final int minor = parts.length > 1 ? Integer.parseInt(parts[1]) : 0;
+                return major > 3 || (major == 3 && minor >= 27);
+            }
+        } catch (SQLException | NumberFormatException e) {
+            Log.e(TAG, "Could not determine sqlite version: " + e);
+        }
+        return false;
+    }
+
+    // package visible so tests can cover it where sqlite has VACUUM INTO
+    static void attachAndCopy(final SQLiteDatabase db, final Snapshot snapshot) {
+        db.execSQL("ATTACH DATABASE ? AS " + ALIAS, new Object[]{snapshot.file.getPath()});
+        try {
+            db.beginTransaction();
+            try {
+                final List<String> tables = new ArrayList<>();
+                final List<String> later = new ArrayList<>();
+                try (final Cursor cursor = db.rawQuery("select type, name, sql from main.sqlite_master where sql is not null and name not like 'sqlite_%'", null)) {
+                    while (cursor.moveToNext()) {
+                        final Matcher matcher = CREATE.matcher(cursor.getString(2));
+                        if (!matcher.find()) {
+                            Log.e(TAG, "Skipping schema entry we cannot copy: " + cursor.getString(1));
+                            continue;
+                        }
+                        final String sql = matcher.replaceFirst("$1" + ALIAS + ".");
+                        if (cursor.getString(0).equals("table")) {
+                            db.execSQL(sql);
+                            tables.add(cursor.getString(1));
+                        } else {
+                            later.add(sql); // indexes and triggers after the rows are in
+                        }
+                    }
+                }
+                long rows = 0;
+                for (final String table : tables) {
+                    final String quoted = quote(table);
+                    db.execSQL("insert into " + ALIAS + "." + quoted + " select * from main." + quoted);
+                    rows += changes(db);
+                }
+                if (hasTable(db, "main", "sqlite_sequence") && hasTable(db, ALIAS, "sqlite_sequence")) {
+                    db.execSQL("delete from " + ALIAS + ".sqlite_sequence");
+                    db.execSQL("insert into " + ALIAS + ".sqlite_sequence select * from main.sqlite_sequence");
+                }
+                for (final String sql : later) {
+                    db.execSQL(sql);
+                }
+                db.execSQL("PRAGMA " + ALIAS + ".user_version = " + userVersion(db));
+                snapshot.rows = rows;
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } finally {
+            db.execSQL("DETACH DATABASE " + ALIAS);
+        }
+    }
+
+    private static boolean hasTable(final SQLiteDatabase db, final String schema, final String name) {
+        try (final Cursor cursor = db.rawQuery("select 1 from " + schema + ".sqlite_master where type = 'table' and name = ?", new String[]{name})) {
+            return cursor.moveToFirst();
+        }
+    }
+
+    private static long changes(final SQLiteDatabase db) {
+        try (final Cursor cursor = db.rawQuery("select changes()", null)) {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        }
+    }
+
+    private static int userVersion(final SQLiteDatabase db) {
+        try (final Cursor cursor = db.rawQuery("PRAGMA main.user_version", null)) {
+            return cursor.moveToFirst() ? cursor.getInt(0) : 0;
+        }
+    }
+
+    private static String quote(final String name) {
+        return "\"" + name.replace("\"", "\"\"") + "\"";
+    }
+}
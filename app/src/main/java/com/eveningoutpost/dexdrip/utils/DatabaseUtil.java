@@ -12,9 +12,13 @@ import android.widget.Toast;
 import com.activeandroid.ActiveAndroid;
 import com.activeandroid.Cache;
 import com.activeandroid.Configuration;
+import com.eveningoutpost.dexdrip.models.AlertType;
+import com.eveningoutpost.dexdrip.models.BgReadingCache;
 import com.eveningoutpost.dexdrip.models.JoH;
 import com.eveningoutpost.dexdrip.models.UserError.Log;
+import com.eveningoutpost.dexdrip.utilitymodels.GraphSourceCache;
 import com.eveningoutpost.dexdrip.utilitymodels.Pref;
+import com.google.common.io.CountingOutputStream;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
@@ -61,7 +65,9 @@ public class DatabaseUtil {
         FileInputStream srcStream = null;
         BufferedInputStream biStream = null;
         FileOutputStream foStream = null;
+        CountingOutputStream countingStream = null;
         ZipOutputStream zipOutputStream = null;
+        DatabaseSnapshot.Snapshot snapshot = null;
         String zipFilename = null;
 
 
@@ -86,11 +92,18 @@ public class DatabaseUtil {
                 final File currentDB = context.getDatabasePath(databaseName);
                 final File zipOutputFile = new File(zipFilename);
                 if (currentDB.exists()) {
-                    srcStream = new FileInputStream(currentDB);
+                    // copy from a consistent snapshot as collectors may be writing to the live file
+                    snapshot = DatabaseSnapshot.take(new File(context.getCacheDir(), "export-snapshot.sqlite"));
+                    if (snapshot == null) {
+                        throw new IOException("Could not take database snapshot");
+                    }
+                    final long start = JoH.tsl();
+                    srcStream = new FileInputStream(snapshot.file);
                     biStream = new BufferedInputStream(srcStream, BUFFER_SIZE);
 
                     foStream = new FileOutputStream(zipOutputFile);
-                    zipOutputStream = new ZipOutputStream(new BufferedOutputStream(foStream));
+                    countingStream = new CountingOutputStream(new BufferedOutputStream(foStream));
+                    zipOutputStream = new ZipOutputStream(countingStream);
                     zipOutputStream.putNextEntry(new ZipEntry(prefix + DateFormat.format("yyyyMMdd-kkmmss", System.currentTimeMillis()) + ".sqlite"));
 
                     byte buffer[] = new byte[BUFFER_SIZE];
@@ -98,6 +111,9 @@ public class DatabaseUtil {
                     while ((count = biStream.read(buffer, 0, BUFFER_SIZE)) != -1) {
                         zipOutputStream.write(buffer, 0, count);
                     }
+                    zipOutputStream.finish();
+                    Log.uel(TAG, "Database export " + snapshot.toS() + ", zipped "
+                            + DatabaseSnapshot.throughput(countingStream.getCount(), JoH.msSince(start)));
                     if (!zipFilename.contains("b4import"))
                         Pref.setString("last-saved-database-zip", zipFilename);
                 } else {
@@ -125,6 +141,9 @@ public class DatabaseUtil {
             } catch (IOException e1) {
                 Log.e(TAG, "Something went wrong closing: ", e1);
             }
+            if (snapshot != null) {
+                snapshot.delete();
+            }
         }
         JoH.clearCache();
         return zipFilename;
@@ -132,10 +151,6 @@ public class DatabaseUtil {
 
     public static String saveSqlUnzipped(Context context) {
 
-        FileInputStream srcStream = null;
-        FileChannel src = null;
-        FileOutputStream destStream = null;
-        FileChannel dst = null;
         String filename = null;
 
         try {
@@ -157,11 +172,11 @@ public class DatabaseUtil {
                 final File currentDB = context.getDatabasePath(databaseName);
                 final File backupDB = new File(filename);
                 if (currentDB.exists()) {
-                    srcStream = new FileInputStream(currentDB);
-                    src = srcStream.getChannel();
-                    destStream = new FileOutputStream(backupDB);
-                    dst = destStream.getChannel();
-                    dst.transferFrom(src, 0, src.size());
+                    // snapshot straight to the destination rather than copying the live file
+                    final DatabaseSnapshot.Snapshot snapshot = DatabaseSnapshot.take(backupDB);
+                    if (snapshot == null) {
+                        throw new IOException("Could not take database snapshot");
+                    }
                 } else {
                     toastText(context, "Problem: No current DB found!");
                     Log.d(TAG, "Problem: No current DB found");
@@ -174,27 +189,6 @@ public class DatabaseUtil {
         } catch (IOException e) {
             toastText(context, "SD card not writable!");
             Log.e(TAG, "Exception while writing DB", e);
-        } finally {
-            if (src != null) try {
-                src.close();
-            } catch (IOException e1) {
-                Log.e(TAG, "Something went wrong closing: ", e1);
-            }
-            if (destStream != null) try {
-                destStream.close();
-            } catch (IOException e1) {
-                Log.e(TAG, "Something went wrong closing: ", e1);
-            }
-            if (srcStream != null) try {
-                srcStream.close();
-            } catch (IOException e1) {
-                Log.e(TAG, "Something went wrong closing: ", e1);
-            }
-            if (dst != null) try {
-                dst.close();
-            } catch (IOException e1) {
-                Log.e(TAG, "Something went wrong closing: ", e1);
-            }
         }
         return filename;
     }
@@ -358,6 +352,10 @@ public class DatabaseUtil {
                 destStream.flush();
                 // Close all active db connections before database import.
                 ActiveAndroid.clearCache();
+                BgReadingCache.invalidate();
+                GraphSourceCache.invalidate();
+                LibreTrendUtil.invalidate();
+                AlertType.invalidateIndex();
                 ActiveAndroid.dispose();
                 currentDB.renameTo(currentDBold);
                 currentDBtmp.renameTo(currentDB);
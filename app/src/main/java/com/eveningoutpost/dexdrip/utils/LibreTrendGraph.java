@@ -48,9 +48,27 @@ public class LibreTrendGraph extends BaseAppCompatActivity {
     private static ArrayList<Float> getLatestBgForXMinutes(int NumberOfMinutes) {
 
         Log.i(TAG, "getLatestBgForXMinutes number of minutes = " + NumberOfMinutes);
+
+        LibreTrendLatest libreTrendLatest = getLatestWithFactor(NumberOfMinutes);
+        if (libreTrendLatest == null) {
+            return null;
+        }
+        LibreTrendPoints libreTrendPoints = LibreTrendUtil.getInstance().getPoints();
+        ArrayList<Float> ret = new ArrayList<Float>();
         
-        List<LibreTrendPoint> LibreTrendPoints = LibreTrendUtil.getInstance().getData(JoH.tsl() - NumberOfMinutes * 60 * 1000, JoH.tsl(), true);
-        if(LibreTrendPoints == null || LibreTrendPoints.size() == 0) {
+        double factor = libreTrendLatest.getFactor();
+        int count = 0;
+        for(int i = libreTrendLatest.id ; i >= 0 && count < NumberOfMinutes; i--) {
+            count ++;
+            ret.add(new Float(factor * libreTrendPoints.raw(i)));
+        }
+        return ret;
+    }
+
+    // Brings the trend data up to date, returns null if there is nothing with a valid factor to show.
+    private static LibreTrendLatest getLatestWithFactor(int NumberOfMinutes) {
+        List<LibreTrendPoint> trendPoints = LibreTrendUtil.getInstance().getData(JoH.tsl() - NumberOfMinutes * 60 * 1000, JoH.tsl(), true);
+        if(trendPoints == null || trendPoints.size() == 0) {
             Log.e(TAG, "Error getting data from getLatestBgForXMinutes");
             return null;
         }
@@ -60,20 +78,11 @@ public class LibreTrendGraph extends BaseAppCompatActivity {
             Log.e(TAG, "LibreTrendPoints exists but libreTrendLatest is NULL.");
             return null;
         }
-        ArrayList<Float> ret = new ArrayList<Float>();
-        
-        double factor = libreTrendLatest.getFactor();
-        if(factor == 0) {
+        if(libreTrendLatest.getFactor() == 0) {
             Log.e(TAG, "getLatestBgForXMinutes: factor is 0 returning.");
             return null;
         }
-        
-        int count = 0;
-        for(int i = libreTrendLatest.id ; i >= 0 && count < NumberOfMinutes; i--) {
-            count ++;
-            ret.add(new Float(factor * LibreTrendPoints.get(i).rawSensorValue));
-        }
-        return ret;
+        return libreTrendLatest;
     }
 
     @Override
@@ -94,32 +103,28 @@ public class LibreTrendGraph extends BaseAppCompatActivity {
     public static List<PointValue> getTrendDataPoints(boolean doMgdl, long start_time, long end_time) {
         // TODO needs to cut off if would exceed the current graph scope
          final float conversion_factor_mmol = (float) (doMgdl ? 1 : Constants.MGDL_TO_MMOLL);
-         ArrayList<Float> bg_data = getLatestBgForXMinutes((int) ((end_time - start_time) /  Constants.MINUTE_IN_MS)  );
-         if (bg_data == null) {
+         final int minutes = (int) ((end_time - start_time) /  Constants.MINUTE_IN_MS);
+         final LibreTrendLatest libreTrendLatest = getLatestWithFactor(minutes);
+         if (libreTrendLatest == null) {
              Log.e(TAG, "Error getting data from getLatestBgForXMinutes. Returning");
              return null;
-             
-         }
-         
-         LibreTrendLatest libreTrendLatest = LibreTrendUtil.getInstance().getLibreTrendLatest();
-         if(libreTrendLatest == null || libreTrendLatest.getFactor() == 0) {
-             Log.e(TAG, "libreBlock exists but libreTrendLatest.getFactor is zero ");
-             return null;
          }
 
-         final ArrayList<PointValue> points = new ArrayList<>(bg_data.size());
+         // Read the raw values straight from the arrays, newest first.
+         final LibreTrendPoints libreTrendPoints = LibreTrendUtil.getInstance().getPoints();
+         final double factor = libreTrendLatest.getFactor();
+         final ArrayList<PointValue> points = new ArrayList<>(Math.max(0, Math.min(minutes, libreTrendLatest.id + 1)));
          long time_offset = 0;
-         for (Float bg : bg_data) {
-             if(bg <= 0) {
-                 time_offset += Constants.MINUTE_IN_MS;
-                 continue;   
+         for (int i = libreTrendLatest.id, count = 0; i >= 0 && count < minutes; i--, count++) {
+             final float bg = (float) (factor * libreTrendPoints.raw(i));
+             final long bg_time = libreTrendLatest.timestamp - time_offset;
+             time_offset += Constants.MINUTE_IN_MS;
+             if (bg <= 0) {
+                 continue;
              }
-             long bg_time = libreTrendLatest.timestamp - time_offset;
              if (bg_time <= end_time && bg_time >= start_time) {
                  points.add(new HPointValue( ((double)(bg_time) / FUZZER), bg * conversion_factor_mmol));
              }
-             
-             time_offset += Constants.MINUTE_IN_MS;
          }
          return points;
        
@@ -0,0 +1,139 @@
+package com.eveningoutpost.dexdrip.utils;
+
+import com.eveningoutpost.dexdrip.models.GlucoseData;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.RandomAccess;
+
+/*
+    Per minute libre sensor history stored as parallel primitive arrays indexed by the minute
+    from sensor start. A sensor worth of data is a few arrays rather than twenty thousand objects.
+
+    It is still a List of LibreTrendPoint for the code that works on points, get() returns a copy
+    and set() writes back. Hot paths should use the primitive accessors which do not allocate.
+ */
+public class LibreTrendPoints extends AbstractList<LibreTrendPoint> implements RandomAccess {
+
+    private static final GlucoseData.DataSource[] SOURCES = GlucoseData.DataSource.values();
+
+    private final int[] raw;
+    private final int[] glucose;
+    private final int[] flags;
+    private final byte[] source; // ordinal + 1, zero means not set
+
+    // range of minutes which have ever been written, used to keep the snapshot small
+    private int first;
+    private int last;
+
+    public LibreTrendPoints(int capacity) {
+        raw = new int[capacity];
+        glucose = new int[capacity];
+        flags = new int[capacity];
+        source = new byte[capacity];
+        clear();
+    }
+
+    @Override
+    public int size() {
+        return raw.length;
+    }
+
+    @Override
+    public LibreTrendPoint get(int index) {
+        final LibreTrendPoint point = new LibreTrendPoint(raw[index] != 0 ? index : 0, raw[index], flags[index], source(index));
+        point.glucoseLevel = glucose[index];
+        return point;
+    }
+
+    @Override
+    public LibreTrendPoint set(int index, LibreTrendPoint point) {
+        final LibreTrendPoint previous = get(index);
+        raw[index] = (int) point.rawSensorValue;
+        glucose[index] = point.glucoseLevel;
+        flags[index] = point.flags;
+        source[index] = (byte) (point.source == null ? 0 : point.source.ordinal() + 1);
+        touch(index);
+        return previous;
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(raw, 0);
+        Arrays.fill(glucose, 0);
+        Arrays.fill(flags, 0);
+        Arrays.fill(source, (byte) 0);
+        first = raw.length;
+        last = -1;
+    }
+
+    public int raw(int index) {
+        return raw[index];
+    }
+
+    public int glucose(int index) {
+        return glucose[index];
+    }
+
+    public int flags(int index) {
+        return flags[index];
+    }
+
+    public GlucoseData.DataSource source(int index) {
+        return source[index] == 0 ? null : SOURCES[source[index] - 1];
+    }
+
+    // Only the first value seen for a minute is kept. Returns true if it was stored.
+    boolean putIfEmpty(int index, int rawValue, int flagsValue, GlucoseData.DataSource sourceValue) {
+        if (raw[index] != 0) {
+            return false;
+        }
+        raw[index] = rawValue;
+        flags[index] = flagsValue;
+        source[index] = (byte) (sourceValue == null ? 0 : sourceValue.ordinal() + 1);
+        touch(index);
+        return true;
+    }
+
+    private void touch(int index) {
+        first = Math.min(first, index);
+        last = Math.max(last, index);
+    }
+
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(raw.length);
+        out.writeInt(first);
+        out.writeInt(last);
+        for (int i = first; i <= last; i++) {
+            out.writeInt(raw[i]);
+            out.writeInt(glucose[i]);
+            out.writeInt(flags[i]);
+            out.writeByte(source[i]);
+        }
+    }
+
+    void readFrom(DataInputStream in) throws IOException {
+        clear();
+        final int capacity = in.readInt();
+        final int from = in.readInt();
+        final int to = in.readInt();
+        if (capacity != raw.length || (to >= 0 && (from < 0 || to >= capacity || from > to))) {
+            throw new IOException("Snapshot does not match, capacity " + capacity + " range " + from + " - " + to);
+        }
+        for (int i = from; i <= to; i++) {
+            raw[i] = in.readInt();
+            glucose[i] = in.readInt();
+            flags[i] = in.readInt();
+            source[i] = in.readByte();
+            if (source[i] < 0 || source[i] > SOURCES.length) {
+                clear();
+                throw new IOException("Invalid source in snapshot at " + i);
+            }
+        }
+        first = to >= 0 ? from : raw.length;
+        last = to;
+    }
+}
@@ -1,10 +1,18 @@
 package com.eveningoutpost.dexdrip.utils;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.text.DateFormat;
-import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
-import java.util.ListIterator;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 import com.eveningoutpost.dexdrip.models.JoH;
 import com.eveningoutpost.dexdrip.NFCReaderX;
@@ -12,6 +20,8 @@ import com.eveningoutpost.dexdrip.models.GlucoseData;
 import com.eveningoutpost.dexdrip.models.LibreBlock;
 
 import com.eveningoutpost.dexdrip.utilitymodels.Constants;
+import com.eveningoutpost.dexdrip.utilitymodels.Inevitable;
+import com.eveningoutpost.dexdrip.xdrip;
 
 import com.eveningoutpost.dexdrip.models.UserError.Log;
 
@@ -26,6 +36,10 @@ import com.eveningoutpost.dexdrip.models.UserError.Log;
     If we missed more than 3 readings we might not have data for some time.
     
     If we identify a change in sensor id, we clear all existing points and start calculating again.
+
+    The points are kept as primitive arrays (LibreTrendPoints) and every block is decoded only once.
+    A snapshot is written to a file shortly after new blocks were added, so that after a restart
+    we continue from there instead of decoding all blocks again.
     
 
 */
@@ -53,40 +67,39 @@ class LibreTrendLatest {
         this.bg = bg;
     }
 
-    void updateLastReading(LibreBlock libreBlock) {
-        List<GlucoseData> trend = NFCReaderX.getLibreTrend(libreBlock);
-        if (trend == null || trend.size() == 0 || trend.get(0).glucoseLevelRaw == 0 || libreBlock.timestamp < timestamp) {
+    // sensorTime and glucoseLevelRaw are those of the first (latest) trend point of the block.
+    void updateLastReading(LibreBlock libreBlock, int sensorTime, int glucoseLevelRaw) {
+        if (glucoseLevelRaw == 0 || libreBlock.timestamp < timestamp) {
             return;
         }
         this.timestamp = libreBlock.timestamp;
         this.bg = libreBlock.calculated_bg;
-        this.id = trend.get(0).sensorTime;
-        this.glucoseLevelRaw = trend.get(0).glucoseLevelRaw;
+        this.id = sensorTime;
+        this.glucoseLevelRaw = glucoseLevelRaw;
     }
 
-
-    public String toString() {
-        return "{ timestamp " + JoH.dateTimeText(timestamp) + " id " + id + " bg " + bg + " glucoseLevelRaw " + glucoseLevelRaw + " SensorSN " + SensorSN + "}";
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeLong(timestamp);
+        out.writeInt(id);
+        out.writeDouble(bg);
+        out.writeInt(glucoseLevelRaw);
+        out.writeUTF(SensorSN == null ? "" : SensorSN);
     }
-}
-
-class LazyLibreList extends ArrayList<LibreTrendPoint> {
 
-    public LazyLibreList(int max_points) {
-        super(max_points);
-        while (super.size() < max_points) {
-            super.add(null);
+    void readFrom(DataInputStream in) throws IOException {
+        timestamp = in.readLong();
+        id = in.readInt();
+        bg = in.readDouble();
+        glucoseLevelRaw = in.readInt();
+        SensorSN = in.readUTF();
+        if (SensorSN.isEmpty()) {
+            SensorSN = null;
         }
     }
 
-    @Override
-    public LibreTrendPoint get(int index) {
-        LibreTrendPoint v = super.get(index);
-        if (v == null) {
-            v = new LibreTrendPoint();
-            super.set(index, v);
-        }
-        return v;
+
+    public String toString() {
+        return "{ timestamp " + JoH.dateTimeText(timestamp) + " id " + id + " bg " + bg + " glucoseLevelRaw " + glucoseLevelRaw + " SensorSN " + SensorSN + "}";
     }
 }
 
@@ -97,9 +110,19 @@ public class LibreTrendUtil {
     private static final boolean debug_per_minute = false;
     public final static int MAX_POINTS = 16 * 24 * 60; // Assume that there will not be data for longer than 14 days + some extra.
 
+    private static final String SNAPSHOT_FILE = "libre_trend.bin";
+    private static final int SNAPSHOT_VERSION = 1;
+    private static final String SNAPSHOT_TASK = "libre-trend-snapshot";
+    private static final long SNAPSHOT_DELAY_MS = Constants.MINUTE_IN_MS;
+
     private LibreTrendLatest m_libreTrendLatest;
 
-    ArrayList<LibreTrendPoint> m_points;
+    final LibreTrendPoints m_points = new LibreTrendPoints(MAX_POINTS);
+
+    // The newest block that was added to m_points and its latest trend point, so that no block is decoded twice.
+    private long m_lastBlockTimestamp;
+    private int m_lastBlockSensorTime;
+    private int m_lastBlockRaw;
 
     public void updateLastReading(LibreBlock libreBlock) {
         // Before we update m_libreTrendLatest we call getData as it affects the cache.
@@ -107,30 +130,58 @@ public class LibreTrendUtil {
         long startTime = m_libreTrendLatest.timestamp > 0 ? m_libreTrendLatest.timestamp :
                 libreBlock.timestamp - 60 * Constants.MINUTE_IN_MS;
         getData(startTime, libreBlock.timestamp, false);
-        m_libreTrendLatest.updateLastReading(libreBlock);
+        synchronized (this) {
+            if (libreBlock.timestamp == m_lastBlockTimestamp) {
+                m_libreTrendLatest.updateLastReading(libreBlock, m_lastBlockSensorTime, m_lastBlockRaw);
+                return;
+            }
+        }
+        List<GlucoseData> trend = NFCReaderX.getLibreTrend(libreBlock);
+        if (trend == null || trend.size() == 0) {
+            return;
+        }
+        synchronized (this) {
+            m_libreTrendLatest.updateLastReading(libreBlock, trend.get(0).sensorTime, trend.get(0).glucoseLevelRaw);
+        }
     }
 
     public synchronized static LibreTrendUtil getInstance() {
         if (singleton == null) {
             singleton = new LibreTrendUtil();
+            singleton.loadSnapshot();
         }
         Log.i(TAG, "getInstance this = " + singleton);
         return singleton;
     }
 
+    // Forget everything, for example when a different database was imported.
+    public static void invalidate() {
+        final LibreTrendUtil libreTrendUtil = getInstance();
+        synchronized (libreTrendUtil) {
+            libreTrendUtil.Reset();
+            try {
+                snapshotFile().delete();
+            } catch (Exception e) {
+                Log.e(TAG, "Could not delete snapshot: " + e);
+            }
+        }
+    }
+
     LibreTrendUtil() {
         Log.i(TAG, "LibreTrendUtil constructor called this = " + this);
         Reset();
     }
 
     void ResetPoints() {
-        m_points = new LazyLibreList(MAX_POINTS);
+        m_points.clear();
     }
 
     void Reset() {
         ResetPoints();
         m_libreTrendLatest = new LibreTrendLatest();
-
+        m_lastBlockTimestamp = 0;
+        m_lastBlockSensorTime = 0;
+        m_lastBlockRaw = 0;
     }
 
     boolean IsTimeValid(long timeId) {
@@ -141,7 +192,10 @@ public class LibreTrendUtil {
         Log.i(TAG, "getData called startTimestamp = " + JoH.dateTimeText(startTimestamp) + " endTimestamp = " + JoH.dateTimeText(endTimestamp) +
                 " Size of array is " + m_points.size() + " this = " + this + " m_libreTrendLatest.timestamp " + JoH.dateTimeText(m_libreTrendLatest.timestamp));
 
-        long startTime = Math.max(startTimestamp, m_libreTrendLatest.timestamp);
+        long startTime;
+        synchronized (this) {
+            startTime = Math.max(startTimestamp, m_lastBlockTimestamp);
+        }
         // The extra 1 is to make sure we don't read the last packet again and again.
         List<LibreBlock> latestBlocks = LibreBlock.getForTrend(startTime + 1, endTimestamp);
 
@@ -149,25 +203,20 @@ public class LibreTrendUtil {
         if (latestBlocks.size() > 0) {
             Log.i(TAG, "Last packet timestamp is " + latestBlocks.get(latestBlocks.size() - 1).timestamp);
         }
-        if (calculate_factor) {
-            CalculateFactor(latestBlocks);
-        }
 
-        // Go over all blocks from the earlier to the latest, and fill the data.
-        for (LibreBlock libreBlock : latestBlocks) {
-            AddLibreblock(libreBlock);
-        }
-        if (debug_per_minute) {
-            Log.i(TAG, "Here are the points that we have");
+        synchronized (this) {
+            if (AddLibreblocks(latestBlocks, calculate_factor)) {
+                if (!Inevitable.waiting(SNAPSHOT_TASK)) {
+                    Inevitable.task(SNAPSHOT_TASK, SNAPSHOT_DELAY_MS, this::saveSnapshot);
+                }
+            }
+            if (debug_per_minute) {
+                Log.i(TAG, "Here are the points that we have");
 
-            for (int i = 0; i < MAX_POINTS; i++) {
-                if (m_points.get(i).rawSensorValue != 0) {
-                    if (i != m_points.get(i).sensorTime) {
-                        Log.i(TAG, "Error in index i = " + i + " sensorTime = " + m_points.get(i).sensorTime);
-                    }
+                for (int i = 0; i < MAX_POINTS; i++) {
                     // Only print last 60 minutes.
-                    if (m_libreTrendLatest.id - i < 60) {
-                        Log.i(TAG, "" + i + " " + m_points.get(i).rawSensorValue);
+                    if (m_points.raw(i) != 0 && m_libreTrendLatest.id - i < 60) {
+                        Log.i(TAG, "" + i + " " + m_points.raw(i));
                     }
                 }
             }
@@ -175,7 +224,40 @@ public class LibreTrendUtil {
         return m_points;
     }
 
-    private void AddLibreblock(LibreBlock libreBlock) {
+    public LibreTrendPoints getPoints() {
+        return m_points;
+    }
+
+    // Go over all blocks from the earlier to the latest and fill the data, each block is decoded once.
+    // Returns true if anything was added.
+    private boolean AddLibreblocks(List<LibreBlock> latestBlocks, boolean calculate_factor) {
+        if (latestBlocks.size() == 0) {
+            return false;
+        }
+        // Blocks more than 16 minutes older than the latest one are too old to be used for the factor.
+        final long factorStart = latestBlocks.get(latestBlocks.size() - 1).timestamp - 16 * 60 * 1000;
+        boolean added = false;
+        for (LibreBlock libreBlock : latestBlocks) {
+            if (libreBlock.timestamp <= m_lastBlockTimestamp) {
+                // Already added by a concurrent call.
+                continue;
+            }
+            List<GlucoseData> trend = NFCReaderX.getLibreTrend(libreBlock);
+            AddLibreblock(libreBlock, trend);
+            added = true;
+
+            boolean hasTrend = trend != null && trend.size() > 0;
+            m_lastBlockTimestamp = libreBlock.timestamp;
+            m_lastBlockSensorTime = hasTrend ? trend.get(0).sensorTime : 0;
+            m_lastBlockRaw = hasTrend ? trend.get(0).glucoseLevelRaw : 0;
+            if (calculate_factor && hasTrend && libreBlock.timestamp >= factorStart) {
+                CalculateFactor(libreBlock, trend.get(0));
+            }
+        }
+        return added;
+    }
+
+    private void AddLibreblock(LibreBlock libreBlock, List<GlucoseData> trend) {
         Log.i(TAG, "AddLibreblock called timestamp = " + JoH.dateTimeText(libreBlock.timestamp));
         if (!libreBlock.reference.equals(m_libreTrendLatest.SensorSN)) {
             Log.i(TAG, "Detected a sensor change (or a new one); new serial number is " + libreBlock.reference);
@@ -183,7 +265,6 @@ public class LibreTrendUtil {
             m_libreTrendLatest.SensorSN = libreBlock.reference;
         }
 
-        List<GlucoseData> trend = NFCReaderX.getLibreTrend(libreBlock);
         if (trend == null) {
             Log.i(TAG, "NFCReaderX.getTrend returned null, ignoring reading");
             return;
@@ -202,69 +283,78 @@ public class LibreTrendUtil {
             }
             Log.i(TAG, "maybe Adding a point with id " + id);
 
-            if (m_points.get((int) id).rawSensorValue == 0) {
-                m_points.get((int) id).rawSensorValue = glucoseData.glucoseLevelRaw;
-                m_points.get((int) id).sensorTime = id;
-                m_points.get((int) id).flags = glucoseData.flags;
-                m_points.get((int) id).source = glucoseData.source;
-            }
+            m_points.putIfEmpty((int) id, glucoseData.glucoseLevelRaw, glucoseData.flags, glucoseData.source);
         }
     }
 
-    private void CalculateFactor(List<LibreBlock> latestBlocks) {
-        // Go for the last libreBlock and get calculated bg and timestamp.
-        ListIterator<LibreBlock> li = latestBlocks.listIterator(latestBlocks.size());
-        long lastBlockTime = 0;
-        boolean isLast = true;
-        while (li.hasPrevious()) {
-            LibreBlock libreBlock = li.previous();
-            // Get of the loop if no valid data in the last 15 minutes.
-            if (lastBlockTime == 0) {
-                lastBlockTime = libreBlock.timestamp;
-            } else {
-                if (JoH.msSince(lastBlockTime, libreBlock.timestamp) > 16 * 60 * 1000) {
-                    // We have readings for the last 16 minutes, but none of them has a BG value.
-                    // This should not happen, but if it does, data is too old to be used.
-                    Log.w(TAG, "getData was not able to find a valid time - quiting");
-                    break;
-                }
-            }
-            if (isLast) {
-                List<GlucoseData> trend = NFCReaderX.getLibreTrend(libreBlock);
-                if (trend == null || trend.size() == 0) {
-                    Log.w(TAG, "Error: NFCReaderX.getTrend returned null or empty for latest block");
-                    continue;
-                }
-                // The last object is used to calculate the timestamp and id.
-                isLast = false;
-                m_libreTrendLatest.id = (int) trend.get(0).sensorTime;
-                m_libreTrendLatest.timestamp = libreBlock.timestamp;
-            }
-
-            // Now trying to get a valid object with BG and a raw value.
-            if (libreBlock.calculated_bg == 0) {
-                continue;
-            }
-            List<GlucoseData> trend = NFCReaderX.getLibreTrend(libreBlock);
-            if (trend == null || trend.size() == 0) {
-                Log.e(TAG, "Error: NFCReaderX.getTrend returned null or empty for latest block");
-                return;
-            }
-            if (trend.get(0).glucoseLevelRaw == 0) {
-                continue;
-            }
+    // Called for the blocks of the last 16 minutes from the earlier to the latest, so the last one wins.
+    private void CalculateFactor(LibreBlock libreBlock, GlucoseData latest) {
+        // The last object is used to calculate the timestamp and id.
+        m_libreTrendLatest.id = latest.sensorTime;
+        m_libreTrendLatest.timestamp = libreBlock.timestamp;
 
-            m_libreTrendLatest.setFactorData(trend.get(0).glucoseLevelRaw, libreBlock.calculated_bg);
-            String time = DateFormat.getDateTimeInstance(DateFormat.SHORT, DateFormat.SHORT).format(new Date((long) m_libreTrendLatest.timestamp));
-            Log.i(TAG, "Latest values with valid bg " + time + " m_latestId = " + m_libreTrendLatest.id + " m_libreTrendLatest.m_GlucoseLevelRaw = " + trend.get(0).glucoseLevelRaw + " bg = " + libreBlock.calculated_bg);
-            // We have finished the calculations, so getting out.
-            break;
+        // Now trying to get a valid object with BG and a raw value.
+        if (libreBlock.calculated_bg == 0 || latest.glucoseLevelRaw == 0) {
+            return;
         }
+        m_libreTrendLatest.setFactorData(latest.glucoseLevelRaw, libreBlock.calculated_bg);
+        String time = DateFormat.getDateTimeInstance(DateFormat.SHORT, DateFormat.SHORT).format(new Date((long) m_libreTrendLatest.timestamp));
+        Log.i(TAG, "Latest values with valid bg " + time + " m_latestId = " + m_libreTrendLatest.id + " m_libreTrendLatest.m_GlucoseLevelRaw = " + latest.glucoseLevelRaw + " bg = " + libreBlock.calculated_bg);
     }
 
     LibreTrendLatest getLibreTrendLatest() {
         return m_libreTrendLatest;
     }
-}
 
+    private static File snapshotFile() {
+        return new File(xdrip.getAppContext().getFilesDir(), SNAPSHOT_FILE);
+    }
 
+    // The snapshot holds the points and where we got to, so after a restart only newer blocks are decoded.
+    synchronized void saveSnapshot() {
+        final File file;
+        final File temp;
+        try {
+            file = snapshotFile();
+            temp = new File(file.getPath() + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(temp))))) {
+                out.writeInt(SNAPSHOT_VERSION);
+                out.writeLong(m_lastBlockTimestamp);
+                out.writeInt(m_lastBlockSensorTime);
+                out.writeInt(m_lastBlockRaw);
+                m_libreTrendLatest.writeTo(out);
+                m_points.writeTo(out);
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Could not save snapshot: " + e);
+            return;
+        }
+        if (!temp.renameTo(file)) {
+            Log.e(TAG, "Could not rename snapshot " + temp);
+        }
+    }
+
+    synchronized void loadSnapshot() {
+        try {
+            final File file = snapshotFile();
+            if (!file.exists()) {
+                return;
+            }
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))))) {
+                if (in.readInt() != SNAPSHOT_VERSION) {
+                    Log.w(TAG, "Ignoring snapshot with a different version");
+                    return;
+                }
+                m_lastBlockTimestamp = in.readLong();
+                m_lastBlockSensorTime = in.readInt();
+                m_lastBlockRaw = in.readInt();
+                m_libreTrendLatest.readFrom(in);
+                m_points.readFrom(in);
+            }
+            Log.i(TAG, "Loaded snapshot up to " + JoH.dateTimeText(m_lastBlockTimestamp) + " " + m_libreTrendLatest);
+        } catch (Exception e) {
+            Log.e(TAG, "Could not load snapshot: " + e);
+            Reset();
+        }
+    }
+}
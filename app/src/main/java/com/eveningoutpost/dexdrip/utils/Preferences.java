@@ -268,7 +268,7 @@ public class Preferences extends BasePreferenceActivity implements SearchPrefere
                             && prefsmap.containsKey(getString(R.string.wizard_uuid))) {
                         staticKey = CipherUtils.hexToBytes(prefsmap.get(getString(R.string.wizard_key)));
 
-                        new WebAppHelper(new ServiceCallback()).executeOnExecutor(xdrip.executor, getString(R.string.wserviceurl) + "/joh-getsw/" + prefsmap.get(getString(R.string.wizard_uuid)));
+                        new WebAppHelper(new ServiceCallback()).executeOnExecutor(xdrip.executor.forKey("software-check"), getString(R.string.wserviceurl) + "/joh-getsw/" + prefsmap.get(getString(R.string.wizard_uuid)));
                     } else {
                         Log.d(TAG, "Incorrectly formatted wizard pref");
                     }
@@ -1553,6 +1553,12 @@ public class Preferences extends BasePreferenceActivity implements SearchPrefere
                 return true;
             });
 
+            findPreference("xdrip_webservice_backlog").setOnPreferenceChangeListener((preference, newValue) -> {
+                preference.getEditor().putString(preference.getKey(), (String) newValue).apply(); // write early for method below
+                XdripWebService.settingsChanged(); // refresh
+                return true;
+            });
+
             findPreference("desert_sync_enabled").setOnPreferenceChangeListener((preference, newValue) -> {
                 preference.getEditor().putBoolean(preference.getKey(), (boolean) newValue).apply(); // write early for method below
                 DesertSync.settingsChanged(); // refresh
@@ -0,0 +1,383 @@
+package com.eveningoutpost.dexdrip.utils.bt;
+
+import android.annotation.SuppressLint;
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import com.eveningoutpost.dexdrip.models.JoH;
+import com.eveningoutpost.dexdrip.models.UserError;
+import com.eveningoutpost.dexdrip.utils.BytesGenerator;
+import com.eveningoutpost.dexdrip.utils.framework.PoorMansConcurrentLinkedDeque;
+import com.polidea.rxandroidble2.RxBleConnection;
+import com.polidea.rxandroidble2.exceptions.BleDisconnectedException;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import lombok.RequiredArgsConstructor;
+
+/**
+ * Non-blocking writer for a queue of characteristic writes.
+ * <p>
+ * Inter-write delays and reply timeouts run from a shared timer instead of sleeping inside
+ * the write callback, so no RxAndroidBle thread is held while we wait. Every item taken from
+ * the queue gets an entry in the state table which tracks where it is, how many attempts it
+ * has had and which attempt any pending timer belongs to.
+ * <p>
+ * Items marked as write-without-response may be pipelined, up to the configured window can be
+ * in flight at once. A normal write waits for that window to drain before it starts.
+ */
+
+public class BleWriteScheduler {
+
+    private static final String TAG = "BleWriteScheduler";
+    public static final int MAX_RETRIES = 3;
+    public static final long REPLY_WAIT_MS = 3000;
+    private static final long WAKE_UP_EXTRA_MS = 2000;
+
+    private static final ScheduledExecutorService timer = Executors.newScheduledThreadPool(2, runnable -> {
+        final Thread t = new Thread(runnable, TAG);
+        t.setDaemon(true);
+        return t;
+    });
+
+    // what the scheduler needs from whoever owns the connection
+    public interface Host {
+        RxBleConnection getConnection();
+
+        boolean isConnected();
+
+        void onDisconnected();
+
+        long lastIncomingData();
+
+        void onQueueEmpty();
+
+        void extendWakeLock(long ms);
+    }
+
+    @RequiredArgsConstructor
+    public static class QueueItem {
+        public final UUID queueWriteCharacterstic;
+        public final byte[] data;
+        public final int timeoutSeconds;
+        public final long post_delay;
+        public final String description;
+        public final boolean expectReply;
+        public final long expireAt;
+        Runnable runnable;
+        ReplyProcessor replyProcessor;
+        BytesGenerator generator;
+        boolean noResponse;
+
+        public boolean isExpired() {
+            return expireAt != 0 && expireAt < JoH.tsl();
+        }
+
+        public QueueItem setRunnable(Runnable runnable) {
+            this.runnable = runnable;
+            return this;
+        }
+
+        public QueueItem setProcessor(ReplyProcessor processor) {
+            this.replyProcessor = processor;
+            return this;
+        }
+
+        public QueueItem setGenerator(BytesGenerator generator) {
+            this.generator = generator;
+            return this;
+        }
+
+        public QueueItem setNoResponse(boolean noResponse) {
+            this.noResponse = noResponse;
+            return this;
+        }
+
+        byte[] getData() {
+            if (data != null) {
+                return data;
+            } else {
+                if (generator != null) {
+                    return generator.produce();
+                } else {
+                    return null;
+                }
+            }
+        }
+
+        long delayAfter() {
+            if (post_delay <= 0) return 0;
+            // always wait if set as new item might appear in queue
+            return post_delay + (description != null && description.contains("WAKE UP") ? WAKE_UP_EXTRA_MS : 0);
+        }
+    }
+
+    private enum State {
+        WRITING,
+        DELAY,
+        AWAIT_REPLY
+    }
+
+    private static final class Slot {
+        final QueueItem item;
+        State state;
+        int attempt;
+        int retries;
+        long written;
+
+        Slot(final QueueItem item) {
+            this.item = item;
+        }
+
+        boolean inFlight() {
+            return state != State.AWAIT_REPLY;
+        }
+    }
+
+    private final PoorMansConcurrentLinkedDeque<QueueItem> queue;
+    private final List<Slot> table = new ArrayList<>();
+    private final Set<UUID> noResponseTypes = new HashSet<>();
+    private volatile Host host;
+    private volatile int window = 1;
+
+    public BleWriteScheduler(final PoorMansConcurrentLinkedDeque<QueueItem> queue) {
+        this.queue = queue;
+    }
+
+    // how many write-without-response items may be in flight together
+    public BleWriteScheduler setWindow(final int window) {
+        this.window = Math.max(1, window);
+        return this;
+    }
+
+    public synchronized int inFlight() {
+        int count = 0;
+        for (final Slot slot : table) {
+            if (slot.inFlight()) count++;
+        }
+        return count;
+    }
+
+    public synchronized int awaitingReply() {
+        return table.size() - inFlight();
+    }
+
+    // start or continue sending from the queue
+    public void kick(final Host host) {
+        this.host = host;
+        pump();
+    }
+
+    private void pump() {
+        final Host host = this.host;
+        if (host == null) return;
+        if (!host.isConnected()) {
+            UserError.Log.d(TAG, "CANNOT WRITE QUEUE AS DISCONNECTED");
+            return;
+        }
+        final List<Slot> start = new ArrayList<>();
+        boolean empty = false;
+        synchronized (this) {
+            while (true) {
+                if (blocked()) break;
+                final QueueItem item = pollLive();
+                if (item == null) {
+                    empty = inFlight() == 0;
+                    break;
+                }
+                final int noResponseInFlight = noResponseInFlight();
+                if (item.noResponse ? noResponseInFlight >= window : noResponseInFlight > 0) {
+                    queue.addFirst(item); // wait for room in the window
+                    break;
+                }
+                if (!item.noResponse) {
+                    restoreWriteTypes(host.getConnection());
+                }
+                if (item.noResponse && item.queueWriteCharacterstic != null && !noResponseTypes.contains(item.queueWriteCharacterstic)) {
+                    if (setWriteType(host.getConnection(), item.queueWriteCharacterstic, BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE)) {
+                        noResponseTypes.add(item.queueWriteCharacterstic);
+                    }
+                }
+                final Slot slot = new Slot(item);
+                table.add(slot);
+                start.add(slot);
+                if (!item.noResponse) break;
+            }
+            if (empty) {
+                restoreWriteTypes(host.getConnection());
+            }
+        }
+        for (final Slot slot : start) {
+            UserError.Log.d(TAG, "Starting queue send for item: " + slot.item.description);
+            write(slot);
+        }
+        if (empty) {
+            UserError.Log.d(TAG, "write queue empty");
+            host.onQueueEmpty();
+        }
+    }
+
+    // a normal write and its delay run alone
+    private boolean blocked() {
+        for (final Slot slot : table) {
+            if (slot.inFlight() && !slot.item.noResponse) return true;
+        }
+        return false;
+    }
+
+    private int noResponseInFlight() {
+        int count = 0;
+        for (final Slot slot : table) {
+            if (slot.inFlight() && slot.item.noResponse) count++;
+        }
+        return count;
+    }
+
+    private QueueItem pollLive() {
+        QueueItem item = queue.poll();
+        while (item != null && item.isExpired()) {
+            UserError.Log.d(TAG, "Item expired from queue early: (expiry: " + JoH.dateTimeText(item.expireAt) + " " + item.description);
+            item = queue.poll();
+        }
+        return item;
+    }
+
+    private void restoreWriteTypes(final RxBleConnection connection) {
+        for (final UUID uuid : noResponseTypes) {
+            setWriteType(connection, uuid, BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
+        }
+        noResponseTypes.clear();
+    }
+
+    private static boolean setWriteType(final RxBleConnection connection, final UUID uuid, final int type) {
+        if (connection == null) return false;
+        try {
+            connection.getCharacteristic(uuid).blockingGet().setWriteType(type);
+            return true;
+        } catch (Exception e) {
+            UserError.Log.e(TAG, "Could not set write type on " + uuid + " " + e);
+            return false;
+        }
+    }
+
+    @SuppressLint("CheckResult")
+    private void write(final Slot slot) {
+        final Host host = this.host;
+        final QueueItem item = slot.item;
+        final int attempt;
+        synchronized (this) {
+            attempt = ++slot.attempt;
+            slot.state = State.WRITING;
+        }
+        host.extendWakeLock(2000 + item.delayAfter());
+        final RxBleConnection connection = host.getConnection();
+        if (connection == null) {
+            UserError.Log.e(TAG, "Cannot write queue item: " + item.description + " as we have no connection!");
+            drop(slot);
+            return;
+        }
+        if (item.queueWriteCharacterstic == null) {
+            UserError.Log.e(TAG, "Write characteristic not set in queue write");
+            drop(slot);
+            return;
+        }
+        UserError.Log.d(TAG, "Writing to characteristic: " + item.queueWriteCharacterstic + " " + item.description);
+        connection.writeCharacteristic(item.queueWriteCharacterstic, item.getData())
+                .timeout(item.timeoutSeconds, TimeUnit.SECONDS)
+                .subscribe(value -> written(slot, attempt, value),
+                        throwable -> failed(slot, attempt, throwable));
+    }
+
+    private void written(final Slot slot, final int attempt, final byte[] value) {
+        synchronized (this) {
+            if (stale(slot, attempt)) return;
+            slot.state = State.DELAY;
+            slot.written = JoH.tsl();
+        }
+        UserError.Log.d(TAG, "Wrote request: " + slot.item.description + " -> " + JoH.bytesToHex(value));
+        timer.schedule(() -> delayed(slot, attempt, value), slot.item.delayAfter(), TimeUnit.MILLISECONDS);
+    }
+
+    private void delayed(final Slot slot, final int attempt, final byte[] value) {
+        final QueueItem item = slot.item;
+        synchronized (this) {
+            if (stale(slot, attempt)) return;
+            if (item.expectReply) {
+                slot.state = State.AWAIT_REPLY;
+            } else {
+                table.remove(slot);
+            }
+        }
+        if (item.runnable != null) {
+            try {
+                item.runnable.run();
+            } catch (RuntimeException e) {
+                UserError.Log.e(TAG, "Exception in runnable for: " + item.description + " " + e);
+            }
+        }
+        if (item.expectReply) {
+            timer.schedule(() -> replyCheck(slot, attempt), Math.max(0, REPLY_WAIT_MS - JoH.msSince(slot.written)), TimeUnit.MILLISECONDS);
+        } else {
+            if (item.replyProcessor != null) {
+                item.replyProcessor.process(value);
+            }
+            pump(); // start next item immediately
+        }
+    }
+
+    private void replyCheck(final Slot slot, final int attempt) {
+        final QueueItem item = slot.item;
+        synchronized (this) {
+            if (stale(slot, attempt)) return;
+            if (JoH.msSince(host.lastIncomingData()) <= REPLY_WAIT_MS) {
+                table.remove(slot);
+                return;
+            }
+            UserError.Log.d(TAG, "GOT NO REPLY FOR: " + item.description + " @ " + slot.retries);
+            slot.retries++;
+            if (slot.retries > MAX_RETRIES) {
+                table.remove(slot);
+                return;
+            }
+        }
+        UserError.Log.d(TAG, "Retrying due to no reply: " + item.description);
+        write(slot);
+    }
+
+    private void failed(final Slot slot, final int attempt, final Throwable throwable) {
+        final QueueItem item = slot.item;
+        final int retries;
+        synchronized (this) {
+            if (stale(slot, attempt)) return;
+            retries = ++slot.retries;
+        }
+        UserError.Log.d(TAG, "Throwable in: " + item.description + " -> " + throwable);
+        if (!(throwable instanceof BleDisconnectedException)) {
+            if (retries > MAX_RETRIES) {
+                UserError.Log.d(TAG, item.description + " failed max retries @ " + retries + " shutting down queue");
+                queue.clear();
+                drop(slot);
+            } else {
+                write(slot);
+            }
+        } else {
+            UserError.Log.d(TAG, "Disconnected so not attempting retries");
+            drop(slot);
+            host.onDisconnected();
+        }
+    }
+
+    private synchronized void drop(final Slot slot) {
+        table.remove(slot);
+    }
+
+    private boolean stale(final Slot slot, final int attempt) {
+        return slot.attempt != attempt || !table.contains(slot);
+    }
+}
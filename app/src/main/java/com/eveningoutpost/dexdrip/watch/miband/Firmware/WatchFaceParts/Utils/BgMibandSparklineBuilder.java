@@ -29,6 +29,7 @@ public class BgMibandSparklineBuilder extends BgSparklineBuilder {
     public Bitmap build() {
         List<Line> lines = new ArrayList<>();
         bgGraphBuilder.defaultLines(false); // simple mode
+        bgGraphBuilder.setDetail(end - start, chartWidth());
         lines.add(bgGraphBuilder.inRangeValuesLine().setHasLines(true).setStrokeWidth(1));
         lines.add(bgGraphBuilder.lowValuesLine().setHasLines(true).setStrokeWidth(1));
         lines.add(bgGraphBuilder.highValuesLine().setHasLines(true).setStrokeWidth(1));
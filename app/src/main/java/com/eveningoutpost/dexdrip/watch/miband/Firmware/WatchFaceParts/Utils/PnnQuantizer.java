@@ -6,16 +6,18 @@ Copyright (c) 2018-2019 Miller Cy Chan
 
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
-import android.graphics.Color;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.lang.ref.SoftReference;
+import java.util.Arrays;
 import java.util.Random;
 
+/*
+ * Works on primitive arrays only. Bins are held as parallel arrays, colours are split with shifts
+ * rather than through Color and the closest palette entry for each pixel colour is remembered in
+ * a fixed size open addressing cache. All of the working memory is kept between conversions, as
+ * the watchface is regenerated with every reading, but only softly so it can be reclaimed.
+ */
 public class PnnQuantizer {
     protected final short SHORT_MAX = Short.MAX_VALUE;
     protected final char BYTE_MAX = -Byte.MIN_VALUE + Byte.MAX_VALUE;
@@ -25,125 +27,240 @@ public class PnnQuantizer {
     protected int height;
     protected Bitmap.Config bitmapConfig;
     protected double PR = .2126, PG = .7152, PB = .0722;
-    protected int pixels[] = null;
-    protected Integer m_transparentColor;
-    protected Map<Integer, short[]> closestMap = new HashMap<>();
+    protected int m_transparentColor;
+
+    private static final int BINS = 65536;
+    private static final int CACHE_BITS = 13;
+    private static final int CACHE_SIZE = 1 << CACHE_BITS;
+    private static final int CACHE_MASK = CACHE_SIZE - 1;
+    private static final int CACHE_PROBES = 8;
+
+    private static final Random random = new Random();
+    private static SoftReference<Scratch> scratchReference = new SoftReference<>(null);
+
+    private final Bitmap source;
 
     public PnnQuantizer(String fname) throws IOException {
-        fromBitmap(fname);
+        this(BitmapFactory.decodeFile(fname));
     }
 
     public PnnQuantizer(Bitmap bitmap) throws IOException {
-        fromBitmap(bitmap);
-    }
-
-    private void fromBitmap(Bitmap bitmap) throws IOException {
+        if (bitmap == null) throw new IOException("No bitmap to quantize");
+        source = bitmap;
         width = bitmap.getWidth();
         height = bitmap.getHeight();
-        pixels = new int[width * height];
-        bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
         bitmapConfig = bitmap.getConfig();
     }
 
-    private void fromBitmap(String fname) throws IOException {
-        Bitmap bitmap = BitmapFactory.decodeFile(fname);
-        fromBitmap(bitmap);
+    // working memory, only one conversion uses it at a time
+    private static final class Scratch {
+        // bins, indexed by colour index while building the histogram and then packed to the front
+        final double[] ac = new double[BINS];
+        final double[] rc = new double[BINS];
+        final double[] gc = new double[BINS];
+        final double[] bc = new double[BINS];
+        final double[] err = new double[BINS];
+        final int[] cnt = new int[BINS];
+        final int[] nn = new int[BINS];
+        final int[] fw = new int[BINS];
+        final int[] bk = new int[BINS];
+        final int[] tm = new int[BINS];
+        final int[] mtm = new int[BINS];
+        final int[] heap = new int[BINS + 1];
+        int dirtyBins; // packed bins below this still hold data from the last run
+
+        // pixel colour -> closest palette entries
+        final int[] cacheKeys = new int[CACHE_SIZE];
+        final int[] cacheStamps = new int[CACHE_SIZE];
+        final short[] cacheFirst = new short[CACHE_SIZE];
+        final short[] cacheSecond = new short[CACHE_SIZE];
+        final short[] cacheFirstDist = new short[CACHE_SIZE];
+        final short[] cacheSecondDist = new short[CACHE_SIZE];
+        int stamp;
+
+        int[] pixels = new int[0];
+        int[] qPixels = new int[0];
+        int[] pa = new int[0], pr = new int[0], pg = new int[0], pb = new int[0];
+        int[] lookup;
+        short[] erowerr = new short[0], orowerr = new short[0];
+
+        void clearBins() {
+            for (int i = 0; i < dirtyBins; i++) {
+                ac[i] = rc[i] = gc[i] = bc[i] = 0;
+                cnt[i] = 0;
+            }
+            dirtyBins = 0;
+            heap[0] = 0;
+        }
+
+        void newFrame() {
+            if (++stamp == 0) {
+                Arrays.fill(cacheStamps, 0);
+                stamp = 1;
+            }
+        }
+
+        void ensurePixels(final int size) {
+            if (pixels.length < size) {
+                pixels = new int[size];
+                qPixels = new int[size];
+            }
+        }
+
+        void setPalette(final int[] palette) {
+            if (pa.length < palette.length) {
+                pa = new int[palette.length];
+                pr = new int[palette.length];
+                pg = new int[palette.length];
+                pb = new int[palette.length];
+            }
+            for (int i = 0; i < palette.length; i++) {
+                final int c = palette[i];
+                pa[i] = c >>> 24;
+                pr[i] = (c >> 16) & 0xff;
+                pg[i] = (c >> 8) & 0xff;
+                pb[i] = c & 0xff;
+            }
+        }
+
+        // slot holding colour c or the complement of the slot to store it in
+        int find(final int c) {
+            final int home = (c * 0x9E3779B9) >>> (32 - CACHE_BITS);
+            for (int probe = 0; probe < CACHE_PROBES; probe++) {
+                final int i = (home + probe) & CACHE_MASK;
+                if (cacheStamps[i] != stamp) return ~i;
+                if (cacheKeys[i] == c) return i;
+            }
+            return ~home; // neighbourhood full, replace
+        }
+
+        void store(final int slot, final int c) {
+            cacheKeys[slot] = c;
+            cacheStamps[slot] = stamp;
+        }
+    }
+
+    private static Scratch scratch() {
+        Scratch scratch = scratchReference.get();
+        if (scratch == null) {
+            scratch = new Scratch();
+            scratchReference = new SoftReference<>(scratch);
+        }
+        return scratch;
+    }
+
+    private static int alpha(final int c) {
+        return c >>> 24;
+    }
+
+    private static int red(final int c) {
+        return (c >> 16) & 0xff;
+    }
+
+    private static int green(final int c) {
+        return (c >> 8) & 0xff;
+    }
+
+    private static int blue(final int c) {
+        return c & 0xff;
     }
 
-    private static final class Pnnbin {
-        double ac = 0, rc = 0, gc = 0, bc = 0, err = 0;
-        int cnt = 0;
-        int nn, fw, bk, tm, mtm;
+    private static int argb(final int a, final int r, final int g, final int b) {
+        return (a << 24) | (r << 16) | (g << 8) | b;
     }
 
     protected int getColorIndex(final int c, boolean hasSemiTransparency, int transparentPixelIndex) {
         if (hasSemiTransparency)
-            return (Color.alpha(c) & 0xF0) << 8 | (Color.red(c) & 0xF0) << 4 | (Color.green(c) & 0xF0) | (Color.blue(c) >> 4);
+            return (alpha(c) & 0xF0) << 8 | (red(c) & 0xF0) << 4 | (green(c) & 0xF0) | (blue(c) >> 4);
         if (transparentPixelIndex >= 0)
-            return (Color.alpha(c) & 0x80) << 8 | (Color.red(c) & 0xF8) << 7 | (Color.green(c) & 0xF8) << 2 | (Color.blue(c) >> 3);
-        return (Color.red(c) & 0xF8) << 8 | (Color.green(c) & 0xFC) << 3 | (Color.blue(c) >> 3);
+            return (alpha(c) & 0x80) << 8 | (red(c) & 0xF8) << 7 | (green(c) & 0xF8) << 2 | (blue(c) >> 3);
+        return (red(c) & 0xF8) << 8 | (green(c) & 0xFC) << 3 | (blue(c) >> 3);
     }
 
     protected double sqr(double value) {
         return value * value;
     }
 
-    private void find_nn(Pnnbin[] bins, int idx) {
+    private void find_nn(final Scratch s, int idx) {
         int nn = 0;
         double err = 1e100;
 
-        Pnnbin bin1 = bins[idx];
-        int n1 = bin1.cnt;
-        double wa = bin1.ac;
-        double wr = bin1.rc;
-        double wg = bin1.gc;
-        double wb = bin1.bc;
-        for (int i = bin1.fw; i != 0; i = bins[i].fw) {
-            double nerr = sqr(bins[i].ac - wa) + sqr(bins[i].rc - wr) + sqr(bins[i].gc - wg) + sqr(bins[i].bc - wb);
-            double n2 = bins[i].cnt;
+        int n1 = s.cnt[idx];
+        double wa = s.ac[idx];
+        double wr = s.rc[idx];
+        double wg = s.gc[idx];
+        double wb = s.bc[idx];
+        for (int i = s.fw[idx]; i != 0; i = s.fw[i]) {
+            double nerr = sqr(s.ac[i] - wa) + sqr(s.rc[i] - wr) + sqr(s.gc[i] - wg) + sqr(s.bc[i] - wb);
+            double n2 = s.cnt[i];
             nerr *= (n1 * n2) / (n1 + n2);
             if (nerr >= err)
                 continue;
             err = nerr;
             nn = i;
         }
-        bin1.err = err;
-        bin1.nn = nn;
+        s.err[idx] = err;
+        s.nn[idx] = nn;
     }
 
-    private Integer[] pnnquan(final int[] pixels, int nMaxColors, boolean quan_sqrt) {
-        Pnnbin[] bins = new Pnnbin[65536];
-        int[] heap = new int[65537];
+    private int[] pnnquan(final Scratch s, final int[] pixels, final int length, int nMaxColors, boolean quan_sqrt) {
+        final int[] heap = s.heap;
         double err, n1, n2;
 
+        s.clearBins();
+
         /* Build histogram */
-        for (final int pixel : pixels) {
+        for (int p = 0; p < length; p++) {
+            final int pixel = pixels[p];
             // !!! Can throw gamma correction in here, but what to do about perceptual
             // !!! nonuniformity then?
             int index = getColorIndex(pixel, hasSemiTransparency, m_transparentPixelIndex);
-            if (bins[index] == null)
-                bins[index] = new Pnnbin();
-            Pnnbin tb = bins[index];
-            tb.ac += Color.alpha(pixel);
-            tb.rc += Color.red(pixel);
-            tb.gc += Color.green(pixel);
-            tb.bc += Color.blue(pixel);
-            tb.cnt++;
+            s.ac[index] += alpha(pixel);
+            s.rc[index] += red(pixel);
+            s.gc[index] += green(pixel);
+            s.bc[index] += blue(pixel);
+            s.cnt[index]++;
         }
 
         /* Cluster nonempty bins at one end of array */
         int maxbins = 0;
 
-        for (int i = 0; i < bins.length; ++i) {
-            if (bins[i] == null)
+        for (int i = 0; i < BINS; ++i) {
+            if (s.cnt[i] == 0)
                 continue;
 
-            double d = 1.0 / (double) bins[i].cnt;
-            bins[i].ac *= d;
-            bins[i].rc *= d;
-            bins[i].gc *= d;
-            bins[i].bc *= d;
-            if (quan_sqrt)
-                bins[i].cnt = (int) Math.sqrt(bins[i].cnt);
-            bins[maxbins++] = bins[i];
+            double d = 1.0 / (double) s.cnt[i];
+            final int m = maxbins++;
+            s.ac[m] = s.ac[i] * d;
+            s.rc[m] = s.rc[i] * d;
+            s.gc[m] = s.gc[i] * d;
+            s.bc[m] = s.bc[i] * d;
+            s.cnt[m] = quan_sqrt ? (int) Math.sqrt(s.cnt[i]) : s.cnt[i];
+            if (m != i) {
+                s.ac[i] = s.rc[i] = s.gc[i] = s.bc[i] = 0;
+                s.cnt[i] = 0;
+            }
+            s.tm[m] = s.mtm[m] = 0;
+            s.fw[m] = s.bk[m] = 0;
         }
+        s.dirtyBins = maxbins;
+        if (maxbins == 0)
+            return new int[0];
 
         for (int i = 0; i < maxbins - 1; i++) {
-            bins[i].fw = (i + 1);
-            bins[i + 1].bk = i;
+            s.fw[i] = (i + 1);
+            s.bk[i + 1] = i;
         }
-        // !!! Already zeroed out by calloc()
-        //	bins[0].bk = bins[i].fw = 0;
 
         int h, l, l2;
         /* Initialize nearest neighbors and build heap of them */
         for (int i = 0; i < maxbins; i++) {
-            find_nn(bins, i);
+            find_nn(s, i);
             /* Push slot on heap */
-            err = bins[i].err;
+            err = s.err[i];
             for (l = ++heap[0]; l > 1; l = l2) {
                 l2 = l >> 1;
-                if (bins[h = heap[l2]].err <= err)
+                if (s.err[h = heap[l2]] <= err)
                     break;
                 heap[l] = h;
             }
@@ -153,26 +270,26 @@ public class PnnQuantizer {
         /* Merge bins which increase error the least */
         int extbins = maxbins - nMaxColors;
         for (int i = 0; i < extbins; ) {
-            Pnnbin tb = null;
+            int tb;
             /* Use heap to find which bins to merge */
             for (; ; ) {
                 int b1 = heap[1];
-                tb = bins[b1]; /* One with least error */
+                tb = b1; /* One with least error */
                 /* Is stored error up to date? */
-                if ((tb.tm >= tb.mtm) && (bins[tb.nn].mtm <= tb.tm))
+                if ((s.tm[tb] >= s.mtm[tb]) && (s.mtm[s.nn[tb]] <= s.tm[tb]))
                     break;
-                if (tb.mtm == 0xFFFF) /* Deleted node */
+                if (s.mtm[tb] == 0xFFFF) /* Deleted node */
                     b1 = heap[1] = heap[heap[0]--];
                 else /* Too old error value */ {
-                    find_nn(bins, b1);
-                    tb.tm = i;
+                    find_nn(s, b1);
+                    s.tm[tb] = i;
                 }
                 /* Push slot down */
-                err = bins[b1].err;
+                err = s.err[b1];
                 for (l = 1; (l2 = l + l) <= heap[0]; l = l2) {
-                    if ((l2 < heap[0]) && (bins[heap[l2]].err > bins[heap[l2 + 1]].err))
+                    if ((l2 < heap[0]) && (s.err[heap[l2]] > s.err[heap[l2 + 1]]))
                         l2++;
-                    if (err <= bins[h = heap[l2]].err)
+                    if (err <= s.err[h = heap[l2]])
                         break;
                     heap[l] = h;
                 }
@@ -180,61 +297,69 @@ public class PnnQuantizer {
             }
 
             /* Do a merge */
-            Pnnbin nb = bins[tb.nn];
-            n1 = tb.cnt;
-            n2 = nb.cnt;
+            final int nb = s.nn[tb];
+            n1 = s.cnt[tb];
+            n2 = s.cnt[nb];
             double d = 1.0 / (n1 + n2);
-            tb.ac = d * (n1 * tb.ac + n2 * nb.ac);
-            tb.rc = d * (n1 * tb.rc + n2 * nb.rc);
-            tb.gc = d * (n1 * tb.gc + n2 * nb.gc);
-            tb.bc = d * (n1 * tb.bc + n2 * nb.bc);
-            tb.cnt += nb.cnt;
-            tb.mtm = ++i;
+            s.ac[tb] = d * (n1 * s.ac[tb] + n2 * s.ac[nb]);
+            s.rc[tb] = d * (n1 * s.rc[tb] + n2 * s.rc[nb]);
+            s.gc[tb] = d * (n1 * s.gc[tb] + n2 * s.gc[nb]);
+            s.bc[tb] = d * (n1 * s.bc[tb] + n2 * s.bc[nb]);
+            s.cnt[tb] += s.cnt[nb];
+            s.mtm[tb] = ++i;
 
             /* Unchain deleted bin */
-            bins[nb.bk].fw = nb.fw;
-            bins[nb.fw].bk = nb.bk;
-            nb.mtm = 0xFFFF;
+            s.fw[s.bk[nb]] = s.fw[nb];
+            s.bk[s.fw[nb]] = s.bk[nb];
+            s.mtm[nb] = 0xFFFF;
         }
 
         /* Fill palette */
-        List<Integer> palette = new ArrayList<>();
-        short k = 0;
+        int colors = 0;
+        for (int i = 0; ; i = s.fw[i]) {
+            colors++;
+            if (s.fw[i] == 0)
+                break;
+        }
+        final int[] palette = new int[colors];
+        int k = 0;
         for (int i = 0; ; ++k) {
-            int alpha = (int) Math.rint(bins[i].ac);
-            palette.add(Color.argb(alpha, (int) Math.rint(bins[i].rc), (int) Math.rint(bins[i].gc), (int) Math.rint(bins[i].bc)));
-            if (m_transparentPixelIndex >= 0 && palette.get(k).equals(m_transparentColor))
-                Collections.swap(palette, 0, k);
+            int alpha = (int) Math.rint(s.ac[i]);
+            palette[k] = argb(alpha, (int) Math.rint(s.rc[i]), (int) Math.rint(s.gc[i]), (int) Math.rint(s.bc[i]));
+            if (m_transparentPixelIndex >= 0 && palette[k] == m_transparentColor) {
+                final int swap = palette[0];
+                palette[0] = palette[k];
+                palette[k] = swap;
+            }
 
-            if ((i = bins[i].fw) == 0)
+            if ((i = s.fw[i]) == 0)
                 break;
         }
 
-        return palette.toArray(new Integer[0]);
+        return palette;
     }
 
-    private short nearestColorIndex(final Integer[] palette, final int nMaxColors, final int c) {
+    private short nearestColorIndex(final Scratch s, final int nMaxColors, final int c) {
+        final int ca = alpha(c), cr = red(c), cg = green(c), cb = blue(c);
         short k = 0;
         double curdist, mindist = SHORT_MAX;
         for (int i = 0; i < nMaxColors; ++i) {
-            int c2 = palette[i];
-
-            double adist = Math.abs(Color.alpha(c2) - Color.alpha(c));
+            double adist = Math.abs(s.pa[i] - ca);
             curdist = adist;
             if (curdist > mindist)
                 continue;
 
-            double rdist = PR * Math.abs(Color.red(c2) - Color.red(c));
+            double rdist = PR * Math.abs(s.pr[i] - cr);
             curdist += rdist;
             if (curdist > mindist)
                 continue;
 
-            double gdist = PG * Math.abs(Color.green(c2) - Color.green(c));
+            double gdist = PG * Math.abs(s.pg[i] - cg);
             curdist += gdist;
             if (curdist > mindist)
                 continue;
 
-            double bdist = PB * Math.abs(Color.blue(c2) - Color.blue(c));
+            double bdist = PB * Math.abs(s.pb[i] - cb);
             curdist += bdist;
             if (curdist > mindist)
                 continue;
@@ -245,45 +370,56 @@ public class PnnQuantizer {
         return k;
     }
 
-    private short closestColorIndex(final Integer[] palette, final int c) {
-        short k = 0;
-        short[] closest = new short[5];
-        short[] got = closestMap.get(c);
-        if (got == null) {
-            closest[2] = closest[3] = SHORT_MAX;
-
-            for (; k < palette.length; k++) {
-                int c2 = palette[k];
-
-                closest[4] = (short) (Math.abs(Color.alpha(c) - Color.alpha(c2)) + Math.abs(Color.red(c) - Color.red(c2)) + Math.abs(Color.green(c) - Color.green(c2)) + Math.abs(Color.blue(c) - Color.blue(c2)));
-                if (closest[4] < closest[2]) {
-                    closest[1] = closest[0];
-                    closest[3] = closest[2];
-                    closest[0] = k;
-                    closest[2] = closest[4];
-                } else if (closest[4] < closest[3]) {
-                    closest[1] = k;
-                    closest[3] = closest[4];
+    private short cachedNearestColorIndex(final Scratch s, final int nMaxColors, final int c) {
+        final int slot = s.find(c);
+        if (slot >= 0) return s.cacheFirst[slot];
+        final short k = nearestColorIndex(s, nMaxColors, c);
+        s.store(~slot, c);
+        s.cacheFirst[~slot] = k;
+        return k;
+    }
+
+    private short closestColorIndex(final Scratch s, final int nMaxColors, final int c) {
+        int slot = s.find(c);
+        if (slot < 0) {
+            final int ca = alpha(c), cr = red(c), cg = green(c), cb = blue(c);
+            short first = 0, second = 0, firstDist = SHORT_MAX, secondDist = SHORT_MAX;
+
+            for (short k = 0; k < nMaxColors; k++) {
+                final short dist = (short) (Math.abs(ca - s.pa[k]) + Math.abs(cr - s.pr[k]) + Math.abs(cg - s.pg[k]) + Math.abs(cb - s.pb[k]));
+                if (dist < firstDist) {
+                    second = first;
+                    secondDist = firstDist;
+                    first = k;
+                    firstDist = dist;
+                } else if (dist < secondDist) {
+                    second = k;
+                    secondDist = dist;
                 }
             }
 
-            if (closest[3] == SHORT_MAX)
-                closest[2] = 0;
-        } else
-            closest = got;
+            if (secondDist == SHORT_MAX)
+                firstDist = 0;
 
-        Random rand = new Random();
-        if (closest[2] == 0 || (rand.nextInt(SHORT_MAX) % (closest[3] + closest[2])) <= closest[3])
-            k = closest[0];
-        else
-            k = closest[1];
+            slot = ~slot;
+            s.store(slot, c);
+            s.cacheFirst[slot] = first;
+            s.cacheSecond[slot] = second;
+            s.cacheFirstDist[slot] = firstDist;
+            s.cacheSecondDist[slot] = secondDist;
+        }
 
-        closestMap.put(c, closest);
-        return k;
+        final short firstDist = s.cacheFirstDist[slot];
+        final short secondDist = s.cacheSecondDist[slot];
+        if (firstDist == 0 || (random.nextInt(SHORT_MAX) % (secondDist + firstDist)) <= secondDist)
+            return s.cacheFirst[slot];
+        else
+            return s.cacheSecond[slot];
     }
 
-    boolean quantize_image(final int[] pixels, final Integer[] palette, int[] qPixels, final boolean dither) {
+    boolean quantize_image(final Scratch s, final int[] pixels, final int length, final int[] palette, int[] qPixels, final boolean dither) {
         int nMaxColors = palette.length;
+        s.setPalette(palette);
 
         int pixelIndex = 0;
         if (dither) {
@@ -295,9 +431,21 @@ public class PnnQuantizer {
             final int err_len = (width + 2) * DJ;
             int[] clamp = new int[DJ * 256];
             int[] limtb = new int[512];
-            short[] erowerr = new short[err_len];
-            short[] orowerr = new short[err_len];
-            int[] lookup = new int[65536];
+            if (s.erowerr.length < err_len) {
+                s.erowerr = new short[err_len];
+                s.orowerr = new short[err_len];
+            } else {
+                Arrays.fill(s.erowerr, (short) 0);
+                Arrays.fill(s.orowerr, (short) 0);
+            }
+            short[] erowerr = s.erowerr;
+            short[] orowerr = s.orowerr;
+            if (s.lookup == null) {
+                s.lookup = new int[65536];
+            } else {
+                Arrays.fill(s.lookup, 0);
+            }
+            int[] lookup = s.lookup;
 
             for (int i = 0; i < 256; i++) {
                 clamp[i] = 0;
@@ -327,22 +475,22 @@ public class PnnQuantizer {
                 row1[cursor1] = row1[cursor1 + 1] = row1[cursor1 + 2] = row1[cursor1 + 3] = 0;
                 for (short j = 0; j < width; j++) {
                     int c = pixels[pixelIndex];
-                    r_pix = clamp[((row0[cursor0] + 0x1008) >> 4) + Color.red(c)];
-                    g_pix = clamp[((row0[cursor0 + 1] + 0x1008) >> 4) + Color.green(c)];
-                    b_pix = clamp[((row0[cursor0 + 2] + 0x1008) >> 4) + Color.blue(c)];
-                    a_pix = clamp[((row0[cursor0 + 3] + 0x1008) >> 4) + Color.alpha(c)];
+                    r_pix = clamp[((row0[cursor0] + 0x1008) >> 4) + red(c)];
+                    g_pix = clamp[((row0[cursor0 + 1] + 0x1008) >> 4) + green(c)];
+                    b_pix = clamp[((row0[cursor0 + 2] + 0x1008) >> 4) + blue(c)];
+                    a_pix = clamp[((row0[cursor0 + 3] + 0x1008) >> 4) + alpha(c)];
 
-                    int c1 = Color.argb(a_pix, r_pix, g_pix, b_pix);
+                    int c1 = argb(a_pix, r_pix, g_pix, b_pix);
                     int offset = getColorIndex(c1, hasSemiTransparency, m_transparentPixelIndex);
                     if (lookup[offset] == 0)
-                        lookup[offset] = nearestColorIndex(palette, nMaxColors, c1) + 1;
+                        lookup[offset] = nearestColorIndex(s, nMaxColors, c1) + 1;
 
                     int c2 = qPixels[pixelIndex] = palette[lookup[offset] - 1];
 
-                    r_pix = limtb[r_pix - Color.red(c2) + 256];
-                    g_pix = limtb[g_pix - Color.green(c2) + 256];
-                    b_pix = limtb[b_pix - Color.blue(c2) + 256];
-                    a_pix = limtb[a_pix - Color.alpha(c2) + 256];
+                    r_pix = limtb[r_pix - red(c2) + 256];
+                    g_pix = limtb[g_pix - green(c2) + 256];
+                    b_pix = limtb[b_pix - blue(c2) + 256];
+                    a_pix = limtb[a_pix - alpha(c2) + 256];
 
                     k = r_pix * 2;
                     row1[cursor1 - DJ] = (short) r_pix;
@@ -381,68 +529,60 @@ public class PnnQuantizer {
         }
 
         if (hasSemiTransparency || nMaxColors < 256) {
-            for (int i = 0; i < qPixels.length; i++)
-                qPixels[i] = palette[nearestColorIndex(palette, nMaxColors, pixels[i])];
+            for (int i = 0; i < length; i++)
+                qPixels[i] = palette[cachedNearestColorIndex(s, nMaxColors, pixels[i])];
         } else {
-            for (int i = 0; i < qPixels.length; i++)
-                qPixels[i] = palette[closestColorIndex(palette, pixels[i])];
+            for (int i = 0; i < length; i++)
+                qPixels[i] = palette[closestColorIndex(s, nMaxColors, pixels[i])];
         }
 
         return true;
     }
 
     public Bitmap convert(int nMaxColors, boolean dither) {
-        final int[] cPixels = new int[pixels.length];
-        for (int i = 0; i < cPixels.length; ++i) {
-            int pixel = pixels[i];
-            int alfa = (pixel >> 24) & 0xff;
-            int r = (pixel >> 16) & 0xff;
-            int g = (pixel >> 8) & 0xff;
-            int b = (pixel) & 0xff;
-            cPixels[i] = Color.argb(alfa, r, g, b);
-            if (alfa < BYTE_MAX) {
-                hasSemiTransparency = true;
-                if (alfa == 0) {
-                    m_transparentPixelIndex = i;
-                    m_transparentColor = cPixels[i];
+        synchronized (PnnQuantizer.class) {
+            final Scratch s = scratch();
+            final int length = width * height;
+            s.ensurePixels(length);
+            s.newFrame();
+            final int[] pixels = s.pixels;
+            source.getPixels(pixels, 0, width, 0, 0, width, height);
+
+            for (int i = 0; i < length; ++i) {
+                int alfa = alpha(pixels[i]);
+                if (alfa < BYTE_MAX) {
+                    hasSemiTransparency = true;
+                    if (alfa == 0) {
+                        m_transparentPixelIndex = i;
+                        m_transparentColor = pixels[i];
+                    }
                 }
             }
-        }
-        if (nMaxColors > 256) {
-            dither = true;
-            hasSemiTransparency = false;
-        }
-
-        if (hasSemiTransparency || nMaxColors <= 32)
-            PR = PG = PB = 1.0;
-        boolean quan_sqrt = nMaxColors > BYTE_MAX;
-        Integer[] palette = new Integer[nMaxColors];
-        if (nMaxColors > 2)
-            palette = pnnquan(cPixels, nMaxColors, quan_sqrt);
-        else {
-            if (hasSemiTransparency) {
-                palette[0] = Color.argb(0, 0, 0, 0);
-                palette[1] = Color.BLACK;
-            } else {
-                palette[0] = Color.BLACK;
-                palette[1] = Color.WHITE;
+            if (nMaxColors > 256) {
+                dither = true;
+                hasSemiTransparency = false;
             }
-        }
 
-        int[] qPixels = new int[cPixels.length];
-        quantize_image(cPixels, palette, qPixels, dither);
-        if (m_transparentPixelIndex >= 0) {
-            int k = qPixels[m_transparentPixelIndex];
+            if (hasSemiTransparency || nMaxColors <= 32)
+                PR = PG = PB = 1.0;
+            boolean quan_sqrt = nMaxColors > BYTE_MAX;
+            int[] palette;
             if (nMaxColors > 2)
-                palette[k] = m_transparentColor;
-            else if (!palette[k].equals(m_transparentColor)) {
-                int c1 = palette[0];
-                palette[0] = palette[1];
-                palette[1] = c1;
+                palette = pnnquan(s, pixels, length, nMaxColors, quan_sqrt);
+            else {
+                if (hasSemiTransparency) {
+                    palette = new int[]{argb(0, 0, 0, 0), 0xFF000000};
+                } else {
+                    palette = new int[]{0xFF000000, 0xFFFFFFFF};
+                }
             }
+            if (palette.length == 0)
+                return Bitmap.createBitmap(width, height, bitmapConfig);
+
+            final int[] qPixels = s.qPixels;
+            quantize_image(s, pixels, length, palette, qPixels, dither);
+            return Bitmap.createBitmap(qPixels, 0, width, width, height, bitmapConfig);
         }
-        closestMap.clear();
-        return Bitmap.createBitmap(qPixels, width, height, bitmapConfig);
     }
 
 }
@@ -14,7 +14,9 @@ import com.eveningoutpost.dexdrip.g5model.CalibrationState;
 import com.eveningoutpost.dexdrip.Home;
 import com.eveningoutpost.dexdrip.importedlibraries.usbserial.util.HexDump;
 import com.eveningoutpost.dexdrip.models.BgReading;
+import com.eveningoutpost.dexdrip.models.BgReadingCache;
 import com.eveningoutpost.dexdrip.models.JoH;
+import com.eveningoutpost.dexdrip.models.Sensor;
 import com.eveningoutpost.dexdrip.models.Treatments;
 import com.eveningoutpost.dexdrip.models.UserError;
 import com.eveningoutpost.dexdrip.R;
@@ -54,6 +56,7 @@ import com.eveningoutpost.dexdrip.watch.thinjam.messages.SetTxIdTx;
 import com.eveningoutpost.dexdrip.watch.thinjam.messages.StandbyTx;
 import com.eveningoutpost.dexdrip.watch.thinjam.utils.BitmapTools;
 import com.eveningoutpost.dexdrip.watch.thinjam.utils.BitmapTools.TJ_BitmapType;
+import com.eveningoutpost.dexdrip.watch.thinjam.utils.FrameShadow;
 import com.eveningoutpost.dexdrip.xdrip;
 import com.google.gson.annotations.Expose;
 import com.polidea.rxandroidble2.RxBleDeviceServices;
@@ -334,35 +337,14 @@ public class BlueJayService extends JamBaseBluetoothSequencer {
 
     private static Pair<Long, Long> getBackFillStatus() {
         final long maxBackfillPeriodMs = getMaxBackFillHours() * HOUR_IN_MS; // how far back to request backfill data
-        final int check_readings = getMaxBackFillHours() * recordsPerHour();
-        UserError.Log.d(TAG, "Checking " + check_readings + " for backfill requirement");
-        final List<BgReading> lastReadings = BgReading.latest_by_size(check_readings);
-        boolean ask_for_backfill = false;
-        long earliest_timestamp = tsl() - maxBackfillPeriodMs;
-        long latest_timestamp = tsl();
-        if ((lastReadings == null) || (lastReadings.size() != check_readings)) {
-            ask_for_backfill = true;
-        } else {
-            for (int i = 0; i < lastReadings.size(); i++) {
-                final BgReading reading = lastReadings.get(i);
-                if ((reading == null) || (msSince(reading.timestamp) > ((DEXCOM_PERIOD * i) + Constants.MINUTE_IN_MS * 7))) {
-                    ask_for_backfill = true;
-                    if ((reading != null) && (msSince(reading.timestamp) <= maxBackfillPeriodMs)) {
-                        earliest_timestamp = reading.timestamp;
-                    }
-                    if (reading != null) {
-                        UserError.Log.d(TAG, "Flagging backfill tripped by reading: " + i + " at time: " + JoH.dateTimeText(reading.timestamp) + " creating backfill window: " + JoH.dateTimeText(earliest_timestamp));
-                    } else {
-                        UserError.Log.d(TAG, "Flagging backfill tripped by null reading: " + i);
-                    }
-                    break;
-                } else {
-                    // good record
-                    latest_timestamp = reading.timestamp;
-                }
-            }
+        final long now = tsl();
+        final Sensor sensor = Sensor.currentSensor();
+        final Pair<Long, Long> gap = BgReadingCache.newestGap(sensor != null ? sensor.getId() : null, now - maxBackfillPeriodMs, now);
+        if (gap == null) {
+            return new Pair<>(-1L, now);
         }
-        return new Pair<>(ask_for_backfill ? earliest_timestamp : -1, latest_timestamp);
+        UserError.Log.d(TAG, "Flagging backfill tripped by gap: " + JoH.dateTimeText(gap.first) + " -> " + JoH.dateTimeText(gap.second));
+        return gap;
     }
 
 
@@ -734,15 +716,31 @@ public class BlueJayService extends JamBaseBluetoothSequencer {
         }
     }
 
+    // only the tiles which differ from what we last sent to this window are queued
     public void enqueue(int x, int y, int width, int height, byte[] buffer, TJ_BitmapType bitmapType) {
+        val key = FrameShadow.key(x, y, width, height, bitmapType);
+        val pixels = bitmapType == TJ_BitmapType.Mono ? BitmapTools.unpackMonoBytesToRGB565(buffer) : buffer;
+        val previous = FrameShadow.previous(key, pixels.length);
+        val update = new FrameShadow.Update();
         if (buffer.length > max_buffer_size) {
             UserError.Log.d(TAG, "Breaking image up in to smaller");
-            enqueueBig(x, y, width, height, buffer, bitmapType);
+            enqueueBig(x, y, width, height, buffer, bitmapType, pixels, previous, update);
         } else {
-            UserError.Log.d(TAG, "Added new queue item: " + x + " " + y + " " + width + " " + height + " size: " + buffer.length);
-            commandQueue.add(new ThinJamItem(x, y, width, height, buffer).setWindowType(bitmapType.getValue()));
-            Inevitable.task("run-thinjam-queue", 100, this::background_automata);
+            if (previous != null && Arrays.equals(previous, pixels)) {
+                update.skipped(buffer.length);
+            } else {
+                queueTile(x, y, width, height, buffer, bitmapType, update);
+            }
         }
+        FrameShadow.store(key, pixels, previous == null);
+        FrameShadow.record(update);
+    }
+
+    private void queueTile(int x, int y, int width, int height, byte[] buffer, TJ_BitmapType bitmapType, final FrameShadow.Update update) {
+        update.sent(buffer.length);
+        UserError.Log.d(TAG, "Added new queue item: " + x + " " + y + " " + width + " " + height + " size: " + buffer.length);
+        commandQueue.add(new ThinJamItem(x, y, width, height, buffer).setWindowType(bitmapType.getValue()));
+        Inevitable.task("run-thinjam-queue", 100, this::background_automata);
     }
 
     private class ImageSegment {
@@ -757,6 +755,8 @@ public class BlueJayService extends JamBaseBluetoothSequencer {
         TJ_BitmapType bitmapType;
         byte[] buffer;
         byte[] unpacked;
+        byte[] previous;
+        FrameShadow.Update update;
 
         ImageSegment(final int width, final int height, final int start_x, final int start_y, byte[] buffer, TJ_BitmapType bitmapType) {
             this.width = width;
@@ -776,29 +776,42 @@ public class BlueJayService extends JamBaseBluetoothSequencer {
             return unpacked;
         }
 
+        byte[] getPixels() {
+            return bitmapType == TJ_BitmapType.Mono ? getUnpacked() : buffer;
+        }
+
+        int tileBytes(final int segmentWidth, final int segmentHeight) {
+            final int pixels = segmentWidth * segmentHeight;
+            return bitmapType == TJ_BitmapType.Mono ? pixels / 8 + (pixels % 8 == 0 ? 0 : 1) : pixels * 2;
+        }
+
         String toS() {
             return this.width + " " + this.height + " " + this.bitmapType + " " + this.width_left + " " + this.height_left + " " + this.current_x + " " + this.current_y;
         }
     }
 
     private void cropAndQueueSegment(final ImageSegment s, final int segmentHeight, final int segmentWidth) {
-        final byte[] cropped;
-        switch (s.bitmapType) {
-            case RGB565:
-                cropped = cropRGB565(s.current_x, s.current_y, segmentWidth, segmentHeight, s.width, s.height, s.buffer);
-                break;
-            case Mono:
-                cropped = BitmapTools.packRGB565bytesToMono(cropRGB565(s.current_x, s.current_y, segmentWidth, segmentHeight, s.width, s.height, s.getUnpacked()));
-                break;
+        if (s.previous != null && FrameShadow.regionEquals(s.previous, s.getPixels(), s.current_x, s.current_y, segmentWidth, segmentHeight, s.width)) {
+            s.update.skipped(s.tileBytes(segmentWidth, segmentHeight));
+        } else {
+            final byte[] cropped;
+            switch (s.bitmapType) {
+                case RGB565:
+                    cropped = cropRGB565(s.current_x, s.current_y, segmentWidth, segmentHeight, s.width, s.height, s.buffer);
+                    break;
+                case Mono:
+                    cropped = BitmapTools.packRGB565bytesToMono(cropRGB565(s.current_x, s.current_y, segmentWidth, segmentHeight, s.width, s.height, s.getUnpacked()));
+                    break;
 
-            default:
-                throw new RuntimeException("Invalid type in crop and queue segment");
+                default:
+                    throw new RuntimeException("Invalid type in crop and queue segment");
 
-        }
-        if (cropped != null && cropped.length > 0) {
-            enqueue(s.start_x + s.current_x, s.start_y + s.current_y, segmentWidth, segmentHeight, cropped, s.bitmapType);
-        } else {
-            UserError.Log.e(TAG, "Cropped bytes invalid: " + s.toS());
+            }
+            if (cropped != null && cropped.length > 0) {
+                queueTile(s.start_x + s.current_x, s.start_y + s.current_y, segmentWidth, segmentHeight, cropped, s.bitmapType, s.update);
+            } else {
+                UserError.Log.e(TAG, "Cropped bytes invalid: " + s.toS());
+            }
         }
         s.current_x += segmentWidth;
         s.width_left -= segmentWidth;
@@ -839,8 +852,20 @@ public class BlueJayService extends JamBaseBluetoothSequencer {
     }
 
     public void enqueueBig(final int start_x, final int start_y, final int width, final int height, final byte[] buffer, TJ_BitmapType bitmapType) {
+        val update = new FrameShadow.Update();
+        enqueueBig(start_x, start_y, width, height, buffer, bitmapType, null, null, update);
+        FrameShadow.record(update);
+    }
+
+    private void enqueueBig(final int start_x, final int start_y, final int width, final int height, final byte[] buffer, TJ_BitmapType bitmapType,
+                            final byte[] pixels, final byte[] previous, final FrameShadow.Update update) {
         UserError.Log.d(TAG, "Big enqueue for: " + start_x + " " + start_y + " w:" + width + " h:" + height + " size: " + buffer.length);
         val segment = new ImageSegment(width, height, start_x, start_y, buffer, bitmapType);
+        if (bitmapType == TJ_BitmapType.Mono) {
+            segment.unpacked = pixels;
+        }
+        segment.previous = previous;
+        segment.update = update;
         val parameters = getBestProgressionParameters(width, height, bitmapType);
         processSegmentProgression(segment, parameters.first, parameters.second);
 
@@ -919,6 +944,7 @@ public class BlueJayService extends JamBaseBluetoothSequencer {
             } else {
                 UserError.Log.d(TAG, "ThinJam queue item exceeded retries - removing");
                 commandQueue.poll();
+                FrameShadow.invalidate(); // display may be missing a tile
                 Inevitable.task("tj-next-queue", 500, this::processQueue);
             }
         } else {
@@ -934,6 +960,7 @@ public class BlueJayService extends JamBaseBluetoothSequencer {
     private void invalidateCache() {
         getInfo().invalidateStatus();
         getInfo().invalidateTime();
+        FrameShadow.invalidate();
     }
 
     private synchronized void sendOtaChunks(final List<byte[]> chunks) {
@@ -1532,6 +1559,7 @@ public class BlueJayService extends JamBaseBluetoothSequencer {
             throw new RuntimeException("To big for page");
         }
         commandQueue.clear(); // warning nixes all pending items! but otherwise we don't have sequence set up
+        FrameShadow.invalidate();
         while (buffer.length > 0) {
             val chunk = Arrays.copyOfRange(buffer, 0, Math.min(buffer.length, 256));
             UserError.Log.d(TAG, "Buffer Chunk size: " + chunk.length);
@@ -2049,6 +2077,13 @@ public class BlueJayService extends JamBaseBluetoothSequencer {
             }
         }
 
+        if (Home.get_engineering_mode()) {
+            val displaySummary = FrameShadow.summary();
+            if (displaySummary != null) {
+                l.add(new StatusItem("Display Updates", displaySummary));
+            }
+        }
+
         if (info.hasCoreModule()) {
             l.add(new StatusItem("xDrip Core", "Installed", GOOD));
         } else {
@@ -0,0 +1,116 @@
+package com.eveningoutpost.dexdrip.watch.thinjam.utils;
+
+import com.eveningoutpost.dexdrip.models.JoH;
+import com.eveningoutpost.dexdrip.models.UserError;
+import com.eveningoutpost.dexdrip.utilitymodels.Constants;
+import com.eveningoutpost.dexdrip.watch.thinjam.utils.BitmapTools.TJ_BitmapType;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+// jamorham
+
+// Copy of what we last sent to each display window so only tiles which changed need sending again
+
+public class FrameShadow {
+
+    private static final String TAG = "BlueJayFrameShadow";
+    private static final long FULL_REFRESH_MS = Constants.MINUTE_IN_MS * 15;
+
+    private static final ConcurrentHashMap<String, Frame> frames = new ConcurrentHashMap<>();
+
+    private static long totalUpdates;
+    private static long totalTilesSent;
+    private static long totalTilesSkipped;
+    private static long totalBytesSent;
+    private static long totalBytesSaved;
+
+    private static class Frame {
+        final byte[] pixels;
+        final long timestamp;
+
+        Frame(final byte[] pixels, final long timestamp) {
+            this.pixels = pixels;
+            this.timestamp = timestamp;
+        }
+    }
+
+    // tally for one display update
+    public static class Update {
+        public int tilesSent;
+        public int tilesSkipped;
+        public int bytesSent;
+        public int bytesSaved;
+
+        public void sent(final int bytes) {
+            tilesSent++;
+            bytesSent += bytes;
+        }
+
+        public void skipped(final int bytes) {
+            tilesSkipped++;
+            bytesSaved += bytes;
+        }
+
+        public String toS() {
+            return "sent " + tilesSent + " tiles " + bytesSent + " bytes, skipped " + tilesSkipped + " tiles, saved " + bytesSaved + " bytes";
+        }
+    }
+
+    public static String key(final int x, final int y, final int width, final int height, final TJ_BitmapType type) {
+        return type.getValue() + ":" + x + ":" + y + ":" + width + ":" + height;
+    }
+
+    // last pixels sent for this window or null if we need to send the whole thing
+    public static byte[] previous(final String key, final int length) {
+        final Frame frame = frames.get(key);
+        if (frame == null || frame.pixels.length != length) return null;
+        if (JoH.msSince(frame.timestamp) > FULL_REFRESH_MS) {
+            UserError.Log.d(TAG, "Shadow frame too old, full refresh for: " + key);
+            return null;
+        }
+        return frame.pixels;
+    }
+
+    // timestamp is only moved on when we send everything so periodic full refresh still happens
+    public static void store(final String key, final byte[] pixels, final boolean full) {
+        final Frame frame = frames.get(key);
+        frames.put(key, new Frame(pixels, full || frame == null ? JoH.tsl() : frame.timestamp));
+    }
+
+    // the watch may no longer show what we think it does
+    public static void invalidate() {
+        if (!frames.isEmpty()) {
+            UserError.Log.d(TAG, "Invalidating shadow frames");
+            frames.clear();
+        }
+    }
+
+    public static synchronized void record(final Update update) {
+        totalUpdates++;
+        totalTilesSent += update.tilesSent;
+        totalTilesSkipped += update.tilesSkipped;
+        totalBytesSent += update.bytesSent;
+        totalBytesSaved += update.bytesSaved;
+        UserError.Log.d(TAG, "Display update: " + update.toS());
+    }
+
+    public static synchronized String summary() {
+        if (totalUpdates == 0) return null;
+        final long total = totalBytesSent + totalBytesSaved;
+        return totalUpdates + " updates, " + totalTilesSent + " tiles sent " + totalTilesSkipped + " skipped, "
+                + (total > 0 ? (totalBytesSaved * 100 / total) : 0) + "% bytes saved";
+    }
+
+    // compare a rectangle of two RGB565 images of the same dimensions
+    public static boolean regionEquals(final byte[] a, final byte[] b, final int x, final int y, final int width, final int height, final int parentWidth) {
+        final int rowBytes = width * 2;
+        int ptr = x * 2 + y * parentWidth * 2;
+        for (int row = 0; row < height; row++) {
+            for (int i = ptr; i < ptr + rowBytes; i++) {
+                if (a[i] != b[i]) return false;
+            }
+            ptr += parentWidth * 2;
+        }
+        return true;
+    }
+}
@@ -1571,7 +1571,7 @@ public class WatchUpdaterService extends WearableListenerService implements
     private void sendG5QueueData(String queueData) {
         if ((wear_integration) && (queueData != null)) {
             forceGoogleApiConnect();
-            new SendToDataLayerThread(WEARABLE_G5_QUEUE_PATH, googleApiClient).executeOnExecutor(xdrip.executor, dataMap("queueData", queueData));
+            new SendToDataLayerThread(WEARABLE_G5_QUEUE_PATH, googleApiClient).executeOnExecutor(xdrip.executor.forKey(WEARABLE_G5_QUEUE_PATH), dataMap("queueData", queueData));
         }
     }
 
@@ -1581,7 +1581,7 @@ public class WatchUpdaterService extends WearableListenerService implements
             forceGoogleApiConnect();
             if (wear_integration) {
                 final int battery = PowerStateReceiver.getBatteryLevel(getApplicationContext());
-                new SendToDataLayerThread(WEARABLE_DATA_PATH, googleApiClient).executeOnExecutor(xdrip.executor, dataMap(bg, mPrefs, new BgGraphBuilder(getApplicationContext()), battery));
+                new SendToDataLayerThread(WEARABLE_DATA_PATH, googleApiClient).executeOnExecutor(xdrip.executor.forKey(WEARABLE_DATA_PATH), dataMap(bg, mPrefs, new BgGraphBuilder(getApplicationContext()), battery));
             }
         }
     }
@@ -1608,7 +1608,7 @@ public class WatchUpdaterService extends WearableListenerService implements
                     entries.putString("extra_status_line", StatusLine.extraStatusLine());
                 }
 
-                new SendToDataLayerThread(WEARABLE_DATA_PATH, googleApiClient).executeOnExecutor(xdrip.executor, entries);
+                new SendToDataLayerThread(WEARABLE_DATA_PATH, googleApiClient).executeOnExecutor(xdrip.executor.forKey(WEARABLE_DATA_PATH), entries);
             }
         }
     }
@@ -1866,7 +1866,7 @@ public class WatchUpdaterService extends WearableListenerService implements
             dataMap.putString(str, PersistentStore.getString(str));
         }
 
-        new SendToDataLayerThread(WEARABLE_PREF_DATA_PATH, googleApiClient).executeOnExecutor(xdrip.executor, dataMap);
+        new SendToDataLayerThread(WEARABLE_PREF_DATA_PATH, googleApiClient).executeOnExecutor(xdrip.executor.forKey(WEARABLE_PREF_DATA_PATH), dataMap);
     }
 
     private boolean sendSensorData() {//KS
@@ -1892,7 +1892,7 @@ public class WatchUpdaterService extends WearableListenerService implements
                         dataMap.putInt("latest_battery_level", sensor.latest_battery_level);
                         dataMap.putString("sensor_location", sensor.sensor_location);
 
-                        new SendToDataLayerThread(WEARABLE_SENSOR_DATA_PATH, googleApiClient).executeOnExecutor(xdrip.executor, dataMap);
+                        new SendToDataLayerThread(WEARABLE_SENSOR_DATA_PATH, googleApiClient).executeOnExecutor(xdrip.executor.forKey(WEARABLE_SENSOR_DATA_PATH), dataMap);
                         return true;
                     }
                 } else
@@ -1923,7 +1923,7 @@ public class WatchUpdaterService extends WearableListenerService implements
                     dataMap.putString("address", btDevice.address);
                     dataMap.putBoolean("connected", btDevice.connected);
 
-                    new SendToDataLayerThread(WEARABLE_ACTIVEBTDEVICE_DATA_PATH, googleApiClient).executeOnExecutor(xdrip.executor, dataMap);
+                    new SendToDataLayerThread(WEARABLE_ACTIVEBTDEVICE_DATA_PATH, googleApiClient).executeOnExecutor(xdrip.executor.forKey(WEARABLE_ACTIVEBTDEVICE_DATA_PATH), dataMap);
                 }
             }
         } else {
@@ -1947,7 +1947,7 @@ public class WatchUpdaterService extends WearableListenerService implements
                     }
                     entries.putLong("time", new Date().getTime()); // MOST IMPORTANT LINE FOR TIMESTAMP
                     entries.putDataMapArrayList("entries", dataMaps);
-                    new SendToDataLayerThread(WEARABLE_ALERTTYPE_DATA_PATH, googleApiClient).executeOnExecutor(xdrip.executor, entries);
+                    new SendToDataLayerThread(WEARABLE_ALERTTYPE_DATA_PATH, googleApiClient).executeOnExecutor(xdrip.executor.forKey(WEARABLE_ALERTTYPE_DATA_PATH), entries);
                 } else
                     Log.d(TAG, "sendAlertTypeData latest count = 0");
             }
@@ -1990,7 +1990,7 @@ public class WatchUpdaterService extends WearableListenerService implements
                 entries.putLong("time", new Date().getTime()); // MOST IMPORTANT LINE FOR TIMESTAMP
                 entries.putString("action", "delete");
                 entries.putStringArrayList("entries", (new ArrayList<String>(list)));
-                new SendToDataLayerThread(WEARABLE_TREATMENTS_DATA_PATH, googleApiClient).executeOnExecutor(xdrip.executor, entries);
+                new SendToDataLayerThread(WEARABLE_TREATMENTS_DATA_PATH, googleApiClient).executeOnExecutor(xdrip.executor.forKey(WEARABLE_TREATMENTS_DATA_PATH), entries);
             } else
                 Log.d(TAG, "sendWearTreatmentsDataDelete treatments count = 0");
         } else {
@@ -2035,7 +2035,7 @@ public class WatchUpdaterService extends WearableListenerService implements
                     entries.putLong("time", new Date().getTime()); // MOST IMPORTANT LINE FOR TIMESTAMP
                     entries.putString("action", "insert");
                     entries.putDataMapArrayList("entries", dataMaps);
-                    new SendToDataLayerThread(WEARABLE_TREATMENTS_DATA_PATH, googleApiClient).executeOnExecutor(xdrip.executor, entries);
+                    new SendToDataLayerThread(WEARABLE_TREATMENTS_DATA_PATH, googleApiClient).executeOnExecutor(xdrip.executor.forKey(WEARABLE_TREATMENTS_DATA_PATH), entries);
                 } else
                     Log.d(TAG, "sendWearTreatmentsData treatments count = 0");
             } else {
@@ -2091,7 +2091,7 @@ public class WatchUpdaterService extends WearableListenerService implements
                     Log.d(TAG, "sendWearBloodTestData entries=" + entries);
                     entries.putLong("time", new Date().getTime()); // MOST IMPORTANT LINE FOR TIMESTAMP
                     entries.putDataMapArrayList("entries", dataMaps);
-                    new SendToDataLayerThread(WEARABLE_BLOODTEST_DATA_PATH, googleApiClient).executeOnExecutor(xdrip.executor, entries);
+                    new SendToDataLayerThread(WEARABLE_BLOODTEST_DATA_PATH, googleApiClient).executeOnExecutor(xdrip.executor.forKey(WEARABLE_BLOODTEST_DATA_PATH), entries);
                 } else
                     Log.d(TAG, "sendWearBloodTestData BloodTest count = 0");
             } else {
@@ -2160,7 +2160,7 @@ public class WatchUpdaterService extends WearableListenerService implements
                     }
                     entries.putLong("time", new Date().getTime()); // MOST IMPORTANT LINE FOR TIMESTAMP
                     entries.putDataMapArrayList("entries", dataMaps);
-                    new SendToDataLayerThread(WEARABLE_CALIBRATION_DATA_PATH, googleApiClient).executeOnExecutor(xdrip.executor, entries);
+                    new SendToDataLayerThread(WEARABLE_CALIBRATION_DATA_PATH, googleApiClient).executeOnExecutor(xdrip.executor.forKey(WEARABLE_CALIBRATION_DATA_PATH), entries);
                 } else
                     Log.d(TAG, "sendWearCalibrationData latest count = 0");
             } else {
@@ -2236,7 +2236,7 @@ public class WatchUpdaterService extends WearableListenerService implements
                     entries.putLong("time", new Date().getTime()); // MOST IMPORTANT LINE FOR TIMESTAMP
                     entries.putInt("battery", battery);
                     entries.putDataMapArrayList("entries", dataMaps);
-                    new SendToDataLayerThread(WEARABLE_BG_DATA_PATH, googleApiClient).executeOnExecutor(xdrip.executor, entries);
+                    new SendToDataLayerThread(WEARABLE_BG_DATA_PATH, googleApiClient).executeOnExecutor(xdrip.executor.forKey(WEARABLE_BG_DATA_PATH), entries);
                 } else
                     Log.d(TAG, "sendWearBgData lastest count = 0");
             } else {
@@ -0,0 +1,122 @@
+package com.eveningoutpost.dexdrip.webservices;
+
+import com.eveningoutpost.dexdrip.models.BgReading;
+import com.eveningoutpost.dexdrip.models.BgReadingCache;
+import com.eveningoutpost.dexdrip.models.JoH;
+import com.eveningoutpost.dexdrip.utilitymodels.Constants;
+import com.eveningoutpost.dexdrip.utilitymodels.Pref;
+import com.eveningoutpost.dexdrip.utils.DexCollectionType;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Holds ready to send responses for the frequently polled read only routes
+ * <p>
+ * Entries are only valid while the latest BgReading, the units and the collector device named
+ * in sgv.json are unchanged and for a short time after that so that anything else in the reply,
+ * such as status lines, cannot drift too far.
+ * <p>
+ * The cached WebResponse also keeps its ETag and gzip encoded bytes once worked out.
+ * <p>
+ * Requests carrying parameters which cause side effects, such as steps or tasker commands
+ * on sgv.json, are never cached.
+ */
+
+class ResponseCache {
+
+    private static final long MAX_AGE = Constants.SECOND_IN_MS * 30;
+    private static final int MAX_ENTRIES = 32;
+
+    private static final Set<String> CACHEABLE_PATHS = new HashSet<>(Arrays.asList(
+            "pebble", "sgv.json", "api/v1/entries/sgv.json", "status.json"));
+    private static final Set<String> SAFE_PARAMETERS = new HashSet<>(Arrays.asList(
+            "count", "brief_mode", "all_data", "no_empty"));
+
+    private static final Map<String, Entry> cache = new LinkedHashMap<String, Entry>(MAX_ENTRIES, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    private static long hits;
+    private static long misses;
+
+    private static final class Entry {
+        final WebResponse response;
+        final String validity;
+        final long created;
+
+        Entry(final WebResponse response, final String validity) {
+            this.response = response;
+            this.validity = validity;
+            this.created = JoH.tsl();
+        }
+    }
+
+    static boolean isCacheable(final String route) {
+        final int queryStart = route.indexOf('?');
+        final String path = queryStart < 0 ? route : route.substring(0, queryStart);
+        if (!CACHEABLE_PATHS.contains(path)) return false;
+        if (queryStart < 0) return true;
+        for (final String pair : BaseWebService.getUrlComponents(route.substring(queryStart + 1), "&")) {
+            final int equals = pair.indexOf('=');
+            if (!SAFE_PARAMETERS.contains(equals < 0 ? pair : pair.substring(0, equals))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // cached response or produce a fresh one from the route finder
+    static WebResponse get(final String route, final InetAddress source, final RouteFinder routeFinder) {
+        if (!isCacheable(route)) {
+            return routeFinder.handleRoute(route, source);
+        }
+        final String validity = validity();
+        synchronized (ResponseCache.class) {
+            final Entry entry = cache.get(route);
+            if (entry != null && entry.validity.equals(validity) && JoH.msSince(entry.created) < MAX_AGE) {
+                hits++;
+                return entry.response;
+            }
+            misses++;
+        }
+        final WebResponse response = routeFinder.handleRoute(route, source);
+        if (response != null && response.resultCode == 200 && response.bytes != null) {
+            synchronized (ResponseCache.class) {
+                cache.put(route, new Entry(response, validity));
+            }
+        }
+        return response;
+    }
+
+    static synchronized void clear() {
+        cache.clear();
+    }
+
+    static synchronized long getHits() {
+        return hits;
+    }
+
+    static synchronized long getMisses() {
+        return misses;
+    }
+
+    static synchronized int size() {
+        return cache.size();
+    }
+
+    // readings can also be updated in place, for example by calibration
+    private static String validity() {
+        final BgReading last = BgReading.last();
+        return ((last != null && last.uuid != null) ? last.uuid : "") + ":" + BgReadingCache.getGeneration()
+                + ":" + Pref.getString("units", "mgdl")
+                + ":" + DexCollectionType.getBestCollectorHardwareName();
+    }
+}
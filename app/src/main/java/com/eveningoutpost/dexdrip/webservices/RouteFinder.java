@@ -5,8 +5,8 @@ import com.eveningoutpost.dexdrip.dagger.Singleton;
 import java.io.UnsupportedEncodingException;
 import java.net.InetAddress;
 import java.net.URLDecoder;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.HashMap;
+import java.util.Map;
 
 import lombok.RequiredArgsConstructor;
 
@@ -15,44 +15,76 @@ import lombok.RequiredArgsConstructor;
  *
  * Calls the WebService module associated with the route
  *
+ * Routes are held in a prefix trie so dispatch cost depends on the length of the requested
+ * path rather than the number of routes. Where more than one route prefix matches the longest
+ * one wins.
+ *
  */
 
 public class RouteFinder {
 
-    private final List<RouteInfo> routes = new ArrayList<>();
+    private final TrieNode routes = new TrieNode();
 
 
     RouteFinder() {
         // route url starts with , class name to process it
 
         // support for desert sync
-        routes.add(new RouteInfo("sync/", "WebServiceSync").useRaw());
+        addRoute(new RouteInfo("sync/", "WebServiceSync").useRaw());
 
         // support for pebble nightscout watchface emulates /pebble Nightscout endpoint
-        routes.add(new RouteInfo("pebble", "WebServicePebble"));
+        addRoute(new RouteInfo("pebble", "WebServicePebble"));
 
         // support for nightscout style sgv.json endpoint
-        routes.add(new RouteInfo("sgv.json", "WebServiceSgv"));
-        routes.add(new RouteInfo("api/v1/entries/sgv.json", "WebServiceSgv"));
+        addRoute(new RouteInfo("sgv.json", "WebServiceSgv"));
+        addRoute(new RouteInfo("api/v1/entries/sgv.json", "WebServiceSgv"));
 
         // support for nightscout style treatments.json endpoint
-        routes.add(new RouteInfo("treatments.json", "WebServiceTreatments"));
-        routes.add(new RouteInfo("api/v1/treatments.json", "WebServiceTreatments"));
+        addRoute(new RouteInfo("treatments.json", "WebServiceTreatments"));
+        addRoute(new RouteInfo("api/v1/treatments.json", "WebServiceTreatments"));
 
         // support for nightscout style barebones status.json endpoint
-        routes.add(new RouteInfo("status.json", "WebServiceStatus"));
+        addRoute(new RouteInfo("status.json", "WebServiceStatus"));
 
         // support for working with step counter
-        routes.add(new RouteInfo("steps/", "WebServiceSteps"));
+        addRoute(new RouteInfo("steps/", "WebServiceSteps"));
 
         // support for working with heart monitor
-        routes.add(new RouteInfo("heart/", "WebServiceHeart"));
+        addRoute(new RouteInfo("heart/", "WebServiceHeart"));
 
         // tasker interface
-        routes.add(new RouteInfo("tasker/", "WebServiceTasker"));
+        addRoute(new RouteInfo("tasker/", "WebServiceTasker"));
 
         // libre2 start connection code.
-        routes.add(new RouteInfo("Libre2ConnectCode.json", "Libre2ConnectCode"));
+        addRoute(new RouteInfo("Libre2ConnectCode.json", "Libre2ConnectCode"));
+    }
+
+    private void addRoute(final RouteInfo routeInfo) {
+        TrieNode node = routes;
+        for (int i = 0; i < routeInfo.path.length(); i++) {
+            final char c = routeInfo.path.charAt(i);
+            TrieNode next = node.children.get(c);
+            if (next == null) {
+                next = new TrieNode();
+                node.children.put(c, next);
+            }
+            node = next;
+        }
+        node.route = routeInfo;
+    }
+
+    // longest registered route which is a prefix of the requested route or null if none
+    private RouteInfo findRoute(final String route) {
+        RouteInfo found = null;
+        TrieNode node = routes;
+        for (int i = 0; i < route.length(); i++) {
+            node = node.children.get(route.charAt(i));
+            if (node == null) break;
+            if (node.route != null) {
+                found = node.route;
+            }
+        }
+        return found;
     }
 
     // process a received route
@@ -63,16 +95,20 @@ public class RouteFinder {
     // process a received route with source details
     WebResponse handleRoute(final String route, final InetAddress source) {
 
-        for (final RouteInfo routeEntry : routes) {
-            if (route.startsWith(routeEntry.path)) {
-                return routeEntry.processRequest(route, source);
-            }
+        final RouteInfo routeEntry = findRoute(route);
+        if (routeEntry != null) {
+            return routeEntry.processRequest(route, source);
         }
         // unknown service error reply
         return new WebResponse("Path not found: " + route + "\r\n", 404, "text/plain");
     }
 
 
+    private static final class TrieNode {
+        final Map<Character, TrieNode> children = new HashMap<>();
+        RouteInfo route;
+    }
+
     @RequiredArgsConstructor
     private static final class RouteInfo {
         public final String path;
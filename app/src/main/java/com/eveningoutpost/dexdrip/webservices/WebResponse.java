@@ -1,23 +1,35 @@
 package com.eveningoutpost.dexdrip.webservices;
 
 import com.eveningoutpost.dexdrip.models.UserError;
+import com.google.common.hash.Hashing;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * Created by jamorham on 06/01/2018.
  *
  * Data class for webservice responses
+ *
+ * Responses can be reused for many requests so the entity tag and compressed form are
+ * only worked out once when first needed.
  */
 
 public class WebResponse {
 
     private static String TAG = "WebResponse";
 
+    private static final int MIN_COMPRESS_SIZE = 256;
+
     byte[] bytes;
     String mimeType;
     int resultCode;
 
+    private String etag;
+    private byte[] gzipBytes;
+
     WebResponse(String str) {
         this(str, 200, "application/json");
     }
@@ -32,12 +44,42 @@ public class WebResponse {
         this.resultCode = resultCode;
     }
 
+    // strong entity tag derived from the content
+    synchronized String getETag() {
+        if (etag == null && bytes != null) {
+            etag = "\"" + Hashing.murmur3_128().hashBytes(bytes).toString() + "\"";
+        }
+        return etag;
+    }
+
+    // gzip encoded content or null if it isn't worth compressing
+    synchronized byte[] getGzipBytes() {
+        if (gzipBytes == null && bytes != null && bytes.length >= MIN_COMPRESS_SIZE) {
+            try {
+                final ByteArrayOutputStream output = new ByteArrayOutputStream(bytes.length / 4);
+                final GZIPOutputStream gzip = new GZIPOutputStream(output);
+                gzip.write(bytes);
+                gzip.close();
+                if (output.size() < bytes.length) {
+                    gzipBytes = output.toByteArray();
+                }
+            } catch (IOException e) {
+                UserError.Log.e(TAG, "Could not compress response: " + e);
+            }
+        }
+        return gzipBytes;
+    }
+
     public String getResultDesc() {
         switch (resultCode) {
             case 200:
                 return "OK";
+            case 304:
+                return "Not Modified";
             case 400:
                 return "Bad Request";
+            case 403:
+                return "Forbidden";
             case 404:
                 return "Not Found";
             case 500:
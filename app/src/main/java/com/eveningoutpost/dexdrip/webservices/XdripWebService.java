@@ -11,6 +11,7 @@ import com.eveningoutpost.dexdrip.models.JoH;
 import com.eveningoutpost.dexdrip.models.UserError;
 import com.eveningoutpost.dexdrip.utilitymodels.Constants;
 import com.eveningoutpost.dexdrip.utilitymodels.Pref;
+import com.eveningoutpost.dexdrip.utilitymodels.StatusItem;
 import com.eveningoutpost.dexdrip.utils.TriState;
 import com.eveningoutpost.dexdrip.xdrip;
 import com.google.common.base.Charsets;
@@ -30,8 +31,14 @@ import java.net.SocketTimeoutException;
 import java.time.ZoneOffset;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Locale;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.net.ssl.SSLHandshakeException;
 import javax.net.ssl.SSLServerSocketFactory;
@@ -52,24 +59,46 @@ import javax.net.ssl.SSLSocket;
  * <p>
  * Designed for watches which support only a http interface
  * <p>
+ * Connections are served by a bounded pool of worker threads and HTTP/1.1 clients can keep
+ * their connection open between polls. A single wakelock is held while any request is being
+ * processed rather than one per connection.
+ * <p>
+ * Successful replies carry an entity tag so polling clients which send If-None-Match get a
+ * bodiless 304 while nothing has changed, and clients accepting gzip get compressed content.
+ * <p>
  * base service adapted from android reference documentation
  */
 
-// TODO megastatus for engineering mode
-
 public class XdripWebService implements Runnable {
 
     private static final String TAG = "xDripWebService";
     private static final int MAX_RUNNING_THREADS = 15;
+    private static final int MAX_QUEUED_CONNECTIONS = 30;
+    private static final int DEFAULT_BACKLOG = 20;
+    private static final int MAX_KEEP_ALIVE_REQUESTS = 100;
+    private static final int MAX_HEADER_LINES = 50;
+    private static final long FIRST_REQUEST_TIMEOUT = Constants.SECOND_IN_MS * 10;
+    private static final long KEEP_ALIVE_TIMEOUT = Constants.SECOND_IN_MS * 5;
+    private static final int WAKELOCK_MS = 20000;
     private static volatile XdripWebService instance = null;
     private static volatile XdripWebService ssl_instance = null;
 
+    private static final AtomicLong connections = new AtomicLong();
+    private static final AtomicLong requests = new AtomicLong();
+    private static final AtomicLong reusedRequests = new AtomicLong();
+    private static final AtomicLong rejected = new AtomicLong();
+    private static final AtomicLong notModifiedReplies = new AtomicLong();
+    private static final AtomicLong gzipReplies = new AtomicLong();
+
     private final int listenPort;
     private final boolean useSSL;
-    private final AtomicInteger thread_count = new AtomicInteger();
 
-    private boolean isRunning;
+    private volatile boolean isRunning;
     private ServerSocket mServerSocket;
+    private volatile ThreadPoolExecutor executor;
+
+    private int activeRequests;
+    private PowerManager.WakeLock wakeLock;
 
     private DateTimeFormatter rfc7231formatter;
 
@@ -100,6 +129,7 @@ public class XdripWebService implements Runnable {
 
     // cause a restart if enabled to refresh configuration settings
     public static void settingsChanged() {
+        ResponseCache.clear();
         easyStop();
         immortality();
     }
@@ -159,6 +189,10 @@ public class XdripWebService implements Runnable {
         } catch (IOException e) {
             Log.e(TAG, "Error closing the server socket.", e);
         }
+        if (executor != null) {
+            executor.shutdownNow(); // idle keep-alive connections see isRunning false
+            executor = null;
+        }
     }
 
     public int getPort() {
@@ -168,46 +202,51 @@ public class XdripWebService implements Runnable {
 
     @Override
     public void run() {
+        final ThreadPoolExecutor pool = new ThreadPoolExecutor(MAX_RUNNING_THREADS, MAX_RUNNING_THREADS,
+                30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(MAX_QUEUED_CONNECTIONS));
+        pool.allowCoreThreadTimeOut(true);
+        synchronized (this) {
+            executor = pool;
+        }
         try {
             final boolean open_service = Pref.getBooleanDefaultFalse("xdrip_webservice_open");
+            final int backlog = Math.max(1, Pref.getStringToInt("xdrip_webservice_backlog", DEFAULT_BACKLOG));
             if (useSSL) {
                 // SSL type
                 UserError.Log.d(TAG, "Attempting to initialize SSL");
                 final SSLServerSocketFactory ssocketFactory = SSLServerSocketHelper.makeSSLSocketFactory(
                         new BufferedInputStream(xdrip.getAppContext().getResources().openRawResource(R.raw.localhost_cert)),
                         "password".toCharArray());
-                mServerSocket = ssocketFactory.createServerSocket(listenPort, 1, open_service ? null : InetAddress.getByName("127.0.0.1"));
+                mServerSocket = ssocketFactory.createServerSocket(listenPort, backlog, open_service ? null : InetAddress.getByName("127.0.0.1"));
 
             } else {
                 // Non-SSL type
-                mServerSocket = new ServerSocket(listenPort, 1, open_service ? null : InetAddress.getByName("127.0.0.1"));
+                mServerSocket = new ServerSocket(listenPort, backlog, open_service ? null : InetAddress.getByName("127.0.0.1"));
             }
             while (isRunning) {
                 final Socket socket = mServerSocket.accept();
-                final int runningThreads = thread_count.get();
-                if (runningThreads < MAX_RUNNING_THREADS) {
-                    Log.d(TAG, "Running threads: " + runningThreads);
-                    new Thread(new Runnable() {
+                connections.incrementAndGet();
+                try {
+                    pool.execute(new Runnable() {
                         @Override
                         public void run() {
-                            thread_count.incrementAndGet();
                             try {
                                 handle(socket);
-                                socket.close();
                             } catch (SocketException e) {
                                 // ignore
                             } catch (IOException e) {
                                 Log.e(TAG, "Web server thread error.", e);
                             } finally {
-                                thread_count.decrementAndGet();
+                                closeQuietly(socket);
                             }
                         }
-                    }).start();
-                } else {
+                    });
+                } catch (RejectedExecutionException e) {
+                    rejected.incrementAndGet();
                     if (JoH.ratelimit("webservice-thread-overheat", 60)) {
-                        UserError.Log.wtf(TAG, "Web service jammed with too many connections > " + runningThreads);
+                        UserError.Log.e(TAG, "Web service jammed with too many connections > " + pool.getActiveCount() + " active " + pool.getQueue().size() + " queued");
                     }
-                    socket.close();
+                    closeQuietly(socket);
                 }
 
             }
@@ -215,6 +254,32 @@ public class XdripWebService implements Runnable {
             // The server was stopped; ignore.
         } catch (IOException e) {
             Log.e(TAG, "Web server error.", e);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static void closeQuietly(final Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    // one wakelock covers all requests in progress
+    private synchronized void startWork() {
+        if (activeRequests++ == 0 || wakeLock == null || !wakeLock.isHeld()) {
+            JoH.releaseWakeLock(wakeLock);
+            wakeLock = JoH.getWakeLock("webservice-handler", WAKELOCK_MS);
+        }
+    }
+
+    private synchronized void endWork() {
+        if (--activeRequests <= 0) {
+            activeRequests = 0;
+            JoH.releaseWakeLock(wakeLock);
+            wakeLock = null;
         }
     }
 
@@ -236,18 +301,30 @@ public class XdripWebService implements Runnable {
         }
     }
 
+    // details of a single parsed request
+    private static final class Request {
+        String route;
+        boolean headersOnly;
+        boolean keepAlive;
+        boolean http11;
+        boolean complete;
+        boolean acceptGzip;
+        String ifNoneMatch;
+        final TriState secretCheckResult = new TriState();
+    }
+
     /**
-     * Respond to a request from a client.
+     * Respond to requests from a client until it closes the connection, asks us to close it,
+     * or stays idle longer than the keep-alive timeout.
      *
      * @param socket The client socket.
      * @throws IOException
      */
     private void handle(Socket socket) throws IOException {
-        final PowerManager.WakeLock wl = JoH.getWakeLock("webservice-handler", 20000);
         BufferedReader reader = null;
         CRLFPrintStream output = null;
         try {
-            socket.setSoTimeout((int) (Constants.SECOND_IN_MS * 10));
+            socket.setSoTimeout((int) FIRST_REQUEST_TIMEOUT);
             try {
                 if (socket instanceof SSLSocket) {
                     // if ssl
@@ -269,95 +346,45 @@ public class XdripWebService implements Runnable {
                 return;
             }
 
-            // get the set password if any
-            final String secret = Pref.getStringDefaultBlank("xdrip_webservice_secret");
-            final String hashedSecret = hashPassword(secret);
-
-            final boolean authNeeded = hashedSecret != null && !socket.getInetAddress().isLoopbackAddress();
-            final TriState secretCheckResult = new TriState();
-
-
-            String route = null;
-
-            // Read HTTP headers and parse out the route.
             reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            String line;
-
-            boolean headersOnly = false;
-            int lineCount = 0;
-            while (!TextUtils.isEmpty(line = reader.readLine()) && lineCount < 50) {
-
-                if (line.startsWith("GET /") || line.startsWith("HEAD /")) {
-                    int start = line.indexOf('/') + 1;
-                    int end = line.indexOf(' ', start);
-                    if (start < line.length()) {
-                        route = line.substring(start, end);
-                        UserError.Log.d(TAG, "Received request for: " + route);
-                        //if (hashedSecret == null) break; // we can't optimize as we always need to look for api-secret even if server doesn't use it
-                    }
-
-                    headersOnly = line.startsWith("HEAD /");
-                } else if (line.toLowerCase().startsWith(("api-secret"))) {
-                    final String requestSecret[] = line.split(": ");
-                    if (requestSecret.length < 2) continue;
-                    secretCheckResult.set(hashedSecret != null && hashedSecret.equalsIgnoreCase(requestSecret[1]));
-                    break; // last and only header checked and will appear after GET request
-                }
-                lineCount++;
-            }
-
             // Output stream that we send the response to
             output = new CRLFPrintStream(socket.getOutputStream());
 
-            // Prepare the content to send.
-            if (null == route) {
-                writeServerError(output);
-                return;
-            }
-
-            final WebResponse response;
-
-            if (secretCheckResult.isFalse() || (authNeeded && !secretCheckResult.isTrue())) {
-                final String failureMessage = "Authentication failed - check api-secret\n"
-                        + "\n" + (authNeeded ? "secret is required " : "secret is not required")
-                        + "\n" + secretCheckResult.trinary("no secret supplied", "supplied secret matches", "supplied secret doesn't match")
-                        + "\n" + "Your address: " + socket.getInetAddress().toString()
-                        + "\n\n";
-                if (JoH.ratelimit("web-auth-failure", 10)) {
-                    UserError.Log.e(TAG, failureMessage);
+            int served = 0;
+            while (isRunning) {
+                if (served > 0) {
+                    socket.setSoTimeout((int) KEEP_ALIVE_TIMEOUT);
+                }
+                // get the set password if any
+                final String hashedSecret = hashPassword(Pref.getStringDefaultBlank("xdrip_webservice_secret"));
+                final Request request;
+                try {
+                    request = readRequest(reader, hashedSecret);
+                } catch (SocketTimeoutException e) {
+                    if (served == 0) throw e;
+                    break; // idle keep-alive connection
+                }
+                if (request == null) {
+                    if (served == 0) {
+                        writeServerError(output);
+                    }
+                    break; // client closed the connection
+                }
+                requests.incrementAndGet();
+                if (served > 0) {
+                    reusedRequests.incrementAndGet();
+                }
+                served++;
+                if (served >= MAX_KEEP_ALIVE_REQUESTS) {
+                    request.keepAlive = false;
+                }
+                startWork();
+                try {
+                    if (!respond(socket, request, hashedSecret, output)) break;
+                } finally {
+                    endWork();
                 }
-                response = new WebResponse(failureMessage, 403, "text/plain");
-                JoH.threadSleep(1000 + (300 * thread_count.get()));
-            } else {
-                response = ((RouteFinder) Singleton.get("RouteFinder")).handleRoute(route, socket.getInetAddress());
-            }
-
-            // if we didn't manage to generate a response
-            if (response == null) {
-                writeServerError(output);
-                return;
-            }
-
-            // if the response bytes are null
-            if (response.bytes == null) {
-                writeServerError(output);
-                return;
-            }
-            // Send out the content.
-            output.println("HTTP/1.0 " + response.resultCode + " " + response.getResultDesc());
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
-                output.println("Date: " + rfc7231formatter.format(ZonedDateTime.now(ZoneOffset.UTC)));
-            }
-            output.println("Access-Control-Allow-Origin: *");
-            output.println("Content-Type: " + response.mimeType);
-            output.println("Content-Length: " + response.bytes.length);
-            output.println();
-            if (!headersOnly) {
-                output.write(response.bytes);
             }
-            output.flush();
-
-            UserError.Log.d(TAG, "Sent response: " + response.bytes.length + " bytes, code: " + response.resultCode + " mimetype: " + response.mimeType);
 
         } catch (SocketTimeoutException e) {
             UserError.Log.d(TAG, "Got socket timeout: " + e);
@@ -371,10 +398,144 @@ public class XdripWebService implements Runnable {
             if (reader != null) {
                 reader.close();
             }
-            JoH.releaseWakeLock(wl);
         }
     }
 
+    // Read HTTP headers and parse out the route, null if the connection closed first
+    private static Request readRequest(final BufferedReader reader, final String hashedSecret) throws IOException {
+        String line = reader.readLine();
+        while (line != null && line.isEmpty()) {
+            line = reader.readLine(); // tolerate stray line breaks between requests
+        }
+        if (line == null) return null;
+
+        final Request request = new Request();
+        int lineCount = 0;
+        while (!TextUtils.isEmpty(line) && lineCount < MAX_HEADER_LINES) {
+
+            if (line.startsWith("GET /") || line.startsWith("HEAD /")) {
+                int start = line.indexOf('/') + 1;
+                int end = line.indexOf(' ', start);
+                if (end < 0) end = line.length();
+                if (start < line.length()) {
+                    request.route = line.substring(start, end);
+                    UserError.Log.d(TAG, "Received request for: " + request.route);
+                }
+
+                request.headersOnly = line.startsWith("HEAD /");
+                request.http11 = line.endsWith("HTTP/1.1");
+                request.keepAlive = request.http11;
+            } else {
+                final String lowerLine = line.toLowerCase();
+                if (lowerLine.startsWith("api-secret")) {
+                    final String requestSecret[] = line.split(": ");
+                    if (requestSecret.length > 1) {
+                        request.secretCheckResult.set(hashedSecret != null && hashedSecret.equalsIgnoreCase(requestSecret[1]));
+                    }
+                } else if (lowerLine.startsWith("accept-encoding:")) {
+                    request.acceptGzip = lowerLine.contains("gzip");
+                } else if (lowerLine.startsWith("if-none-match:")) {
+                    request.ifNoneMatch = line.substring("if-none-match:".length()).trim();
+                } else if (lowerLine.startsWith("connection:")) {
+                    if (lowerLine.contains("close")) {
+                        request.keepAlive = false;
+                    } else if (lowerLine.contains("keep-alive")) {
+                        request.keepAlive = true;
+                    }
+                }
+            }
+            lineCount++;
+            if (lineCount < MAX_HEADER_LINES) {
+                line = reader.readLine();
+            }
+        }
+        // if we gave up on the headers we cannot find the start of the next request
+        request.complete = TextUtils.isEmpty(line);
+        return request;
+    }
+
+    // send the reply, returns true if the connection can be used for another request
+    private boolean respond(final Socket socket, final Request request, final String hashedSecret, final CRLFPrintStream output) {
+        final String route = request.route;
+        // Prepare the content to send.
+        if (null == route) {
+            writeServerError(output);
+            return false;
+        }
+
+        final boolean authNeeded = hashedSecret != null && !socket.getInetAddress().isLoopbackAddress();
+        final TriState secretCheckResult = request.secretCheckResult;
+        final WebResponse response;
+
+        boolean keepAlive = request.keepAlive && request.complete;
+        if (secretCheckResult.isFalse() || (authNeeded && !secretCheckResult.isTrue())) {
+            final String failureMessage = "Authentication failed - check api-secret\n"
+                    + "\n" + (authNeeded ? "secret is required " : "secret is not required")
+                    + "\n" + secretCheckResult.trinary("no secret supplied", "supplied secret matches", "supplied secret doesn't match")
+                    + "\n" + "Your address: " + socket.getInetAddress().toString()
+                    + "\n\n";
+            if (JoH.ratelimit("web-auth-failure", 10)) {
+                UserError.Log.e(TAG, failureMessage);
+            }
+            response = new WebResponse(failureMessage, 403, "text/plain");
+            final ThreadPoolExecutor pool = executor;
+            JoH.threadSleep(1000 + (300 * (pool != null ? pool.getActiveCount() : 1)));
+            keepAlive = false;
+        } else {
+            response = ResponseCache.get(route, socket.getInetAddress(), (RouteFinder) Singleton.get("RouteFinder"));
+        }
+
+        // if we didn't manage to generate a response
+        if (response == null) {
+            writeServerError(output);
+            return false;
+        }
+
+        // if the response bytes are null
+        if (response.bytes == null) {
+            writeServerError(output);
+            return false;
+        }
+        final String etag = response.resultCode == 200 ? response.getETag() : null;
+        final boolean notModified = etag != null && request.ifNoneMatch != null
+                && (request.ifNoneMatch.contains(etag) || request.ifNoneMatch.trim().equals("*"));
+        final byte[] gzipped = (request.acceptGzip && !notModified) ? response.getGzipBytes() : null;
+        final byte[] body = notModified ? new byte[0] : (gzipped != null ? gzipped : response.bytes);
+        if (notModified) {
+            notModifiedReplies.incrementAndGet();
+        } else if (gzipped != null) {
+            gzipReplies.incrementAndGet();
+        }
+
+        // Send out the content.
+        output.println((request.http11 ? "HTTP/1.1 " : "HTTP/1.0 ") + (notModified ? "304 Not Modified" : response.resultCode + " " + response.getResultDesc()));
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            output.println("Date: " + rfc7231formatter.format(ZonedDateTime.now(ZoneOffset.UTC)));
+        }
+        output.println("Access-Control-Allow-Origin: *");
+        if (etag != null) {
+            output.println("ETag: " + etag);
+            output.println("Cache-Control: no-cache"); // always revalidate
+            output.println("Vary: Accept-Encoding");
+        }
+        if (!notModified) {
+            output.println("Content-Type: " + response.mimeType);
+            if (gzipped != null) {
+                output.println("Content-Encoding: gzip");
+            }
+            output.println("Content-Length: " + body.length);
+        }
+        output.println("Connection: " + (keepAlive ? "keep-alive" : "close"));
+        output.println();
+        if (!request.headersOnly) {
+            output.write(body, 0, body.length);
+        }
+        output.flush();
+
+        UserError.Log.d(TAG, "Sent response: " + body.length + " bytes, code: " + (notModified ? 304 : response.resultCode) + " mimetype: " + response.mimeType);
+        return keepAlive && !output.checkError();
+    }
+
 
     /**
      * Writes a server error response (HTTP/1.0 500) to the given output stream.
@@ -387,6 +548,23 @@ public class XdripWebService implements Runnable {
         UserError.Log.e(TAG, "Internal server error reply");
     }
 
+    public static List<StatusItem> megaStatus() {
+        final List<StatusItem> l = new ArrayList<>();
+        final XdripWebService service = instance;
+        if (service == null) return l;
+        final ThreadPoolExecutor pool = service.executor;
+        l.add(new StatusItem("Web service threads", pool != null ? pool.getActiveCount() + " active, " + pool.getPoolSize() + " pooled, " + pool.getQueue().size() + " queued" : "Not running"));
+        l.add(new StatusItem("Web service connections", connections.get() + " with " + requests.get() + " requests (" + reusedRequests.get() + " kept alive)"));
+        if (rejected.get() > 0) {
+            l.add(new StatusItem("Web service rejected", Long.toString(rejected.get()), StatusItem.Highlight.NOTICE));
+        }
+        l.add(new StatusItem("Web replies", notModifiedReplies.get() + " not modified, " + gzipReplies.get() + " compressed"));
+        final long cacheTotal = ResponseCache.getHits() + ResponseCache.getMisses();
+        l.add(new StatusItem("Web response cache", ResponseCache.size() + " entries, " + ResponseCache.getHits() + " / " + ResponseCache.getMisses() + " hits / misses"
+                + ((cacheTotal > 0) ? " (" + (ResponseCache.getHits() * 100 / cacheTotal) + "%)" : "")));
+        return l;
+    }
+
     public static String hashPassword(final String secret) {
         return secret.isEmpty() ? null : Hashing.sha1().hashBytes(secret.getBytes(Charsets.UTF_8)).toString();
     }
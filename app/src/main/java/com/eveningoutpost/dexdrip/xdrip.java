@@ -32,6 +32,7 @@ import com.eveningoutpost.dexdrip.watch.lefun.LeFunEntry;
 import com.eveningoutpost.dexdrip.watch.miband.MiBandEntry;
 import com.eveningoutpost.dexdrip.watch.thinjam.BlueJayEntry;
 import com.eveningoutpost.dexdrip.services.broadcastservice.BroadcastEntry;
+import com.eveningoutpost.dexdrip.stats.StatsRollup;
 import com.eveningoutpost.dexdrip.webservices.XdripWebService;
 import com.evernote.android.job.JobManager;
 
@@ -117,6 +118,7 @@ public class xdrip extends Application {
         Reminder.firstInit(xdrip.getAppContext());
         PluggableCalibration.invalidateCache();
         Poller.init();
+        StatsRollup.watch(); // stored daily stats must hear about every reading change
     }
 
 
@@ -0,0 +1,69 @@
+package com.eveningoutpost.dexdrip;
+
+import com.eveningoutpost.dexdrip.models.BgReading;
+import com.eveningoutpost.dexdrip.models.BgReadingCache;
+import com.eveningoutpost.dexdrip.models.JoH;
+import com.eveningoutpost.dexdrip.models.Sensor;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static com.eveningoutpost.dexdrip.utilitymodels.Constants.HOUR_IN_MS;
+import static com.eveningoutpost.dexdrip.utilitymodels.Constants.MINUTE_IN_MS;
+import static com.google.common.truth.Truth.assertWithMessage;
+
+public class BestGlucoseTest extends RobolectricTestWithConfig {
+
+    private Sensor sensor;
+
+    @Before
+    public void setUp() {
+        super.setUp();
+        BgReading.deleteALL();
+        Sensor.shutdownAllSensors();
+        sensor = Sensor.create(JoH.tsl() - HOUR_IN_MS);
+    }
+
+    @Test
+    public void snapshotTest() {
+        final long now = JoH.tsl();
+        addReading(now - 5 * MINUTE_IN_MS, 100);
+        addReading(now - 10 * MINUTE_IN_MS, 96);
+
+        final BestGlucose.DisplayGlucose first = BestGlucose.getDisplayGlucose();
+        assertWithMessage("first result").that(first).isNotNull();
+        assertWithMessage("first value").that(first.mgdl).isEqualTo(100d);
+        assertWithMessage("first current").that(BestGlucose.isCurrent(first)).isTrue();
+
+        final BestGlucose.DisplayGlucose second = BestGlucose.getDisplayGlucose();
+        assertWithMessage("same snapshot").that(second.version).isEqualTo(first.version);
+        assertWithMessage("own copy").that(second).isNotSameInstanceAs(first);
+
+        second.unitized = "changed by caller";
+        assertWithMessage("copy isolated").that(BestGlucose.getDisplayGlucose().unitized).isEqualTo(first.unitized);
+
+        addReading(now, 120);
+        assertWithMessage("stale after new reading").that(BestGlucose.isCurrent(first)).isFalse();
+        final BestGlucose.DisplayGlucose third = BestGlucose.getDisplayGlucose();
+        assertWithMessage("new value").that(third.mgdl).isEqualTo(120d);
+        assertWithMessage("new version").that(third.version).isGreaterThan(first.version);
+
+        BestGlucose.invalidate();
+        assertWithMessage("stale after calibration change").that(BestGlucose.isCurrent(third)).isFalse();
+    }
+
+    private void addReading(final long timestamp, final double value) {
+        final BgReading bgr = new BgReading();
+        bgr.sensor = sensor;
+        bgr.sensor_uuid = sensor.uuid;
+        bgr.timestamp = timestamp;
+        bgr.calculated_value = value;
+        bgr.filtered_calculated_value = value;
+        bgr.raw_data = value;
+        bgr.uuid = UUID.randomUUID().toString();
+        bgr.save();
+        BgReadingCache.invalidate(); // as the insert paths would via put()
+    }
+}
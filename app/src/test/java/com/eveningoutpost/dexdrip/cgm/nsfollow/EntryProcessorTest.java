@@ -0,0 +1,76 @@
+package com.eveningoutpost.dexdrip.cgm.nsfollow;
+
+import com.activeandroid.query.Select;
+import com.eveningoutpost.dexdrip.RobolectricTestWithConfig;
+import com.eveningoutpost.dexdrip.models.BgReading;
+import com.eveningoutpost.dexdrip.models.JoH;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import static com.eveningoutpost.dexdrip.utilitymodels.Constants.DAY_IN_MS;
+import static com.eveningoutpost.dexdrip.utilitymodels.Constants.MINUTE_IN_MS;
+import static com.google.common.truth.Truth.assertWithMessage;
+
+public class EntryProcessorTest extends RobolectricTestWithConfig {
+
+    @Before
+    public void setUp() {
+        super.setUp();
+        BgReading.deleteALL();
+        EntryProcessor.resetHighWaterMark();
+    }
+
+    private static String entries(final long newest, final int count, final int step) {
+        final StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < count; i++) {
+            if (i > 0) sb.append(',');
+            sb.append("{\"_id\":\"id").append(i).append("\",\"sgv\":").append(100 + i)
+                    .append(",\"date\":").append(newest - (long) i * step * MINUTE_IN_MS)
+                    .append(",\"direction\":\"Flat\",\"type\":\"sgv\",\"noise\":1}");
+        }
+        return sb.append(']').toString();
+    }
+
+    private static int count() {
+        return new Select().from(BgReading.class).count();
+    }
+
+    @Test
+    public void processEntriesTest() throws IOException {
+        final long now = JoH.tsl();
+        final long since = EntryProcessor.since();
+        assertWithMessage("starts a day back").that(since).isAtLeast(now - DAY_IN_MS);
+        assertWithMessage("starts a day back upper").that(since).isAtMost(JoH.tsl() - DAY_IN_MS + MINUTE_IN_MS);
+
+        final String json = entries(now - MINUTE_IN_MS, 12, 5);
+        assertWithMessage("all new").that(EntryProcessor.processEntries(new StringReader(json), NightscoutFollow.getGson(), since, true)).isEqualTo(12);
+        assertWithMessage("stored").that(count()).isEqualTo(12);
+
+        assertWithMessage("repeat ignored").that(EntryProcessor.processEntries(new StringReader(json), NightscoutFollow.getGson(), since, true)).isEqualTo(0);
+        assertWithMessage("still stored").that(count()).isEqualTo(12);
+
+        final String close = "[{\"sgv\":150,\"date\":" + (now - MINUTE_IN_MS + 3000) + "}]";
+        assertWithMessage("close timestamp ignored").that(EntryProcessor.processEntries(new StringReader(close), NightscoutFollow.getGson(), since, true)).isEqualTo(0);
+
+        // never ahead of the newest reading we actually hold
+        assertWithMessage("high water mark").that(EntryProcessor.since()).isAtMost(now - MINUTE_IN_MS);
+
+        final String newer = entries(now + 4 * MINUTE_IN_MS, 1, 5);
+        assertWithMessage("newer stored").that(EntryProcessor.processEntries(new StringReader(newer), NightscoutFollow.getGson(), EntryProcessor.since(), true)).isEqualTo(1);
+        assertWithMessage("total").that(count()).isEqualTo(13);
+        assertWithMessage("latest value").that(BgReading.last().calculated_value).isEqualTo(100d);
+    }
+
+    @Test
+    public void notLiveTest() throws IOException {
+        final long now = JoH.tsl();
+        final String json = entries(now, 3, 5);
+        assertWithMessage("nothing stored").that(EntryProcessor.processEntries(new StringReader(json), NightscoutFollow.getGson(), EntryProcessor.since(), false)).isEqualTo(0);
+        assertWithMessage("empty").that(count()).isEqualTo(0);
+        assertWithMessage("empty array").that(EntryProcessor.processEntries(new StringReader("[]"), NightscoutFollow.getGson(), EntryProcessor.since(), true)).isEqualTo(0);
+    }
+}
@@ -0,0 +1,120 @@
+package com.eveningoutpost.dexdrip.models;
+
+import com.eveningoutpost.dexdrip.RobolectricTestWithConfig;
+import com.eveningoutpost.dexdrip.xdrip;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import static com.google.common.truth.Truth.assertWithMessage;
+
+public class AlertTypeIndexTest extends RobolectricTestWithConfig {
+
+    @Before
+    public void setUp() {
+        super.setUp();
+        AlertType.remove_all();
+    }
+
+    private static AlertType alert(final boolean above, final double threshold, final boolean allDay, final int start, final int end, final boolean active) {
+        final AlertType at = new AlertType();
+        at.uuid = UUID.randomUUID().toString();
+        at.name = (above ? "high " : "low ") + threshold;
+        at.above = above;
+        at.threshold = threshold;
+        at.all_day = allDay;
+        at.start_time_minutes = start;
+        at.end_time_minutes = end;
+        at.active = active;
+        return at;
+    }
+
+    // what the database queries used to find
+    private static AlertType bruteForce(final List<AlertType> alerts, final boolean above, final double bg, final int minute) {
+        AlertType best = null;
+        for (final AlertType at : alerts) {
+            if (at.above != above || !at.active) continue;
+            if (!AlertType.in_time_frame(at.all_day, at.start_time_minutes, at.end_time_minutes, minute)) continue;
+            if (above ? at.threshold > bg : at.threshold < bg) continue;
+            if (best == null || (above ? at.threshold > best.threshold : at.threshold < best.threshold)) {
+                best = at;
+            }
+        }
+        return best;
+    }
+
+    @Test
+    public void matchesBruteForceTest() {
+        final Random random = new Random(19);
+        final List<AlertType> alerts = new ArrayList<>();
+        for (int i = 0; i < 30; i++) {
+            final boolean allDay = random.nextInt(3) == 0;
+            alerts.add(alert(random.nextBoolean(), 40 + random.nextInt(40) * 5, allDay,
+                    random.nextInt(AlertTypeIndex.MINUTES_PER_DAY), random.nextInt(AlertTypeIndex.MINUTES_PER_DAY), random.nextInt(5) != 0));
+        }
+        final AlertTypeIndex index = new AlertTypeIndex(alerts, -1);
+
+        for (int minute = 0; minute < AlertTypeIndex.MINUTES_PER_DAY; minute += 7) {
+            for (double bg = 20; bg < 300; bg += 2.5) {
+                final AlertType low = bruteForce(alerts, false, bg, minute);
+                final AlertType high = bruteForce(alerts, true, bg, minute);
+                final AlertType indexLow = index.low(bg, minute);
+                final AlertType indexHigh = index.high(bg, minute);
+                assertWithMessage("low " + bg + " at " + minute).that(indexLow == null ? null : indexLow.threshold).isEqualTo(low == null ? null : low.threshold);
+                assertWithMessage("high " + bg + " at " + minute).that(indexHigh == null ? null : indexHigh.threshold).isEqualTo(high == null ? null : high.threshold);
+            }
+        }
+    }
+
+    @Test
+    public void timeOfDayTest() {
+        final List<AlertType> alerts = new ArrayList<>();
+        alerts.add(alert(false, 70, false, 22 * 60, 6 * 60, true)); // overnight only
+        alerts.add(alert(false, 60, true, 0, 0, true));
+        final AlertTypeIndex index = new AlertTypeIndex(alerts, -1);
+        assertWithMessage("night").that(index.low(65, 23 * 60).threshold).isEqualTo(70d);
+        assertWithMessage("early morning").that(index.low(65, 5 * 60).threshold).isEqualTo(70d);
+        assertWithMessage("day").that(index.low(65, 12 * 60)).isNull();
+        assertWithMessage("day low").that(index.low(55, 12 * 60).threshold).isEqualTo(60d);
+    }
+
+    @Test
+    public void tiedThresholdsTest() {
+        final List<AlertType> alerts = new ArrayList<>();
+        final AlertType firstLow = alert(false, 70, true, 0, 0, true);
+        final AlertType firstHigh = alert(true, 180, true, 0, 0, true);
+        alerts.add(firstLow);
+        alerts.add(firstHigh);
+        alerts.add(alert(false, 70, true, 0, 0, true));
+        alerts.add(alert(true, 180, true, 0, 0, true));
+        alerts.add(alert(true, 170, true, 0, 0, true));
+        final AlertTypeIndex index = new AlertTypeIndex(alerts, -1);
+        assertWithMessage("first low").that(index.low(60, 0)).isSameInstanceAs(firstLow);
+        assertWithMessage("first high").that(index.high(200, 0)).isSameInstanceAs(firstHigh);
+    }
+
+    @Test
+    public void rebuiltOnChangeTest() {
+        AlertType.add_alert(null, "high", true, 180, true, 10, null, 0, 0, true, true, 20, true, true);
+        AlertType.add_alert(null, "low", false, 70, true, 10, null, 0, 0, true, true, 20, true, true);
+        assertWithMessage("high found").that(AlertType.get_highest_active_alert(xdrip.getAppContext(), 200).name).isEqualTo("high");
+        assertWithMessage("low found").that(AlertType.get_highest_active_alert(xdrip.getAppContext(), 60).name).isEqualTo("low");
+        assertWithMessage("in range").that(AlertType.get_highest_active_alert(xdrip.getAppContext(), 120)).isNull();
+
+        final AlertTypeIndex before = AlertType.getIndex();
+        assertWithMessage("index reused").that(AlertType.getIndex()).isSameInstanceAs(before);
+
+        final String uuid = AlertType.getAll(true).get(0).uuid;
+        AlertType.update_alert(uuid, "higher", true, 250, true, 10, null, 0, 0, true, true, 20, true, true);
+        assertWithMessage("no longer high").that(AlertType.get_highest_active_alert(xdrip.getAppContext(), 200)).isNull();
+        assertWithMessage("updated").that(AlertType.get_highest_active_alert(xdrip.getAppContext(), 260).name).isEqualTo("higher");
+
+        AlertType.remove_alert(uuid);
+        assertWithMessage("removed").that(AlertType.get_highest_active_alert(xdrip.getAppContext(), 260)).isNull();
+    }
+}
@@ -0,0 +1,95 @@
+package com.eveningoutpost.dexdrip.models;
+
+import com.activeandroid.query.Select;
+import com.eveningoutpost.dexdrip.RobolectricTestWithConfig;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static com.eveningoutpost.dexdrip.utilitymodels.Constants.DAY_IN_MS;
+import static com.eveningoutpost.dexdrip.utilitymodels.Constants.MINUTE_IN_MS;
+import static com.google.common.truth.Truth.assertWithMessage;
+
+public class BgReadingBulkIngestTest extends RobolectricTestWithConfig {
+
+    @Before
+    public void setUp() {
+        super.setUp();
+        BgReading.deleteALL();
+    }
+
+    private static BgReading reading(final long timestamp, final double value) {
+        final BgReading bgr = new BgReading();
+        bgr.uuid = UUID.randomUUID().toString();
+        bgr.timestamp = timestamp;
+        bgr.calculated_value = value;
+        bgr.filtered_calculated_value = value;
+        bgr.raw_data = value;
+        return bgr;
+    }
+
+    private static int count() {
+        return new Select().from(BgReading.class).count();
+    }
+
+    @Test
+    public void multiMessageTest() {
+        final long now = JoH.tsl();
+        final List<BgReading> readings = new ArrayList<>();
+        for (int i = 0; i < 288; i++) {
+            readings.add(reading(now - i * 5 * MINUTE_IN_MS, 100 + (i % 50)));
+        }
+        final byte[] payload = BgReading.toMultiMessage(readings);
+
+        BgReading.processFromMultiMessage(payload);
+        assertWithMessage("all stored").that(count()).isEqualTo(288);
+
+        BgReading.processFromMultiMessage(payload);
+        assertWithMessage("repeat payload ignored").that(count()).isEqualTo(288);
+
+        final List<BgReading> clash = new ArrayList<>();
+        clash.add(reading(now - 2 * MINUTE_IN_MS, 150)); // different uuid close to an existing one
+        clash.add(reading(now + 5 * MINUTE_IN_MS, 151));
+        BgReading.processFromMultiMessage(BgReading.toMultiMessage(clash));
+        assertWithMessage("only clear reading added").that(count()).isEqualTo(289);
+        assertWithMessage("lookup by uuid").that(BgReading.byUUID(clash.get(1).uuid)).isNotNull();
+        assertWithMessage("clash skipped").that(BgReading.byUUID(clash.get(0).uuid)).isNull();
+    }
+
+    @Test
+    public void jsonBundleTest() {
+        final long now = JoH.tsl();
+        final String[] bundle = new String[3];
+        for (int i = 0; i < bundle.length; i++) {
+            bundle[i] = reading(now - i * 5 * MINUTE_IN_MS, 120 + i).toJSON(false);
+        }
+        BgReading.processFromJsonBundle(bundle);
+        assertWithMessage("bundle stored").that(count()).isEqualTo(3);
+
+        BgReading.processFromJsonBundle(bundle);
+        assertWithMessage("repeat bundle ignored").that(count()).isEqualTo(3);
+    }
+
+    @Test
+    public void uuidStoredElsewhereTest() {
+        final long now = JoH.tsl();
+        final BgReading stored = reading(now - 2 * DAY_IN_MS, 100);
+        stored.save();
+        BgReadingCache.invalidate();
+
+        final BgReading moved = reading(now, 140);
+        moved.uuid = stored.uuid;
+        final List<BgReading> readings = new ArrayList<>();
+        readings.add(moved);
+        BgReading.processFromMultiMessage(BgReading.toMultiMessage(readings));
+        assertWithMessage("message not stored twice").that(count()).isEqualTo(1);
+
+        BgReading.processFromJsonBundle(new String[]{moved.toJSON(false)});
+        assertWithMessage("json not stored twice").that(count()).isEqualTo(1);
+        assertWithMessage("nothing cached which is not stored").that(BgReading.last(true).timestamp).isEqualTo(stored.timestamp);
+    }
+}
@@ -0,0 +1,60 @@
+package com.eveningoutpost.dexdrip.models;
+
+import com.eveningoutpost.dexdrip.RobolectricTestWithConfig;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.UUID;
+
+import static com.eveningoutpost.dexdrip.utilitymodels.Constants.HOUR_IN_MS;
+import static com.eveningoutpost.dexdrip.utilitymodels.Constants.MINUTE_IN_MS;
+import static com.google.common.truth.Truth.assertWithMessage;
+
+public class BgReadingCacheTest extends RobolectricTestWithConfig {
+
+    @Before
+    public void setUp() {
+        super.setUp();
+        BgReading.deleteALL();
+        BgReadingCache.invalidate();
+    }
+
+    private static BgReading addReading(final long timestamp, final double value) {
+        final BgReading bgr = new BgReading();
+        bgr.timestamp = timestamp;
+        bgr.calculated_value = value;
+        bgr.raw_data = value;
+        bgr.uuid = UUID.randomUUID().toString();
+        bgr.save();
+        BgReadingCache.put(bgr);
+        return bgr;
+    }
+
+    @Test
+    public void callersGetCopiesTest() {
+        final long now = JoH.tsl();
+        final BgReading saved = addReading(now - 10 * MINUTE_IN_MS, 100);
+        addReading(now - 5 * MINUTE_IN_MS, 110);
+
+        final BgReading last = BgReading.last(true);
+        assertWithMessage("last value").that(last.calculated_value).isEqualTo(110d);
+        last.calculated_value = 999; // as the graph smoother or plugin swap would
+        assertWithMessage("last isolated").that(BgReading.last(true).calculated_value).isEqualTo(110d);
+
+        final List<BgReading> graph = BgReading.latestForGraph(100, now - HOUR_IN_MS, now);
+        assertWithMessage("graph size").that(graph.size()).isEqualTo(2);
+        for (final BgReading bgr : graph) {
+            bgr.calculated_value = 1;
+        }
+        assertWithMessage("graph isolated").that(BgReading.latestForGraph(100, now - HOUR_IN_MS, now).get(1).calculated_value).isEqualTo(100d);
+
+        saved.calculated_value = 50; // the inserter keeping its reference must not change the cache either
+        assertWithMessage("put isolated").that(BgReading.latest(2, true).get(1).calculated_value).isEqualTo(100d);
+
+        final BgReading copy = BgReading.latest(2, true).get(1);
+        assertWithMessage("copy keeps id").that(copy.getId()).isEqualTo(saved.getId());
+        assertWithMessage("copy is not the original").that(copy).isNotSameInstanceAs(saved);
+    }
+}
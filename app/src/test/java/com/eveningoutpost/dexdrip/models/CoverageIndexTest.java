@@ -0,0 +1,94 @@
+package com.eveningoutpost.dexdrip.models;
+
+import android.util.Pair;
+
+import com.eveningoutpost.dexdrip.RobolectricTestWithConfig;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static com.eveningoutpost.dexdrip.utilitymodels.Constants.MINUTE_IN_MS;
+import static com.google.common.truth.Truth.assertWithMessage;
+
+public class CoverageIndexTest extends RobolectricTestWithConfig {
+
+    private static final long MARGIN = 3 * MINUTE_IN_MS + 30000;
+
+    @Test
+    public void gapsBetweenReadingsTest() {
+        final CoverageIndex index = new CoverageIndex(MARGIN);
+        final long start = 1700000000000L;
+        for (int i = 0; i < 24; i++) {
+            if (i == 10 || i == 11) continue; // two missing readings
+            index.add(start + i * 5 * MINUTE_IN_MS);
+        }
+        final List<Pair<Long, Long>> gaps = index.missing(start, start + 23 * 5 * MINUTE_IN_MS);
+        assertWithMessage("one gap").that(gaps.size()).isEqualTo(1);
+        assertWithMessage("gap start").that(gaps.get(0).first).isEqualTo(start + 9 * 5 * MINUTE_IN_MS + MARGIN);
+        assertWithMessage("gap end").that(gaps.get(0).second).isEqualTo(start + 12 * 5 * MINUTE_IN_MS - MARGIN);
+
+        assertWithMessage("trailing gap").that(index.missing(start, start + 3 * 60 * MINUTE_IN_MS).size()).isEqualTo(2);
+        assertWithMessage("inside coverage").that(index.missing(start + MINUTE_IN_MS, start + 20 * MINUTE_IN_MS)).isEmpty();
+
+        index.add(start + 10 * 5 * MINUTE_IN_MS);
+        index.add(start + 11 * 5 * MINUTE_IN_MS);
+        assertWithMessage("filled").that(index.missing(start, start + 23 * 5 * MINUTE_IN_MS)).isEmpty();
+        assertWithMessage("newest").that(index.newest()).isEqualTo(start + 23 * 5 * MINUTE_IN_MS);
+    }
+
+    @Test
+    public void matchesBruteForceTest() {
+        final Random random = new Random(42);
+        final CoverageIndex index = new CoverageIndex(MARGIN);
+        final TreeMap<Long, Integer> samples = new TreeMap<>();
+        final long start = 1700000000000L;
+        final long span = 24 * 60 * MINUTE_IN_MS;
+        for (int step = 0; step < 5000; step++) {
+            final long timestamp = start + (random.nextInt((int) (span / 30000)) * 30000L);
+            if (random.nextInt(3) == 0 && !samples.isEmpty()) {
+                final Long existing = samples.ceilingKey(timestamp) != null ? samples.ceilingKey(timestamp) : samples.firstKey();
+                index.remove(existing);
+                final int count = samples.get(existing);
+                if (count == 1) samples.remove(existing);
+                else samples.put(existing, count - 1);
+            } else {
+                index.add(timestamp);
+                samples.put(timestamp, samples.containsKey(timestamp) ? samples.get(timestamp) + 1 : 1);
+            }
+            if (step % 50 == 0) {
+                final long from = start + random.nextInt((int) (span / 1000)) * 1000L;
+                final long to = from + random.nextInt(6 * 60) * MINUTE_IN_MS;
+                final List<Pair<Long, Long>> expected = bruteForce(samples, from, to);
+                final List<Pair<Long, Long>> actual = index.missing(from, to);
+                assertWithMessage("gap count " + step).that(actual.size()).isEqualTo(expected.size());
+                for (int i = 0; i < expected.size(); i++) {
+                    assertWithMessage("gap " + i + " at " + step).that(actual.get(i)).isEqualTo(expected.get(i));
+                }
+            }
+        }
+    }
+
+    private static List<Pair<Long, Long>> bruteForce(final TreeMap<Long, Integer> samples, final long from, final long to) {
+        final List<Pair<Long, Long>> gaps = new ArrayList<>();
+        if (to <= from) return gaps;
+        long cursor = from;
+        for (final long sample : samples.keySet()) {
+            final long rangeStart = sample - MARGIN;
+            final long rangeEnd = sample + MARGIN;
+            if (rangeEnd < cursor) continue;
+            if (rangeStart > to) break;
+            if (rangeStart > cursor) {
+                gaps.add(new Pair<>(cursor, rangeStart));
+            }
+            cursor = Math.max(cursor, rangeEnd);
+        }
+        if (cursor < to) {
+            gaps.add(new Pair<>(cursor, to));
+        }
+        return gaps;
+    }
+}
@@ -3,6 +3,7 @@ package com.eveningoutpost.dexdrip.models;
 import com.eveningoutpost.dexdrip.RobolectricTestWithConfig;
 import com.google.common.truth.Truth;
 
+import org.apache.commons.math3.stat.regression.OLSMultipleLinearRegression;
 import org.junit.Test;
 
 import java.util.ArrayList;
@@ -190,4 +191,133 @@ public class ForecastTest extends RobolectricTestWithConfig {
                 .isWithin(0.01)
                 .of(0.5);
     }
+
+    @Test
+    public void matchesMatrixRegression() {
+        final double[] x = new double[30];
+        final double[] y = new double[30];
+        for (int i = 0; i < x.length; i++) {
+            x[i] = 1 + i * 0.7;
+            y[i] = 120 + 15 * Math.sin(i / 4d) + 3 * x[i] + ((i % 5) - 2);
+        }
+        final Forecast.OLSTrendLine[] lines = {new Forecast.PolyTrendLine(1), new Forecast.PolyTrendLine(2),
+                new Forecast.PolyTrendLine(3), new Forecast.LogTrendLine(), new Forecast.ExpTrendLine(), new Forecast.PowerTrendLine()};
+        final int[] degrees = {1, 2, 3, 1, 1, 1};
+        final boolean[] logX = {false, false, false, true, false, true};
+        final boolean[] logY = {false, false, false, false, true, true};
+
+        for (int m = 0; m < lines.length; m++) {
+            lines[m].setValues(y, x);
+
+            // reference fit as the matrix implementation did it
+            final double[][] xData = new double[x.length][];
+            final double[] yData = new double[y.length];
+            for (int i = 0; i < x.length; i++) {
+                xData[i] = powers(logX[m] ? Math.log(x[i]) : x[i], degrees[m]);
+                yData[i] = logY[m] ? Math.log(y[i]) : y[i];
+            }
+            final OLSMultipleLinearRegression ols = new OLSMultipleLinearRegression();
+            ols.setNoIntercept(true);
+            ols.newSampleData(yData, xData);
+            final double[] coef = ols.estimateRegressionParameters();
+
+            final String name = lines[m].getClass().getSimpleName() + " " + degrees[m];
+            Truth.assertWithMessage(name + " error variance").that(lines[m].errorVarience())
+                    .isWithin(1e-9 * Math.max(1, ols.estimateErrorVariance())).of(ols.estimateErrorVariance());
+            for (final double at : new double[]{1.5, 10, 25, 40}) {
+                double expected = 0;
+                final double[] p = powers(logX[m] ? Math.log(at) : at, degrees[m]);
+                for (int k = 0; k < coef.length; k++) {
+                    expected += coef[k] * p[k];
+                }
+                if (logY[m]) expected = Math.exp(expected);
+                Truth.assertWithMessage(name + " predict " + at).that(lines[m].predict(at)).isWithin(1e-6 * Math.abs(expected)).of(expected);
+            }
+        }
+    }
+
+    @Test
+    public void streamingWindowMatchesFreshFit() {
+        final long start = 1700000000000L;
+        final long window = 20 * 60 * 1000;
+        final Forecast.PolyTrendLine streaming = new Forecast.PolyTrendLine(2);
+        final List<Double> xs = new ArrayList<>();
+        final List<Double> ys = new ArrayList<>();
+        for (int i = 0; i < 600; i++) {
+            final double x = start + i * 60000d;
+            final double y = 100 + 40 * Math.sin(i / 30d) + ((i * 7) % 5);
+            streaming.add(x, y);
+            xs.add(x);
+            ys.add(y);
+            streaming.evictBefore(x - window);
+            while (xs.get(0) < x - window) {
+                xs.remove(0);
+                ys.remove(0);
+            }
+            if (i > 10 && i % 37 == 0) {
+                streaming.fit();
+                final Forecast.PolyTrendLine fresh = new Forecast.PolyTrendLine(2);
+                fresh.setValues(Forecast.OLSTrendLine.toPrimitiveFromList(ys), Forecast.OLSTrendLine.toPrimitiveFromList(xs));
+                Truth.assertWithMessage("size " + i).that(streaming.size()).isEqualTo(xs.size());
+                Truth.assertWithMessage("error variance " + i).that(streaming.errorVarience())
+                        .isWithin(1e-6 * Math.max(1, fresh.errorVarience())).of(fresh.errorVarience());
+                Truth.assertWithMessage("predict " + i).that(streaming.predict(x + 300000)).isWithin(1e-6).of(fresh.predict(x + 300000));
+            }
+        }
+    }
+
+    @Test
+    public void slideToMatchesFreshFit() {
+        final long start = 1700000000000L;
+        final Forecast.PolyTrendLine kept = new Forecast.PolyTrendLine(2);
+        int added = 0;
+        for (int refresh = 0; refresh < 100; refresh++) {
+            final long now = start + refresh * 60000L;
+            final Forecast.Points points = new Forecast.Points();
+            for (int i = 0; i < 20; i++) { // newest first as the graph builder sees them
+                final long ts = now - i * 60000L;
+                points.add(ts, 100 + 40 * Math.sin(ts / 1.8e6));
+                if (((ts - start) / 60000L) % 3 == 0) {
+                    points.add(ts - 30000, 101 + 40 * Math.sin(ts / 1.8e6)); // filtered value
+                }
+            }
+            if (refresh == 50) {
+                points.add(now - 5 * 60000L, 250); // changed data must start again
+            }
+            added += kept.slideTo(points);
+            kept.fit();
+            final Forecast.PolyTrendLine fresh = new Forecast.PolyTrendLine(2);
+            fresh.slideTo(points);
+            fresh.fit();
+            Truth.assertWithMessage("size " + refresh).that(kept.size()).isEqualTo(points.size());
+            Truth.assertWithMessage("predict " + refresh).that(kept.predict(now + 300000)).isWithin(1e-6).of(fresh.predict(now + 300000));
+        }
+        Truth.assertWithMessage("only new points summed").that(added).isLessThan(500);
+    }
+
+    @Test
+    public void snapshotKeepsFit() {
+        final Forecast.PolyTrendLine line = new Forecast.PolyTrendLine(1);
+        Truth.assertWithMessage("no fit yet").that(line.snapshot()).isNull();
+        line.setValues(new double[]{1, 2, 3, 4}, new double[]{1, 2, 3, 4});
+        final Forecast.LeastSquares.Fit snapshot = line.snapshot();
+        line.setValues(new double[]{4, 3, 2, 1}, new double[]{1, 2, 3, 4});
+        Truth.assertWithMessage("snapshot unchanged").that(snapshot.predict(5)).isWithin(1e-9).of(5);
+        Truth.assertWithMessage("line refitted").that(line.predict(5)).isWithin(1e-9).of(0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void notEnoughPoints() {
+        new Forecast.PolyTrendLine(1).setValues(new double[]{1, 2}, new double[]{1, 2});
+    }
+
+    private static double[] powers(final double x, final int degree) {
+        final double[] result = new double[degree + 1];
+        double xi = 1;
+        for (int i = 0; i <= degree; i++) {
+            result[i] = xi;
+            xi *= x;
+        }
+        return result;
+    }
 }
@@ -0,0 +1,76 @@
+package com.eveningoutpost.dexdrip.models;
+
+import com.eveningoutpost.dexdrip.RobolectricTestWithConfig;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+import static com.eveningoutpost.dexdrip.utilitymodels.Constants.DAY_IN_MS;
+import static com.eveningoutpost.dexdrip.utilitymodels.Constants.HOUR_IN_MS;
+import static com.eveningoutpost.dexdrip.utilitymodels.Constants.MINUTE_IN_MS;
+import static com.google.common.truth.Truth.assertWithMessage;
+
+/**
+ * Checks that {@link IobEvaluator} gives the same current IoB as reading "now" off the
+ * full day timeline from {@link Treatments#ioBForGraph_new}, and that it notices deletions.
+ */
+public class IobEvaluatorTest extends RobolectricTestWithConfig {
+
+    @Before
+    public void setUp() {
+        super.setUp();
+        Treatments.delete_all();
+        IobEvaluator.invalidate();
+    }
+
+    @Test
+    public void noTreatmentsTest() {
+        assertWithMessage("no treatments").that(IobEvaluator.getCurrentIoB()).isNull();
+    }
+
+    @Test
+    public void matchesGraphCalculationTest() {
+        final long now = JoH.tsl();
+        Treatments.create(0, 4, now - 3 * HOUR_IN_MS);
+        Treatments.create(40, 0, now - 2 * HOUR_IN_MS);
+        Treatments.create(20, 3, now - 65 * MINUTE_IN_MS);
+        Treatments.create(0, 1.5, now - 20 * MINUTE_IN_MS);
+
+        final Double expected = fullTimelineIoB();
+        final Double actual = IobEvaluator.getCurrentIoB();
+        assertWithMessage("graph value").that(expected).isNotNull();
+        assertWithMessage("evaluator value").that(actual).isNotNull();
+        assertWithMessage("iob matches").that(actual).isWithin(0.0001).of(expected);
+
+        // removing a treatment must be picked up
+        Treatments.delete_last();
+        assertWithMessage("iob after removal").that(IobEvaluator.getCurrentIoB())
+                .isWithin(0.0001).of(fullTimelineIoB());
+    }
+
+    @Test
+    public void manyTreatmentsTest() {
+        final long now = JoH.tsl();
+        for (int i = 0; i < 48; i++) {
+            Treatments.create(i % 3 == 0 ? 15 : 0, 0.5 + (i % 4), now - i * 30 * MINUTE_IN_MS);
+        }
+        assertWithMessage("iob matches").that(IobEvaluator.getCurrentIoB())
+                .isWithin(0.0001).of(fullTimelineIoB());
+    }
+
+    // reference value: the sample near now from the full graph timeline
+    private static Double fullTimelineIoB() {
+        final long now = JoH.tsl();
+        final List<Iob> iobInfo = Treatments.ioBForGraph_new(now - DAY_IN_MS);
+        if (iobInfo != null) {
+            for (Iob iob : iobInfo) {
+                if (iob.timestamp > now - 5 * MINUTE_IN_MS && iob.timestamp < now + 5 * MINUTE_IN_MS) {
+                    return iob.iob;
+                }
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,86 @@
+package com.eveningoutpost.dexdrip.models;
+
+import com.activeandroid.query.Delete;
+import com.activeandroid.util.SQLiteUtils;
+import com.eveningoutpost.dexdrip.RobolectricTestWithConfig;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static com.eveningoutpost.dexdrip.utilitymodels.Constants.MINUTE_IN_MS;
+import static com.google.common.truth.Truth.assertWithMessage;
+
+public class Libre2RawWindowTest extends RobolectricTestWithConfig {
+
+    private static final String SERIAL = "3MH0012345";
+
+    @Before
+    public void setUp() {
+        super.setUp();
+        Libre2RawValue.updateDB();
+        new Delete().from(Libre2RawValue.class).execute();
+        Libre2RawWindow.reset();
+    }
+
+    @Test
+    public void weightedAverageTest() {
+        final long now = JoH.tsl();
+        final long duration = 25 * MINUTE_IN_MS;
+        double sum = 0;
+        double weights = 0;
+        for (int i = 30; i >= 0; i--) {
+            final long timestamp = now - i * MINUTE_IN_MS;
+            final double glucose = 100 + i * 2;
+            Libre2RawWindow.add(value(SERIAL, timestamp, glucose));
+            Libre2RawWindow.add(value("other", timestamp, 300)); // different sensor must not count
+            if (i <= 20) {
+                final double weight = 1 - ((now - timestamp) / (double) duration);
+                sum += glucose * weight;
+                weights += weight;
+            }
+        }
+        final StringBuilder detail = new StringBuilder();
+        final double average = Libre2RawWindow.weightedAverage(SERIAL, now - 20 * MINUTE_IN_MS, now, duration, detail);
+        assertWithMessage("average").that(average).isEqualTo((double) Math.round(sum / weights));
+        assertWithMessage("detail lines").that(detail.toString().split("\n").length).isEqualTo(21);
+
+        assertWithMessage("nothing saved yet").that(Libre2RawValue.latestForGraph(1000, 0L).size()).isEqualTo(0);
+        assertWithMessage("flushed").that(Libre2RawWindow.flush()).isTrue();
+        assertWithMessage("saved after flush").that(Libre2RawValue.latestForGraph(1000, 0L).size()).isEqualTo(62);
+    }
+
+    @Test
+    public void seededFromDatabaseTest() {
+        final long now = JoH.tsl();
+        for (int i = 10; i > 0; i--) {
+            value(SERIAL, now - i * MINUTE_IN_MS, 150).save();
+        }
+        Libre2RawWindow.add(value(SERIAL, now, 90));
+        final double average = Libre2RawWindow.weightedAverage(SERIAL, now - 20 * MINUTE_IN_MS, now, 25 * MINUTE_IN_MS, null);
+        assertWithMessage("includes stored values").that(average).isGreaterThan(140d);
+        assertWithMessage("includes new value").that(average).isLessThan(150d);
+    }
+
+    @Test
+    public void failedFlushKeptTest() {
+        final long now = JoH.tsl();
+        Libre2RawWindow.add(value(SERIAL, now - MINUTE_IN_MS, 120));
+        SQLiteUtils.execSql("DROP TABLE Libre2RawValue2");
+        assertWithMessage("flush fails").that(Libre2RawWindow.flush()).isFalse();
+        assertWithMessage("batch kept").that(Libre2RawWindow.pendingCount()).isEqualTo(1);
+
+        Libre2RawWindow.add(value(SERIAL, now, 125));
+        Libre2RawValue.updateDB();
+        assertWithMessage("retry saves").that(Libre2RawWindow.flush()).isTrue();
+        assertWithMessage("nothing left").that(Libre2RawWindow.pendingCount()).isEqualTo(0);
+        assertWithMessage("both saved").that(Libre2RawValue.latestForGraph(1000, 0L).size()).isEqualTo(2);
+    }
+
+    private static Libre2RawValue value(final String serial, final long timestamp, final double glucose) {
+        final Libre2RawValue value = new Libre2RawValue();
+        value.serial = serial;
+        value.timestamp = timestamp;
+        value.glucose = glucose;
+        return value;
+    }
+}
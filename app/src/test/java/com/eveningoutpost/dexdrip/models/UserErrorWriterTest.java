@@ -0,0 +1,72 @@
+package com.eveningoutpost.dexdrip.models;
+
+import com.activeandroid.query.Select;
+import com.eveningoutpost.dexdrip.RobolectricTestWithConfig;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static com.google.common.truth.Truth.assertWithMessage;
+
+public class UserErrorWriterTest extends RobolectricTestWithConfig {
+
+    private static final String TEST_TAG = "UserErrorWriterTest";
+
+    private static List<UserError> forTag(final String tag) {
+        return new Select()
+                .from(UserError.class)
+                .where("shortError = ?", tag)
+                .execute();
+    }
+
+    @Test
+    public void coalesceTest() {
+        for (int i = 0; i < 50; i++) {
+            UserError.Log.e(TEST_TAG, "Reconnect failed");
+        }
+        UserError.Log.e(TEST_TAG, "Something else");
+        UserErrorWriter.flush();
+
+        final List<UserError> rows = forTag(TEST_TAG);
+        assertWithMessage("repeated entries folded").that(rows).hasSize(2);
+        boolean found = false;
+        for (final UserError row : rows) {
+            if (row.message.startsWith("Reconnect failed")) {
+                found = true;
+                assertWithMessage("repeat count").that(row.message).isEqualTo("Reconnect failed (x50)");
+                assertWithMessage("severity").that(row.severity).isEqualTo(2);
+            }
+        }
+        assertWithMessage("folded entry present").that(found).isTrue();
+    }
+
+    @Test
+    public void dropTest() {
+        final int total = UserErrorWriter.MAX_QUEUED * 2;
+        for (int i = 0; i < total; i++) {
+            new UserError(2, TEST_TAG, "Entry " + i); // distinct so nothing is folded
+        }
+        UserErrorWriter.flush();
+
+        final int kept = forTag(TEST_TAG).size();
+        final int lost = total - kept;
+        assertWithMessage("queue bounded").that(lost).isGreaterThan(0);
+        assertWithMessage("queue filled before dropping").that(kept).isAtLeast(UserErrorWriter.MAX_QUEUED);
+
+        long reported = 0;
+        for (final UserError row : forTag("UserErrorWriter")) {
+            final Matcher matcher = Pattern.compile("^Log queue full, dropped (\\d+) entries$").matcher(row.message);
+            if (matcher.find()) {
+                reported += Long.parseLong(matcher.group(1));
+            }
+        }
+        assertWithMessage("drops reported").that(reported).isEqualTo(lost);
+
+        new UserError(2, TEST_TAG, "After drop");
+        UserErrorWriter.flush();
+        assertWithMessage("accepts entries again").that(forTag(TEST_TAG).size()).isEqualTo(kept + 1);
+    }
+}
@@ -0,0 +1,94 @@
+package com.eveningoutpost.dexdrip.stats;
+
+import com.eveningoutpost.dexdrip.RobolectricTestWithConfig;
+import com.eveningoutpost.dexdrip.models.BgReading;
+import com.eveningoutpost.dexdrip.models.JoH;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import static com.eveningoutpost.dexdrip.stats.PercentileView.NO_TIMESLOTS;
+import static com.eveningoutpost.dexdrip.utilitymodels.Constants.MINUTE_IN_MS;
+import static com.google.common.truth.Truth.assertWithMessage;
+
+public class PercentileEngineTest extends RobolectricTestWithConfig {
+
+    @Before
+    public void setUp() {
+        super.setUp();
+        BgReading.deleteALL();
+        PercentileEngine.reset();
+        StatsActivity.state = StatsActivity.D7;
+    }
+
+    @Test
+    public void quantilesMatchSortTest() {
+        final Random random = new Random(42);
+        for (int size = 1; size < 200; size += 7) {
+            final int[] bins = new int[PercentileEngine.MAX_VALUE + 1];
+            final List<Double> values = new ArrayList<>();
+            for (int i = 0; i < size; i++) {
+                final int value = 39 + random.nextInt(360);
+                bins[value]++;
+                values.add((double) value);
+            }
+            Collections.sort(values);
+            final double[][] result = new double[PercentileEngine.QUANTILES.length][1];
+            PercentileEngine.quantiles(bins, size, result, 0);
+            for (int q = 0; q < PercentileEngine.QUANTILES.length; q++) {
+                assertWithMessage("size " + size + " quantile " + PercentileEngine.QUANTILES[q])
+                        .that(result[q][0]).isEqualTo(values.get((int) (size * PercentileEngine.QUANTILES[q])));
+            }
+        }
+    }
+
+    @Test
+    public void incrementalMatchesRebuildTest() {
+        final long now = JoH.tsl();
+        for (int i = 0; i < 6 * 288; i++) {
+            addReading(now - i * 5 * MINUTE_IN_MS, 60 + (i * 37) % 250);
+        }
+        final double[][] first = PercentileEngine.calculate();
+        assertWithMessage("median populated").that(first[2][NO_TIMESLOTS / 2]).isGreaterThan(0d);
+
+        // newer than the loaded range so only these are added
+        JoH.threadSleep(5);
+        addReading(JoH.tsl(), 300);
+        addReading(JoH.tsl(), 310);
+        JoH.threadSleep(5);
+        final double[][] incremental = PercentileEngine.calculate();
+        PercentileEngine.reset();
+        final double[][] rebuilt = PercentileEngine.calculate();
+        for (int q = 0; q < rebuilt.length; q++) {
+            assertWithMessage("quantile " + q).that(incremental[q]).isEqualTo(rebuilt[q]);
+        }
+
+        // an in place change must not be missed
+        final BgReading changedReading = addReading(now - 3 * MINUTE_IN_MS, 120);
+        PercentileEngine.calculate();
+        changedReading.calculated_value = 399;
+        changedReading.save();
+        final double[][] changed = PercentileEngine.calculate();
+        PercentileEngine.reset();
+        final double[][] changedRebuilt = PercentileEngine.calculate();
+        for (int q = 0; q < changedRebuilt.length; q++) {
+            assertWithMessage("changed quantile " + q).that(changed[q]).isEqualTo(changedRebuilt[q]);
+        }
+    }
+
+    private static BgReading addReading(final long timestamp, final double value) {
+        final BgReading bgr = new BgReading();
+        bgr.timestamp = timestamp;
+        bgr.calculated_value = value;
+        bgr.raw_data = value;
+        bgr.uuid = UUID.randomUUID().toString();
+        bgr.save();
+        return bgr;
+    }
+}
@@ -0,0 +1,129 @@
+package com.eveningoutpost.dexdrip.stats;
+
+import android.database.Cursor;
+
+import com.activeandroid.Cache;
+import com.activeandroid.query.Select;
+import com.eveningoutpost.dexdrip.RobolectricTestWithConfig;
+import com.eveningoutpost.dexdrip.models.BgReading;
+import com.eveningoutpost.dexdrip.models.JoH;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static com.eveningoutpost.dexdrip.utilitymodels.Constants.DAY_IN_MS;
+import static com.eveningoutpost.dexdrip.utilitymodels.Constants.MINUTE_IN_MS;
+import static com.google.common.truth.Truth.assertWithMessage;
+
+public class StatsRollupTest extends RobolectricTestWithConfig {
+
+    private static final double LOW = 70;
+    private static final double HIGH = 170;
+
+    @Before
+    public void setUp() {
+        super.setUp();
+        BgReading.deleteALL();
+    }
+
+    @Test
+    public void matchesRawQueriesTest() {
+        final long now = JoH.tsl();
+        for (int i = 0; i < 5 * 144; i++) {
+            addReading(now - i * 10 * MINUTE_IN_MS, 30 + (i * 41) % 300);
+        }
+        final long from = now - 4 * DAY_IN_MS - 3 * MINUTE_IN_MS; // partial day at each end
+
+        final StatsRollup.Totals first = StatsRollup.totals(from, now, LOW, HIGH);
+        assertWithMessage("rollup rows stored").that(rollupRows()).isGreaterThan(0);
+        checkTotals("first", first, from, now);
+
+        final StatsRollup.Totals second = StatsRollup.totals(from, now, LOW, HIGH);
+        checkTotals("from rollup", second, from, now);
+
+        // insert into an old day through the normal ingest path
+        final List<BgReading> late = new ArrayList<>();
+        late.add(reading(now - 3 * DAY_IN_MS + 5 * MINUTE_IN_MS, 250));
+        BgReading.processFromMultiMessage(BgReading.toMultiMessage(late));
+        checkTotals("after insert", StatsRollup.totals(from, now, LOW, HIGH), from, now);
+
+        // different thresholds must not reuse rows
+        final StatsRollup.Totals other = StatsRollup.totals(from, now, 80, 180);
+        assertWithMessage("below with other low").that(other.below).isEqualTo(count(from, now, "calculated_value > 38 AND calculated_value < 80"));
+
+        // and both sets of rows are kept side by side
+        final int firstRows = rollupRows("low = 70 AND high = 170");
+        assertWithMessage("first rows kept").that(firstRows).isGreaterThan(0);
+        assertWithMessage("other rows stored").that(rollupRows("low = 80 AND high = 180")).isEqualTo(firstRows);
+        checkTotals("first again", StatsRollup.totals(from, now, LOW, HIGH), from, now);
+
+        // a reading changed in place on an old day
+        final BgReading changed = new Select().from(BgReading.class).where("timestamp < ?", now - 2 * DAY_IN_MS).orderBy("timestamp desc").executeSingle();
+        changed.calculated_value = changed.calculated_value > HIGH ? 100 : 300;
+        changed.save();
+        checkTotals("after change", StatsRollup.totals(from, now, LOW, HIGH), from, now);
+
+        BgReading.deleteALL();
+        assertWithMessage("cleared with readings").that(rollupRows()).isEqualTo(0);
+    }
+
+    @Test
+    public void packTest() {
+        final int[] histogram = new int[StatsRollup.MAX_VALUE + 1];
+        histogram[0] = 1;
+        histogram[100] = 300;
+        histogram[StatsRollup.MAX_VALUE] = 65535;
+        final int[] result = new int[histogram.length];
+        assertWithMessage("unpacked").that(StatsRollup.unpack(StatsRollup.pack(histogram), result)).isTrue();
+        assertWithMessage("round trip").that(result).isEqualTo(histogram);
+        assertWithMessage("wrong size").that(StatsRollup.unpack(new byte[4], result)).isFalse();
+    }
+
+    private static void checkTotals(final String name, final StatsRollup.Totals totals, final long from, final long to) {
+        assertWithMessage(name + " in").that(totals.inRange).isEqualTo(count(from, to, "calculated_value >= 70 AND calculated_value <= 170"));
+        assertWithMessage(name + " below").that(totals.below).isEqualTo(count(from, to, "calculated_value > 38 AND calculated_value < 70"));
+        assertWithMessage(name + " above").that(totals.above).isEqualTo(count(from, to, "calculated_value > 170"));
+        assertWithMessage(name + " readings").that(totals.readings).isEqualTo(count(from, to, "calculated_value > 38"));
+        final Cursor cursor = Cache.openDatabase().rawQuery("select avg(calculated_value) from bgreadings where timestamp >= " + from + " AND timestamp <= " + to + " AND calculated_value > 38 AND snyced == 0", null);
+        cursor.moveToFirst();
+        assertWithMessage(name + " mean").that(totals.getMean()).isWithin(0.0001).of(cursor.getDouble(0));
+        cursor.close();
+    }
+
+    private static int count(final long from, final long to, final String where) {
+        final Cursor cursor = Cache.openDatabase().rawQuery("select count(*) from bgreadings where timestamp >= " + from + " AND timestamp <= " + to + " AND " + where + " AND snyced == 0", null);
+        cursor.moveToFirst();
+        final int count = cursor.getInt(0);
+        cursor.close();
+        return count;
+    }
+
+    private static int rollupRows() {
+        return rollupRows("1");
+    }
+
+    private static int rollupRows(final String where) {
+        final Cursor cursor = Cache.openDatabase().rawQuery("select count(*) from StatsRollup where " + where, null);
+        cursor.moveToFirst();
+        final int count = cursor.getInt(0);
+        cursor.close();
+        return count;
+    }
+
+    private static BgReading reading(final long timestamp, final double value) {
+        final BgReading bgr = new BgReading();
+        bgr.timestamp = timestamp;
+        bgr.calculated_value = value;
+        bgr.raw_data = value;
+        bgr.uuid = UUID.randomUUID().toString();
+        return bgr;
+    }
+
+    private static void addReading(final long timestamp, final double value) {
+        reading(timestamp, value).save();
+    }
+}
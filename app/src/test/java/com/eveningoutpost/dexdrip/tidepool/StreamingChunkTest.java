@@ -0,0 +1,146 @@
+package com.eveningoutpost.dexdrip.tidepool;
+
+import com.eveningoutpost.dexdrip.RobolectricTestWithConfig;
+import com.eveningoutpost.dexdrip.models.BgReading;
+import com.eveningoutpost.dexdrip.models.BgReadingCache;
+import com.eveningoutpost.dexdrip.models.JoH;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.UUID;
+
+import okio.Buffer;
+import okio.GzipSource;
+import okio.Okio;
+
+import static com.eveningoutpost.dexdrip.utilitymodels.Constants.DAY_IN_MS;
+import static com.eveningoutpost.dexdrip.utilitymodels.Constants.MINUTE_IN_MS;
+import static com.google.common.truth.Truth.assertWithMessage;
+
+/**
+ * Checks that {@link StreamingChunk} writes the same json as serializing the whole list, that
+ * it stops at the byte budget without splitting a record and that gzip bodies decode back.
+ * A week of readings is also written both ways with the sizes and times logged.
+ */
+public class StreamingChunkTest extends RobolectricTestWithConfig {
+
+    private static final long BASE = 1651220547452L;
+
+    @Before
+    public void setUp() {
+        super.setUp();
+        BgReading.deleteALL();
+        BgReadingCache.invalidate();
+    }
+
+    private static void addReading(final long timestamp, final double value) {
+        final BgReading bgr = new BgReading();
+        bgr.timestamp = timestamp;
+        bgr.calculated_value = value;
+        bgr.raw_data = value;
+        bgr.uuid = UUID.randomUUID().toString();
+        bgr.save();
+        BgReadingCache.invalidate();
+    }
+
+    private static void addReadings(final int count) {
+        for (int i = 0; i < count; i++) {
+            addReading(BASE + i * 5 * MINUTE_IN_MS, 40 + (i * 37) % 400);
+        }
+    }
+
+    private static String expected(final List<BaseElement> records, final long start, final long end) {
+        final List<BaseElement> all = new LinkedList<>(records);
+        all.addAll(ESensorGlucose.fromBgReadings(BgReading.latestForGraphAsc(15000, start, end)));
+        return JoH.defaultGsonInstance().toJson(all);
+    }
+
+    private static Buffer write(final StreamingChunk chunk) throws IOException {
+        final Buffer buffer = new Buffer();
+        chunk.writeTo(buffer);
+        return buffer;
+    }
+
+    private static String gunzip(final Buffer buffer) throws IOException {
+        return Okio.buffer(new GzipSource(buffer)).readUtf8();
+    }
+
+    @Test
+    public void matchesListSerializationTest() throws IOException {
+        addReadings(300);
+        addReading(BASE + 10, 0); // excluded by query
+        addReading(BASE + 20, 20); // out of range
+        final long end = BASE + DAY_IN_MS * 2;
+
+        final List<BaseElement> records = new LinkedList<>();
+        records.add(new EBasal(1.5, BASE, 30 * MINUTE_IN_MS, "basal-test"));
+
+        final StreamingChunk chunk = new StreamingChunk(BASE, end, 1024 * 1024, false).setRecords(records);
+        assertWithMessage("end unchanged").that(chunk.end).isEqualTo(end);
+        assertWithMessage("bg count").that(chunk.bgCount).isEqualTo(300);
+        assertWithMessage("not empty").that(chunk.isEmpty()).isFalse();
+        assertWithMessage("no encoding").that(chunk.contentEncoding()).isNull();
+        assertWithMessage("json matches").that(write(chunk).readUtf8()).isEqualTo(expected(records, BASE, end));
+    }
+
+    @Test
+    public void budgetSplitTest() throws IOException {
+        addReadings(500);
+        final long end = BASE + DAY_IN_MS * 3;
+
+        final StreamingChunk first = new StreamingChunk(BASE, end, 16 * 1024, false);
+        assertWithMessage("split").that(first.end).isLessThan(end);
+        assertWithMessage("some readings").that(first.bgCount).isGreaterThan(0);
+        assertWithMessage("not all readings").that(first.bgCount).isLessThan(500);
+        final String json = write(first).readUtf8();
+        assertWithMessage("near budget").that(json.length()).isAtMost(16 * 1024 + 512);
+        assertWithMessage("first matches").that(json).isEqualTo(expected(new LinkedList<>(), BASE, first.end));
+
+        int total = first.bgCount;
+        long start = first.end;
+        while (start < end) {
+            final StreamingChunk next = new StreamingChunk(start, end, 16 * 1024, false);
+            if (next.isEmpty()) break;
+            total += next.bgCount;
+            start = next.end;
+        }
+        assertWithMessage("all readings covered").that(total).isEqualTo(500);
+    }
+
+    @Test
+    public void emptyTest() throws IOException {
+        final StreamingChunk chunk = new StreamingChunk(BASE, BASE + DAY_IN_MS, 1024, true);
+        assertWithMessage("empty").that(chunk.isEmpty()).isTrue();
+        assertWithMessage("empty array").that(gunzip(write(chunk))).isEqualTo("[]");
+    }
+
+    @Test
+    public void gzipRoundTripTest() throws IOException {
+        addReadings(200);
+        final long end = BASE + DAY_IN_MS;
+        final StreamingChunk chunk = new StreamingChunk(BASE, end, 1024 * 1024, true);
+        assertWithMessage("encoding").that(chunk.contentEncoding()).isEqualTo("gzip");
+        final Buffer buffer = write(chunk);
+        final long compressed = buffer.size();
+        final String json = gunzip(buffer);
+        assertWithMessage("json matches").that(json).isEqualTo(expected(new LinkedList<>(), BASE, end));
+        assertWithMessage("smaller").that(compressed).isLessThan((long) json.length() / 3);
+    }
+
+    @Test
+    public void benchmarkTest() throws IOException {
+        addReadings(2016); // a week
+        final long end = BASE + DAY_IN_MS * 7;
+        for (final boolean gzip : new boolean[]{false, true}) {
+            final StreamingChunk chunk = new StreamingChunk(BASE, end, 1024 * 1024, gzip);
+            final long start = System.nanoTime();
+            final long size = write(chunk).size();
+            final long ms = Math.max(1, (System.nanoTime() - start) / 1_000_000);
+            System.out.println((gzip ? "Gzip" : "Plain") + ": " + size + " bytes in " + ms + "ms " + StreamingChunk.throughput(ms));
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.eveningoutpost.dexdrip.utilitymodels;
+
+import com.eveningoutpost.dexdrip.RobolectricTestWithConfig;
+import com.eveningoutpost.dexdrip.models.BgReading;
+import com.eveningoutpost.dexdrip.models.BloodTest;
+import com.eveningoutpost.dexdrip.models.JoH;
+import com.eveningoutpost.dexdrip.models.Treatments;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.eveningoutpost.dexdrip.utilitymodels.Constants.DAY_IN_MS;
+import static com.eveningoutpost.dexdrip.utilitymodels.Constants.HOUR_IN_MS;
+import static com.eveningoutpost.dexdrip.utilitymodels.Constants.MINUTE_IN_MS;
+import static com.google.common.truth.Truth.assertWithMessage;
+
+/**
+ * Checks that {@link GraphSourceCache} returns the same records as the direct queries while
+ * the window slides, scrolls and the table changes, and that repeats and slides are served
+ * from memory or a tail query instead of a full reload.
+ */
+public class GraphSourceCacheTest extends RobolectricTestWithConfig {
+
+    private static final int NUM_VALUES = 60 * 24 * 7;
+
+    @Before
+    public void setUp() {
+        super.setUp();
+        Treatments.delete_all();
+        BgReading.deleteALL();
+        GraphSourceCache.invalidate();
+    }
+
+    @Test
+    public void slidingWindowTest() {
+        final long now = JoH.tsl();
+        for (int i = 0; i < 48; i++) {
+            Treatments.create(i % 3 == 0 ? 15 : 0, 1, now - i * 30 * MINUTE_IN_MS);
+        }
+        final long start = now - DAY_IN_MS;
+        checkTreatments("initial", start, now);
+        checkTreatments("repeat", start, now);
+        checkTreatments("slid forward", start + 5 * MINUTE_IN_MS, now + 5 * MINUTE_IN_MS);
+        checkTreatments("inside", start + HOUR_IN_MS, now - HOUR_IN_MS);
+        checkTreatments("scrolled back", start - DAY_IN_MS, now - DAY_IN_MS);
+
+        Treatments.create(20, 2, now - 10 * MINUTE_IN_MS);
+        checkTreatments("after insert", start, now);
+        Treatments.delete_last();
+        checkTreatments("after delete", start, now);
+    }
+
+    @Test
+    public void limitTest() {
+        final long now = JoH.tsl();
+        for (int i = 0; i < 10; i++) {
+            BloodTest.create(now - i * HOUR_IN_MS, 100 + i, "test");
+        }
+        final long start = now - DAY_IN_MS;
+        GraphSourceCache.bloodTests(100, start, now);
+        final List<BloodTest> limited = GraphSourceCache.bloodTests(4, start, now);
+        final List<BloodTest> expected = BloodTest.latestForGraph(4, start, now);
+        assertWithMessage("limited size").that(limited.size()).isEqualTo(4);
+        for (int i = 0; i < expected.size(); i++) {
+            assertWithMessage("limited " + i).that(limited.get(i).uuid).isEqualTo(expected.get(i).uuid);
+        }
+    }
+
+    @Test
+    public void cachedPathSkipsQueriesTest() {
+        final long now = JoH.tsl();
+        for (int i = 0; i < 48; i++) {
+            Treatments.create(i % 3 == 0 ? 15 : 0, 1, now - i * 30 * MINUTE_IN_MS);
+        }
+        final List<Long> queried = new ArrayList<>(); // start of each source query
+        final GraphSourceCache.Window<Treatments> window = new GraphSourceCache.Window<>(Treatments.class, false,
+                (number, from, to) -> {
+                    queried.add(from);
+                    return Treatments.latestForGraph(number, from, to);
+                }, record -> record.timestamp);
+        final long start = now - DAY_IN_MS;
+
+        window.get(NUM_VALUES, start, now);
+        assertWithMessage("initial load").that(queried).containsExactly(start);
+        window.get(NUM_VALUES, start, now);
+        window.get(NUM_VALUES, start + HOUR_IN_MS, now - HOUR_IN_MS);
+        assertWithMessage("repeat and inside from memory").that(queried).hasSize(1);
+
+        final long slidStart = start + 5 * MINUTE_IN_MS;
+        final long slidEnd = now + 5 * MINUTE_IN_MS;
+        final List<Treatments> slid = window.get(NUM_VALUES, slidStart, slidEnd);
+        assertWithMessage("slide queries only the tail").that(queried).containsExactly(start, now + 1).inOrder();
+        assertWithMessage("slid size").that(slid.size())
+                .isEqualTo(Treatments.latestForGraph(NUM_VALUES, slidStart, slidEnd).size());
+
+        Treatments.create(20, 2, now - 10 * MINUTE_IN_MS);
+        window.get(NUM_VALUES, slidStart, slidEnd);
+        assertWithMessage("reload after insert").that(queried).containsExactly(start, now + 1, slidStart).inOrder();
+    }
+
+    private void checkTreatments(final String name, final long start, final long end) {
+        final List<Treatments> cached = GraphSourceCache.treatments(NUM_VALUES, start, end);
+        final List<Treatments> expected = Treatments.latestForGraph(NUM_VALUES, start, end);
+        assertWithMessage(name + " size").that(cached.size()).isEqualTo(expected.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertWithMessage(name + " " + i).that(cached.get(i).uuid).isEqualTo(expected.get(i).uuid);
+        }
+    }
+}
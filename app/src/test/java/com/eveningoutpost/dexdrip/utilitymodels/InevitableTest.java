@@ -0,0 +1,62 @@
+package com.eveningoutpost.dexdrip.utilitymodels;
+
+import com.eveningoutpost.dexdrip.RobolectricTestWithConfig;
+import com.eveningoutpost.dexdrip.models.JoH;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.truth.Truth.assertWithMessage;
+
+public class InevitableTest extends RobolectricTestWithConfig {
+
+    @Test
+    public void debounceTest() throws InterruptedException {
+        final AtomicInteger runs = new AtomicInteger();
+        final AtomicLong ranAt = new AtomicLong();
+        final CountDownLatch latch = new CountDownLatch(1);
+        final Runnable runnable = () -> {
+            runs.incrementAndGet();
+            ranAt.set(System.nanoTime());
+            latch.countDown();
+        };
+        final long start = System.nanoTime();
+        for (int i = 0; i < 10; i++) {
+            Inevitable.task("test-debounce", 100, runnable);
+            JoH.threadSleep(20);
+        }
+        assertWithMessage("still waiting").that(Inevitable.waiting("test-debounce")).isTrue();
+        assertWithMessage("ran").that(latch.await(2, TimeUnit.SECONDS)).isTrue();
+        JoH.threadSleep(200);
+        assertWithMessage("ran once").that(runs.get()).isEqualTo(1);
+        assertWithMessage("waited for idle").that(TimeUnit.NANOSECONDS.toMillis(ranAt.get() - start)).isAtLeast(280L);
+        assertWithMessage("no longer waiting").that(Inevitable.waiting("test-debounce")).isFalse();
+    }
+
+    @Test
+    public void shortenAndKillTest() throws InterruptedException {
+        final CountDownLatch shortened = new CountDownLatch(1);
+        Inevitable.task("test-shorten", 5000, shortened::countDown);
+        Inevitable.task("test-shorten", 10, null); // extension only, brings it forward
+        assertWithMessage("brought forward").that(shortened.await(1, TimeUnit.SECONDS)).isTrue();
+
+        final AtomicInteger killed = new AtomicInteger();
+        Inevitable.task("test-kill", 50, killed::incrementAndGet);
+        Inevitable.kill("test-kill");
+        JoH.threadSleep(200);
+        assertWithMessage("killed task not run").that(killed.get()).isEqualTo(0);
+    }
+
+    @Test
+    public void stackableTest() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(3);
+        for (int i = 0; i < 3; i++) {
+            Inevitable.stackableTask("test-stack", 10, latch::countDown);
+        }
+        assertWithMessage("all stacked tasks ran").that(latch.await(1, TimeUnit.SECONDS)).isTrue();
+    }
+}
@@ -0,0 +1,124 @@
+package com.eveningoutpost.dexdrip.utilitymodels;
+
+import com.eveningoutpost.dexdrip.RobolectricTestWithConfig;
+import com.eveningoutpost.dexdrip.models.JoH;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.truth.Truth.assertWithMessage;
+
+public class PlusAsyncExecutorTest extends RobolectricTestWithConfig {
+
+    @Test
+    public void orderPerKeyTest() throws InterruptedException {
+        final PlusAsyncExecutor executor = new PlusAsyncExecutor();
+        final Executor queue = executor.forKey("test-order");
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch done = new CountDownLatch(10);
+        for (int i = 0; i < 10; i++) {
+            final int n = i;
+            queue.execute(() -> {
+                JoH.threadSleep(n % 3);
+                order.add(n);
+                done.countDown();
+            });
+        }
+        assertWithMessage("all ran").that(done.await(5, TimeUnit.SECONDS)).isTrue();
+        for (int i = 0; i < 10; i++) {
+            assertWithMessage("order " + i).that(order.get(i)).isEqualTo(i);
+        }
+        JoH.threadSleep(50);
+        assertWithMessage("idle").that(executor.backlog("test-order")).isEqualTo(0);
+    }
+
+    @Test
+    public void keysRunInParallelTest() throws InterruptedException {
+        final PlusAsyncExecutor executor = new PlusAsyncExecutor();
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch other = new CountDownLatch(1);
+        executor.forKey("test-blocked").execute(() -> {
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                //
+            }
+        });
+        executor.forKey("test-other").execute(other::countDown);
+        assertWithMessage("other key not held up").that(other.await(2, TimeUnit.SECONDS)).isTrue();
+        assertWithMessage("blocked key busy").that(executor.backlog("test-blocked")).isEqualTo(1);
+        release.countDown();
+    }
+
+    @Test
+    public void overflowTest() throws InterruptedException {
+        final PlusAsyncExecutor executor = new PlusAsyncExecutor();
+        for (final PlusAsyncExecutor.Overflow overflow : PlusAsyncExecutor.Overflow.values()) {
+            final String key = "test-" + overflow;
+            final Executor queue = executor.forKey(key, 3, overflow);
+            final CountDownLatch release = new CountDownLatch(1);
+            final CountDownLatch started = new CountDownLatch(1);
+            queue.execute(() -> {
+                started.countDown();
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    //
+                }
+            });
+            assertWithMessage("first started " + overflow).that(started.await(2, TimeUnit.SECONDS)).isTrue();
+
+            final List<Integer> ran = Collections.synchronizedList(new ArrayList<>());
+            final CountDownLatch done = new CountDownLatch(3);
+            for (int i = 0; i < 5; i++) {
+                final int n = i;
+                queue.execute(() -> {
+                    ran.add(n);
+                    done.countDown();
+                });
+            }
+            assertWithMessage("bounded " + overflow).that(executor.backlog(key)).isEqualTo(4);
+            release.countDown();
+            assertWithMessage("queued ran " + overflow).that(done.await(2, TimeUnit.SECONDS)).isTrue();
+            JoH.threadSleep(50);
+            if (overflow == PlusAsyncExecutor.Overflow.REJECT_NEWEST) {
+                assertWithMessage("kept oldest").that(ran).containsExactly(0, 1, 2).inOrder();
+            } else {
+                assertWithMessage("kept newest").that(ran).containsExactly(2, 3, 4).inOrder();
+            }
+        }
+        final List<StatusItem> status = executor.status();
+        assertWithMessage("status rows").that(status.size()).isEqualTo(3);
+    }
+
+    @Test
+    public void errorInTaskTest() throws InterruptedException {
+        final PlusAsyncExecutor executor = new PlusAsyncExecutor();
+        final Executor queue = executor.forKey("test-error");
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch after = new CountDownLatch(1);
+        queue.execute(() -> {
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                //
+            }
+            throw new StackOverflowError("test");
+        });
+        queue.execute(after::countDown);
+        release.countDown();
+        assertWithMessage("queue carried on").that(after.await(2, TimeUnit.SECONDS)).isTrue();
+        JoH.threadSleep(50);
+        assertWithMessage("idle").that(executor.backlog("test-error")).isEqualTo(0);
+
+        final CountDownLatch later = new CountDownLatch(1);
+        queue.execute(later::countDown);
+        assertWithMessage("not stuck busy").that(later.await(2, TimeUnit.SECONDS)).isTrue();
+    }
+}
@@ -0,0 +1,71 @@
+package com.eveningoutpost.dexdrip.utilitymodels;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import lecho.lib.hellocharts.model.PointValue;
+
+import static com.google.common.truth.Truth.assertWithMessage;
+
+public class PointPyramidTest {
+
+    // 14 days of one minute data in BgGraphBuilder x axis units
+    private static List<PointValue> points(final boolean ascending) {
+        final List<PointValue> points = new ArrayList<>();
+        final int count = 14 * 24 * 60;
+        for (int i = 0; i < count; i++) {
+            final int n = ascending ? i : count - 1 - i;
+            points.add(new PointValue(n * 2, (float) (150 + 80 * Math.sin(n / 90d) + ((n % 97 == 0) ? 120 : 0))));
+        }
+        return points;
+    }
+
+    @Test
+    public void minMaxKeepsExtremesTest() {
+        for (final boolean ascending : new boolean[]{true, false}) {
+            final List<PointValue> points = points(ascending);
+            final double bucket = 14 * 24 * 120 / 1000d; // 1000 pixels wide
+            final List<PointValue> reduced = PointPyramid.minMax(points, bucket);
+            assertWithMessage("reduced size " + ascending).that(reduced.size()).isAtMost(2 * 1001);
+
+            // every bucket keeps its low and high and order is preserved
+            float lastX = ascending ? -1 : Float.MAX_VALUE;
+            for (final PointValue point : reduced) {
+                assertWithMessage("ordered " + ascending).that(ascending ? point.getX() > lastX : point.getX() < lastX).isTrue();
+                lastX = point.getX();
+            }
+            float low = Float.MAX_VALUE, high = -Float.MAX_VALUE;
+            for (final PointValue point : points) {
+                low = Math.min(low, point.getY());
+                high = Math.max(high, point.getY());
+            }
+            float reducedLow = Float.MAX_VALUE, reducedHigh = -Float.MAX_VALUE;
+            for (final PointValue point : reduced) {
+                reducedLow = Math.min(reducedLow, point.getY());
+                reducedHigh = Math.max(reducedHigh, point.getY());
+            }
+            assertWithMessage("low kept").that(reducedLow).isEqualTo(low);
+            assertWithMessage("high kept").that(reducedHigh).isEqualTo(high);
+        }
+    }
+
+    @Test
+    public void pyramidMatchesDirectTest() {
+        final List<PointValue> points = points(true);
+        final PointPyramid pyramid = new PointPyramid(points);
+        assertWithMessage("raw below one unit").that(pyramid.forBucket(0.5)).isSameInstanceAs(points);
+        for (final int bucket : new int[]{1, 4, 64, 1024}) {
+            final List<PointValue> level = pyramid.forBucket(bucket);
+            final List<PointValue> direct = PointPyramid.minMax(points, bucket);
+            assertWithMessage("size at " + bucket).that(level.size()).isEqualTo(direct.size());
+            for (int i = 0; i < direct.size(); i++) {
+                assertWithMessage("point " + i + " at " + bucket).that(level.get(i)).isSameInstanceAs(direct.get(i));
+            }
+        }
+        // widths between levels use the finer one
+        assertWithMessage("in between").that(pyramid.forBucket(100).size()).isEqualTo(PointPyramid.minMax(points, 64).size());
+        assertWithMessage("cached").that(pyramid.forBucket(64)).isSameInstanceAs(pyramid.forBucket(64));
+    }
+}
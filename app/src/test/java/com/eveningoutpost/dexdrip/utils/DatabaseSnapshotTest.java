@@ -0,0 +1,134 @@
+package com.eveningoutpost.dexdrip.utils;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.activeandroid.Cache;
+import com.eveningoutpost.dexdrip.RobolectricTestWithConfig;
+import com.eveningoutpost.dexdrip.models.BgReading;
+import com.eveningoutpost.dexdrip.models.JoH;
+import com.eveningoutpost.dexdrip.xdrip;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.eveningoutpost.dexdrip.utilitymodels.Constants.MINUTE_IN_MS;
+import static com.google.common.truth.Truth.assertWithMessage;
+
+/**
+ * Checks that a {@link DatabaseSnapshot} taken by either copy method has every reading,
+ * index and the user version, and that one taken during inserts from another thread has no gaps.
+ */
+public class DatabaseSnapshotTest extends RobolectricTestWithConfig {
+
+    private static final long BASE = 1651220547452L;
+    private int added;
+
+    @Before
+    public void setUp() {
+        super.setUp();
+        BgReading.deleteALL();
+    }
+
+    private void addReadings(final int count) {
+        for (int i = 0; i < count; i++) {
+            final BgReading bgr = new BgReading();
+            bgr.timestamp = BASE + added * 5 * MINUTE_IN_MS;
+            bgr.calculated_value = 40 + (added * 37) % 400;
+            bgr.raw_data = bgr.calculated_value;
+            bgr.uuid = UUID.randomUUID().toString();
+            bgr.save();
+            added++;
+        }
+    }
+
+    private static File file(final String name) {
+        return new File(xdrip.getAppContext().getCacheDir(), "snapshot-test/" + name);
+    }
+
+    private static long query(final File file, final String sql) {
+        final SQLiteDatabase db = SQLiteDatabase.openDatabase(file.getPath(), null, SQLiteDatabase.OPEN_READONLY);
+        try (final Cursor cursor = db.rawQuery(sql, null)) {
+            cursor.moveToFirst();
+            return cursor.getLong(0);
+        } finally {
+            db.close();
+        }
+    }
+
+    private static long liveUserVersion() {
+        return liveCount("PRAGMA user_version");
+    }
+
+    private static long liveCount(final String sql) {
+        try (final Cursor cursor = Cache.openDatabase().rawQuery(sql, null)) {
+            cursor.moveToFirst();
+            return cursor.getLong(0);
+        }
+    }
+
+    @Test
+    public void fullSnapshotTest() {
+        addReadings(250);
+        final DatabaseSnapshot.Snapshot snapshot = DatabaseSnapshot.take(file("full.db"));
+        assertWithMessage("taken").that(snapshot).isNotNull();
+        assertWithMessage("rows").that(query(snapshot.file, "select count(*) from BgReadings")).isEqualTo(250);
+        assertWithMessage("user version").that(query(snapshot.file, "PRAGMA user_version")).isEqualTo(liveUserVersion());
+        snapshot.delete();
+        assertWithMessage("deleted").that(snapshot.file.exists()).isFalse();
+    }
+
+    @Test
+    public void copySnapshotTest() {
+        addReadings(120);
+        final DatabaseSnapshot.Snapshot snapshot = new DatabaseSnapshot.Snapshot(file("copy.db"));
+        snapshot.delete();
+        snapshot.file.getParentFile().mkdirs();
+        DatabaseSnapshot.attachAndCopy(Cache.openDatabase(), snapshot);
+        assertWithMessage("rows copied").that(snapshot.rows).isAtLeast(120L);
+        assertWithMessage("rows").that(query(snapshot.file, "select count(*) from BgReadings")).isEqualTo(120);
+        assertWithMessage("indexes").that(query(snapshot.file, "select count(*) from sqlite_master where type = 'index' and sql is not null"))
+                .isEqualTo(liveCount("select count(*) from sqlite_master where type = 'index' and sql is not null"));
+        assertWithMessage("user version").that(query(snapshot.file, "PRAGMA user_version")).isEqualTo(liveUserVersion());
+        snapshot.delete();
+    }
+
+    @Test
+    public void consistentWhileWritingTest() throws InterruptedException {
+        addReadings(200);
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final Thread writer = new Thread(() -> {
+            while (running.get()) {
+                addReadings(1);
+            }
+        });
+        writer.start();
+        try {
+            for (int i = 0; i < 5; i++) {
+                final DatabaseSnapshot.Snapshot snapshot = DatabaseSnapshot.take(file("busy.db"));
+                assertWithMessage("taken " + i).that(snapshot).isNotNull();
+                final long rows = query(snapshot.file, "select count(*) from BgReadings");
+                assertWithMessage("rows " + i).that(rows).isAtLeast(200L);
+                assertWithMessage("no gaps " + i).that(query(snapshot.file, "select max(timestamp) from BgReadings"))
+                        .isEqualTo(BASE + (rows - 1) * 5 * MINUTE_IN_MS);
+                snapshot.delete();
+            }
+        } finally {
+            running.set(false);
+            writer.join();
+        }
+    }
+
+    @Test
+    public void benchmarkTest() {
+        addReadings(5000);
+        final long start = JoH.tsl();
+        final DatabaseSnapshot.Snapshot snapshot = DatabaseSnapshot.take(file("bench.db"));
+        System.out.println(snapshot.toS() + " total " + JoH.msSince(start) + "ms");
+        snapshot.delete();
+    }
+}
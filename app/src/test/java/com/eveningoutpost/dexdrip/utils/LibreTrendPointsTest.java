@@ -0,0 +1,88 @@
+package com.eveningoutpost.dexdrip.utils;
+
+import com.eveningoutpost.dexdrip.RobolectricTestWithConfig;
+import com.eveningoutpost.dexdrip.models.GlucoseData;
+import com.eveningoutpost.dexdrip.models.ReadingData;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import static com.google.common.truth.Truth.assertWithMessage;
+
+public class LibreTrendPointsTest extends RobolectricTestWithConfig {
+
+    @Test
+    public void firstValueIsKeptTest() {
+        final LibreTrendPoints points = new LibreTrendPoints(LibreTrendUtil.MAX_POINTS);
+        assertWithMessage("size").that(points.size()).isEqualTo(LibreTrendUtil.MAX_POINTS);
+        assertWithMessage("stored").that(points.putIfEmpty(1000, 1230, 800, GlucoseData.DataSource.FRAM)).isTrue();
+        assertWithMessage("not replaced").that(points.putIfEmpty(1000, 999, 0, GlucoseData.DataSource.BLE)).isFalse();
+        assertWithMessage("raw").that(points.raw(1000)).isEqualTo(1230);
+        assertWithMessage("flags").that(points.flags(1000)).isEqualTo(800);
+        assertWithMessage("source").that(points.source(1000)).isEqualTo(GlucoseData.DataSource.FRAM);
+        assertWithMessage("empty source").that(points.source(1001)).isNull();
+
+        final LibreTrendPoint point = points.get(1000);
+        assertWithMessage("point time").that(point.getSensorTime()).isEqualTo(1000);
+        assertWithMessage("point raw").that(point.rawSensorValue).isEqualTo(1230);
+        assertWithMessage("point error").that(point.isError()).isFalse();
+        assertWithMessage("empty point time").that(points.get(1001).getSensorTime()).isEqualTo(0);
+    }
+
+    @Test
+    public void copyBgValsWritesBackTest() {
+        final LibreTrendPoints points = new LibreTrendPoints(LibreTrendUtil.MAX_POINTS);
+        points.putIfEmpty(1000, 1230, 800, GlucoseData.DataSource.FRAM);
+
+        final ReadingData readingData = new ReadingData();
+        readingData.trend = new ArrayList<>();
+        final GlucoseData glucoseData = new GlucoseData();
+        glucoseData.sensorTime = 1000;
+        glucoseData.glucoseLevel = 123;
+        readingData.trend.add(glucoseData);
+        readingData.copyBgVals(points);
+
+        assertWithMessage("bg stored").that(points.glucose(1000)).isEqualTo(123);
+        assertWithMessage("raw unchanged").that(points.raw(1000)).isEqualTo(1230);
+    }
+
+    @Test
+    public void snapshotRoundTripTest() throws IOException {
+        final LibreTrendPoints points = new LibreTrendPoints(LibreTrendUtil.MAX_POINTS);
+        for (int i = 100; i < 100 + 14 * 24 * 60; i++) {
+            points.putIfEmpty(i, 1000 + i % 300, (i % 7 == 0) ? 0x700 : 800, (i % 2 == 0) ? GlucoseData.DataSource.BLE : GlucoseData.DataSource.FRAM);
+        }
+        final LibreTrendPoint withBg = points.get(150);
+        withBg.glucoseLevel = 142;
+        points.set(150, withBg);
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            points.writeTo(out);
+        }
+        final LibreTrendPoints restored = new LibreTrendPoints(LibreTrendUtil.MAX_POINTS);
+        restored.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+
+        for (int i = 0; i < points.size(); i++) {
+            assertWithMessage("raw " + i).that(restored.raw(i)).isEqualTo(points.raw(i));
+            assertWithMessage("glucose " + i).that(restored.glucose(i)).isEqualTo(points.glucose(i));
+            assertWithMessage("flags " + i).that(restored.flags(i)).isEqualTo(points.flags(i));
+            assertWithMessage("source " + i).that(restored.source(i)).isEqualTo(points.source(i));
+        }
+        assertWithMessage("bg restored").that(restored.glucose(150)).isEqualTo(142);
+
+        // an empty store round trips too
+        final ByteArrayOutputStream empty = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(empty)) {
+            new LibreTrendPoints(LibreTrendUtil.MAX_POINTS).writeTo(out);
+        }
+        restored.readFrom(new DataInputStream(new ByteArrayInputStream(empty.toByteArray())));
+        assertWithMessage("cleared").that(restored.raw(150)).isEqualTo(0);
+    }
+}
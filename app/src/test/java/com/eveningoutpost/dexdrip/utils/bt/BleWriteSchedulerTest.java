@@ -0,0 +1,215 @@
+package com.eveningoutpost.dexdrip.utils.bt;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import com.eveningoutpost.dexdrip.RobolectricTestWithConfig;
+import com.eveningoutpost.dexdrip.models.JoH;
+import com.eveningoutpost.dexdrip.utils.bt.BleWriteScheduler.QueueItem;
+import com.eveningoutpost.dexdrip.utils.framework.PoorMansConcurrentLinkedDeque;
+import com.polidea.rxandroidble2.RxBleConnection;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.truth.Truth.assertWithMessage;
+
+/**
+ * Drives {@link BleWriteScheduler} over a loopback connection to check write order, the
+ * in flight window and retries, and logs the rate of writes with and without response.
+ */
+public class BleWriteSchedulerTest extends RobolectricTestWithConfig {
+
+    private static final UUID CHARACTERISTIC = UUID.fromString("6e400002-b5a3-f393-e0a9-e50e24dcca9e");
+    private static final int BENCHMARK_WRITES = 200;
+
+    private static class TestHost implements BleWriteScheduler.Host {
+        final LoopbackBleConnection loopback;
+        final AtomicInteger emptyCalls = new AtomicInteger();
+        volatile CountDownLatch empty = new CountDownLatch(1);
+        volatile boolean connected = true;
+
+        TestHost(final LoopbackBleConnection loopback) {
+            this.loopback = loopback;
+        }
+
+        @Override
+        public RxBleConnection getConnection() {
+            return loopback.connection;
+        }
+
+        @Override
+        public boolean isConnected() {
+            return connected;
+        }
+
+        @Override
+        public void onDisconnected() {
+            connected = false;
+        }
+
+        @Override
+        public long lastIncomingData() {
+            return -1;
+        }
+
+        @Override
+        public void onQueueEmpty() {
+            emptyCalls.incrementAndGet();
+            empty.countDown();
+        }
+
+        @Override
+        public void extendWakeLock(final long ms) {
+            //
+        }
+    }
+
+    private static QueueItem item(final int n, final long delay, final boolean noResponse) {
+        return new QueueItem(CHARACTERISTIC, new byte[]{(byte) n}, 10, delay, "item " + n, false, 0)
+                .setNoResponse(noResponse);
+    }
+
+    @Test
+    public void orderAndDelayTest() throws InterruptedException {
+        final LoopbackBleConnection loopback = new LoopbackBleConnection(2);
+        final TestHost host = new TestHost(loopback);
+        final PoorMansConcurrentLinkedDeque<QueueItem> queue = new PoorMansConcurrentLinkedDeque<>();
+        final BleWriteScheduler scheduler = new BleWriteScheduler(queue);
+        final List<Integer> ran = Collections.synchronizedList(new ArrayList<>());
+        final List<Integer> replies = Collections.synchronizedList(new ArrayList<>());
+
+        for (int i = 0; i < 10; i++) {
+            final int n = i;
+            queue.add(item(n, 20, false)
+                    .setRunnable(() -> ran.add(n))
+                    .setProcessor(new ReplyProcessor(null) {
+                        @Override
+                        public void process(final byte[] bytes) {
+                            replies.add((int) bytes[0]);
+                        }
+                    }));
+            if (i == 4) {
+                queue.add(new QueueItem(CHARACTERISTIC, new byte[]{99}, 10, 20, "expired", false, JoH.tsl() - 1000));
+            }
+        }
+
+        final long start = JoH.tsl();
+        scheduler.kick(host);
+        assertWithMessage("queue drained").that(host.empty.await(5, TimeUnit.SECONDS)).isTrue();
+        assertWithMessage("delays respected").that(JoH.msSince(start)).isAtLeast(200L);
+        JoH.threadSleep(50);
+
+        assertWithMessage("written").that(loopback.written.size()).isEqualTo(10);
+        for (int i = 0; i < 10; i++) {
+            assertWithMessage("write order " + i).that((int) loopback.written.get(i)[0]).isEqualTo(i);
+            assertWithMessage("runnable order " + i).that(ran.get(i)).isEqualTo(i);
+            assertWithMessage("reply order " + i).that(replies.get(i)).isEqualTo(i);
+        }
+        assertWithMessage("one at a time").that(loopback.maxInFlight.get()).isEqualTo(1);
+        assertWithMessage("empty reported once").that(host.emptyCalls.get()).isEqualTo(1);
+        assertWithMessage("table empty").that(scheduler.inFlight()).isEqualTo(0);
+    }
+
+    @Test
+    public void windowTest() throws InterruptedException {
+        final LoopbackBleConnection loopback = new LoopbackBleConnection(20);
+        final TestHost host = new TestHost(loopback);
+        final PoorMansConcurrentLinkedDeque<QueueItem> queue = new PoorMansConcurrentLinkedDeque<>();
+        final BleWriteScheduler scheduler = new BleWriteScheduler(queue).setWindow(4);
+
+        for (int i = 0; i < 30; i++) {
+            queue.add(item(i, 0, true));
+        }
+        queue.add(item(100, 0, false));
+
+        scheduler.kick(host);
+        assertWithMessage("queue drained").that(host.empty.await(5, TimeUnit.SECONDS)).isTrue();
+
+        assertWithMessage("written").that(loopback.written.size()).isEqualTo(31);
+        assertWithMessage("pipelined").that(loopback.maxInFlight.get()).isGreaterThan(1);
+        assertWithMessage("window").that(loopback.maxInFlight.get()).isAtMost(4);
+        assertWithMessage("normal write waits for window").that((int) loopback.written.get(30)[0]).isEqualTo(100);
+        for (int i = 0; i < 30; i++) {
+            assertWithMessage("no response type " + i).that(loopback.writeTypes.get(i)).isEqualTo(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+        }
+        assertWithMessage("type restored").that(loopback.writeTypes.get(30)).isEqualTo(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
+    }
+
+    @Test
+    public void retryTest() throws InterruptedException {
+        final LoopbackBleConnection loopback = new LoopbackBleConnection(1);
+        final TestHost host = new TestHost(loopback);
+        final PoorMansConcurrentLinkedDeque<QueueItem> queue = new PoorMansConcurrentLinkedDeque<>();
+        final BleWriteScheduler scheduler = new BleWriteScheduler(queue);
+
+        loopback.failFirst = 2;
+        queue.add(item(1, 0, false));
+        scheduler.kick(host);
+        assertWithMessage("recovered").that(host.empty.await(5, TimeUnit.SECONDS)).isTrue();
+        assertWithMessage("written once").that(loopback.written.size()).isEqualTo(1);
+        assertWithMessage("attempts").that(loopback.attempts.get()).isEqualTo(3);
+
+        loopback.attempts.set(0);
+        loopback.failFirst = Integer.MAX_VALUE;
+        host.empty = new CountDownLatch(1);
+        for (int i = 0; i < 3; i++) {
+            queue.add(item(i, 0, false));
+        }
+        scheduler.kick(host);
+        JoH.threadSleep(200);
+        assertWithMessage("gave up").that(loopback.attempts.get()).isEqualTo(BleWriteScheduler.MAX_RETRIES + 1);
+        assertWithMessage("queue cleared").that(queue.size()).isEqualTo(0);
+        assertWithMessage("nothing in flight").that(scheduler.inFlight()).isEqualTo(0);
+        assertWithMessage("no empty callback").that(host.empty.getCount()).isEqualTo(1);
+    }
+
+    private static void benchmark(final String name, final boolean noResponse, final int window) throws InterruptedException {
+        final LoopbackBleConnection loopback = new LoopbackBleConnection(5);
+        final TestHost host = new TestHost(loopback);
+        final PoorMansConcurrentLinkedDeque<QueueItem> queue = new PoorMansConcurrentLinkedDeque<>();
+        final BleWriteScheduler scheduler = new BleWriteScheduler(queue).setWindow(window);
+        final long[] done = new long[BENCHMARK_WRITES];
+
+        for (int i = 0; i < BENCHMARK_WRITES; i++) {
+            final int n = i;
+            queue.add(new QueueItem(CHARACTERISTIC, new byte[]{(byte) n, 1, 2, 3}, 10, 0, "bench " + n, false, 0)
+                    .setNoResponse(noResponse)
+                    .setProcessor(new ReplyProcessor(null) {
+                        @Override
+                        public void process(final byte[] bytes) {
+                            done[n] = System.nanoTime();
+                        }
+                    }));
+        }
+        final long start = System.nanoTime();
+        scheduler.kick(host);
+        assertWithMessage(name + " drained").that(host.empty.await(30, TimeUnit.SECONDS)).isTrue();
+        final long total = System.nanoTime() - start;
+
+        long sum = 0;
+        long previous = start;
+        long worstGap = 0;
+        for (final long t : done) {
+            sum += t - start;
+            worstGap = Math.max(worstGap, t - previous);
+            previous = Math.max(previous, t);
+        }
+        assertWithMessage(name + " written").that(loopback.written.size()).isEqualTo(BENCHMARK_WRITES);
+        System.out.println(name + ": " + (BENCHMARK_WRITES * 1_000_000_000L / total) + " writes/s, mean completion "
+                + (sum / BENCHMARK_WRITES / 1000) + "us, worst gap " + (worstGap / 1000) + "us");
+    }
+
+    @Test
+    public void benchmarkTest() throws InterruptedException {
+        benchmark("Write with response", false, 1);
+        benchmark("Write without response window 1", true, 1);
+        benchmark("Write without response window 8", true, 8);
+    }
+}
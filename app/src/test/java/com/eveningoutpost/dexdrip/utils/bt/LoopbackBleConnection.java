@@ -0,0 +1,70 @@
+package com.eveningoutpost.dexdrip.utils.bt;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import com.polidea.rxandroidble2.RxBleConnection;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.reactivex.Single;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Fake connection which echoes every characteristic write back after a fixed link latency,
+ * so write scheduling can be exercised and timed without a radio.
+ */
+
+class LoopbackBleConnection {
+
+    final RxBleConnection connection = mock(RxBleConnection.class);
+
+    final List<byte[]> written = Collections.synchronizedList(new ArrayList<>());
+    final List<Integer> writeTypes = Collections.synchronizedList(new ArrayList<>());
+    final AtomicInteger attempts = new AtomicInteger();
+    final AtomicInteger inFlight = new AtomicInteger();
+    final AtomicInteger maxInFlight = new AtomicInteger();
+    volatile int failFirst;
+
+    private final ConcurrentHashMap<UUID, BluetoothGattCharacteristic> characteristics = new ConcurrentHashMap<>();
+
+    LoopbackBleConnection(final long latencyMs) {
+        when(connection.getCharacteristic(any(UUID.class))).thenAnswer(invocation ->
+                Single.just(characteristic(invocation.getArgument(0))));
+
+        when(connection.writeCharacteristic(any(UUID.class), any(byte[].class))).thenAnswer(invocation -> {
+            final UUID uuid = invocation.getArgument(0);
+            final byte[] bytes = invocation.getArgument(1);
+            return Single.defer(() -> {
+                final int attempt = attempts.incrementAndGet();
+                final int now = inFlight.incrementAndGet();
+                maxInFlight.accumulateAndGet(now, Math::max);
+                if (attempt <= failFirst) {
+                    inFlight.decrementAndGet();
+                    return Single.<byte[]>error(new IllegalStateException("loopback failure " + attempt));
+                }
+                writeTypes.add(characteristic(uuid).getWriteType());
+                return Single.just(bytes)
+                        .delay(latencyMs, TimeUnit.MILLISECONDS)
+                        .doOnSuccess(echo -> {
+                            inFlight.decrementAndGet();
+                            written.add(echo);
+                        });
+            });
+        });
+    }
+
+    BluetoothGattCharacteristic characteristic(final UUID uuid) {
+        return characteristics.computeIfAbsent(uuid, u -> new BluetoothGattCharacteristic(u,
+                BluetoothGattCharacteristic.PROPERTY_WRITE,
+                BluetoothGattCharacteristic.PERMISSION_WRITE));
+    }
+}
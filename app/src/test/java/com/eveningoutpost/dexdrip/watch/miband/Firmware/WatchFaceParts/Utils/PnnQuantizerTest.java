@@ -0,0 +1,124 @@
+package com.eveningoutpost.dexdrip.watch.miband.Firmware.WatchFaceParts.Utils;
+
+import android.graphics.Bitmap;
+
+import com.eveningoutpost.dexdrip.RobolectricTestWithConfig;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+import static com.google.common.truth.Truth.assertWithMessage;
+
+/**
+ * Checks that {@link PnnQuantizer} leaves images with few colours alone and keeps within the
+ * palette limit on a Mi Band sized watchface with a gradient, anti-aliased digits and a graph.
+ */
+public class PnnQuantizerTest extends RobolectricTestWithConfig {
+
+    private static final int WIDTH = 126;
+    private static final int HEIGHT = 294;
+    private static final int BENCHMARK_ITERATIONS = 50;
+
+    private static int[] watchface(final boolean transparent) {
+        final int[] pixels = new int[WIDTH * HEIGHT];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                pixels[y * WIDTH + x] = transparent && (x < 4 || y < 4) ? 0 : 0xFF000000 | ((y * 255 / HEIGHT) << 16) | (20 << 8) | (x * 255 / WIDTH);
+            }
+        }
+        // four digits with soft edges
+        for (int digit = 0; digit < 4; digit++) {
+            final int left = 10 + digit * 28;
+            for (int y = 40; y < 90; y++) {
+                for (int x = left; x < left + 22; x++) {
+                    final int edge = Math.min(Math.min(x - left, left + 21 - x), Math.min(y - 40, 89 - y));
+                    final int a = Math.min(255, edge * 85);
+                    final int c = pixels[y * WIDTH + x];
+                    final int r = (((c >> 16) & 0xff) * (255 - a) + 255 * a) / 255;
+                    final int g = (((c >> 8) & 0xff) * (255 - a) + 255 * a) / 255;
+                    final int b = ((c & 0xff) * (255 - a) + 255 * a) / 255;
+                    pixels[y * WIDTH + x] = 0xFF000000 | (r << 16) | (g << 8) | b;
+                }
+            }
+        }
+        // glucose line
+        for (int x = 0; x < WIDTH; x++) {
+            final double value = 150 + 30 * Math.sin(x / 9.0);
+            for (int d = -2; d <= 2; d++) {
+                final int y = (int) value + d;
+                final int a = 255 - Math.abs(d) * 80;
+                pixels[y * WIDTH + x] = (transparent && d == 2 ? 0x80000000 : 0xFF000000) | (a << 8) | (255 - a);
+            }
+        }
+        return pixels;
+    }
+
+    private static Bitmap bitmap(final int[] pixels) {
+        return Bitmap.createBitmap(pixels, WIDTH, HEIGHT, Bitmap.Config.ARGB_8888);
+    }
+
+    private static int[] pixels(final Bitmap bitmap) {
+        final int[] pixels = new int[bitmap.getWidth() * bitmap.getHeight()];
+        bitmap.getPixels(pixels, 0, bitmap.getWidth(), 0, 0, bitmap.getWidth(), bitmap.getHeight());
+        return pixels;
+    }
+
+    private static Set<Integer> colors(final int[] pixels) {
+        final Set<Integer> colors = new HashSet<>();
+        for (final int pixel : pixels) {
+            colors.add(pixel);
+        }
+        return colors;
+    }
+
+    @Test
+    public void fewColorsUnchangedTest() throws IOException {
+        final int[] pixels = new int[WIDTH * HEIGHT];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = 0xFF000000 | ((i % 7) * 36 << 16) | ((i % 5) * 50 << 8) | ((i % 3) * 100);
+        }
+        final int[] result = pixels(new PnnQuantizer(bitmap(pixels)).convert(256, false));
+        for (int i = 0; i < pixels.length; i++) {
+            assertWithMessage("pixel " + i).that(result[i]).isEqualTo(pixels[i]);
+        }
+    }
+
+    @Test
+    public void paletteLimitTest() throws IOException {
+        for (final boolean transparent : new boolean[]{false, true}) {
+            final Bitmap source = bitmap(watchface(transparent));
+            assertWithMessage("source colors " + transparent).that(colors(pixels(source)).size()).isGreaterThan(256);
+            for (final int maxColors : new int[]{16, 256}) {
+                final int[] first = pixels(new PnnQuantizer(source).convert(maxColors, false));
+                assertWithMessage("colors " + maxColors + " " + transparent).that(colors(first).size()).isAtMost(maxColors);
+                if (transparent) {
+                    // deterministic path, working memory is reused so the second run must match
+                    final int[] second = pixels(new PnnQuantizer(source).convert(maxColors, false));
+                    for (int i = 0; i < first.length; i++) {
+                        assertWithMessage("repeat " + maxColors + " pixel " + i).that(second[i]).isEqualTo(first[i]);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void benchmarkTest() throws IOException {
+        for (final boolean transparent : new boolean[]{false, true}) {
+            final Bitmap source = bitmap(watchface(transparent));
+            for (int i = 0; i < 5; i++) {
+                new PnnQuantizer(source).convert(256, false);
+            }
+            final long start = System.nanoTime();
+            for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+                new PnnQuantizer(source).convert(256, false);
+            }
+            final long nanos = System.nanoTime() - start;
+            System.out.println((transparent ? "Semi transparent" : "Opaque") + " watchface quantize: "
+                    + (nanos / BENCHMARK_ITERATIONS / 1000) + "us per frame");
+        }
+    }
+}
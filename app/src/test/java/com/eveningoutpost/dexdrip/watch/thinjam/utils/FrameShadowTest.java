@@ -0,0 +1,67 @@
+package com.eveningoutpost.dexdrip.watch.thinjam.utils;
+
+import com.eveningoutpost.dexdrip.RobolectricTestWithConfig;
+import com.eveningoutpost.dexdrip.watch.thinjam.utils.BitmapTools.TJ_BitmapType;
+
+import org.junit.Test;
+
+import static com.google.common.truth.Truth.assertWithMessage;
+
+public class FrameShadowTest extends RobolectricTestWithConfig {
+
+    private static final int WIDTH = 24;
+    private static final int HEIGHT = 32;
+
+    private static byte[] frame(final int digit) {
+        final byte[] pixels = new byte[WIDTH * HEIGHT * 2];
+        // fixed background with a changing block where the digits would be
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                final int ptr = (y * WIDTH + x) * 2;
+                pixels[ptr] = (byte) (x + y);
+                pixels[ptr + 1] = (byte) (x >= 8 && x < 16 && y >= 16 ? digit : 0);
+            }
+        }
+        return pixels;
+    }
+
+    @Test
+    public void regionEqualsTest() {
+        final byte[] a = frame(1);
+        final byte[] b = frame(2);
+        assertWithMessage("top unchanged").that(FrameShadow.regionEquals(a, b, 0, 0, WIDTH, 16, WIDTH)).isTrue();
+        assertWithMessage("left unchanged").that(FrameShadow.regionEquals(a, b, 0, 16, 8, 16, WIDTH)).isTrue();
+        assertWithMessage("digit changed").that(FrameShadow.regionEquals(a, b, 8, 16, 8, 16, WIDTH)).isFalse();
+        assertWithMessage("corner of digit").that(FrameShadow.regionEquals(a, b, 15, 31, 1, 1, WIDTH)).isFalse();
+        assertWithMessage("right unchanged").that(FrameShadow.regionEquals(a, b, 16, 16, 8, 16, WIDTH)).isTrue();
+    }
+
+    @Test
+    public void storeAndInvalidateTest() {
+        final String key = FrameShadow.key(0, 110, WIDTH, HEIGHT, TJ_BitmapType.RGB565);
+        final byte[] a = frame(1);
+        FrameShadow.invalidate();
+        assertWithMessage("nothing yet").that(FrameShadow.previous(key, a.length)).isNull();
+        FrameShadow.store(key, a, true);
+        assertWithMessage("stored").that(FrameShadow.previous(key, a.length)).isSameInstanceAs(a);
+        assertWithMessage("size changed").that(FrameShadow.previous(key, a.length / 2)).isNull();
+        assertWithMessage("other window").that(FrameShadow.previous(FrameShadow.key(0, 0, WIDTH, HEIGHT, TJ_BitmapType.RGB565), a.length)).isNull();
+        FrameShadow.invalidate();
+        assertWithMessage("invalidated").that(FrameShadow.previous(key, a.length)).isNull();
+    }
+
+    @Test
+    public void updateTallyTest() {
+        final FrameShadow.Update update = new FrameShadow.Update();
+        update.skipped(256);
+        update.skipped(256);
+        update.sent(100);
+        update.sent(256);
+        assertWithMessage("sent").that(update.tilesSent).isEqualTo(2);
+        assertWithMessage("skipped").that(update.tilesSkipped).isEqualTo(2);
+        assertWithMessage("bytes sent").that(update.bytesSent).isEqualTo(356);
+        assertWithMessage("bytes saved").that(update.bytesSaved).isEqualTo(512);
+        FrameShadow.record(update);
+        assertWithMessage("summary").that(FrameShadow.summary()).isNotNull();
+    }
+}
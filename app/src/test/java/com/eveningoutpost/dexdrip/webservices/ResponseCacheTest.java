@@ -0,0 +1,24 @@
+package com.eveningoutpost.dexdrip.webservices;
+
+import org.junit.Test;
+
+import static com.google.common.truth.Truth.assertWithMessage;
+
+public class ResponseCacheTest {
+
+    @Test
+    public void isCacheableTest() {
+        assertWithMessage("plain sgv").that(ResponseCache.isCacheable("sgv.json")).isTrue();
+        assertWithMessage("nightscout sgv").that(ResponseCache.isCacheable("api/v1/entries/sgv.json?count=12")).isTrue();
+        assertWithMessage("brief sgv").that(ResponseCache.isCacheable("sgv.json?count=3&brief_mode&all_data=1")).isTrue();
+        assertWithMessage("pebble").that(ResponseCache.isCacheable("pebble")).isTrue();
+        assertWithMessage("status").that(ResponseCache.isCacheable("status.json")).isTrue();
+
+        assertWithMessage("steps side effect").that(ResponseCache.isCacheable("sgv.json?steps=1234")).isFalse();
+        assertWithMessage("tasker side effect").that(ResponseCache.isCacheable("sgv.json?count=1&tasker=osnooze")).isFalse();
+        assertWithMessage("collector status").that(ResponseCache.isCacheable("sgv.json?collector")).isFalse();
+        assertWithMessage("treatments").that(ResponseCache.isCacheable("treatments.json")).isFalse();
+        assertWithMessage("steps route").that(ResponseCache.isCacheable("steps/set/123")).isFalse();
+        assertWithMessage("sgv prefix only").that(ResponseCache.isCacheable("sgv.jsonx")).isFalse();
+    }
+}
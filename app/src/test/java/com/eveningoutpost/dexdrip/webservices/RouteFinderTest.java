@@ -36,6 +36,7 @@ public class RouteFinderTest extends RobolectricTestWithConfig {
       BgReading.deleteALL();
       Treatments.delete_all();
       Sensor.createDefaultIfMissing();
+      ResponseCache.clear();
     }
 
     @Test
@@ -345,6 +346,41 @@ public class RouteFinderTest extends RobolectricTestWithConfig {
 
     }
 
+    @Test
+    public void test_WebServiceSgvResponseCache() {
+        final RouteFinder routeFinder = new RouteFinder();
+        final long time = System.currentTimeMillis();
+        BgReading.bgReadingInsertFromG5(120, time - 300000);
+
+        final WebResponse first = ResponseCache.get("sgv.json?count=2", null, routeFinder);
+        validResponse("first sgv", first);
+        assertWithMessage("repeat poll reuses response bytes")
+                .that(ResponseCache.get("sgv.json?count=2", null, routeFinder))
+                .isSameInstanceAs(first);
+        assertWithMessage("different count is a different response")
+                .that(ResponseCache.get("sgv.json?count=1", null, routeFinder))
+                .isNotSameInstanceAs(first);
+        assertWithMessage("side effect parameters are not cached")
+                .that(ResponseCache.get("sgv.json?count=2&steps=1234", null, routeFinder))
+                .isNotSameInstanceAs(first);
+
+        Pref.setString("units", "mmol");
+        assertWithMessage("units change invalidates response")
+                .that(ResponseCache.get("sgv.json?count=2", null, routeFinder))
+                .isNotSameInstanceAs(first);
+        Pref.setString("units", "mgdl");
+
+        BgReading.bgReadingInsertFromG5(125, time);
+        final WebResponse second = ResponseCache.get("sgv.json?count=2", null, routeFinder);
+        validResponse("second sgv", second);
+        assertWithMessage("new reading invalidates response")
+                .that(second)
+                .isNotSameInstanceAs(first);
+        assertWithMessage("new reading changes etag")
+                .that(second.getETag())
+                .isNotEqualTo(first.getETag());
+    }
+
     private JSONObject buildExpectedBgReadingJSON(BgReading reading, boolean brief, boolean unitsHint) {
         final String collector_device = DexCollectionType.getBestCollectorHardwareName();
         JSONObject item = new JSONObject();
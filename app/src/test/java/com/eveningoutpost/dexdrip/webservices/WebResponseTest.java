@@ -0,0 +1,47 @@
+package com.eveningoutpost.dexdrip.webservices;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.GZIPInputStream;
+
+import static com.google.common.truth.Truth.assertWithMessage;
+
+public class WebResponseTest {
+
+    @Test
+    public void eTagTest() {
+        final WebResponse a = new WebResponse("[{\"sgv\":120}]");
+        final WebResponse b = new WebResponse("[{\"sgv\":120}]");
+        final WebResponse c = new WebResponse("[{\"sgv\":121}]");
+        assertWithMessage("quoted").that(a.getETag()).startsWith("\"");
+        assertWithMessage("same content same tag").that(a.getETag()).isEqualTo(b.getETag());
+        assertWithMessage("different content different tag").that(a.getETag()).isNotEqualTo(c.getETag());
+    }
+
+    @Test
+    public void gzipTest() throws IOException {
+        assertWithMessage("small not compressed").that(new WebResponse("[]").getGzipBytes()).isNull();
+
+        final StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < 100; i++) {
+            sb.append("{\"sgv\":").append(100 + i).append(",\"direction\":\"Flat\"},");
+        }
+        sb.append("{}]");
+        final WebResponse response = new WebResponse(sb.toString());
+        final byte[] compressed = response.getGzipBytes();
+        assertWithMessage("compressed").that(compressed).isNotNull();
+        assertWithMessage("smaller").that(compressed.length).isLessThan(response.bytes.length);
+
+        final GZIPInputStream input = new GZIPInputStream(new ByteArrayInputStream(compressed));
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[1024];
+        int read;
+        while ((read = input.read(buffer)) > 0) {
+            output.write(buffer, 0, read);
+        }
+        assertWithMessage("round trip").that(output.toByteArray()).isEqualTo(response.bytes);
+    }
+}